@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.library;
+
+import static com.lastcrusade.soundstream.util.CustomAssert.assertSongMetaEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.util.AlphabeticalComparator;
+
+public class LibraryIndexTest {
+
+    private static final String MAC_1 = "00:11:22:33:44:55";
+    private static final String MAC_2 = "00:11:22:33:44:56";
+
+    private LibraryIndex index;
+
+    @Before
+    public void setUp() {
+        index = new LibraryIndex();
+    }
+
+    private SongMetadata song(long id, String title, String artist, String mac) {
+        return new SongMetadata(id, title, artist, "Album", 1000, mac);
+    }
+
+    @Test
+    public void testSortedOrder() {
+        SongMetadata c = song(1, "Crosstown", "Booklyn Bombs", MAC_1);
+        SongMetadata a = song(2, "Frisky Frisco", "The Golden Gates", MAC_1);
+        SongMetadata b = song(3, "Bridge", "The Tacoma Narrows", MAC_2);
+        SongMetadata d = song(4, "Numbers", "99 Problems", MAC_2);
+        index.put(a);
+        index.put(b);
+        index.put(c);
+        index.put(d);
+
+        List<SongMetadata> songs = index.toList();
+        assertEquals(4, songs.size());
+        //letters come before other characters
+        assertSongMetaEquals(c, songs.get(0));
+        assertSongMetaEquals(a, songs.get(1));
+        assertSongMetaEquals(b, songs.get(2));
+        assertSongMetaEquals(d, songs.get(3));
+        for (int i = 0; i < songs.size(); i++) {
+            assertSongMetaEquals(songs.get(i), index.get(i));
+            assertEquals(i, index.indexOf(songs.get(i).getMacAddress(), songs.get(i).getId()));
+        }
+    }
+
+    @Test
+    public void testSortedListKeptUntilChanged() {
+        index.put(song(1, "Alpha", "Artist", MAC_1));
+        List<SongMetadata> songs = index.toList();
+        assertSame(songs, index.toList());
+
+        index.put(song(2, "Bravo", "Artist", MAC_1));
+        List<SongMetadata> added = index.toList();
+        assertNotSame(songs, added);
+        assertEquals(2, added.size());
+        assertSame(added, index.toList());
+
+        index.remove(MAC_1, 2);
+        assertNotSame(added, index.toList());
+        assertEquals(1, index.toList().size());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        SongMetadata a = song(1, "Alpha", "Artist", MAC_1);
+        SongMetadata b = song(2, "Bravo", "Artist", MAC_1);
+        index.put(a);
+        index.put(b);
+
+        //replacing a song moves it to its new place
+        SongMetadata renamed = song(1, "Charlie", "Artist", MAC_1);
+        assertSongMetaEquals(a, index.put(renamed));
+        assertEquals(2, index.size());
+        assertSongMetaEquals(b, index.get(0));
+        assertSongMetaEquals(renamed, index.get(1));
+        assertSongMetaEquals(renamed, index.get(MAC_1, 1));
+
+        assertSongMetaEquals(b, index.remove(MAC_1, 2));
+        assertNull(index.remove(MAC_1, 2));
+        assertEquals(-1, index.indexOf(MAC_1, 2));
+        assertEquals(1, index.size());
+        assertSongMetaEquals(renamed, index.get(0));
+    }
+
+    @Test
+    public void testEqualSongsKeepInsertionOrder() {
+        SongMetadata first  = song(7, "Same", "Artist", MAC_2);
+        SongMetadata second = song(3, "Same", "Artist", MAC_1);
+        SongMetadata third  = song(5, "Same", "Artist", MAC_1);
+        index.put(first);
+        index.put(second);
+        index.put(third);
+        //a replaced song keeps its place
+        SongMetadata updated = song(3, "Same", "Artist", MAC_1);
+        index.put(updated);
+
+        assertSongMetaEquals(first,   index.get(0));
+        assertSongMetaEquals(updated, index.get(1));
+        assertSongMetaEquals(third,   index.get(2));
+    }
+
+    @Test
+    public void testMatchesSortedList() {
+        Random random = new Random(42);
+        AlphabeticalComparator comparator = new AlphabeticalComparator();
+        List<SongMetadata> expected = new ArrayList<SongMetadata>();
+        for (int i = 0; i < 2000; i++) {
+            long id = random.nextInt(500);
+            String mac = random.nextBoolean() ? MAC_1 : MAC_2;
+            if (random.nextInt(4) == 0) {
+                index.remove(mac, id);
+                removeByKey(expected, mac, id);
+            } else {
+                SongMetadata song = song(id, "Title " + random.nextInt(50),
+                        "Artist " + random.nextInt(20), mac);
+                index.put(song);
+                removeByKey(expected, mac, id);
+                expected.add(song);
+            }
+        }
+        Collections.sort(expected, comparator);
+
+        List<SongMetadata> actual = index.toList();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(0, comparator.compare(expected.get(i), actual.get(i)));
+            assertSongMetaEquals(actual.get(i), index.get(i));
+            assertEquals(i, index.indexOf(actual.get(i).getMacAddress(), actual.get(i).getId()));
+        }
+    }
+
+    @Test
+    public void testPooledStrings() {
+        StringPool pool = new StringPool();
+        index = new LibraryIndex(pool);
+        //distinct but equal strings are stored once
+        index.put(song(1, "Alpha", new String("Artist"), MAC_1));
+        index.put(song(2, "Bravo", new String("Artist"), MAC_1));
+        assertSame(index.get(0).getArtist(), index.get(1).getArtist());
+        assertSame(index.get(0).getMacAddress(), index.get(1).getMacAddress());
+        //the artist, album and mac address
+        assertEquals(3, pool.size());
+
+        //songs with a null artist or album are pooled as null
+        index.put(new SongMetadata(3, "Charlie", null, null, 1000, MAC_2));
+        assertNull(index.get(MAC_2, 3).getArtist());
+        assertEquals(4, pool.size());
+
+        //strings are released when the last song that uses them is gone
+        index.remove(MAC_2, 3);
+        assertEquals(3, pool.size());
+        index.clear();
+        assertEquals(0, pool.size());
+        assertEquals(0, index.size());
+    }
+
+    private void removeByKey(List<SongMetadata> songs, String mac, long id) {
+        for (int i = 0; i < songs.size(); i++) {
+            if (songs.get(i).getMacAddress().equals(mac) && songs.get(i).getId() == id) {
+                songs.remove(i);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.library;
+
+import static com.lastcrusade.soundstream.util.CustomAssert.assertSongMetaEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.util.AlphabeticalComparator;
+
+public class SegmentedLibraryTest {
+
+    private static final String MAC_1 = "00:11:22:33:44:55";
+    private static final String MAC_2 = "00:11:22:33:44:56";
+    private static final String MAC_3 = "00:11:22:33:44:57";
+
+    private SegmentedLibrary library;
+
+    @Before
+    public void setUp() {
+        library = new SegmentedLibrary();
+    }
+
+    private SongMetadata song(long id, String title, String artist, String mac) {
+        return new SongMetadata(id, title, artist, "Album", 1000, mac);
+    }
+
+    @Test
+    public void testMergedOrder() {
+        SongMetadata a = song(1, "Alpha",   "Artist", MAC_2);
+        SongMetadata b = song(2, "Bravo",   "Artist", MAC_1);
+        SongMetadata c = song(3, "Charlie", "Artist", MAC_3);
+        SongMetadata d = song(4, "Delta",   "Artist", MAC_1);
+        library.put(d);
+        library.put(c);
+        library.put(b);
+        library.put(a);
+
+        assertEquals(4, library.size());
+        assertSongs(Arrays.asList(a, b, c, d), library.toList());
+        assertSongs(Arrays.asList(a, c), library.toListExcept(MAC_1));
+        assertSongs(Arrays.asList(b, d), library.getSongs(MAC_1));
+        assertSongMetaEquals(c, library.get(MAC_3, 3));
+        assertNull(library.get(MAC_3, 4));
+        assertNull(library.get("David", 3));
+    }
+
+    @Test
+    public void testMergedListKeptUntilChanged() {
+        library.put(song(1, "Alpha", "Artist", MAC_1));
+        library.put(song(2, "Bravo", "Artist", MAC_2));
+        List<SongMetadata> songs = library.toList();
+        assertSame(songs, library.toList());
+
+        library.put(song(3, "Charlie", "Artist", MAC_3));
+        List<SongMetadata> added = library.toList();
+        assertNotSame(songs, added);
+        assertEquals(3, added.size());
+        assertSame(added, library.toList());
+
+        library.replaceOwner(MAC_3, new ArrayList<SongMetadata>());
+        List<SongMetadata> replaced = library.toList();
+        assertNotSame(added, replaced);
+        assertEquals(2, replaced.size());
+
+        library.removeOwner(MAC_2);
+        assertNotSame(replaced, library.toList());
+        assertEquals(1, library.toList().size());
+    }
+
+    @Test
+    public void testEqualSongsInOwnerOrder() {
+        SongMetadata first  = song(1, "Same", "Artist", MAC_2);
+        SongMetadata second = song(1, "Same", "Artist", MAC_1);
+        library.put(first);
+        library.put(second);
+        assertSongs(Arrays.asList(first, second), library.toList());
+
+        //an owner whose songs are swapped keeps its place
+        SongMetadata replaced = song(1, "Same", "Artist", MAC_2);
+        library.replaceOwner(MAC_2, Arrays.asList(replaced));
+        assertSongs(Arrays.asList(replaced, second), library.toList());
+    }
+
+    @Test
+    public void testReplaceAndRemoveOwner() {
+        SongMetadata a = song(1, "Alpha", "Artist", MAC_1);
+        SongMetadata b = song(2, "Bravo", "Artist", MAC_2);
+        SongMetadata c = song(3, "Charlie", "Artist", MAC_2);
+        library.put(a);
+        library.put(b);
+
+        //songs owned by someone else are not part of the swap
+        List<SongMetadata> replaced = library.replaceOwner(MAC_2, Arrays.asList(c, song(4, "Echo", "Artist", MAC_1)));
+        assertSongs(Arrays.asList(b), replaced);
+        assertSongs(Arrays.asList(a, c), library.toList());
+
+        assertSongs(Arrays.asList(c), library.removeOwner(MAC_2));
+        assertTrue(library.removeOwner(MAC_2).isEmpty());
+        assertEquals(Arrays.asList(MAC_1), library.getOwners());
+        assertSongs(Arrays.asList(a), library.toList());
+
+        assertSongs(Arrays.asList(a), library.replaceOwner(MAC_1, new ArrayList<SongMetadata>()));
+        assertEquals(0, library.size());
+        assertTrue(library.toList().isEmpty());
+    }
+
+    @Test
+    public void testUnknownOwner() {
+        SongMetadata a       = song(1, "Alpha", "Artist", MAC_1);
+        SongMetadata unowned = song(2, "Bravo", "Artist", null);
+        library.put(a);
+        library.put(unowned);
+
+        assertSongs(Arrays.asList(a, unowned), library.toList());
+        assertSongs(Arrays.asList(unowned), library.toListExcept(MAC_1));
+        assertSongs(Arrays.asList(a), library.toListExcept(null));
+
+        SongMetadata copy = song(3, "Alpha", "Artist", null);
+        library.put(copy);
+        assertSongs(Arrays.asList(a, copy), library.getCopies(a));
+        library.removeOwner(null);
+        assertTrue(library.getCopies(a).isEmpty());
+    }
+
+    @Test
+    public void testCopies() {
+        SongMetadata mine   = song(1, "Alpha", "Artist", MAC_1);
+        SongMetadata theirs = song(8, "alpha ", "ARTIST", MAC_2);
+        SongMetadata other  = song(2, "Bravo", "Artist", MAC_2);
+        library.put(mine);
+        library.put(other);
+        assertTrue(library.getCopies(mine).isEmpty());
+
+        library.put(theirs);
+        assertSongs(Arrays.asList(mine, theirs), library.getCopies(mine));
+        assertSongs(Arrays.asList(mine, theirs), library.getCopies(theirs));
+        assertTrue(library.getCopies(other).isEmpty());
+
+        //a replaced song leaves its old group
+        SongMetadata renamed = song(8, "Charlie", "Artist", MAC_2);
+        library.put(renamed);
+        assertTrue(library.getCopies(mine).isEmpty());
+
+        library.put(song(9, "Alpha", "Artist", MAC_3));
+        assertEquals(2, library.getCopies(mine).size());
+        library.removeOwner(MAC_3);
+        assertTrue(library.getCopies(mine).isEmpty());
+    }
+
+    @Test
+    public void testMatchesSortedList() {
+        Random random = new Random(23);
+        String[] macs = {MAC_1, MAC_2, MAC_3};
+        List<SongMetadata> expected = new ArrayList<SongMetadata>();
+        for (int i = 0; i < 1000; i++) {
+            SongMetadata song = song(i, "Title " + random.nextInt(50),
+                    "Artist " + random.nextInt(20), macs[random.nextInt(macs.length)]);
+            library.put(song);
+            expected.add(song);
+        }
+        AlphabeticalComparator comparator = new AlphabeticalComparator();
+        Collections.sort(expected, comparator);
+
+        List<SongMetadata> actual = library.toList();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(0, comparator.compare(expected.get(i), actual.get(i)));
+        }
+    }
+
+    private void assertSongs(List<SongMetadata> expected, List<SongMetadata> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSongMetaEquals(expected.get(i), actual.get(i));
+        }
+    }
+}
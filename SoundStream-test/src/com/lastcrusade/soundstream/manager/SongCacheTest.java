@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.util.SongFingerprint;
+
+public class SongCacheTest {
+
+    private static final int KB = 1024;
+
+    private File folder;
+    private int nextSeed = 1;
+
+    @Before
+    public void setUp() throws IOException {
+        File temp = File.createTempFile("test", "");
+        temp.delete();
+        folder = new File(temp.getParentFile(), temp.getName() + ".cache");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void testStoreAndAcquire() throws IOException {
+        SongCache cache = new SongCache(folder, 1024 * KB);
+        File song = createSong(100 * KB);
+        long expected = SongFingerprint.compute(song);
+
+        long fingerprint = cache.store(song);
+        assertEquals(expected, fingerprint);
+        assertFalse(song.exists());
+        assertTrue(cache.contains(fingerprint));
+        assertEquals(100 * KB, cache.getBytes());
+        cache.release(fingerprint);
+
+        String path = cache.acquire(fingerprint);
+        assertNotNull(path);
+        assertEquals(expected, SongFingerprint.compute(new File(path)));
+        assertNull(cache.acquire(SongFingerprint.NONE));
+        assertNull(cache.acquire(expected + 1));
+    }
+
+    @Test
+    public void testStoreDuplicate() throws IOException {
+        SongCache cache = new SongCache(folder, 1024 * KB);
+        int seed = nextSeed;
+        long fingerprint = cache.store(createSong(100 * KB));
+        nextSeed = seed;
+        File copy = createSong(100 * KB);
+        assertEquals(fingerprint, cache.store(copy));
+        assertFalse(copy.exists());
+        assertEquals(100 * KB, cache.getBytes());
+    }
+
+    @Test
+    public void testEvictLeastUsed() throws IOException {
+        SongCache cache = new SongCache(folder, 250 * KB);
+        long first  = storeAndRelease(cache, 100 * KB);
+        long second = storeAndRelease(cache, 100 * KB);
+        //play the first song again
+        cache.acquire(first);
+        cache.release(first);
+
+        long third = storeAndRelease(cache, 100 * KB);
+        assertTrue(cache.contains(first));
+        assertFalse(cache.contains(second));
+        assertTrue(cache.contains(third));
+        assertEquals(200 * KB, cache.getBytes());
+    }
+
+    @Test
+    public void testEvictBiggestFirst() throws IOException {
+        SongCache cache = new SongCache(folder, 300 * KB);
+        long small = storeAndRelease(cache, 50 * KB);
+        long big   = storeAndRelease(cache, 200 * KB);
+
+        //the small song is older, but the big song frees more space for its hit
+        long next = storeAndRelease(cache, 100 * KB);
+        assertTrue(cache.contains(small));
+        assertFalse(cache.contains(big));
+        assertTrue(cache.contains(next));
+    }
+
+    @Test
+    public void testPinnedSongsStay() throws IOException {
+        SongCache cache = new SongCache(folder, 250 * KB);
+        long pinned = cache.store(createSong(200 * KB));
+
+        File song = createSong(100 * KB);
+        assertEquals(SongFingerprint.NONE, cache.store(song));
+        assertTrue(song.exists());
+        assertTrue(cache.contains(pinned));
+        song.delete();
+
+        //too big to ever fit
+        song = createSong(300 * KB);
+        assertEquals(SongFingerprint.NONE, cache.store(song));
+        song.delete();
+    }
+
+    @Test
+    public void testShrinkBudget() throws IOException {
+        SongCache cache = new SongCache(folder, 300 * KB);
+        long first  = storeAndRelease(cache, 100 * KB);
+        long second = cache.store(createSong(100 * KB));
+
+        cache.setMaxBytes(100 * KB);
+        assertFalse(cache.contains(first));
+        assertTrue(cache.contains(second));
+
+        //the pinned song is evicted once it is no longer in use
+        cache.setMaxBytes(0);
+        assertTrue(cache.contains(second));
+        cache.release(second);
+        assertFalse(cache.contains(second));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testIndexSurvivesRestart() throws IOException {
+        SongCache cache = new SongCache(folder, 250 * KB);
+        long first  = storeAndRelease(cache, 100 * KB);
+        long second = storeAndRelease(cache, 100 * KB);
+        cache.acquire(first);
+        cache.release(first);
+
+        //the hits are remembered, so the second song is evicted first
+        cache = new SongCache(folder, 250 * KB);
+        assertTrue(cache.contains(first));
+        assertTrue(cache.contains(second));
+        assertEquals(200 * KB, cache.getBytes());
+        storeAndRelease(cache, 100 * KB);
+        assertTrue(cache.contains(first));
+        assertFalse(cache.contains(second));
+    }
+
+    @Test
+    public void testLoadMatchesFolder() throws IOException {
+        SongCache cache = new SongCache(folder, 1024 * KB);
+        long first  = storeAndRelease(cache, 100 * KB);
+        long second = storeAndRelease(cache, 100 * KB);
+
+        //lose a song, and leave some junk behind
+        new File(cache.getPath(second)).delete();
+        File junk = new File(folder, "junk");
+        junk.createNewFile();
+
+        cache = new SongCache(folder, 1024 * KB);
+        assertTrue(cache.contains(first));
+        assertFalse(cache.contains(second));
+        assertEquals(100 * KB, cache.getBytes());
+        assertFalse(junk.exists());
+    }
+
+    private long storeAndRelease(SongCache cache, int size) throws IOException {
+        long fingerprint = cache.store(createSong(size));
+        assertFalse(fingerprint == SongFingerprint.NONE);
+        cache.release(fingerprint);
+        return fingerprint;
+    }
+
+    /**
+     * Create a song file with different content from the last one.
+     */
+    private File createSong(int size) throws IOException {
+        int seed = nextSeed++;
+        File file = File.createTempFile("test", ".tst");
+        FileOutputStream fos = new FileOutputStream(file);
+        byte[] data = new byte[size];
+        for (int ii = 0; ii < size; ii++) {
+            data[ii] = (byte) (ii * seed + seed);
+        }
+        fos.write(data);
+        fos.close();
+        return file;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.manager;
+
+import static com.lastcrusade.soundstream.util.ChunkChecksums.CHUNK_BYTES;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.net.message.FileMessage;
+import com.lastcrusade.soundstream.net.wire.FileReceiver;
+import com.lastcrusade.soundstream.util.ChunkChecksums;
+
+public class SongTransferTest {
+
+    private static final int SONG_SIZE = CHUNK_BYTES * 4 + 1234;
+
+    private File tempFolder;
+    private byte[] song;
+    private int[] checksums;
+
+    @Before
+    public void setUp() throws Exception {
+        tempFolder = File.createTempFile("test", "").getParentFile();
+        song = new byte[SONG_SIZE];
+        for (int ii = 0; ii < song.length; ii++) {
+            song[ii] = (byte) (ii * 7 + ii / 1000);
+        }
+        File songFile = File.createTempFile("test", ".tst");
+        FileOutputStream fos = new FileOutputStream(songFile);
+        fos.write(song);
+        fos.close();
+        checksums = ChunkChecksums.compute(songFile);
+        songFile.delete();
+    }
+
+    @Test
+    public void testResumeAfterInterruption() throws Exception {
+        SongTransfer transfer = new SongTransfer(1, "00:11:22:33:44:55");
+        assertEquals(0, transfer.getResumeOffset());
+
+        //receive two and a half chunks, then lose the connection
+        FileReceiver receiver = startSegment(transfer, song, 0, CHUNK_BYTES * 5 / 2);
+        assertNotNull(transfer.getSegmentPath());
+        receiver.abandon();
+        transfer.abandonSegment();
+        assertNull(transfer.getSegmentPath());
+        transfer.saveAbandonedSegments();
+        assertEquals(CHUNK_BYTES * 2, transfer.getResumeOffset());
+
+        //resume from there, and finish the song
+        int offset = (int) transfer.getResumeOffset();
+        File segment = receiveSegment(song, offset, SONG_SIZE - offset);
+        File songFile = transfer.complete(segment, offset, checksums);
+        assertNotNull(songFile);
+        assertFalse(segment.exists());
+        assertArrayEquals(song, readFile(songFile));
+        songFile.delete();
+    }
+
+    @Test
+    public void testResumeSkipsCorruptChunk() throws Exception {
+        SongTransfer transfer = new SongTransfer(1, "00:11:22:33:44:55");
+        byte[] corrupt = song.clone();
+        corrupt[CHUNK_BYTES + 100]++;
+        FileReceiver receiver = startSegment(transfer, corrupt, 0, CHUNK_BYTES * 3);
+        receiver.abandon();
+        transfer.abandonSegment();
+        transfer.saveAbandonedSegments();
+        //only the first chunk is good
+        assertEquals(CHUNK_BYTES, transfer.getResumeOffset());
+
+        //a second interruption picks up where the first left off
+        receiver = startSegment(transfer, song, CHUNK_BYTES, CHUNK_BYTES * 2 + 10);
+        receiver.abandon();
+        transfer.abandonSegment();
+        transfer.saveAbandonedSegments();
+        assertEquals(CHUNK_BYTES * 3, transfer.getResumeOffset());
+
+        int offset = (int) transfer.getResumeOffset();
+        File songFile = transfer.complete(receiveSegment(song, offset, SONG_SIZE - offset), offset, checksums);
+        assertArrayEquals(song, readFile(songFile));
+        songFile.delete();
+    }
+
+    @Test
+    public void testSongChangedOnGuest() throws Exception {
+        SongTransfer transfer = new SongTransfer(1, "00:11:22:33:44:55");
+        FileReceiver receiver = startSegment(transfer, song, 0, CHUNK_BYTES * 2);
+        receiver.abandon();
+        transfer.abandonSegment();
+        transfer.saveAbandonedSegments();
+        assertEquals(CHUNK_BYTES * 2, transfer.getResumeOffset());
+
+        //the guest's copy of the song is different now, so the rest won't line up
+        int[] changed = checksums.clone();
+        changed[0]++;
+        int offset = (int) transfer.getResumeOffset();
+        File segment = receiveSegment(song, offset, SONG_SIZE - offset);
+        assertNull(transfer.complete(segment, offset, changed));
+        assertFalse(segment.exists());
+        assertEquals(0, transfer.getResumeOffset());
+    }
+
+    @Test
+    public void testCompleteInOneSegment() throws Exception {
+        SongTransfer transfer = new SongTransfer(1, "00:11:22:33:44:55");
+        File segment = receiveSegment(song, 0, SONG_SIZE);
+        assertEquals(segment, transfer.complete(segment, 0, checksums));
+        assertArrayEquals(song, readFile(segment));
+        segment.delete();
+    }
+
+    /**
+     * Start receiving a segment of data, and register it with the transfer.
+     */
+    private FileReceiver startSegment(SongTransfer transfer, byte[] data, int offset, int count) throws Exception {
+        FileReceiver receiver = new FileReceiver(new FileMessage(), tempFolder);
+        receiver.receive(segmentStream(data, offset, count));
+        transfer.startSegment(offset, checksums, receiver.getIncomingFile());
+        return receiver;
+    }
+
+    /**
+     * Receive a whole segment from offset to the end of the data.
+     */
+    private File receiveSegment(byte[] data, int offset, int count) throws Exception {
+        FileMessage message = new FileMessage();
+        FileReceiver receiver = new FileReceiver(message, tempFolder);
+        receiver.receive(segmentStream(data, offset, count));
+        return new File(message.getFilePath());
+    }
+
+    /**
+     * Build the file data as it comes across the wire: the length of the segment,
+     * followed by count bytes of it.
+     */
+    private ByteArrayInputStream segmentStream(byte[] data, int offset, int count) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(data.length - offset);
+        dos.write(data, offset, count);
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+
+    private byte[] readFile(File file) throws Exception {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        dis.readFully(bytes);
+        dis.close();
+        return bytes;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.PlaylistEntry;
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+public class TransferSchedulerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private static final String MAC       = "00:11:22:33:44:55";
+    private static final String OTHER_MAC = "66:77:88:99:AA:BB";
+
+    private int nextId = 1;
+
+    @Test
+    public void testDeadlinesFollowPlayOrder() {
+        TransferScheduler scheduler = new TransferScheduler();
+        PlaylistEntry current = newEntry(4 * MB);
+        PlaylistEntry first   = newEntry(2 * MB);
+        PlaylistEntry second  = newEntry(3 * MB);
+        scheduler.setPlayOrder(Arrays.asList(first, second), current, 10000, 1000);
+
+        assertEquals(11000, scheduler.getDeadline(first));
+        assertEquals(11000 + TransferScheduler.estimateDuration(first), scheduler.getDeadline(second));
+        assertEquals(TransferScheduler.UNSCHEDULED, scheduler.getDeadline(newEntry(MB)));
+
+        //without the remaining time, the whole current song is estimated
+        scheduler.setPlayOrder(Arrays.asList(first), current, TransferScheduler.UNKNOWN, 1000);
+        assertEquals(1000 + TransferScheduler.estimateDuration(current), scheduler.getDeadline(first));
+    }
+
+    @Test
+    public void testPickNextByDeadline() {
+        TransferScheduler scheduler = new TransferScheduler();
+        PlaylistEntry a = newEntry(MB);
+        PlaylistEntry b = newEntry(MB);
+        PlaylistEntry c = newEntry(MB);
+        List<PlaylistEntry> pending = new ArrayList<PlaylistEntry>(Arrays.asList(a, b, c));
+
+        //nothing scheduled...first come, first served
+        assertSame(a, scheduler.pickNext(pending, 0));
+
+        scheduler.setPlayOrder(Arrays.asList(a, b, c), null, 0, 0);
+        assertSame(a, scheduler.pickNext(pending, 0));
+
+        //c was bumped to the top of the playlist
+        scheduler.setPlayOrder(Arrays.asList(c, a, b), null, 0, 0);
+        assertSame(c, scheduler.pickNext(pending, 0));
+
+        //c was removed, and isn't in the play order anymore
+        scheduler.setPlayOrder(Arrays.asList(b, a), null, 0, 0);
+        assertSame(b, scheduler.pickNext(pending, 0));
+
+        assertNull(scheduler.pickNext(Collections.<PlaylistEntry>emptyList(), 0));
+    }
+
+    @Test
+    public void testTransferLimits() {
+        TransferScheduler scheduler = new TransferScheduler();
+        scheduler.setMaxTransfers(2, 1);
+        PlaylistEntry a = newEntry(MB);
+        PlaylistEntry b = newEntry(MB);
+        PlaylistEntry c = newEntry(MB, OTHER_MAC);
+        PlaylistEntry d = newEntry(MB, "CC:DD:EE:FF:00:11");
+        List<PlaylistEntry> pending = new ArrayList<PlaylistEntry>(Arrays.asList(a, b, c, d));
+        scheduler.setPlayOrder(pending, null, 0, 0);
+
+        assertSame(a, scheduler.pickNext(pending, 0));
+        pending.remove(a);
+        scheduler.transferStarted(a, 0);
+        assertEquals(1, scheduler.getTransfersInFlight(MAC));
+        assertEquals(MB, scheduler.getBytesInFlight(MAC));
+
+        //a's link is busy, so b has to wait
+        assertSame(c, scheduler.pickNext(pending, 0));
+        pending.remove(c);
+        scheduler.transferStarted(c, 0);
+
+        //and now we're at the limit for all links
+        assertNull(scheduler.pickNext(pending, 0));
+
+        scheduler.transferFinished(a, MB, 1000);
+        assertEquals(0, scheduler.getBytesInFlight(MAC));
+        assertSame(b, scheduler.pickNext(pending, 1000));
+
+        //closing a link stops its transfers
+        scheduler.linkClosed(OTHER_MAC);
+        assertEquals(0, scheduler.getTransfersInFlight());
+    }
+
+    @Test
+    public void testPrefetchBatch() {
+        TransferScheduler scheduler = new TransferScheduler();
+        scheduler.setPrefetchWindow(3, 8 * MB);
+        PlaylistEntry a     = newEntry(MB);
+        PlaylistEntry other = newEntry(MB, OTHER_MAC);
+        PlaylistEntry b     = newEntry(MB);
+        PlaylistEntry c     = newEntry(MB);
+        PlaylistEntry d     = newEntry(MB);
+        PlaylistEntry unscheduled = newEntry(MB);
+        List<PlaylistEntry> pending = new ArrayList<PlaylistEntry>(Arrays.asList(a, other, b, c, d, unscheduled));
+        scheduler.setPlayOrder(Arrays.asList(a, other, b, c, d), null, 0, 0);
+
+        assertSame(a, scheduler.pickNext(pending, 0));
+        pending.remove(a);
+        scheduler.transferStarted(a, 0);
+
+        //the songs needed next from the same guest go in a's batch, up to the window
+        assertSame(b, scheduler.pickPrefetch(pending, a, 0));
+        pending.remove(b);
+        assertEquals(MAC, scheduler.transferPrefetched(b, a, 0).getMacAddress());
+        assertSame(c, scheduler.pickPrefetch(pending, a, 0));
+        pending.remove(c);
+        scheduler.transferPrefetched(c, a, 0);
+        assertNull(scheduler.pickPrefetch(pending, a, 0));
+        assertEquals(3, scheduler.getTransfersInFlight(MAC));
+
+        //the batch is one request, so the other link still gets its turn...
+        assertSame(other, scheduler.pickNext(pending, 0));
+        pending.remove(other);
+        scheduler.transferStarted(other, 0);
+        assertNull(scheduler.pickPrefetch(pending, other, 0));
+
+        //...and a's link waits for the whole batch
+        scheduler.transferFinished(a, MB, 1000);
+        scheduler.transferFinished(b, MB, 2000);
+        assertNull(scheduler.pickNext(pending, 2000));
+        scheduler.transferFinished(c, MB, 3000);
+        assertSame(d, scheduler.pickNext(pending, 3000));
+    }
+
+    @Test
+    public void testPrefetchBytes() {
+        TransferScheduler scheduler = new TransferScheduler();
+        scheduler.setPrefetchWindow(10, 3 * MB);
+        PlaylistEntry a = newEntry(2 * MB);
+        PlaylistEntry b = newEntry(2 * MB);
+        PlaylistEntry c = newEntry(MB);
+        List<PlaylistEntry> pending = new ArrayList<PlaylistEntry>(Arrays.asList(b, c));
+        scheduler.setPlayOrder(Arrays.asList(a, b, c), null, 0, 0);
+        scheduler.transferStarted(a, 0);
+
+        //b doesn't fit in the window, but c does
+        assertSame(c, scheduler.pickPrefetch(pending, a, 0));
+        pending.remove(c);
+        scheduler.transferPrefetched(c, a, 0);
+        assertNull(scheduler.pickPrefetch(pending, a, 0));
+        assertEquals(3 * MB, scheduler.getBytesInFlight(MAC));
+    }
+
+    @Test
+    public void testPickLeastSlack() {
+        TransferScheduler scheduler = new TransferScheduler();
+        PlaylistEntry fast = newEntry(MB);
+        PlaylistEntry slow = newEntry(MB, OTHER_MAC);
+        //measure the links: one is ten times faster than the other
+        scheduler.transferStarted(fast, 0);
+        scheduler.transferFinished(fast, 40 * MB, 1000);
+        scheduler.transferStarted(slow, 0);
+        scheduler.transferFinished(slow, 4 * MB, 1000);
+
+        //the fast link's song is needed a little sooner, but it will get here in time...
+        // the big song on the slow link needs to start now
+        PlaylistEntry soon  = newEntry(MB / 16);
+        PlaylistEntry later = newEntry(8 * MB, OTHER_MAC);
+        List<PlaylistEntry> pending = Arrays.asList(soon, later);
+        scheduler.setPlayOrder(pending, null, 10000, 0);
+        assertTrue(scheduler.getDeadline(soon) < scheduler.getDeadline(later));
+        assertSame(later, scheduler.pickNext(pending, 0));
+    }
+
+    @Test
+    public void testPickFastestCopy() {
+        TransferScheduler scheduler = new TransferScheduler();
+        PlaylistEntry busy = newEntry(8 * MB);
+        scheduler.transferStarted(busy, 0);
+
+        //the song's owner is busy, so it comes from the copy on the idle link
+        PlaylistEntry entry = newEntry(MB);
+        SongMetadata copy = new SongMetadata(99, "Title", "Artist", "Album", MB, OTHER_MAC);
+        List<PlaylistEntry> pending = Arrays.asList(entry);
+        scheduler.setCopies(Collections.singletonMap(entry, Arrays.<SongMetadata>asList(entry, copy)));
+        assertSame(entry, scheduler.pickNext(pending, 0));
+        assertSame(copy, scheduler.transferStarted(entry, 0));
+        assertSame(copy, scheduler.getSource(entry));
+        assertEquals(1, scheduler.getTransfersInFlight(OTHER_MAC));
+        assertEquals(MB * 1000 / scheduler.getThroughput(OTHER_MAC), scheduler.getEta(entry, pending, 0), 1);
+
+        //once it's done, the entry is its own source again
+        scheduler.transferFinished(entry, MB, 1000);
+        assertSame(entry, scheduler.getSource(entry));
+
+        //with both links idle, the faster one wins
+        scheduler.transferFinished(busy, 8 * MB, 1000);
+        assertSame(entry, scheduler.transferStarted(entry, 1000));
+    }
+
+    @Test
+    public void testThroughput() {
+        TransferScheduler scheduler = new TransferScheduler();
+        PlaylistEntry a = newEntry(MB);
+        PlaylistEntry b = newEntry(MB);
+        scheduler.transferStarted(a, 0);
+        scheduler.transferStarted(b, 0);
+        assertEquals(2, scheduler.getTransfersInFlight());
+
+        long before = scheduler.getThroughput(MAC);
+        //a faster connection than the default
+        scheduler.transferFinished(a, MB, 1000);
+        long after = scheduler.getThroughput(MAC);
+        assertTrue(after > before);
+
+        //the second transfer overlapped the first, so only the time after the first
+        // finished is counted
+        scheduler.transferFinished(b, MB, 2000);
+        assertTrue(scheduler.getThroughput(MAC) > after);
+        assertEquals(0, scheduler.getTransfersInFlight());
+
+        //stopped transfers don't count
+        scheduler.transferStarted(a, 3000);
+        scheduler.transferStopped(a);
+        assertEquals(0, scheduler.getTransfersInFlight());
+    }
+
+    @Test
+    public void testEta() {
+        TransferScheduler scheduler = new TransferScheduler();
+        PlaylistEntry loaded   = newEntry(MB);
+        loaded.setFilePath("/tmp/loaded");
+        PlaylistEntry inFlight = newEntry(MB);
+        PlaylistEntry first    = newEntry(MB);
+        PlaylistEntry second   = newEntry(2 * MB);
+        List<PlaylistEntry> pending = Arrays.asList(second, first);
+        scheduler.setPlayOrder(Arrays.asList(inFlight, first, second), null, 0, 0);
+        scheduler.transferStarted(inFlight, 0);
+
+        long rate = scheduler.getThroughput(MAC);
+        assertEquals(0, scheduler.getEta(loaded, pending, 0));
+        assertEquals(MB * 1000 / rate, scheduler.getEta(inFlight, pending, 0), 1);
+        //first is needed before second, so it's loaded right after the transfer in flight
+        assertEquals(2 * MB * 1000 / rate, scheduler.getEta(first, pending, 0), 1);
+        assertEquals(4 * MB * 1000 / rate, scheduler.getEta(second, pending, 0), 1);
+        assertEquals(TransferScheduler.UNKNOWN, scheduler.getEta(newEntry(MB), pending, 0));
+    }
+
+    private PlaylistEntry newEntry(long fileSize) {
+        return newEntry(fileSize, MAC);
+    }
+
+    private PlaylistEntry newEntry(long fileSize, String macAddress) {
+        return new PlaylistEntry(new SongMetadata(nextId++, "Title", "Artist", "Album", fileSize, macAddress));
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.net.message.FileMessage;
+import com.lastcrusade.soundstream.net.message.IMessage;
+import com.lastcrusade.soundstream.net.message.LibraryMessage;
+import com.lastcrusade.soundstream.net.message.PlayMessage;
+import com.lastcrusade.soundstream.net.message.SkipMessage;
+import com.lastcrusade.soundstream.net.message.TransferSongMessage;
+import com.lastcrusade.soundstream.net.wire.Messenger;
+import com.lastcrusade.soundstream.net.wire.PacketFormat;
+import com.lastcrusade.soundstream.util.MessageTestUtil;
+
+public class MessageThreadWriterTest {
+
+    private ByteArrayOutputStream out;
+    private Messenger messenger;
+    private MessageThreadWriter writer;
+    private int messageNo;
+    private List<File> tempFiles;
+
+    @Before
+    public void setUp() {
+        out       = new ByteArrayOutputStream();
+        messenger = new Messenger(new File(""));
+        writer    = new MessageThreadWriter(messenger, out);
+        messageNo = 0;
+        tempFiles = new ArrayList<File>();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : tempFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTrafficClasses() throws Exception {
+        assertEquals(MessageThreadWriter.CLASS_CONTROL,  MessageThreadWriter.getTrafficClass(new PlayMessage()));
+        assertEquals(MessageThreadWriter.CLASS_METADATA, MessageThreadWriter.getTrafficClass(new LibraryMessage()));
+        assertEquals(MessageThreadWriter.CLASS_BULK,     MessageThreadWriter.getTrafficClass(new FileMessage()));
+    }
+
+    /**
+     * Test that a control message is written promptly, even when there is a
+     * backlog of several large transfers.
+     */
+    @Test
+    public void testControlJumpsBulkBacklog() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            enqueueFile(20 * messenger.getSendPacketSize());
+        }
+        //start the transfers
+        writer.writeOne();
+        int playNo = enqueue(new PlayMessage());
+
+        List<Integer> packets = writeAll();
+        //the control message must go out before the bulk class can send another packet
+        assertEquals(playNo, (int) packets.get(0));
+    }
+
+    /**
+     * Test that a transfer makes progress, even when there is a backlog of
+     * library messages.
+     */
+    @Test
+    public void testBulkNotStarved() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            enqueue(newLargeLibraryMessage());
+        }
+        int fileNo = enqueueFile(4 * messenger.getSendPacketSize());
+
+        List<Integer> packets = writeAll();
+        //the metadata class gets 2 packets per round, and then the file gets its turn
+        assertEquals(fileNo, (int) packets.get(2));
+        assertFalse(writer.canWrite());
+    }
+
+    /**
+     * Test the FIFO and round robin orders within the bulk class.
+     */
+    @Test
+    public void testBulkOrder() throws Exception {
+        int firstNo  = enqueueFile(3 * messenger.getSendPacketSize());
+        int secondNo = enqueueFile(3 * messenger.getSendPacketSize());
+        List<Integer> packets = writeAll();
+        //FIFO sends the first file completely before the second
+        assertTrue(packets.lastIndexOf(firstNo) < packets.indexOf(secondNo));
+
+        writer.setClassOrder(MessageThreadWriter.CLASS_BULK, MessageThreadWriter.ORDER_ROUND_ROBIN);
+        firstNo  = enqueueFile(3 * messenger.getSendPacketSize());
+        secondNo = enqueueFile(3 * messenger.getSendPacketSize());
+        packets = writeAll();
+        //round robin interleaves the two files
+        assertEquals(firstNo,  (int) packets.get(0));
+        assertEquals(secondNo, (int) packets.get(1));
+        assertEquals(firstNo,  (int) packets.get(2));
+        assertEquals(secondNo, (int) packets.get(3));
+    }
+
+    /**
+     * Test that the classes share the connection according to their weights
+     * when they all have a backlog.
+     */
+    @Test
+    public void testClassWeights() throws Exception {
+        writer.setClassWeight(MessageThreadWriter.CLASS_METADATA, 1);
+        writer.setClassWeight(MessageThreadWriter.CLASS_BULK,     3);
+        for (int i = 0; i < 10; i++) {
+            enqueue(newLargeLibraryMessage());
+        }
+        int fileNo = enqueueFile(20 * messenger.getSendPacketSize());
+
+        List<Integer> packets = writeAll();
+        //the file gets 3 packets for every library packet
+        int filePackets = 0;
+        for (int packet : packets.subList(0, 12)) {
+            if (packet == fileNo) {
+                filePackets++;
+            }
+        }
+        assertEquals(9, filePackets);
+    }
+
+    /**
+     * Test that a writer thread waiting for messages wakes up as soon as a
+     * message is enqueued.
+     */
+    @Test
+    public void testWaitForMessagesWakesOnEnqueue() throws Exception {
+        final CountDownLatch woke = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (writer.waitForMessages()) {
+                        woke.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    //fall thru, the test will fail
+                }
+            }
+        });
+        waiter.start();
+        //the queue is empty, so the waiter should still be waiting
+        assertFalse(woke.await(50, TimeUnit.MILLISECONDS));
+
+        enqueue(new PlayMessage());
+        assertTrue(woke.await(1, TimeUnit.SECONDS));
+        waiter.join(1000);
+    }
+
+    /**
+     * Test that closing the writer wakes up a waiting writer thread, and
+     * releases any messages left in the queue.
+     */
+    @Test
+    public void testCloseWakesWaiter() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (!writer.waitForMessages()) {
+                        closed.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    //fall thru, the test will fail
+                }
+            }
+        });
+        waiter.start();
+        writer.close();
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        waiter.join(1000);
+
+        assertFalse(writer.canWrite());
+        assertFalse(writer.waitForMessages());
+    }
+
+    /**
+     * Test cancelling transfers that have and have not started writing.
+     */
+    @Test
+    public void testCancelTransfer() throws Exception {
+        int startedNo = enqueueTransfer(7L, 5 * messenger.getSendPacketSize());
+        enqueueTransfer(8L, 5 * messenger.getSendPacketSize());
+        //start the first transfer
+        writer.writeOne();
+
+        assertTrue(writer.cancelTransfer(7L));
+        assertTrue(writer.cancelTransfer(8L));
+        assertFalse(writer.cancelTransfer(9L));
+
+        //the second transfer is gone, and the first ends with an abort packet
+        out.reset();
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(PacketFormat.getOverhead(), buffer.remaining());
+        assertEquals(PacketFormat.getMessageNoOverhead(), buffer.getInt());
+        assertEquals(startedNo, buffer.getInt());
+    }
+
+    @Test(expected = IOException.class)
+    public void testEnqueueAfterClose() throws Exception {
+        writer.close();
+        enqueue(new PlayMessage());
+    }
+
+    private int enqueue(IMessage message) throws Exception {
+        int no = messageNo++;
+        writer.enqueue(no, message);
+        return no;
+    }
+
+    /**
+     * @return A library message that takes several packets to send
+     */
+    private LibraryMessage newLargeLibraryMessage() {
+        List<SongMetadata> library = new ArrayList<SongMetadata>();
+        for (int i = 0; i < 400; i++) {
+            library.add(new SongMetadata(i, "A song with a long title " + i, "Artist",
+                    "Album", 1000000, "00:11:22:33:44:55"));
+        }
+        return new LibraryMessage(library);
+    }
+
+    private int enqueueFile(int size) throws Exception {
+        File file = MessageTestUtil.getTempTestFile(size);
+        tempFiles.add(file);
+        FileMessage message = new FileMessage();
+        message.setFilePath(file.getCanonicalPath());
+        return enqueue(message);
+    }
+
+    private int enqueueTransfer(long transferId, int size) throws Exception {
+        File file = MessageTestUtil.getTempTestFile(size);
+        tempFiles.add(file);
+        return enqueue(new TransferSongMessage(1L, "song.mp3", file.getCanonicalPath(), transferId, 0, new int[0]));
+    }
+
+    /**
+     * Write all of the queued messages, and return the message number of each packet
+     * written in order.  The numbers are those assigned by the Messenger, which are the
+     * same as the numbers passed to enqueue in these tests.
+     */
+    private List<Integer> writeAll() throws Exception {
+        out.reset();
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        List<Integer> packets = new ArrayList<Integer>();
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            packets.add(buffer.getInt());
+            buffer.position(buffer.position() + length - 4);
+        }
+        return packets;
+    }
+}
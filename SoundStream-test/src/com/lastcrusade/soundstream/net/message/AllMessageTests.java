@@ -25,13 +25,18 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ AddToPlaylistMessageTest.class,
-        BumpSongOnPlaylistMessageTest.class, ConnectGuestsMessageTest.class,
+        BumpSongOnPlaylistMessageTest.class, CancelTransferMessageTest.class,
+        ConnectGuestsMessageTest.class,
         FindNewGuestsMessageTest.class, FoundGuestsMessageTest.class,
-        LibraryMessageTest.class, MessengerTest.class, PauseMessageTest.class,
-        PlaylistMessageTest.class, PlayMessageTest.class,
+        LibraryDeltaMessageTest.class, LibraryMessageTest.class,
+        MessengerTest.class, PauseMessageTest.class,
+        PlaylistMessageTest.class, PlaylistPatchMessageTest.class, PlayMessageTest.class,
         PlayStatusMessageTest.class, RemoveFromPlaylistMessageTest.class,
-        RequestSongMessageTest.class, SkipMessageTest.class,
-        SongStatusMessageTest.class, TransferSongMessageTest.class,
+        RequestLibraryMessageTest.class, RequestPlaylistMessageTest.class,
+        RequestSongBatchMessageTest.class, RequestSongMessageTest.class,
+        SkipMessageTest.class,
+        SongStatusMessageTest.class, TransferCancelledMessageTest.class,
+        TransferSongMessageTest.class,
         UserListMessageTest.class })
 public class AllMessageTests {
 
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.message;
+
+import static com.lastcrusade.soundstream.util.CustomAssert.assertSongMetaEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+public class LibraryDeltaMessageTest extends SerializationTest<LibraryDeltaMessage> {
+
+    @Test
+    public void testSerializeLibraryDeltaMessage() throws Exception {
+        String macAddress = "00:11:22:33:44:55";
+        List<SongMetadata> songs = Arrays.asList(
+                new SongMetadata(69, "Driver that Had a Dick on His Shoulder",
+                        "Aziz Ansari", "Dangerously Delicious", 2345, macAddress),
+                new SongMetadata(1, "Lady with the Puppies", null,
+                        "Dangerously Delicious", 23462346, macAddress));
+
+        LibraryDeltaMessage message = super.testSerializeMessage(
+                new LibraryDeltaMessage(42, macAddress, false, songs));
+
+        assertEquals(42, message.getSequence());
+        assertEquals(macAddress, message.getMacAddress());
+        assertFalse(message.isReplace());
+        assertEquals(songs.size(), message.getSongs().size());
+        for (int i = 0; i < songs.size(); i++) {
+            assertSongMetaEquals(songs.get(i), message.getSongs().get(i));
+        }
+    }
+
+    @Test
+    public void testSerializeRemoveOwner() throws Exception {
+        LibraryDeltaMessage message = super.testSerializeMessage(
+                new LibraryDeltaMessage(7, "00:11:22:33:44:55", true, new ArrayList<SongMetadata>()));
+
+        assertEquals(7, message.getSequence());
+        assertEquals("00:11:22:33:44:55", message.getMacAddress());
+        assertTrue(message.isReplace());
+        assertTrue(message.getSongs().isEmpty());
+    }
+}
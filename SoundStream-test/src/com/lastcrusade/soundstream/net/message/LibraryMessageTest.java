@@ -20,7 +20,11 @@
 package com.lastcrusade.soundstream.net.message;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -28,6 +32,7 @@ import java.util.List;
 import org.junit.Test;
 
 import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.util.SongFingerprint;
 
 public class LibraryMessageTest extends SerializationTest<LibraryMessage> {
 	
@@ -37,6 +42,7 @@ public class LibraryMessageTest extends SerializationTest<LibraryMessage> {
 		
 		LibraryMessage preSerializationLibraryMessage = new LibraryMessage(library);
 		LibraryMessage postSerializationLibraryMessage = super.testSerializeMessage(preSerializationLibraryMessage);
+		assertEquals(LibraryMessage.NO_SEQUENCE, postSerializationLibraryMessage.getSequence());
 		
 		for(int i = 0; i < library.size(); i++) {
 			SongMetadata preSerializationSongMetadata = library.get(i);
@@ -50,6 +56,74 @@ public class LibraryMessageTest extends SerializationTest<LibraryMessage> {
 		}
 	}
 
+	@Test
+	public void testSerializeLibrarySnapshot() throws Exception {
+	    List<SongMetadata> library = populateTestLibrary();
+	    LibraryMessage message = super.testSerializeMessage(new LibraryMessage(library, 1234));
+	    assertEquals(1234, message.getSequence());
+	    assertEquals(library.size(), message.getLibrary().size());
+	}
+
+	@Test
+	public void testSerializeFingerprint() throws Exception {
+	    List<SongMetadata> library = populateTestLibrary();
+	    library.get(0).setFingerprint(0x8123456789ABCDEFL);
+	    LibraryMessage message = super.testSerializeMessage(new LibraryMessage(library));
+	    assertEquals(0x8123456789ABCDEFL,  message.getLibrary().get(0).getFingerprint());
+	    assertEquals(SongFingerprint.NONE, message.getLibrary().get(1).getFingerprint());
+	}
+
+	@Test
+	public void testSerializeLibraryMessageUnicode() throws Exception {
+	    List<SongMetadata> library = Arrays.asList(
+	            new SongMetadata(1, "D\u00e9j\u00e0 Vu", "Beyonc\u00e9", "B'Day", 1234, "00:11:22:33:44:55"),
+	            new SongMetadata(2, "\u4e38\u306e\u5185\u30b5\u30c7\u30a3\u30b9\u30c6\u30a3\u30c3\u30af",
+	                    "\u6771\u4eac\u4e8b\u5909", "", 5678, "00:11:22:33:44:55"));
+	    LibraryMessage message = super.testSerializeMessage(new LibraryMessage(library));
+	    for (int i = 0; i < library.size(); i++) {
+	        assertEquals(library.get(i).getTitle(),  message.getLibrary().get(i).getTitle());
+	        assertEquals(library.get(i).getArtist(), message.getLibrary().get(i).getArtist());
+	        assertEquals(library.get(i).getAlbum(),  message.getLibrary().get(i).getAlbum());
+	    }
+	}
+
+	@Test
+	public void testSerializeLibraryMessageIsCompact() throws Exception {
+	    //a big library from one guest, with one artist and album, should only send
+	    // the repeated strings once
+	    int songs = 1000;
+	    List<SongMetadata> library = new ArrayList<SongMetadata>();
+	    for (int i = 0; i < songs; i++) {
+	        library.add(new SongMetadata(i, "Song " + i, "Aziz Ansari",
+	                "Dangerously Delicious", 4 * 1024 * 1024, "00:11:22:33:44:55"));
+	    }
+	    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	    new LibraryMessage(library).serialize(baos);
+	    //2 byte id, 9 byte title, 3 bytes of string indices and a 4 byte file size
+	    assertTrue("Library is " + baos.size() + " bytes", baos.size() < songs * 20);
+
+	    LibraryMessage message = super.testSerializeMessage(new LibraryMessage(library));
+	    assertEquals(songs, message.getLibrary().size());
+	    SongMetadata last = message.getLibrary().get(songs - 1);
+	    assertEquals(songs - 1,             last.getId());
+	    assertEquals("Song " + (songs - 1), last.getTitle());
+	    assertEquals(4 * 1024 * 1024,       last.getFileSize());
+	    assertEquals("00:11:22:33:44:55",   last.getMacAddress());
+	}
+
+	@Test(expected = IOException.class)
+	public void testDeserializeCorruptLibrarySize() throws Exception {
+	    //no sequence, an empty string table, and a library size of 2^31 - 1 with no songs after it
+	    byte[] bytes = {0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+	    new LibraryMessage().deserialize(new ByteArrayInputStream(bytes));
+	}
+
+	@Test(expected = IOException.class)
+	public void testDeserializeCorruptStringTableSize() throws Exception {
+	    byte[] bytes = {0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+	    new LibraryMessage().deserialize(new ByteArrayInputStream(bytes));
+	}
+
 	public List<SongMetadata> populateTestLibrary() {
         List<SongMetadata> library = new ArrayList<SongMetadata>(Arrays.asList(
                 new SongMetadata(69, "Driver that Had a Dick on His Shoulder",
@@ -63,7 +137,10 @@ public class LibraryMessageTest extends SerializationTest<LibraryMessage> {
                 //NOTE: this id is specifically chosen to make sure that readLong/writeLong
                 // will handle encoded bytes that are negative
                 new SongMetadata(59916, "Numbers are Fun", "Jesse and Reid",
-                        "The WTF Tour", 2346236, null)
+                        "The WTF Tour", 2346236, null),
+                //and this one makes sure all 8 bytes of the long survive
+                new SongMetadata(0x80FF123456789ABCL, "Bigger Numbers", "Jesse and Reid",
+                        "The WTF Tour", 4294967296L, null)
             ));
         return library;
     }
@@ -22,7 +22,9 @@ package com.lastcrusade.soundstream.net.message;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -37,6 +39,8 @@ import org.junit.Test;
 
 import com.lastcrusade.soundstream.net.core.AComplexDataType;
 import com.lastcrusade.soundstream.net.wire.FileReceiver;
+import com.lastcrusade.soundstream.net.wire.IncompatibleVersionException;
+import com.lastcrusade.soundstream.net.wire.IncomingFile;
 import com.lastcrusade.soundstream.net.wire.Messenger;
 import com.lastcrusade.soundstream.net.wire.PacketFormat;
 import com.lastcrusade.soundstream.util.CustomAssert;
@@ -186,6 +190,139 @@ public class MessengerTest {
         CustomAssert.assertChecksumsMatch(tempFile.getCanonicalPath(), ((FileMessage)message).getFilePath());
     }
 
+    @Test
+    public void testNotifyFileStarted() throws Exception {
+
+        File tempFile = MessageTestUtil.getTempTestFile(1025);
+        Messenger messenger = new Messenger(File.createTempFile("test", "").getParentFile());
+        messenger.setNotifyFileStarted(true);
+        FileMessage testMessage = new FileMessage();
+        testMessage.setFilePath(tempFile.getCanonicalPath());
+        List<PacketFormat> packets = simulateSendAndReceive(testMessage, 512);
+
+        InputBuffer buffer = new InputBuffer();
+        packets.get(0).serialize(buffer);
+        //the first packet starts the file, which should be announced
+        assertTrue(messenger.deserializeMessage(buffer.getInputStream()));
+        buffer.consume();
+        assertTrue(messenger.getReceivedMessages().isEmpty());
+        assertEquals(1, messenger.getStartedFiles().size());
+        String path = messenger.getStartedFiles().get(0).getFilePath();
+        IncomingFile incoming = IncomingFile.find(path);
+        assertNotNull(incoming);
+        assertEquals(tempFile.length(), incoming.getFileSize());
+        assertTrue(incoming.getBytesReceived() > 0);
+        assertFalse(incoming.isComplete());
+        messenger.clearReceivedMessages();
+
+        //the rest of the packets finish the file, which is received as usual
+        for (int ii = 1; ii < packets.size(); ii++) {
+            packets.get(ii).serialize(buffer);
+        }
+        assertTrue(messenger.deserializeMessage(buffer.getInputStream()));
+        assertEquals(1, messenger.getReceivedMessages().size());
+        assertTrue(messenger.getReceivedMessages().get(0) instanceof FileMessage);
+        assertTrue(messenger.getStartedFiles().isEmpty());
+        assertTrue(incoming.isComplete());
+        assertEquals(tempFile.length(), incoming.getBytesReceived());
+        assertNull(IncomingFile.find(path));
+        CustomAssert.assertChecksumsMatch(tempFile.getCanonicalPath(), path);
+    }
+
+    @Test
+    public void testAbandonTransfers() throws Exception {
+
+        File tempFile = MessageTestUtil.getTempTestFile(1025);
+        Messenger messenger = new Messenger(File.createTempFile("test", "").getParentFile());
+        messenger.setNotifyFileStarted(true);
+        FileMessage testMessage = new FileMessage();
+        testMessage.setFilePath(tempFile.getCanonicalPath());
+        List<PacketFormat> packets = simulateSendAndReceive(testMessage, 512);
+
+        InputBuffer buffer = new InputBuffer();
+        packets.get(0).serialize(buffer);
+        assertTrue(messenger.deserializeMessage(buffer.getInputStream()));
+        String path = messenger.getStartedFiles().get(0).getFilePath();
+        IncomingFile incoming = IncomingFile.find(path);
+        assertNotNull(incoming);
+
+        messenger.abandonTransfers();
+        assertTrue(incoming.isAbandoned());
+        assertFalse(incoming.isComplete());
+        assertNull(IncomingFile.find(path));
+        new File(path).delete();
+    }
+
+    @Test
+    public void testCancelTransfer() throws Exception {
+
+        File tempFile = MessageTestUtil.getTempTestFile(2048);
+        Messenger messenger = new Messenger(File.createTempFile("test", "").getParentFile());
+        messenger.setNotifyFileStarted(true);
+        TransferSongMessage testMessage = new TransferSongMessage(1L, "song.mp3", tempFile.getCanonicalPath(), 42L, 0, new int[0]);
+        List<PacketFormat> packets = simulateSendAndReceive(testMessage, 512);
+
+        InputBuffer buffer = new InputBuffer();
+        packets.get(0).serialize(buffer);
+        assertTrue(messenger.deserializeMessage(buffer.getInputStream()));
+        buffer.consume();
+        String path = messenger.getStartedFiles().get(0).getFilePath();
+        IncomingFile incoming = IncomingFile.find(path);
+        messenger.clearReceivedMessages();
+
+        //the next packet after the cancel throws away the file
+        messenger.cancelTransfer(42L);
+        packets.get(1).serialize(buffer);
+        assertFalse(messenger.deserializeMessage(buffer.getInputStream()));
+        buffer.consume();
+        assertTrue(incoming.isAbandoned());
+        assertFalse(new File(path).exists());
+
+        //the rest of the packets are dropped, until the abort packet
+        for (int ii = 2; ii < packets.size(); ii++) {
+            packets.get(ii).serialize(buffer);
+        }
+        new PacketFormat(packets.get(0).getMessageNo(), new byte[0]).serialize(buffer);
+        assertFalse(messenger.deserializeMessage(buffer.getInputStream()));
+        buffer.consume();
+        assertTrue(messenger.getReceivedMessages().isEmpty());
+
+        //and the message number can be used again
+        FileMessage nextMessage = new FileMessage();
+        nextMessage.setFilePath(tempFile.getCanonicalPath());
+        for (PacketFormat packet : simulateSendAndReceive(nextMessage, 512)) {
+            packet.serialize(buffer);
+        }
+        assertTrue(messenger.deserializeMessage(buffer.getInputStream()));
+        List<IMessage> messages = messenger.getReceivedMessages();
+        IMessage received = messages.get(messages.size() - 1);
+        assertTrue(received instanceof FileMessage);
+        CustomAssert.assertChecksumsMatch(tempFile.getCanonicalPath(), ((FileMessage) received).getFilePath());
+    }
+
+    @Test
+    public void testAbortPacket() throws Exception {
+
+        File tempFile = MessageTestUtil.getTempTestFile(2048);
+        Messenger messenger = new Messenger(File.createTempFile("test", "").getParentFile());
+        messenger.setNotifyFileStarted(true);
+        FileMessage testMessage = new FileMessage();
+        testMessage.setFilePath(tempFile.getCanonicalPath());
+        List<PacketFormat> packets = simulateSendAndReceive(testMessage, 512);
+
+        InputBuffer buffer = new InputBuffer();
+        packets.get(0).serialize(buffer);
+        assertTrue(messenger.deserializeMessage(buffer.getInputStream()));
+        buffer.consume();
+        String path = messenger.getStartedFiles().get(0).getFilePath();
+        messenger.clearReceivedMessages();
+
+        //the sender gave up on the message
+        new PacketFormat(packets.get(0).getMessageNo(), new byte[0]).serialize(buffer);
+        assertFalse(messenger.deserializeMessage(buffer.getInputStream()));
+        assertFalse(new File(path).exists());
+    }
+
     @Test
     public void testSerializeMessage() throws Exception {
         
@@ -211,6 +348,124 @@ public class MessengerTest {
         assertEquals(0, received.available());
     }
 
+    @Test
+    public void testCancelTransferConfirmed() throws Exception {
+        File tempFile = MessageTestUtil.getTempTestFile(2048);
+        Messenger messenger = new Messenger(File.createTempFile("test", "").getParentFile());
+        messenger.cancelTransfer(42L);
+
+        //the sender confirms before sending any of the transfer...this is not passed on
+        InputStream confirm = new Messenger(new File("")).serializeMessage(new TransferCancelledMessage(42L));
+        assertFalse(messenger.deserializeMessage(confirm));
+        assertTrue(messenger.getReceivedMessages().isEmpty());
+
+        //so a later transfer with the same id is received
+        assertTransferReceived(messenger, tempFile, 42L);
+    }
+
+    @Test
+    public void testCancelTransferConfirmedAfterStarted() throws Exception {
+        File tempFile = MessageTestUtil.getTempTestFile(2048);
+        Messenger messenger = new Messenger(File.createTempFile("test", "").getParentFile());
+        TransferSongMessage testMessage = new TransferSongMessage(1L, "song.mp3", tempFile.getCanonicalPath(), 42L, 0, new int[0]);
+        List<PacketFormat> packets = simulateSendAndReceive(testMessage, 512);
+
+        InputBuffer buffer = new InputBuffer();
+        packets.get(0).serialize(buffer);
+        assertFalse(messenger.deserializeMessage(buffer.getInputStream()));
+        buffer.consume();
+
+        //the next packet after the cancel throws away the transfer
+        messenger.cancelTransfer(42L);
+        packets.get(1).serialize(buffer);
+        assertFalse(messenger.deserializeMessage(buffer.getInputStream()));
+        buffer.consume();
+
+        //the sender confirms without sending an abort packet...nothing more of the
+        // transfer is coming, so the message number can be used again
+        InputStream confirm = new Messenger(new File("")).serializeMessage(new TransferCancelledMessage(42L));
+        assertFalse(messenger.deserializeMessage(confirm));
+        assertTrue(messenger.getReceivedMessages().isEmpty());
+        assertTransferReceived(messenger, tempFile, 43L);
+    }
+
+    @Test
+    public void testCancelTransferAfterFinished() throws Exception {
+        File tempFile = MessageTestUtil.getTempTestFile(2048);
+        Messenger messenger = new Messenger(File.createTempFile("test", "").getParentFile());
+        messenger.cancelTransfer(42L);
+
+        //the transfer finished before the sender saw the cancel
+        assertTransferReceived(messenger, tempFile, 42L, 4096);
+        messenger.clearReceivedMessages();
+        //and the cancel does not apply to the next transfer with the same id
+        assertTransferReceived(messenger, tempFile, 42L);
+    }
+
+    private void assertTransferReceived(Messenger messenger, File file, long transferId) throws Exception {
+        assertTransferReceived(messenger, file, transferId, 512);
+    }
+
+    private void assertTransferReceived(Messenger messenger, File file, long transferId, int packetSize) throws Exception {
+        TransferSongMessage message = new TransferSongMessage(1L, "song.mp3", file.getCanonicalPath(), transferId, 0, new int[0]);
+        InputBuffer buffer = new InputBuffer();
+        for (PacketFormat packet : simulateSendAndReceive(message, packetSize)) {
+            packet.serialize(buffer);
+        }
+        assertTrue(messenger.deserializeMessage(buffer.getInputStream()));
+        IMessage received = messenger.getReceivedMessages().get(0);
+        assertTrue(received instanceof TransferSongMessage);
+        assertEquals(transferId, ((TransferSongMessage) received).getTransferId());
+        CustomAssert.assertChecksumsMatch(file.getCanonicalPath(), ((TransferSongMessage) received).getFilePath());
+    }
+
+    @Test
+    public void testNegotiateMessageVersion() throws Exception {
+        Messenger messenger    = new Messenger(new File(""));
+        Messenger rcvMessenger = new Messenger(new File(""));
+        //both sides start out sending class names
+        assertEquals(MessageFormat.MESSENGER_VERSION_CLASS_NAME, messenger.getSendVersion());
+        assertEquals(MessageFormat.MESSENGER_VERSION_CLASS_NAME, rcvMessenger.getSendVersion());
+
+        //a class name message tells the receiver we can handle type ids
+        InputStream is = messenger.serializeMessage(new PlayMessage());
+        int classNameSize = is.available();
+        assertTrue(rcvMessenger.deserializeMessage(is));
+        assertEquals(MessageRegistry.getTypeId(PlayMessage.class), rcvMessenger.getReceivedMessageType(0));
+        assertEquals(MessageFormat.MESSENGER_VERSION_TYPE_ID, rcvMessenger.getSendVersion());
+
+        //and the reply is sent with a one byte type id in place of the class name and end of class char
+        is = rcvMessenger.serializeMessage(new PlayMessage());
+        assertEquals(classNameSize - PlayMessage.class.getCanonicalName().length(), is.available());
+        assertTrue(messenger.deserializeMessage(is));
+        assertTrue(messenger.getReceivedMessages().get(0) instanceof PlayMessage);
+        assertEquals(MessageFormat.MESSENGER_VERSION_TYPE_ID, messenger.getSendVersion());
+
+        //unregistered messages still go out by class name
+        StringMessage message = new StringMessage();
+        message.setString("Not registered");
+        is = messenger.serializeMessage(message);
+        rcvMessenger.clearReceivedMessages();
+        assertTrue(rcvMessenger.deserializeMessage(is));
+        assertEquals("Not registered", ((StringMessage) rcvMessenger.getReceivedMessages().get(0)).getString());
+        assertEquals(MessageRegistry.NO_TYPE, rcvMessenger.getReceivedMessageType(0));
+    }
+
+    @Test
+    public void testRejectOldMessenger() throws Exception {
+        //a messenger that predates the compact payloads sends version 1, with its version in the upper bits
+        Messenger messenger = new Messenger(new File(""));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        appendMessage(StringMessage.class.getCanonicalName(), "Old message",
+                (MessageFormat.MESSENGER_VERSION_TYPE_ID << 16) | MessageFormat.MESSENGER_VERSION_CLASS_NAME, baos);
+        try {
+            messenger.deserializeMessage(simulateSendAndReceive(baos));
+            fail("Expected an IncompatibleVersionException");
+        } catch (IncompatibleVersionException e) {
+            assertEquals(MessageFormat.MESSENGER_VERSION_TYPE_ID, e.getRemoteVersion());
+        }
+    }
+
 //TODO: unclear if we need this test...lets leave it alone for a bit
 //    @Test
 //    public void testSerializeMessageMultiple() throws Exception {
@@ -312,6 +567,12 @@ public class MessengerTest {
      */
     private void appendMessage(String className,
             String testMessage, ByteArrayOutputStream output) throws IOException {
+        appendMessage(className, testMessage,
+                (MessageFormat.MESSENGER_VERSION << 16) | MessageFormat.MESSENGER_VERSION_CLASS_NAME, output);
+    }
+
+    private void appendMessage(String className,
+            String testMessage, int versionField, ByteArrayOutputStream output) throws IOException {
         
         ByteArrayOutputStream messageStream = new ByteArrayOutputStream();
         //only write the length bytes the first time through
@@ -329,7 +590,7 @@ public class MessengerTest {
         bb = ByteBuffer.wrap(bytes, start, AComplexDataType.SIZEOF_INTEGER + AComplexDataType.SIZEOF_INTEGER);
         int len = messageStream.size() - start - AComplexDataType.SIZEOF_INTEGER;
         bb.putInt(len);
-        bb.putInt(1);
+        bb.putInt(versionField);
 
         //add the packet format header...this is done one per message
         PacketFormat format = new PacketFormat(1, bytes);
@@ -22,6 +22,9 @@ package com.lastcrusade.soundstream.net.message;
 import static com.lastcrusade.soundstream.util.CustomAssert.assertSongMetaEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -42,6 +45,7 @@ public class PlaylistMessageTest extends SerializationTest<PlaylistMessage> {
         PlaylistMessage postSerializationPlaylistMessage = super
                 .testSerializeMessage(preSerializationPlaylistMessage);
 
+        assertEquals(PlaylistMessage.NO_VERSION, postSerializationPlaylistMessage.getVersion());
         assertEquals(songsToPlay.size(), postSerializationPlaylistMessage.getSongsToPlay().size());
         for (int i = 0; i < songsToPlay.size(); i++) {
             assertSongMetaEquals(songsToPlay.get(i),
@@ -49,6 +53,27 @@ public class PlaylistMessageTest extends SerializationTest<PlaylistMessage> {
         }
     }
 
+    @Test
+    public void testSerializePlaylistSnapshot() throws Exception {
+        List<PlaylistEntry> songsToPlay = populateTestPlaylist();
+
+        PlaylistMessage message = super.testSerializeMessage(new PlaylistMessage(songsToPlay, 1234));
+
+        assertEquals(1234, message.getVersion());
+        assertEquals(songsToPlay.size(), message.getSongsToPlay().size());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testDeserializeTruncatedEntry() throws Exception {
+        PlaylistEntry entry = new PlaylistEntry(new SongMetadata(1, "Title", "Artist", "Album", 1234, "David"),
+                true, true, null, 0);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new PlaylistMessage(Arrays.asList(entry)).serialize(baos);
+        //cut off the flags, file path and entry id...the flags must not be read as all set
+        byte[] bytes = Arrays.copyOf(baos.toByteArray(), baos.size() - 3);
+        new PlaylistMessage().deserialize(new ByteArrayInputStream(bytes));
+    }
+
     public List<PlaylistEntry> populateTestPlaylist() {
         List<PlaylistEntry> library = new ArrayList<PlaylistEntry>(Arrays.asList(
                 new PlaylistEntry(
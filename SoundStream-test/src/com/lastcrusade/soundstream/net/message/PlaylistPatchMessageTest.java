@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net.message;
+
+import static com.lastcrusade.soundstream.util.CustomAssert.assertPlaylistEntry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.PlaylistEntry;
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+public class PlaylistPatchMessageTest extends SerializationTest<PlaylistPatchMessage> {
+
+    @Test
+    public void testSerializePlaylistPatchMessage() throws Exception {
+        String macAddress = "00:11:22:33:44:55";
+        PlaylistEntry inserted = new PlaylistEntry(
+                new SongMetadata(69, "Driver that Had a Dick on His Shoulder",
+                        "Aziz Ansari", "Dangerously Delicious", 2345, macAddress),
+                false, false, null, 7);
+        PlaylistEntry removed = new PlaylistEntry(
+                new SongMetadata(1, "Lady with the Puppies", null,
+                        "Dangerously Delicious", 23462346, macAddress),
+                true, false, "/some/other/path", 1);
+        PlaylistEntry moved = new PlaylistEntry(
+                new SongMetadata(23, "Toronto Customs Lady", "Aziz Ansari",
+                        null, 3423462, "David"),
+                false, false, "", 2);
+        PlaylistEntry status = new PlaylistEntry(
+                new SongMetadata(42, "Motley Crue Tour vs. Aziz Tour", "Aziz Ansari",
+                        "Dangerously Delicious", 2346236, null),
+                true, true, "./", 3);
+        List<PlaylistEntry> entries = Arrays.asList(inserted, removed, moved, status);
+        int[] ops = {
+                PlaylistPatchMessage.OP_INSERT,
+                PlaylistPatchMessage.OP_REMOVE,
+                PlaylistPatchMessage.OP_MOVE,
+                PlaylistPatchMessage.OP_STATUS
+        };
+        int[] positions = {3, 0, 1, 0};
+
+        PlaylistPatchMessage message = super.testSerializeMessage(
+                new PlaylistPatchMessage(42, ops, positions, entries));
+
+        assertEquals(42, message.getVersion());
+        assertArrayEquals(ops, message.getOps());
+        assertEquals(entries.size(), message.getEntries().size());
+        //inserts carry the whole entry
+        assertEquals(3, message.getPositions()[0]);
+        assertPlaylistEntry(inserted, message.getEntries().get(0));
+        assertEquals(inserted.getEntryId(), message.getEntries().get(0).getEntryId());
+        //the other operations carry the key, and the position or status
+        for (int i = 1; i < entries.size(); i++) {
+            PlaylistEntry expected = entries.get(i);
+            PlaylistEntry actual   = message.getEntries().get(i);
+            assertEquals(expected.getMacAddress(), actual.getMacAddress());
+            assertEquals(expected.getId(),         actual.getId());
+            assertEquals(expected.getEntryId(),    actual.getEntryId());
+        }
+        assertEquals(1, message.getPositions()[2]);
+        assertTrue(message.getEntries().get(3).isLoaded());
+        assertTrue(message.getEntries().get(3).isPlayed());
+        assertFalse(message.getEntries().get(2).isLoaded());
+    }
+
+    @Test
+    public void testPatchIsSmallerThanPlaylist() throws Exception {
+        List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+        for (int i = 0; i < 300; i++) {
+            playlist.add(new PlaylistEntry(
+                    new SongMetadata(i, "Song " + i, "Artist " + (i % 20), "Album " + (i % 30),
+                            4000000 + i, "00:11:22:33:44:" + (10 + i % 5)),
+                    true, false, "/some/such/path/" + i, i + 1));
+        }
+        PlaylistEntry bumped = playlist.get(150);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        new PlaylistMessage(playlist, 1).serialize(snapshot);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        new PlaylistPatchMessage(2, new int[] {PlaylistPatchMessage.OP_MOVE}, new int[] {0},
+                Arrays.asList(bumped)).serialize(patch);
+
+        assertTrue("Patch too large: " + patch.size() + " bytes", patch.size() < 32);
+        assertTrue(patch.size() * 100 < snapshot.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedOps() {
+        new PlaylistPatchMessage(1, new int[] {PlaylistPatchMessage.OP_REMOVE}, new int[0],
+                new ArrayList<PlaylistEntry>());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RequestSongBatchMessageTest extends SerializationTest<RequestSongBatchMessage> {
+
+    @Test
+    public void testSerializeRequestSongBatchMessage() throws Exception {
+        long[] songIds     = {69, 1L << 40, 1};
+        long[] transferIds = {3, 4, RequestSongMessage.NO_TRANSFER};
+        int[]  priorities  = {1, 0, 1};
+        long[] fileOffsets = {0, 123456, 0};
+        long[] fileLengths = {IFileRangeMessage.TO_END_OF_FILE, 0, 1L << 20};
+        RequestSongBatchMessage oldMessage = new RequestSongBatchMessage(
+                songIds, transferIds, priorities, fileOffsets, fileLengths);
+        RequestSongBatchMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertArrayEquals(songIds,     newMessage.getSongIds());
+        assertArrayEquals(transferIds, newMessage.getTransferIds());
+        assertArrayEquals(priorities,  newMessage.getPriorities());
+        assertArrayEquals(fileOffsets, newMessage.getFileOffsets());
+        assertArrayEquals(fileLengths, newMessage.getFileLengths());
+    }
+
+    @Test
+    public void testSerializeEmptyRequestSongBatchMessage() throws Exception {
+        RequestSongBatchMessage oldMessage = new RequestSongBatchMessage(
+                new long[0], new long[0], new int[0], new long[0], new long[0]);
+        RequestSongBatchMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertEquals(0, newMessage.getSongIds().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedArrays() {
+        new RequestSongBatchMessage(new long[] {1, 2}, new long[] {1}, new int[] {0, 1},
+                new long[] {0, 0}, new long[] {0, 0});
+    }
+}
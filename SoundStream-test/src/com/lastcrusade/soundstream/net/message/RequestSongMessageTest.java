@@ -33,4 +33,15 @@ public class RequestSongMessageTest extends SerializationTest<RequestSongMessage
         
         assertEquals(songId, newMessage.getSongId());
     }
+
+    @Test
+    public void testSerializeResumeRequest() throws Exception {
+        long songId = 8675309L;
+        RequestSongMessage oldMessage = new RequestSongMessage(songId, 42L, 8 * 1024 * 1024);
+        RequestSongMessage newMessage = super.testSerializeMessage(oldMessage);
+        
+        assertEquals(songId, newMessage.getSongId());
+        assertEquals(42L, newMessage.getTransferId());
+        assertEquals(8 * 1024 * 1024, newMessage.getFileOffset());
+    }
 }
@@ -54,6 +54,20 @@ public class SerializationTest<T extends IMessage> {
         
         //make sure all bytes are consumed
         assertEquals(0, is.available());
+
+        //the receiver now knows the sender understands type ids, so send the
+        // message back in the compact format (if the message is registered)
+        if (MessageRegistry.getTypeId(message.getClass()) != MessageRegistry.NO_TYPE) {
+            assertEquals(MessageFormat.MESSENGER_VERSION_TYPE_ID, rcvMessenger.getSendVersion());
+        }
+        is = simulateSendAndReceive(rcvMessenger.serializeMessage(message));
+        assertTrue(messenger.deserializeMessage(is));
+        assertEquals(1, messenger.getReceivedMessages().size());
+        rcvMessage = messenger.getReceivedMessages().get(0);
+        assertNotNull(rcvMessage);
+        assertEquals(message.getClass(), rcvMessage.getClass());
+        assertEquals(MessageRegistry.getTypeId(message.getClass()), messenger.getReceivedMessageType(0));
+        assertEquals(0, is.available());
         return (T)rcvMessage;
     }
     
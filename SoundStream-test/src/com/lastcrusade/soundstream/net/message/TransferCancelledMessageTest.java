@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class TransferCancelledMessageTest {
+    
+    @Test
+    public void testSerializeTransferCancelledMessage() throws Exception {
+        //NOTE: the Messenger keeps this message to itself, so it can't go through SerializationTest
+        TransferCancelledMessage oldMessage = new TransferCancelledMessage(1L << 40);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        oldMessage.serialize(baos);
+        TransferCancelledMessage newMessage = new TransferCancelledMessage();
+        newMessage.deserialize(new ByteArrayInputStream(baos.toByteArray()));
+        
+        assertEquals(1L << 40, newMessage.getTransferId());
+    }
+}
@@ -20,13 +20,18 @@
 package com.lastcrusade.soundstream.net.message;
 
 import static com.lastcrusade.soundstream.util.CustomAssert.assertChecksumsMatch;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.RandomAccessFile;
 
 import org.junit.Test;
 
+import com.lastcrusade.soundstream.util.ChunkChecksums;
+
 public class TransferSongMessageTest extends SerializationTest<TransferSongMessage> {
     
     @Test
@@ -47,4 +52,42 @@ public class TransferSongMessageTest extends SerializationTest<TransferSongMessa
         //compare the song binary data
         assertChecksumsMatch(oldMessage.getFilePath(), newMessage.getFilePath());
     }
+
+    @Test
+    public void testSerializeFileRange() throws Exception {
+        File file = new File("./assets/Jesse_normal_trimmed.wav");
+        long offset = 1000;
+        long length = 4096 * 3 + 17;
+        TransferSongMessage oldMessage = new TransferSongMessage(42L, file.getName(), file.getCanonicalPath(), offset, length);
+        TransferSongMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertEquals(offset, newMessage.getFileOffset());
+        //the received file holds just the requested range
+        File received = new File(newMessage.getFilePath());
+        assertEquals(length, received.length());
+        byte[] expected = new byte[(int) length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(offset);
+        raf.readFully(expected);
+        raf.close();
+        byte[] actual = new byte[(int) length];
+        FileInputStream fis = new FileInputStream(received);
+        new DataInputStream(fis).readFully(actual);
+        fis.close();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testSerializeResumedTransfer() throws Exception {
+        File file = new File("./assets/Jesse_normal_trimmed.wav");
+        int[] checksums = ChunkChecksums.compute(file);
+        long offset = ChunkChecksums.CHUNK_BYTES;
+        TransferSongMessage oldMessage = new TransferSongMessage(42L, file.getName(), file.getCanonicalPath(), 7L, offset, checksums);
+        TransferSongMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertEquals(7L, newMessage.getTransferId());
+        assertEquals(offset, newMessage.getFileOffset());
+        assertArrayEquals(checksums, newMessage.getChecksums());
+        assertEquals(file.length() - offset, new File(newMessage.getFilePath()).length());
+    }
 }
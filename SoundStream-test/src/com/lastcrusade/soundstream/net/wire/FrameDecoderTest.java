@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.wire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class FrameDecoderTest {
+
+    /**
+     * Test decoding multiple packets that arrive in one read.
+     * @throws IOException
+     */
+    @Test
+    public void testNextFrameMultiple() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new PacketFormat(1, new byte[] {1, 2, 3}).serialize(baos);
+        new PacketFormat(2, new byte[] {4, 5}).serialize(baos);
+
+        FrameDecoder decoder = new FrameDecoder(64, 1024);
+        decoder.readFrom(new ByteArrayInputStream(baos.toByteArray()));
+
+        ByteBuffer frame = decoder.nextFrame();
+        assertNotNull(frame);
+        assertEquals(1, decoder.getMessageNo());
+        assertFrameEquals(new byte[] {1, 2, 3}, frame);
+
+        frame = decoder.nextFrame();
+        assertNotNull(frame);
+        assertEquals(2, decoder.getMessageNo());
+        assertFrameEquals(new byte[] {4, 5}, frame);
+
+        assertNull(decoder.nextFrame());
+        assertEquals(0, decoder.size());
+    }
+
+    /**
+     * Test decoding a packet that arrives in pieces, and is larger than the
+     * initial buffer.
+     * @throws IOException
+     */
+    @Test
+    public void testNextFramePartial() throws IOException {
+        byte[] payload = new byte[100];
+        for (int ii = 0; ii < payload.length; ii++) {
+            payload[ii] = (byte) ii;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new PacketFormat(7, payload).serialize(baos);
+        byte[] bytes = baos.toByteArray();
+
+        FrameDecoder decoder = new FrameDecoder(16, 1024);
+        InputStream input = new ByteArrayInputStream(bytes);
+        ByteBuffer frame = null;
+        int reads = 0;
+        while (frame == null) {
+            assertNull(decoder.nextFrame());
+            decoder.readFrom(input);
+            reads++;
+            frame = decoder.nextFrame();
+        }
+        //one read to fill the initial buffer, one to read the rest
+        assertEquals(2, reads);
+        assertEquals(7, decoder.getMessageNo());
+        assertFrameEquals(payload, frame);
+        assertEquals(-1, decoder.readFrom(input));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNextFrameInvalidLength() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(8);
+        bb.putInt(2048);
+        bb.putInt(1);
+        FrameDecoder decoder = new FrameDecoder(16, 1024);
+        decoder.readFrom(new ByteArrayInputStream(bb.array()));
+        decoder.nextFrame();
+    }
+
+    private void assertFrameEquals(byte[] expected, ByteBuffer frame) {
+        assertEquals(expected.length, frame.remaining());
+        for (int ii = 0; ii < expected.length; ii++) {
+            assertEquals(expected[ii], frame.get());
+        }
+    }
+}
@@ -19,15 +19,20 @@
 package com.lastcrusade.soundstream.net.wire;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.junit.Test;
 
@@ -428,4 +433,93 @@ public class WireSendInputStreamTest {
             testFile.delete();
         }
     }
+
+    /**
+     * Test method for {@link com.lastcrusade.soundstream.net.wire.WireSendInputStream#WireSendInputStream(int, int, InputStream, FileChannel, long, long)}.
+     * @throws IOException 
+     */
+    @Test
+    public void testReadFileRange() throws IOException {
+        int packetSize  = 100;
+        int messageNo   = 1;
+        int messageSize = 30;
+        int fileSize    = 1000;
+        int offset      = 150;
+        int length      = 333;
+        File testFile = File.createTempFile("test", ".tst");
+        FileOutputStream fos = new FileOutputStream(testFile);
+        for (int ii = 0; ii < fileSize; ii++) {
+            fos.write(ii);
+        }
+        fos.close();
+        WireSendInputStream input = null;
+        try {
+            FileChannel channel = new RandomAccessFile(testFile, "r").getChannel();
+            input = new WireSendInputStream(packetSize, messageNo, MessageTestUtil.getTestStream(messageSize), channel, offset, length);
+            int expectedBytes = messageSize + AComplexDataType.SIZEOF_INTEGER + length;
+            assertEquals(computeExpectedSize(expectedBytes, packetSize), input.available());
+
+            //strip the packet headers and check the data that is left
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buf = new byte[packetSize];
+            int read;
+            while ((read = input.read(buf, 0, buf.length)) > 0) {
+                ByteArrayInputStream bais = new ByteArrayInputStream(buf, 0, read);
+                verifyPacketFormat(read - PacketFormat.getLengthOverhead(), messageNo, bais);
+                data.write(buf, PacketFormat.getOverhead(), read - PacketFormat.getOverhead());
+            }
+            assertEquals(0, input.available());
+
+            ByteBuffer bb = ByteBuffer.wrap(data.toByteArray());
+            assertEquals(expectedBytes, bb.remaining());
+            for (int ii = 0; ii < messageSize; ii++) {
+                assertEquals((byte)ii, bb.get());
+            }
+            assertEquals(length, bb.getInt());
+            for (int ii = offset; ii < offset + length; ii++) {
+                assertEquals((byte)ii, bb.get());
+            }
+        } finally {
+            input.close();
+            testFile.delete();
+        }
+    }
+
+    @Test
+    public void testAbort() throws IOException {
+        int packetSize = 100;
+        int messageNo  = 3;
+        File testFile = MessageTestUtil.getTempTestFile(1000);
+        WireSendInputStream input = null;
+        try {
+            FileChannel channel = new RandomAccessFile(testFile, "r").getChannel();
+            input = new WireSendInputStream(packetSize, messageNo, MessageTestUtil.getTestStream(30), channel, 0, -1);
+            byte[] buf = new byte[packetSize];
+            assertEquals(packetSize, input.read(buf, 0, buf.length));
+
+            //after an abort, the only thing left is an empty packet
+            input.abort();
+            assertFalse(channel.isOpen());
+            assertEquals(PacketFormat.getOverhead(), input.available());
+            assertEquals(PacketFormat.getOverhead(), input.read(buf, 0, buf.length));
+            verifyPacketFormat(PacketFormat.getMessageNoOverhead(), messageNo,
+                    new ByteArrayInputStream(buf, 0, PacketFormat.getOverhead()));
+            assertEquals(0, input.available());
+            assertEquals(-1, input.read(buf, 0, buf.length));
+        } finally {
+            input.close();
+            testFile.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFileRangePastEndOfFile() throws IOException {
+        File testFile = MessageTestUtil.getTempTestFile(100);
+        try {
+            FileChannel channel = new RandomAccessFile(testFile, "r").getChannel();
+            new WireSendInputStream(100, 1, MessageTestUtil.getTestStream(10), channel, 50, 51);
+        } finally {
+            testFile.delete();
+        }
+    }
 }
@@ -19,6 +19,7 @@
 
 package com.lastcrusade.soundstream.service;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -225,4 +226,111 @@ public class MusicLibraryServiceTest extends AServiceTest<MusicLibraryService> {
             registrar.unregister();
         }
     }
+
+    /**
+     * Test applying a snapshot and deltas sent by the host.
+     * 
+     * We expect deltas to be ignored until we have a snapshot, applied in order
+     * after that, and for a gap in the sequence to require a new snapshot.
+     * 
+     */
+    public void testApplyLibraryDeltas() {
+        MusicLibraryService service = getTheService();
+        SongMetadata meta = new SongMetadata(1,
+                "Bridge over troubled waters", "The Tacoma Narrows",
+                "Shake Rattle and Roll", 4523466, "00:11:22:33:44:55");
+        SongMetadata meta2 = new SongMetadata(2, "Frisky Frisco",
+                "The Golden Gates", "California", 6234662, "00:11:22:33:44:56");
+        SongMetadata meta3 = new SongMetadata(3, "Crosstown",
+                "Booklyn Bombs", "NYC, The place to be", 643266, "00:11:22:33:44:56");
+
+        // no snapshot yet, so this delta is ignored
+        assertTrue(service.applyLibraryDelta(1, "00:11:22:33:44:55", false, Arrays.asList(meta)));
+        assertTrue(service.getLibrary().isEmpty());
+
+        // the snapshot includes delta 1
+        service.applyLibrarySnapshot(1, Arrays.asList(meta));
+        assertEquals(1, service.getLibrary().size());
+
+        // delta 2 adds songs for another owner, and a repeat of delta 2 is ignored
+        assertTrue(service.applyLibraryDelta(2, "00:11:22:33:44:56", false, Arrays.asList(meta2, meta3)));
+        assertEquals(3, service.getLibrary().size());
+        assertTrue(service.applyLibraryDelta(2, "00:11:22:33:44:56", true, new ArrayList<SongMetadata>()));
+        assertEquals(3, service.getLibrary().size());
+
+        // delta 3 removes the owner
+        assertTrue(service.applyLibraryDelta(3, "00:11:22:33:44:56", true, new ArrayList<SongMetadata>()));
+        List<SongMetadata> library = service.getLibrary();
+        assertEquals(1, library.size());
+        assertSongMetaEquals(meta, library.get(0));
+
+        // delta 5 is out of sequence, so we need a snapshot
+        assertFalse(service.applyLibraryDelta(5, "00:11:22:33:44:56", false, Arrays.asList(meta2)));
+        assertEquals(1, service.getLibrary().size());
+        // and deltas are ignored until we get one
+        assertTrue(service.applyLibraryDelta(6, "00:11:22:33:44:56", false, Arrays.asList(meta2)));
+        assertEquals(1, service.getLibrary().size());
+
+        service.applyLibrarySnapshot(6, Arrays.asList(meta2, meta3));
+        library = service.getLibrary();
+        assertEquals(2, library.size());
+    }
+
+    /**
+     * Test replacing the songs for one owner.
+     * 
+     * We expect songs no longer in the owner's library to be removed.
+     * 
+     */
+    public void testReplaceLibraryForAddress() {
+        MusicLibraryService service = getTheService();
+        SongMetadata meta = new SongMetadata(1,
+                "Bridge over troubled waters", "The Tacoma Narrows",
+                "Shake Rattle and Roll", 4523466, "00:11:22:33:44:55");
+        SongMetadata meta2 = new SongMetadata(2, "Frisky Frisco",
+                "The Golden Gates", "California", 6234662, "00:11:22:33:44:56");
+        SongMetadata meta3 = new SongMetadata(3, "Crosstown",
+                "Booklyn Bombs", "NYC, The place to be", 643266, "00:11:22:33:44:56");
+        service.updateLibrary(Arrays.asList(meta, meta2), true);
+        assertEquals(2, service.getLibrary().size());
+
+        service.replaceLibraryForAddress("00:11:22:33:44:56", Arrays.asList(meta3), true);
+        List<SongMetadata> library = service.getLibrary();
+        assertEquals(2, library.size());
+        assertNull(service.lookupSongByAddressAndId("00:11:22:33:44:56", 2));
+        assertSongMetaEquals(meta3, service.lookupSongByAddressAndId("00:11:22:33:44:56", 3));
+    }
+
+    /**
+     * Test finding copies of a song owned by different users.
+     * 
+     * We expect songs with the same fingerprint, or the same metadata and size,
+     * to be copies, and the copies to go away with their owner.
+     * 
+     */
+    public void testGetCopies() {
+        MusicLibraryService service = getTheService();
+        SongMetadata meta = new SongMetadata(1,
+                "Bridge over troubled waters", "The Tacoma Narrows",
+                "Shake Rattle and Roll", 4523466, "00:11:22:33:44:55");
+        SongMetadata meta2 = new SongMetadata(7,
+                "Bridge Over  Troubled Waters", "the tacoma narrows",
+                "Shake Rattle and Roll", 4523466, "00:11:22:33:44:56");
+        SongMetadata meta3 = new SongMetadata(2, "Frisky Frisco",
+                "The Golden Gates", "California", 6234662, "00:11:22:33:44:55");
+        SongMetadata meta4 = new SongMetadata(9, "Track 1",
+                null, null, 6234662, "00:11:22:33:44:56");
+        meta3.setFingerprint(1234);
+        meta4.setFingerprint(1234);
+        service.updateLibrary(Arrays.asList(meta, meta2, meta3, meta4), true);
+
+        assertEquals(2, service.getCopies(meta).size());
+        assertEquals(2, service.getCopies(meta3).size());
+        assertTrue(service.getCopies(new SongMetadata(3, "Crosstown",
+                "Booklyn Bombs", "NYC, The place to be", 643266, "00:11:22:33:44:56")).isEmpty());
+
+        service.removeLibraryForAddress("00:11:22:33:44:56", true);
+        assertTrue(service.getCopies(meta).isEmpty());
+        assertTrue(service.getCopies(meta3).isEmpty());
+    }
 }
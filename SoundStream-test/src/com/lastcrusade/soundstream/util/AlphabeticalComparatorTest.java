@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+public class AlphabeticalComparatorTest {
+
+    private static final String CHARS = "aAbBzZ019 _!~\u00e9";
+
+    /**
+     * The comparison the sort keys replace: String.compareTo, with strings that
+     * start with a letter first.
+     */
+    private static int compareStrings(String a, String b) {
+        int comp = a.compareTo(b);
+        if (comp != 0) {
+            boolean letterA = a.substring(0, 1).matches("[a-zA-Z]");
+            boolean letterB = b.substring(0, 1).matches("[a-zA-Z]");
+            if (!letterA && letterB) {
+                comp = 1;
+            } else if (letterA && !letterB) {
+                comp = -1;
+            }
+        }
+        return comp;
+    }
+
+    private static int compareSongs(SongMetadata a, SongMetadata b) {
+        int comp = compareStrings(a.getArtist(), b.getArtist());
+        if (comp == 0) {
+            comp = compareStrings(a.getAlbum(), b.getAlbum());
+        }
+        if (comp == 0) {
+            comp = compareStrings(a.getTitle(), b.getTitle());
+        }
+        return comp;
+    }
+
+    private static String randomString(Random random) {
+        StringBuilder builder = new StringBuilder();
+        int length = 1 + random.nextInt(3);
+        for (int i = 0; i < length; i++) {
+            builder.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testMatchesStringOrdering() {
+        Random random = new Random(7);
+        AlphabeticalComparator comparator = new AlphabeticalComparator();
+        List<SongMetadata> songs = new ArrayList<SongMetadata>();
+        for (int i = 0; i < 500; i++) {
+            songs.add(new SongMetadata(i, randomString(random), randomString(random),
+                    randomString(random), 1000, "00:11:22:33:44:55"));
+        }
+        for (SongMetadata a : songs) {
+            for (SongMetadata b : songs) {
+                assertEquals(Integer.signum(compareSongs(a, b)), Integer.signum(comparator.compare(a, b)));
+            }
+        }
+    }
+
+    @Test
+    public void testLettersFirst() {
+        SongMetadata letters = new SongMetadata(1, "Title", "Zed", "Album", 1000, null);
+        SongMetadata digits  = new SongMetadata(2, "Title", "2 Chainz", "Album", 1000, null);
+        SongMetadata symbols = new SongMetadata(3, "Title", "!!!", "Album", 1000, null);
+        List<SongMetadata> songs = new ArrayList<SongMetadata>();
+        songs.add(symbols);
+        songs.add(digits);
+        songs.add(letters);
+        Collections.sort(songs, new AlphabeticalComparator());
+        assertEquals(letters, songs.get(0));
+        assertEquals(symbols, songs.get(1));
+        assertEquals(digits,  songs.get(2));
+    }
+
+    @Test
+    public void testSortKeyFollowsChanges() {
+        AlphabeticalComparator comparator = new AlphabeticalComparator();
+        SongMetadata a = new SongMetadata(1, "Title", "Alpha", "Album", 1000, null);
+        SongMetadata b = new SongMetadata(2, "Title", "Bravo", "Album", 1000, null);
+        assertTrue(comparator.compare(a, b) < 0);
+        a.setArtist("Charlie");
+        assertTrue(comparator.compare(a, b) > 0);
+    }
+}
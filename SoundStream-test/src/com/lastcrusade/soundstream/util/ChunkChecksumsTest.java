@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.util;
+
+import static com.lastcrusade.soundstream.util.ChunkChecksums.CHUNK_BYTES;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkChecksumsTest {
+
+    //two and a half chunks
+    private static final int FILE_SIZE = CHUNK_BYTES * 5 / 2;
+
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("test", ".tst");
+        FileOutputStream fos = new FileOutputStream(file);
+        for (int ii = 0; ii < FILE_SIZE; ii++) {
+            fos.write(ii * 31);
+        }
+        fos.close();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    @Test
+    public void testCompute() throws IOException {
+        int[] checksums = ChunkChecksums.compute(file);
+        assertEquals(3, checksums.length);
+        assertEquals(3, ChunkChecksums.getChunkCount(FILE_SIZE));
+        assertEquals(0, ChunkChecksums.getChunkCount(0));
+    }
+
+    @Test
+    public void testVerifyWholeFile() throws IOException {
+        int[] checksums = ChunkChecksums.compute(file);
+        FileChannel channel = raf.getChannel();
+        assertEquals(FILE_SIZE, ChunkChecksums.verify(channel, 0, 0, FILE_SIZE, FILE_SIZE, checksums));
+    }
+
+    @Test
+    public void testVerifyCountsOnlyWholeChunks() throws IOException {
+        int[] checksums = ChunkChecksums.compute(file);
+        FileChannel channel = raf.getChannel();
+        assertEquals(0,               ChunkChecksums.verify(channel, 0, 0, CHUNK_BYTES - 1, FILE_SIZE, checksums));
+        assertEquals(CHUNK_BYTES,     ChunkChecksums.verify(channel, 0, 0, CHUNK_BYTES * 2 - 1, FILE_SIZE, checksums));
+        assertEquals(CHUNK_BYTES * 2, ChunkChecksums.verify(channel, 0, 0, FILE_SIZE - 1, FILE_SIZE, checksums));
+    }
+
+    @Test
+    public void testVerifyStopsAtBadChunk() throws IOException {
+        int[] checksums = ChunkChecksums.compute(file);
+        //corrupt a byte in the second chunk
+        raf.seek(CHUNK_BYTES + 10);
+        raf.write(raf.read() + 1);
+        FileChannel channel = raf.getChannel();
+        assertEquals(CHUNK_BYTES, ChunkChecksums.verify(channel, 0, 0, FILE_SIZE, FILE_SIZE, checksums));
+    }
+
+    @Test
+    public void testVerifyFromOffset() throws IOException {
+        int[] checksums = ChunkChecksums.compute(file);
+        //the data for the second half of the file, stored at the start of another file
+        File rest = File.createTempFile("test", ".tst");
+        RandomAccessFile restRaf = new RandomAccessFile(rest, "rw");
+        try {
+            raf.getChannel().transferTo(CHUNK_BYTES, FILE_SIZE - CHUNK_BYTES, restRaf.getChannel());
+            long verified = ChunkChecksums.verify(restRaf.getChannel(), 0, CHUNK_BYTES, FILE_SIZE - CHUNK_BYTES, FILE_SIZE, checksums);
+            assertEquals(FILE_SIZE - CHUNK_BYTES, verified);
+        } finally {
+            restRaf.close();
+            rest.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVerifyOffsetMustBeOnChunk() throws IOException {
+        int[] checksums = ChunkChecksums.compute(file);
+        ChunkChecksums.verify(raf.getChannel(), 0, 10, FILE_SIZE - 10, FILE_SIZE, checksums);
+    }
+}
@@ -21,6 +21,8 @@ package com.lastcrusade.soundstream.util;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
 
 import org.junit.Test;
 
@@ -69,4 +71,88 @@ public class InputBufferTest {
         assertEquals('c', bytes[1]);
         buffer.close();
     }
+
+    /**
+     * Test that data written past the end of the buffer wraps around to the
+     * front, and reads back in order.
+     * @throws IOException 
+     */
+    @Test
+    public void testInputBufferWrapAround() throws IOException {
+        InputBuffer buffer = new InputBuffer(8, 8);
+        buffer.write(new byte[] {1, 2, 3, 4, 5, 6});
+        InputStream is = buffer.getInputStream();
+        assertEquals(4, is.read(new byte[4]));
+        buffer.consume();
+        assertEquals(2, buffer.size());
+
+        //this write wraps around the end of the buffer
+        buffer.write(new byte[] {7, 8, 9, 10, (byte) 0xFF});
+        assertEquals(7, buffer.size());
+        assertEquals(8, buffer.capacity());
+
+        is = buffer.getInputStream();
+        byte[] bytes = new byte[7];
+        assertEquals(7, is.read(bytes));
+        assertArrayEquals(new byte[] {5, 6, 7, 8, 9, 10, (byte) 0xFF}, bytes);
+        assertEquals(-1, is.read());
+
+        //read again without consuming, and check the single byte read
+        is = buffer.getInputStream();
+        assertEquals(6, is.skip(6));
+        assertEquals(0xFF, is.read());
+        buffer.close();
+    }
+
+    /**
+     * Test peeking at an integer that wraps around the end of the buffer, without
+     * moving the input stream.
+     * @throws IOException 
+     */
+    @Test
+    public void testPeekInteger() throws IOException {
+        InputBuffer buffer = new InputBuffer(8, 8);
+        buffer.write(new byte[] {0, 0, 0, 0, 0, 0});
+        buffer.getInputStream().skip(5);
+        buffer.consume();
+        buffer.write(new byte[] {0, 1, 2, 3});
+        assertEquals(0x00000102, buffer.peekInteger(0));
+        assertEquals(0x00010203, buffer.peekInteger(1));
+        assertEquals(5, buffer.getInputStream().available());
+        buffer.close();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testPeekIntegerPastEnd() throws IOException {
+        InputBuffer buffer = new InputBuffer();
+        buffer.write(new byte[] {1, 2, 3});
+        buffer.peekInteger(0);
+    }
+
+    /**
+     * Test that the buffer grows when needed, and keeps the unconsumed
+     * data in order.
+     * @throws IOException 
+     */
+    @Test
+    public void testInputBufferGrow() throws IOException {
+        InputBuffer buffer = new InputBuffer(4, 64);
+        buffer.write(new byte[] {1, 2, 3});
+        buffer.getInputStream().read();
+        buffer.consume();
+        buffer.write(new byte[] {4, 5, 6, 7, 8});
+        assertEquals(8, buffer.capacity());
+        assertArrayEquals(new byte[] {2, 3, 4, 5, 6, 7, 8}, buffer.toByteArray());
+        buffer.close();
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testInputBufferMaxCapacity() throws IOException {
+        InputBuffer buffer = new InputBuffer(4, 8);
+        try {
+            buffer.write(new byte[9]);
+        } finally {
+            buffer.close();
+        }
+    }
 }
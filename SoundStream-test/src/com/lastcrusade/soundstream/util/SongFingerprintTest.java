@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SongFingerprintTest {
+
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("test", ".tst");
+        FileOutputStream fos = new FileOutputStream(file);
+        for (int ii = 0; ii < FILE_SIZE; ii++) {
+            fos.write(ii * 31);
+        }
+        fos.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testSameContentSameFingerprint() throws IOException {
+        File copy = File.createTempFile("test", ".tst");
+        try {
+            FileOutputStream fos = new FileOutputStream(copy);
+            for (int ii = 0; ii < FILE_SIZE; ii++) {
+                fos.write(ii * 31);
+            }
+            fos.close();
+            assertEquals(SongFingerprint.compute(file), SongFingerprint.compute(copy));
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testChangedContent() throws IOException {
+        long fingerprint = SongFingerprint.compute(file);
+        assertFalse(fingerprint == SongFingerprint.NONE);
+
+        //a change at the start of the file, like new tags
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(10);
+            raf.write(raf.read() + 1);
+        } finally {
+            raf.close();
+        }
+        assertFalse(fingerprint == SongFingerprint.compute(file));
+    }
+
+    @Test
+    public void testChangedSize() throws IOException {
+        long fingerprint = SongFingerprint.compute(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(FILE_SIZE - 1);
+        } finally {
+            raf.close();
+        }
+        assertFalse(fingerprint == SongFingerprint.compute(file));
+    }
+
+    @Test
+    public void testHex() {
+        assertEquals("8123456789abcdef", SongFingerprint.toHex(0x8123456789ABCDEFL));
+        assertEquals(0x8123456789ABCDEFL, SongFingerprint.fromHex("8123456789abcdef"));
+        assertEquals(SongFingerprint.NONE, SongFingerprint.fromHex("index"));
+        assertEquals(SongFingerprint.NONE, SongFingerprint.fromHex("8123456789abcdeg"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.lastcrusade.soundstream.model.PlaylistEntry;
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+public class SongKeyTest {
+
+    @Test
+    public void testOwnerKeys() {
+        assertEquals(0x001122334455L, SongKey.ownerKey("00:11:22:33:44:55"));
+        assertEquals(0xFFFFFFFFFFFFL, SongKey.ownerKey("FF:FF:FF:FF:FF:FF"));
+        assertEquals(SongKey.NULL_OWNER, SongKey.ownerKey(null));
+
+        //other strings get their own keys, outside of the mac address range
+        long david = SongKey.ownerKey("David");
+        assertTrue(david > SongKey.NULL_OWNER);
+        assertEquals(david, SongKey.ownerKey(new String("David")));
+        assertFalse(david == SongKey.ownerKey("Goliath"));
+        long lowerCase = SongKey.ownerKey("ff:ff:ff:ff:ff:ff");
+        assertTrue(lowerCase > SongKey.NULL_OWNER);
+        long shortMac = SongKey.ownerKey("00:08:67:53:09");
+        assertTrue(shortMac > SongKey.NULL_OWNER);
+        assertFalse(shortMac == lowerCase);
+    }
+
+    @Test
+    public void testPlaylistEntryEquality() {
+        SongMetadata song = new SongMetadata(23, "Toronto Customs Lady", "Aziz Ansari", null, 3423462, "David");
+        PlaylistEntry a = new PlaylistEntry(song, false, false, null, 2);
+        PlaylistEntry b = new PlaylistEntry(song, true, true, "./", 2);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(new PlaylistEntry(song, false, false, null, 3)));
+
+        song.setMacAddress(null);
+        PlaylistEntry c = new PlaylistEntry(song, false, false, null, 2);
+        assertEquals(c, new PlaylistEntry(song, false, false, null, 2));
+        assertFalse(a.equals(c));
+
+        //changing the mac address changes the key
+        c.setMacAddress("David");
+        assertEquals(a, c);
+    }
+
+    @Test
+    public void testMapMatchesHashMap() {
+        Random random = new Random(11);
+        String[] macs = {"00:11:22:33:44:55", "00:11:22:33:44:56", "David", null};
+        SongKeyMap<String> map = new SongKeyMap<String>();
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 20000; i++) {
+            String mac = macs[random.nextInt(macs.length)];
+            long id = random.nextInt(300);
+            String key = mac + "_" + id;
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(expected.remove(key), map.remove(mac, id));
+                break;
+            case 1:
+                String value = "value " + i;
+                assertEquals(expected.put(key, value), map.put(mac, id, value));
+                break;
+            default:
+                assertEquals(expected.get(key), map.get(mac, id));
+                break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (String mac : macs) {
+            for (long id = 0; id < 300; id++) {
+                assertEquals(expected.get(mac + "_" + id), map.get(mac, id));
+            }
+        }
+        assertEquals(expected.size(), map.values().size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(macs[0], 1));
+    }
+}
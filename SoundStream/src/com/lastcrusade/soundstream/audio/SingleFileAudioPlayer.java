@@ -25,9 +25,12 @@ import java.io.FileInputStream;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
 import android.util.Log;
 
 import com.lastcrusade.soundstream.model.PlaylistEntry;
+import com.lastcrusade.soundstream.net.wire.IncomingFile;
 import com.lastcrusade.soundstream.service.MessagingService;
 import com.lastcrusade.soundstream.service.PlaylistService;
 import com.lastcrusade.soundstream.service.ServiceLocator;
@@ -57,8 +60,22 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
 
     private boolean paused;
 
+    /**
+     * True while a streamed song is being prepared (see play).  The player
+     * cannot be started, paused or queried until it is prepared.
+     */
+    private boolean preparing;
+
+    private float volume = NORMAL_VOLUME;
+
     private ServiceLocator<MessagingService> messagingService;
 
+    /**
+     * Used to play songs that are still being received (see IncomingFile).
+     */
+    private StreamingFileServer streamServer = new StreamingFileServer();
+    private String streamUrl;
+
     private Context context;
 
     public SingleFileAudioPlayer(Context context, ServiceLocator<MessagingService> messagingServiceLocator) {
@@ -71,6 +88,25 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
                         new LocalBroadcastIntent(SingleFileAudioPlayer.ACTION_SONG_FINISHED).send(SingleFileAudioPlayer.this.context);
                     }
         });
+        player.setOnPreparedListener(
+                new OnPreparedListener() {
+                    @Override public void onPrepared(MediaPlayer mp) {
+                        preparing = false;
+                        //the song may have been paused while it was preparing
+                        if (!paused) {
+                            startPlayer();
+                        }
+                    }
+        });
+        player.setOnErrorListener(
+                new OnErrorListener() {
+                    @Override public boolean onError(MediaPlayer mp, int what, int extra) {
+                        Log.w(TAG, "Player error " + what + ", " + extra);
+                        preparing = false;
+                        //returning false calls the completion listener, which moves on to the next song
+                        return false;
+                    }
+        });
     }
 
     /**
@@ -120,16 +156,29 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
                     player.stop();
                 }
                 this.paused = false;
+                this.preparing = false;
                 player.reset();
-                //changed to use the underlying file descriptor, because this doesnt want
-                // to work on a Samsung Galaxy S3 and other phones
-                //(see http://stackoverflow.com/questions/1972027/android-playing-mp3-from-byte)
-                FileInputStream fis = new FileInputStream(entry.getFilePath());
-                player.setDataSource(fis.getFD());
+                closeStream();
+                IncomingFile incoming = IncomingFile.find(entry.getFilePath());
+                if (incoming != null) {
+                    //the song is still arriving...stream it through the local server,
+                    // which keeps the player from reading past the data we have
+                    this.streamUrl = this.streamServer.serve(incoming);
+                    player.setDataSource(this.streamUrl);
+                    //preparing reads from the stream, which waits for the data to arrive, so
+                    // prepare in the background and start once it's ready (see onPrepared)
+                    this.preparing = true;
+                    player.prepareAsync();
+                    return;
+                } else {
+                    //changed to use the underlying file descriptor, because this doesnt want
+                    // to work on a Samsung Galaxy S3 and other phones
+                    //(see http://stackoverflow.com/questions/1972027/android-playing-mp3-from-byte)
+                    FileInputStream fis = new FileInputStream(entry.getFilePath());
+                    player.setDataSource(fis.getFD());
+                }
                 player.prepare();
-                player.start();
-                this.messagingService.getService().sendPlayStatusMessage(
-                        this.entry, true);
+                startPlayer();
             } catch (Exception e) {
                 Log.wtf(TAG, "Unable to play song: " + entry.getFilePath());
             }
@@ -138,6 +187,31 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
         }
     }
 
+    /**
+     * Start the prepared player, and let everyone know the song is playing.
+     */
+    private void startPlayer() {
+        //the volume can't be set while preparing, so make sure it's up to date
+        player.setVolume(volume, volume);
+        player.start();
+        try {
+            this.messagingService.getService().sendPlayStatusMessage(
+                    this.entry, true);
+        } catch (ServiceNotBoundException e) {
+            Log.wtf(TAG, e);
+        }
+    }
+
+    /**
+     * Close the stream for the last song, if it was streamed.
+     */
+    private void closeStream() {
+        if (this.streamUrl != null) {
+            this.streamServer.remove(this.streamUrl);
+            this.streamUrl = null;
+        }
+    }
+
     private boolean isValidPath() {
         boolean isValid = false;
         try {
@@ -183,7 +257,12 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
         this.paused = false;
         if (player.isPlaying()) {
             player.stop();
+        } else if (this.preparing) {
+            //cancel the prepare, so the song doesn't start after we've stopped
+            player.reset();
+            this.preparing = false;
         }
+        closeStream();
         if (this.entry != null) {
             try {
                 this.messagingService
@@ -198,7 +277,10 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
 
     @Override
     public void resume() {
-        player.start();
+        //if the song is still preparing, it will start once it's prepared
+        if (!preparing) {
+            player.start();
+        }
         paused = false;
         if (this.entry != null) {
             try {
@@ -211,6 +293,16 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
         }
     }
 
+    /**
+     * Stop the player and release its resources, including the server used to
+     * stream songs.  The player cannot be used after this is called.
+     */
+    public void release() {
+        stop();
+        player.release();
+        this.streamServer.stop();
+    }
+
     @Override
     public void skip() {
         //send this action to move to the next song
@@ -220,13 +312,23 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
     public boolean isPaused() {
         return paused;
     }
+
+    /**
+     * @return The time left in the current song, in ms, or -1 if no song is playing.
+     */
+    public long getRemainingTime() {
+        if (this.entry == null || preparing || !(player.isPlaying() || paused)) {
+            return -1;
+        }
+        return Math.max(player.getDuration() - player.getCurrentPosition(), 0);
+    }
     
     /* (non-Javadoc)
      * @see com.lastcrusade.soundstream.audio.IDuckable#duck()
      */
     @Override
     public void duck() {
-        player.setVolume(DUCK_VOLUME, DUCK_VOLUME);
+        setVolume(DUCK_VOLUME);
     }
     
     /* (non-Javadoc)
@@ -234,6 +336,13 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
      */
     @Override
     public void unduck() {
-        player.setVolume(NORMAL_VOLUME, NORMAL_VOLUME);
+        setVolume(NORMAL_VOLUME);
+    }
+
+    private void setVolume(float volume) {
+        this.volume = volume;
+        if (!preparing) {
+            player.setVolume(volume, volume);
+        }
     }
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.audio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.lastcrusade.soundstream.net.wire.IncomingFile;
+
+/**
+ * A tiny HTTP server, bound to the loopback interface, that serves songs
+ * that are still being received.  MediaPlayer cannot play a file descriptor
+ * for a file that is still growing, but it will happily stream a URL, so we
+ * hand it a URL from this server and hold back each read until the bytes it
+ * asks for have arrived.
+ * 
+ * Each stream holds its own open file channel, so the file can be renamed
+ * to its final location once the transfer finishes without interrupting
+ * playback.
+ * 
+ */
+public class StreamingFileServer {
+
+    private static final String TAG = StreamingFileServer.class.getSimpleName();
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private static final int BUFFER_BYTES = 8192;
+
+    /**
+     * How long to wait for more data before checking to see if the stream is still open.
+     */
+    private static final int WAIT_FOR_DATA_MS = 1000;
+
+    private static class Stream {
+        private final IncomingFile incoming;
+        private final RandomAccessFile file;
+        private volatile boolean closed;
+
+        public Stream(IncomingFile incoming) throws IOException {
+            this.incoming = incoming;
+            this.file     = new RandomAccessFile(incoming.getPath(), "r");
+        }
+
+        /**
+         * Wait for data to be available at position.
+         * 
+         * @param position
+         * @return The number of bytes in the file that can be read.
+         * @throws IOException If the stream is closed or the transfer was abandoned.
+         * @throws InterruptedException
+         */
+        public long awaitBytes(long position) throws IOException, InterruptedException {
+            long available;
+            while ((available = incoming.awaitBytes(position, WAIT_FOR_DATA_MS)) <= position) {
+                if (closed || incoming.isAbandoned()) {
+                    throw new IOException("Stream for " + incoming.getPath() + " ended before position " + position);
+                }
+            }
+            return available;
+        }
+
+        public void close() {
+            closed = true;
+            try {
+                file.close();
+            } catch (IOException e) {
+                //don't care, we're closing
+            }
+        }
+    }
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private final Map<String, Stream> streams = new HashMap<String, Stream>();
+    private int nextStreamId = 1;
+
+    /**
+     * Start listening for connections, if we're not already.
+     * 
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(0, 4, InetAddress.getByName(LOOPBACK));
+        acceptThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, TAG + " Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stop the server, and close all open streams.
+     */
+    public synchronized void stop() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                //don't care, we're closing
+            }
+            serverSocket = null;
+            acceptThread = null;
+        }
+        for (Stream stream : streams.values()) {
+            stream.close();
+        }
+        streams.clear();
+    }
+
+    /**
+     * Serve a file that is being received.
+     * 
+     * @param incoming
+     * @return The URL to pass to the media player.
+     * @throws IOException
+     */
+    public synchronized String serve(IncomingFile incoming) throws IOException {
+        start();
+        String id = String.valueOf(nextStreamId++);
+        streams.put(id, new Stream(incoming));
+        return "http://" + LOOPBACK + ":" + serverSocket.getLocalPort() + "/" + id;
+    }
+
+    /**
+     * Stop serving a stream.  Any open connections for the stream will be closed.
+     * 
+     * @param url The URL returned from {@link #serve(IncomingFile)}
+     */
+    public synchronized void remove(String url) {
+        Stream stream = streams.remove(url.substring(url.lastIndexOf('/') + 1));
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private synchronized Stream findStream(String id) {
+        return streams.get(id);
+    }
+
+    private void acceptConnections() {
+        ServerSocket server = serverSocket;
+        while (server != null && !server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                Thread thread = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                }, TAG + " Connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                //the server socket was closed
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handle one request.  We only support GET, with an optional open ended, closed
+     * or suffix byte range, which is all MediaPlayer asks for.  Every response closes the connection.
+     * 
+     * @param socket
+     */
+    private void handleConnection(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String requestLine = reader.readLine();
+            String range = null;
+            String header;
+            while ((header = reader.readLine()) != null && header.length() > 0) {
+                if (header.toLowerCase().startsWith("range:")) {
+                    range = header.substring(header.indexOf('=') + 1).trim();
+                }
+            }
+
+            OutputStream output = socket.getOutputStream();
+            Stream stream = null;
+            String[] parts = requestLine != null ? requestLine.split(" ") : new String[0];
+            if (parts.length >= 2 && parts[0].equals("GET")) {
+                stream = findStream(parts[1].substring(parts[1].lastIndexOf('/') + 1));
+            }
+            if (stream == null) {
+                output.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+                return;
+            }
+
+            long fileSize   = stream.incoming.getFileSize();
+            long rangeStart = 0;
+            long rangeEnd   = fileSize - 1;
+            if (range != null) {
+                int dash = range.indexOf('-');
+                String first = range.substring(0, dash).trim();
+                String last  = range.substring(dash + 1).trim();
+                if (first.length() == 0) {
+                    //a suffix range, for the last N bytes of the file
+                    rangeStart = Math.max(fileSize - Long.parseLong(last), 0);
+                } else {
+                    rangeStart = Long.parseLong(first);
+                    if (last.length() > 0) {
+                        rangeEnd = Math.min(Long.parseLong(last), fileSize - 1);
+                    }
+                }
+            }
+            if (rangeStart > rangeEnd) {
+                output.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */" + fileSize
+                        + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                return;
+            }
+            StringBuilder response = new StringBuilder();
+            if (rangeStart > 0 || rangeEnd < fileSize - 1) {
+                response.append("HTTP/1.1 206 Partial Content\r\n");
+                response.append("Content-Range: bytes ").append(rangeStart).append('-').append(rangeEnd)
+                        .append('/').append(fileSize).append("\r\n");
+            } else {
+                response.append("HTTP/1.1 200 OK\r\n");
+            }
+            response.append("Content-Type: application/octet-stream\r\n");
+            response.append("Accept-Ranges: bytes\r\n");
+            response.append("Content-Length: ").append(rangeEnd - rangeStart + 1).append("\r\n");
+            response.append("Connection: close\r\n\r\n");
+            output.write(response.toString().getBytes("US-ASCII"));
+
+            sendRange(stream, rangeStart, rangeEnd + 1, output);
+            output.flush();
+        } catch (IOException e) {
+            //the player closes connections when it seeks or stops...this is expected
+            Log.d(TAG, "Connection closed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            //fall thru and close the connection
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Bad request", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //don't care, we're closing
+            }
+        }
+    }
+
+    /**
+     * Send the bytes in [start, end) of the stream, waiting for each byte to arrive
+     * before sending it.
+     */
+    private void sendRange(Stream stream, long start, long end, OutputStream output)
+            throws IOException, InterruptedException {
+        FileChannel channel = stream.file.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        long position = start;
+        while (position < end) {
+            long available = Math.min(end, stream.awaitBytes(position));
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), available - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                throw new IOException("Unable to read " + stream.incoming.getPath() + " at " + position);
+            }
+            output.write(buffer.array(), 0, read);
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.library;
+
+/**
+ * An index of songs (owner key and song id, see SongKey) by the hash of their content
+ * key, used to find the copies of a song (see SongMetadataUtils#getContentKey).
+ * Many songs can have the same hash.
+ * 
+ * The songs are kept in arrays with open addressing (linear probing).  The songs
+ * with a hash are found by walking from the hash's home slot to the next empty
+ * slot, with {@link #first(long)} and {@link #next(long, int)}.
+ * 
+ * NOTE: this class is not thread safe.
+ * 
+ */
+class CopyIndex {
+
+    static final int NONE = -1;
+
+    private long[]    hashes;
+    private long[]    ownerKeys;
+    private long[]    songIds;
+    private boolean[] used;
+    private int size;
+
+    CopyIndex() {
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        hashes       = new long[capacity];
+        ownerKeys    = new long[capacity];
+        songIds      = new long[capacity];
+        used         = new boolean[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(long hash, long ownerKey, long songId) {
+        //keep the table at most half full, so probes stay short
+        if ((size + 1) * 2 > used.length) {
+            resize(used.length * 2);
+        }
+        int slot = insert(hash);
+        ownerKeys[slot] = ownerKey;
+        songIds[slot]   = songId;
+        size++;
+    }
+
+    /**
+     * Remove a song from the index.
+     * 
+     * @return True if the song was in the index.
+     */
+    boolean remove(long hash, long ownerKey, long songId) {
+        int slot = first(hash);
+        while (slot != NONE && !(songIds[slot] == songId && ownerKeys[slot] == ownerKey)) {
+            slot = next(hash, slot);
+        }
+        if (slot == NONE) {
+            return false;
+        }
+        used[slot] = false;
+        size--;
+        //shift back the entries that probed past this slot, so lookups still find them
+        int mask = used.length - 1;
+        int next = (slot + 1) & mask;
+        while (used[next]) {
+            int home = home(hashes[next]);
+            //move the entry if its home is not between the empty slot and where it is
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                hashes[slot]    = hashes[next];
+                ownerKeys[slot] = ownerKeys[next];
+                songIds[slot]   = songIds[next];
+                used[slot]      = true;
+                used[next]      = false;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    /**
+     * @return The first slot with a song with this hash, or NONE.
+     */
+    int first(long hash) {
+        return scan(hash, home(hash));
+    }
+
+    /**
+     * @return The next slot after slot with a song with this hash, or NONE.
+     */
+    int next(long hash, int slot) {
+        return scan(hash, (slot + 1) & (used.length - 1));
+    }
+
+    long getOwnerKey(int slot) {
+        return ownerKeys[slot];
+    }
+
+    long getSongId(int slot) {
+        return songIds[slot];
+    }
+
+    void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    private int scan(long hash, int slot) {
+        int mask = used.length - 1;
+        while (used[slot]) {
+            if (hashes[slot] == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private int insert(long hash) {
+        int mask = used.length - 1;
+        int slot = home(hash);
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        used[slot]   = true;
+        return slot;
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (used.length - 1);
+    }
+
+    private void resize(int capacity) {
+        long[]    oldHashes    = hashes;
+        long[]    oldOwnerKeys = ownerKeys;
+        long[]    oldSongIds   = songIds;
+        boolean[] oldUsed      = used;
+        allocate(capacity);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                int slot = insert(oldHashes[i]);
+                ownerKeys[slot] = oldOwnerKeys[i];
+                songIds[slot]   = oldSongIds[i];
+            }
+        }
+    }
+}
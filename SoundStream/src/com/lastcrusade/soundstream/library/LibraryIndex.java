@@ -0,0 +1,528 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.util.SongKey;
+import com.lastcrusade.soundstream.util.SongSortKey;
+
+/**
+ * The songs in the library, kept in sorted order and indexed by song key
+ * (owner mac address and song id, see SongKey).
+ * 
+ * The songs are stored in columns: each song is a row, and each field is a
+ * primitive array (or an array of references into a StringPool, for the
+ * artist, album and mac address, which many songs share).  SongMetadata
+ * objects are only created when a song is read, as views of a row.
+ * 
+ * The rows are linked into a balanced (AVL) tree, where each node knows the
+ * size of its subtree, sorted alphabetically (see SongSortKey).  This lets us
+ * add, replace and remove a song, and find a song by key or position, in
+ * O(log n), so a small change to a large library does not cost a full sort.
+ * The key lookup is a hash table of rows, with open addressing.
+ * 
+ * Songs that compare as equal are kept in the order they were first added.  A
+ * song that is replaced keeps its place among equal songs.
+ * 
+ * The sorted list of songs is built when it's asked for, and the same list is
+ * returned until the next change, so reading an unchanged library does not
+ * create a new set of views.
+ * 
+ * NOTE: this class is not thread safe.
+ * 
+ */
+public class LibraryIndex {
+
+    private static final int NIL = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private final StringPool pool;
+
+    //song columns
+    private long[]   ids;
+    private long[]   fileSizes;
+    private long[]   fingerprints;
+    private long[]   ownerKeys;
+    private int[]    ownerRefs;
+    private int[]    artistRefs;
+    private int[]    albumRefs;
+    private String[] titles;
+    //the sort bucket of the artist, album and title (see SongSortKey#bucket)
+    private byte[]   artistBuckets;
+    private byte[]   albumBuckets;
+    private byte[]   titleBuckets;
+    //the order the song was first added, to break ties
+    private long[]   sequences;
+
+    //tree columns...a height of 0 marks a free row
+    private int[] lefts;
+    private int[] rights;
+    private int[] heights;
+    private int[] sizes;
+    private int root = NIL;
+
+    private int rowCount;
+    private int[] freeRows = new int[MIN_CAPACITY];
+    private int freeCount;
+    private long nextSequence;
+
+    //key table, of row + 1 (0 is an empty slot)
+    private int[] slots = new int[MIN_CAPACITY * 2];
+
+    //the sorted songs, or null if the index changed since they were built (see toList)
+    private List<SongMetadata> sortedSongs;
+
+    public LibraryIndex() {
+        this(new StringPool());
+    }
+
+    LibraryIndex(StringPool pool) {
+        this.pool = pool;
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        ids           = new long[capacity];
+        fileSizes     = new long[capacity];
+        fingerprints  = new long[capacity];
+        ownerKeys     = new long[capacity];
+        ownerRefs     = new int[capacity];
+        artistRefs    = new int[capacity];
+        albumRefs     = new int[capacity];
+        titles        = new String[capacity];
+        artistBuckets = new byte[capacity];
+        albumBuckets  = new byte[capacity];
+        titleBuckets  = new byte[capacity];
+        sequences     = new long[capacity];
+        lefts         = new int[capacity];
+        rights        = new int[capacity];
+        heights       = new int[capacity];
+        sizes         = new int[capacity];
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == NIL;
+    }
+
+    /**
+     * Add a song, or replace the song with the same key.
+     * 
+     * @param song
+     * @return The song that was replaced, or null if this is a new song.
+     */
+    public SongMetadata put(SongMetadata song) {
+        sortedSongs = null;
+        long ownerKey = song.getOwnerKey();
+        int row = findRow(ownerKey, song.getId());
+        if (row == NIL) {
+            row = allocateRow();
+            ownerKeys[row] = ownerKey;
+            ids[row]       = song.getId();
+            sequences[row] = nextSequence++;
+            setColumns(row, song);
+            addSlot(row);
+            root = insert(root, row);
+            return null;
+        }
+        SongMetadata replaced = view(row);
+        //take the row out of the tree while its fields change, and put it back in its new place
+        root = delete(root, row);
+        releaseColumns(row);
+        setColumns(row, song);
+        root = insert(root, row);
+        return replaced;
+    }
+
+    /**
+     * Remove the song with the specified key.
+     * 
+     * @param macAddress
+     * @param songId
+     * @return The song that was removed, or null if there is no song with that key.
+     */
+    public SongMetadata remove(String macAddress, long songId) {
+        int row = findRow(SongKey.ownerKey(macAddress), songId);
+        if (row == NIL) {
+            return null;
+        }
+        sortedSongs = null;
+        SongMetadata removed = view(row);
+        root = delete(root, row);
+        removeSlot(row);
+        releaseColumns(row);
+        freeRow(row);
+        return removed;
+    }
+
+    /**
+     * Remove all of the songs.  This releases the strings the songs hold in the pool.
+     */
+    public void clear() {
+        for (int row = 0; row < rowCount; row++) {
+            if (heights[row] != 0) {
+                releaseColumns(row);
+            }
+        }
+        allocate(MIN_CAPACITY);
+        sortedSongs = null;
+        slots     = new int[MIN_CAPACITY * 2];
+        root      = NIL;
+        rowCount  = 0;
+        freeCount = 0;
+    }
+
+    /**
+     * @param macAddress
+     * @param songId
+     * @return The song with the specified key, or null.
+     */
+    public SongMetadata get(String macAddress, long songId) {
+        return get(SongKey.ownerKey(macAddress), songId);
+    }
+
+    /**
+     * @param ownerKey The owner's key (see SongKey#ownerKey).
+     * @param songId
+     * @return The song with the specified key, or null.
+     */
+    public SongMetadata get(long ownerKey, long songId) {
+        int row = findRow(ownerKey, songId);
+        return row != NIL ? view(row) : null;
+    }
+
+    /**
+     * @param index
+     * @return The song at a position in the sorted order.
+     */
+    public SongMetadata get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        int node = root;
+        while (true) {
+            int leftSize = size(lefts[node]);
+            if (index < leftSize) {
+                node = lefts[node];
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = rights[node];
+            } else {
+                return view(node);
+            }
+        }
+    }
+
+    /**
+     * @param macAddress
+     * @param songId
+     * @return The position of the song with the specified key in the sorted order,
+     * or -1 if there is no song with that key.
+     */
+    public int indexOf(String macAddress, long songId) {
+        int target = findRow(SongKey.ownerKey(macAddress), songId);
+        if (target == NIL) {
+            return -1;
+        }
+        int index = 0;
+        int node = root;
+        while (node != target) {
+            if (compare(target, node) < 0) {
+                node = lefts[node];
+            } else {
+                index += size(lefts[node]) + 1;
+                node = rights[node];
+            }
+        }
+        return index + size(lefts[node]);
+    }
+
+    /**
+     * @return The songs in sorted order.  This list cannot be modified, and the
+     * same list is returned until the index changes.
+     */
+    public List<SongMetadata> toList() {
+        if (sortedSongs == null) {
+            List<SongMetadata> songs = new ArrayList<SongMetadata>(size());
+            addInOrder(root, songs);
+            sortedSongs = Collections.unmodifiableList(songs);
+        }
+        return sortedSongs;
+    }
+
+    private void addInOrder(int node, List<SongMetadata> songs) {
+        //walk down the right side iteratively, so only the left side recurses
+        while (node != NIL) {
+            addInOrder(lefts[node], songs);
+            songs.add(view(node));
+            node = rights[node];
+        }
+    }
+
+    /**
+     * @return A new SongMetadata with the fields of a row.
+     */
+    private SongMetadata view(int row) {
+        SongMetadata song = new SongMetadata(ids[row], titles[row], pool.get(artistRefs[row]),
+                pool.get(albumRefs[row]), fileSizes[row], pool.get(ownerRefs[row]));
+        song.setFingerprint(fingerprints[row]);
+        return song;
+    }
+
+    private void setColumns(int row, SongMetadata song) {
+        ownerRefs[row]     = pool.acquire(song.getMacAddress());
+        artistRefs[row]    = pool.acquire(song.getArtist());
+        albumRefs[row]     = pool.acquire(song.getAlbum());
+        titles[row]        = song.getTitle();
+        fileSizes[row]     = song.getFileSize();
+        fingerprints[row]  = song.getFingerprint();
+        artistBuckets[row] = (byte) SongSortKey.bucket(song.getArtist());
+        albumBuckets[row]  = (byte) SongSortKey.bucket(song.getAlbum());
+        titleBuckets[row]  = (byte) SongSortKey.bucket(song.getTitle());
+        lefts[row]   = NIL;
+        rights[row]  = NIL;
+        heights[row] = 1;
+        sizes[row]   = 1;
+    }
+
+    private void releaseColumns(int row) {
+        pool.release(ownerRefs[row]);
+        pool.release(artistRefs[row]);
+        pool.release(albumRefs[row]);
+        titles[row] = null;
+    }
+
+    private int allocateRow() {
+        if (freeCount > 0) {
+            return freeRows[--freeCount];
+        }
+        if (rowCount == ids.length) {
+            int capacity = rowCount * 2;
+            ids           = Arrays.copyOf(ids,           capacity);
+            fileSizes     = Arrays.copyOf(fileSizes,     capacity);
+            fingerprints  = Arrays.copyOf(fingerprints,  capacity);
+            ownerKeys     = Arrays.copyOf(ownerKeys,     capacity);
+            ownerRefs     = Arrays.copyOf(ownerRefs,     capacity);
+            artistRefs    = Arrays.copyOf(artistRefs,    capacity);
+            albumRefs     = Arrays.copyOf(albumRefs,     capacity);
+            titles        = Arrays.copyOf(titles,        capacity);
+            artistBuckets = Arrays.copyOf(artistBuckets, capacity);
+            albumBuckets  = Arrays.copyOf(albumBuckets,  capacity);
+            titleBuckets  = Arrays.copyOf(titleBuckets,  capacity);
+            sequences     = Arrays.copyOf(sequences,     capacity);
+            lefts         = Arrays.copyOf(lefts,         capacity);
+            rights        = Arrays.copyOf(rights,        capacity);
+            heights       = Arrays.copyOf(heights,       capacity);
+            sizes         = Arrays.copyOf(sizes,         capacity);
+        }
+        return rowCount++;
+    }
+
+    private void freeRow(int row) {
+        heights[row] = 0;
+        if (freeCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+        }
+        freeRows[freeCount++] = row;
+    }
+
+    /* key table */
+
+    private int findRow(long ownerKey, long songId) {
+        int mask = slots.length - 1;
+        int slot = SongKey.hash(ownerKey, songId) & mask;
+        while (slots[slot] != 0) {
+            int row = slots[slot] - 1;
+            if (ids[row] == songId && ownerKeys[row] == ownerKey) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NIL;
+    }
+
+    private void addSlot(int row) {
+        //keep the table at most half full, so probes stay short
+        if ((size() + 1) * 2 > slots.length) {
+            int[] oldSlots = slots;
+            slots = new int[oldSlots.length * 2];
+            for (int oldSlot : oldSlots) {
+                if (oldSlot != 0) {
+                    placeSlot(oldSlot - 1);
+                }
+            }
+        }
+        placeSlot(row);
+    }
+
+    private void placeSlot(int row) {
+        int mask = slots.length - 1;
+        int slot = SongKey.hash(ownerKeys[row], ids[row]) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+    }
+
+    private void removeSlot(int row) {
+        int mask = slots.length - 1;
+        int slot = SongKey.hash(ownerKeys[row], ids[row]) & mask;
+        while (slots[slot] != row + 1) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = 0;
+        //shift back the rows that probed past this slot, so lookups still find them
+        int next = (slot + 1) & mask;
+        while (slots[next] != 0) {
+            int other = slots[next] - 1;
+            int home  = SongKey.hash(ownerKeys[other], ids[other]) & mask;
+            //move the row if its home is not between the empty slot and where it is
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                slots[slot] = slots[next];
+                slots[next] = 0;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    /* tree */
+
+    private int compare(int a, int b) {
+        int comp = 0;
+        //pooled strings are equal if their references are
+        if (artistRefs[a] != artistRefs[b]) {
+            comp = SongSortKey.compareField(artistBuckets[a], pool.get(artistRefs[a]),
+                    artistBuckets[b], pool.get(artistRefs[b]));
+        }
+        if (comp == 0 && albumRefs[a] != albumRefs[b]) {
+            comp = SongSortKey.compareField(albumBuckets[a], pool.get(albumRefs[a]),
+                    albumBuckets[b], pool.get(albumRefs[b]));
+        }
+        if (comp == 0) {
+            comp = SongSortKey.compareField(titleBuckets[a], titles[a], titleBuckets[b], titles[b]);
+        }
+        if (comp == 0) {
+            comp = sequences[a] < sequences[b] ? -1 : (sequences[a] == sequences[b] ? 0 : 1);
+        }
+        return comp;
+    }
+
+    private int insert(int node, int added) {
+        if (node == NIL) {
+            return added;
+        }
+        if (compare(added, node) < 0) {
+            lefts[node] = insert(lefts[node], added);
+        } else {
+            rights[node] = insert(rights[node], added);
+        }
+        return balance(node);
+    }
+
+    private int delete(int node, int removed) {
+        int comp = compare(removed, node);
+        if (comp < 0) {
+            lefts[node] = delete(lefts[node], removed);
+        } else if (comp > 0) {
+            rights[node] = delete(rights[node], removed);
+        } else {
+            if (lefts[node] == NIL) {
+                return rights[node];
+            }
+            if (rights[node] == NIL) {
+                return lefts[node];
+            }
+            //replace the node with the first node of its right subtree
+            int next = rights[node];
+            while (lefts[next] != NIL) {
+                next = lefts[next];
+            }
+            rights[next] = deleteFirst(rights[node]);
+            lefts[next]  = lefts[node];
+            node = next;
+        }
+        return balance(node);
+    }
+
+    private int deleteFirst(int node) {
+        if (lefts[node] == NIL) {
+            return rights[node];
+        }
+        lefts[node] = deleteFirst(lefts[node]);
+        return balance(node);
+    }
+
+    private int balance(int node) {
+        update(node);
+        int skew = height(lefts[node]) - height(rights[node]);
+        if (skew > 1) {
+            if (height(lefts[lefts[node]]) < height(rights[lefts[node]])) {
+                lefts[node] = rotateLeft(lefts[node]);
+            }
+            node = rotateRight(node);
+        } else if (skew < -1) {
+            if (height(rights[rights[node]]) < height(lefts[rights[node]])) {
+                rights[node] = rotateRight(rights[node]);
+            }
+            node = rotateLeft(node);
+        }
+        return node;
+    }
+
+    private int rotateLeft(int node) {
+        int pivot = rights[node];
+        rights[node] = lefts[pivot];
+        lefts[pivot] = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private int rotateRight(int node) {
+        int pivot = lefts[node];
+        lefts[node]   = rights[pivot];
+        rights[pivot] = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private void update(int node) {
+        heights[node] = Math.max(height(lefts[node]), height(rights[node])) + 1;
+        sizes[node]   = size(lefts[node]) + size(rights[node]) + 1;
+    }
+
+    private int height(int node) {
+        return node != NIL ? heights[node] : 0;
+    }
+
+    private int size(int node) {
+        return node != NIL ? sizes[node] : 0;
+    }
+}
@@ -20,7 +20,9 @@
 package com.lastcrusade.soundstream.library;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Service;
 import android.content.Context;
@@ -70,6 +72,62 @@ public class MediaStoreWrapper {
         return metadataList;
     }
 
+    /**
+     * Lists the file paths of all media files on the device, in one query
+     * @return A map of song id to file path
+     */
+    public Map<Long, String> listFilePaths() {
+        String[] proj = {ID, PATH};
+        Cursor cursor = context.getContentResolver().query(EC_URI, proj, null, null, null);
+        Map<Long, String> filePaths = new HashMap<Long, String>();
+        try {
+            int idColumn   = cursor.getColumnIndex(ID);
+            int pathColumn = cursor.getColumnIndex(PATH);
+            while (cursor.moveToNext()) {
+                filePaths.put(cursor.getLong(idColumn), cursor.getString(pathColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return filePaths;
+    }
+
+    /**
+     * Looks up the file paths of several songs, in one query
+     * @param ids the ids of the songs to look up
+     * @return A map of song id to file path, without the songs that were not found
+     */
+    public Map<Long, String> getSongFilePaths(long[] ids) {
+        Map<Long, String> filePaths = new HashMap<Long, String>();
+        if (ids.length == 0) {
+            return filePaths;
+        }
+        StringBuilder selection = new StringBuilder(ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+
+        String[] proj = {ID, PATH};
+        Cursor cursor = context.getContentResolver().query(EC_URI, proj, selection.toString(), null, null);
+        try {
+            int idColumn   = cursor.getColumnIndex(ID);
+            int pathColumn = cursor.getColumnIndex(PATH);
+            while (cursor.moveToNext()) {
+                String filePath = cursor.getString(pathColumn);
+                if (filePath != null) {
+                    filePaths.put(cursor.getLong(idColumn), filePath);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return filePaths;
+    }
+
     /**
      * Gets a song from the MediaStore, else errors with SongNotFoundException
      * @param metadata metadata for the requested song
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.util.AlphabeticalComparator;
+import com.lastcrusade.soundstream.util.SongKey;
+import com.lastcrusade.soundstream.util.SongMetadataUtils;
+
+/**
+ * The songs in the library, stored as one sorted segment (see LibraryIndex) for
+ * each owner's mac address.
+ * 
+ * Adding or dropping an owner's songs only touches that owner's segment, and a
+ * whole library can be swapped in for an owner at once.  The sorted view of the
+ * whole library is a merge of the segments, which is kept until the library
+ * changes.  Songs from different owners that compare as equal are in the order
+ * the owners were added.
+ * 
+ * The segments share one StringPool, so an artist or album that many owners
+ * have is only stored once.  The library also keeps an index of songs by content
+ * key, to find the copies of a song that more than one owner has.
+ * 
+ * NOTE: this class is not thread safe.
+ * 
+ */
+public class SegmentedLibrary {
+
+    private static class Segment {
+        private final String macAddress;
+        private final LibraryIndex index;
+        //the order the segment was added, to break ties when merging
+        private final long sequence;
+
+        public Segment(String macAddress, LibraryIndex index, long sequence) {
+            this.macAddress = macAddress;
+            this.index      = index;
+            this.sequence   = sequence;
+        }
+    }
+
+    /**
+     * A position in a segment's songs, used to merge the segments.
+     */
+    private static class Cursor {
+        private final List<SongMetadata> songs;
+        private final long sequence;
+        private int position;
+
+        public Cursor(List<SongMetadata> songs, long sequence) {
+            this.songs    = songs;
+            this.sequence = sequence;
+        }
+
+        public SongMetadata current() {
+            return songs.get(position);
+        }
+    }
+
+    private final Comparator<SongMetadata> comparator = new AlphabeticalComparator();
+    private final StringPool pool = new StringPool();
+    private final CopyIndex copies = new CopyIndex();
+    //keyed by owner key (see SongKey), so the copy index can find a song's segment without its mac address
+    private final Map<Long, Segment> segments = new LinkedHashMap<Long, Segment>();
+    private long nextSequence;
+    //the merged songs, or null if the library changed since they were merged (see toList)
+    private List<SongMetadata> merged;
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.index.size();
+        }
+        return size;
+    }
+
+    /**
+     * Add a song to its owner's segment, or replace the song with the same key.
+     * 
+     * @param song
+     * @return The song that was replaced, or null if this is a new song.
+     */
+    public SongMetadata put(SongMetadata song) {
+        merged = null;
+        Segment segment = segments.get(song.getOwnerKey());
+        if (segment == null) {
+            segment = new Segment(song.getMacAddress(), new LibraryIndex(pool), nextSequence++);
+            segments.put(song.getOwnerKey(), segment);
+        }
+        SongMetadata replaced = segment.index.put(song);
+        if (replaced != null) {
+            removeCopy(replaced);
+        }
+        addCopy(song);
+        return replaced;
+    }
+
+    /**
+     * @param macAddress
+     * @param songId
+     * @return The song with the specified owner and id, or null.
+     */
+    public SongMetadata get(String macAddress, long songId) {
+        return get(SongKey.ownerKey(macAddress), songId);
+    }
+
+    private SongMetadata get(long ownerKey, long songId) {
+        Segment segment = segments.get(ownerKey);
+        return segment != null ? segment.index.get(ownerKey, songId) : null;
+    }
+
+    /**
+     * Replace all of an owner's songs.  The new segment is built on the side and
+     * swapped in.
+     * 
+     * @param macAddress
+     * @param songs The owner's songs.  Songs owned by someone else are ignored.
+     * @return The owner's songs that were replaced, in sorted order.
+     */
+    public List<SongMetadata> replaceOwner(String macAddress, Collection<SongMetadata> songs) {
+        merged = null;
+        //drop the old songs first, so the strings they share with the new songs stay pooled
+        long ownerKey = SongKey.ownerKey(macAddress);
+        Segment old = segments.remove(ownerKey);
+        List<SongMetadata> replaced = drop(old);
+        LibraryIndex index = new LibraryIndex(pool);
+        for (SongMetadata song : songs) {
+            if (song.getOwnerKey() == ownerKey) {
+                SongMetadata duplicate = index.put(song);
+                if (duplicate != null) {
+                    removeCopy(duplicate);
+                }
+                addCopy(song);
+            }
+        }
+        if (!index.isEmpty()) {
+            segments.put(ownerKey, new Segment(macAddress, index, old != null ? old.sequence : nextSequence++));
+        }
+        return replaced;
+    }
+
+    /**
+     * Drop all of an owner's songs.
+     * 
+     * @param macAddress
+     * @return The songs that were dropped, in sorted order.
+     */
+    public List<SongMetadata> removeOwner(String macAddress) {
+        merged = null;
+        return drop(segments.remove(SongKey.ownerKey(macAddress)));
+    }
+
+    /**
+     * Clear a segment that was taken out of the library, and its songs' copies.
+     * 
+     * @return The songs that were in the segment, in sorted order.
+     */
+    private List<SongMetadata> drop(Segment segment) {
+        if (segment == null) {
+            return Collections.<SongMetadata>emptyList();
+        }
+        List<SongMetadata> songs = segment.index.toList();
+        for (SongMetadata song : songs) {
+            removeCopy(song);
+        }
+        //release the segment's strings from the pool
+        segment.index.clear();
+        return songs;
+    }
+
+    /**
+     * @param song
+     * @return The songs in the library with the same content as song (including
+     * song, if it is in the library), or an empty list if there is only one.
+     */
+    public List<SongMetadata> getCopies(SongMetadata song) {
+        String key = SongMetadataUtils.getContentKey(song);
+        if (key == null) {
+            return new ArrayList<SongMetadata>();
+        }
+        long hash = hash(key);
+        List<SongMetadata> found = new ArrayList<SongMetadata>();
+        for (int slot = copies.first(hash); slot != CopyIndex.NONE; slot = copies.next(hash, slot)) {
+            SongMetadata copy = get(copies.getOwnerKey(slot), copies.getSongId(slot));
+            //different content keys can have the same hash
+            if (copy != null && key.equals(SongMetadataUtils.getContentKey(copy))) {
+                found.add(copy);
+            }
+        }
+        return found.size() > 1 ? found : new ArrayList<SongMetadata>();
+    }
+
+    private void addCopy(SongMetadata song) {
+        String key = SongMetadataUtils.getContentKey(song);
+        if (key != null) {
+            copies.add(hash(key), song.getOwnerKey(), song.getId());
+        }
+    }
+
+    private void removeCopy(SongMetadata song) {
+        String key = SongMetadataUtils.getContentKey(song);
+        if (key != null) {
+            copies.remove(hash(key), song.getOwnerKey(), song.getId());
+        }
+    }
+
+    /**
+     * @return The 64 bit FNV-1a hash of a content key.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return The mac addresses of the owners with songs in the library.
+     */
+    public List<String> getOwners() {
+        List<String> owners = new ArrayList<String>(segments.size());
+        for (Segment segment : segments.values()) {
+            owners.add(segment.macAddress);
+        }
+        return owners;
+    }
+
+    /**
+     * @param macAddress
+     * @return An owner's songs, in sorted order.  This list cannot be modified.
+     */
+    public List<SongMetadata> getSongs(String macAddress) {
+        Segment segment = segments.get(SongKey.ownerKey(macAddress));
+        return segment != null ? segment.index.toList() : Collections.<SongMetadata>emptyList();
+    }
+
+    /**
+     * @return All of the songs, in sorted order.  This list cannot be modified, and
+     * the same list is returned until the library changes.
+     */
+    public List<SongMetadata> toList() {
+        if (merged == null) {
+            merged = merge();
+        }
+        return merged;
+    }
+
+    /**
+     * @param macAddress
+     * @return All of the songs except those owned by macAddress, in sorted order.
+     */
+    public List<SongMetadata> toListExcept(String macAddress) {
+        long excluded = SongKey.ownerKey(macAddress);
+        Segment segment = segments.get(excluded);
+        if (segment == null) {
+            return toList();
+        }
+        //the merged list is already in order, so just leave out the owner's songs
+        List<SongMetadata> songs = new ArrayList<SongMetadata>(size() - segment.index.size());
+        for (SongMetadata song : toList()) {
+            if (song.getOwnerKey() != excluded) {
+                songs.add(song);
+            }
+        }
+        return songs;
+    }
+
+    private List<SongMetadata> merge() {
+        List<Cursor> cursors = new ArrayList<Cursor>(segments.size());
+        int size = 0;
+        for (Segment segment : segments.values()) {
+            if (!segment.index.isEmpty()) {
+                cursors.add(new Cursor(segment.index.toList(), segment.sequence));
+                size += segment.index.size();
+            }
+        }
+        if (cursors.size() == 1) {
+            return cursors.get(0).songs;
+        }
+        if (cursors.isEmpty()) {
+            return Collections.<SongMetadata>emptyList();
+        }
+        List<SongMetadata> merged = new ArrayList<SongMetadata>(size);
+        PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(cursors.size(), new Comparator<Cursor>() {
+
+            @Override
+            public int compare(Cursor lhs, Cursor rhs) {
+                int comp = comparator.compare(lhs.current(), rhs.current());
+                if (comp == 0) {
+                    comp = lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+                }
+                return comp;
+            }
+        });
+        heads.addAll(cursors);
+        while (!heads.isEmpty()) {
+            Cursor cursor = heads.poll();
+            merged.add(cursor.current());
+            if (++cursor.position < cursor.songs.size()) {
+                heads.add(cursor);
+            }
+        }
+        return Collections.unmodifiableList(merged);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.library;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of strings that appear in many songs (artists, albums and mac
+ * addresses).  Each distinct string is stored once, and referred to by an int.
+ * The pool counts the references to each string, and drops a string when its
+ * last reference is released.
+ * 
+ * NOTE: this class is not thread safe.
+ * 
+ */
+class StringPool {
+
+    /**
+     * The reference to null.
+     */
+    static final int NULL_REF = -1;
+
+    private final Map<String, Integer> refs = new HashMap<String, Integer>();
+    private String[] strings = new String[16];
+    private int[]    counts  = new int[16];
+    private int[]    freeRefs = new int[16];
+    private int      freeCount;
+    private int      nextRef;
+
+    /**
+     * Add a reference to a string.
+     * 
+     * @param string
+     * @return The reference to the string, or NULL_REF for null.
+     */
+    int acquire(String string) {
+        if (string == null) {
+            return NULL_REF;
+        }
+        Integer ref = refs.get(string);
+        if (ref != null) {
+            counts[ref]++;
+            return ref;
+        }
+        int newRef;
+        if (freeCount > 0) {
+            newRef = freeRefs[--freeCount];
+        } else {
+            newRef = nextRef++;
+            if (newRef == strings.length) {
+                strings = Arrays.copyOf(strings, newRef * 2);
+                counts  = Arrays.copyOf(counts,  newRef * 2);
+            }
+        }
+        strings[newRef] = string;
+        counts[newRef]  = 1;
+        refs.put(string, newRef);
+        return newRef;
+    }
+
+    /**
+     * Release a reference to a string.
+     * 
+     * @param ref
+     */
+    void release(int ref) {
+        if (ref == NULL_REF) {
+            return;
+        }
+        if (--counts[ref] == 0) {
+            refs.remove(strings[ref]);
+            strings[ref] = null;
+            if (freeCount == freeRefs.length) {
+                freeRefs = Arrays.copyOf(freeRefs, freeCount * 2);
+            }
+            freeRefs[freeCount++] = ref;
+        }
+    }
+
+    String get(int ref) {
+        return ref != NULL_REF ? strings[ref] : null;
+    }
+
+    /**
+     * @return The number of distinct strings in the pool.
+     */
+    int size() {
+        return refs.size();
+    }
+}
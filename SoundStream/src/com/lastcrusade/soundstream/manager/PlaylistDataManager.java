@@ -23,9 +23,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
@@ -37,15 +45,22 @@ import com.lastcrusade.soundstream.library.MediaStoreWrapper;
 import com.lastcrusade.soundstream.library.SongNotFoundException;
 import com.lastcrusade.soundstream.model.PlaylistEntry;
 import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.net.message.IFileRangeMessage;
+import com.lastcrusade.soundstream.net.message.RequestSongMessage;
+import com.lastcrusade.soundstream.net.wire.IncomingFile;
 import com.lastcrusade.soundstream.service.ConnectionService;
 import com.lastcrusade.soundstream.service.IMessagingService;
 import com.lastcrusade.soundstream.service.MessagingService;
+import com.lastcrusade.soundstream.service.MusicLibraryService;
 import com.lastcrusade.soundstream.service.PlaylistService;
 import com.lastcrusade.soundstream.service.ServiceLocator;
 import com.lastcrusade.soundstream.service.ServiceNotBoundException;
+import com.lastcrusade.soundstream.util.BluetoothUtils;
 import com.lastcrusade.soundstream.util.LocalBroadcastIntent;
 import com.lastcrusade.soundstream.util.BroadcastRegistrar;
 import com.lastcrusade.soundstream.util.IBroadcastActionHandler;
+import com.lastcrusade.soundstream.util.SongFingerprint;
+import com.lastcrusade.soundstream.util.SongKeyMap;
 import com.lastcrusade.soundstream.util.SongMetadataUtils;
 
 public class PlaylistDataManager implements Runnable {
@@ -54,7 +69,8 @@ public class PlaylistDataManager implements Runnable {
 
     private Context context;
     private ServiceLocator<MessagingService> messagingServiceLocator;
-    private Queue<PlaylistEntry> toLoadQueue = new LinkedList<PlaylistEntry>();
+    private ServiceLocator<MusicLibraryService> musicLibraryLocator;
+    private List<PlaylistEntry> toLoadQueue = new LinkedList<PlaylistEntry>();
     private Queue<PlaylistEntry> remotelyLoaded = new LinkedList<PlaylistEntry>();
     private Thread stoppingThread;
     private boolean running;
@@ -63,12 +79,112 @@ public class PlaylistDataManager implements Runnable {
     private long maxBytesToLoad = 512 * 1024 * 1024; //512MB default max bytes
     private long bytesRequested = 0;
     private float loadFactor    = 0.5f;
-    
+
+    /**
+     * Remote songs that are still arriving.  Once streamingPrefixBytes of a song
+     * has arrived, the song is marked as loaded and can be played while the rest
+     * of the file streams in.
+     */
+    private Map<PlaylistEntry, IncomingFile> streaming = new HashMap<PlaylistEntry, IncomingFile>();
+    private long streamingPrefixBytes = 256 * 1024; //256KB default, a few seconds of a typical mp3
+
+    /**
+     * Remote song transfers, by song key (see SongKey).  These are kept when a guest disconnects, so
+     * the transfer can be resumed from the last verified byte if the song is requested
+     * again.
+     */
+    private SongKeyMap<SongTransfer> transfers = new SongKeyMap<SongTransfer>();
+    private Queue<SongTransfer> interruptedTransfers = new LinkedList<SongTransfer>();
+    private long nextTransferId = 1;
+
+    /**
+     * Remote songs are requested in the order they are needed, a few at a time on
+     * each guest connection, so changes to the playlist are reflected in what we
+     * load next.
+     */
+    private TransferScheduler scheduler = new TransferScheduler();
+
+    /**
+     * Copies of the songs waiting to be loaded, owned by other users (see
+     * MusicLibraryService#getCopies).  A song can be loaded from any copy, so
+     * we use a local or cached copy if there is one, and otherwise let the
+     * scheduler pick the guest that can send it soonest.
+     */
+    private Map<PlaylistEntry, List<SongMetadata>> copies = new HashMap<PlaylistEntry, List<SongMetadata>>();
+
+    /**
+     * Remote songs are kept in the song cache after they're played, so the next time
+     * a guest brings the same song it can be loaded without a transfer.  Entries
+     * loaded from (or stored in) the cache hold a pin on their song until they're
+     * unloaded.
+     */
+    private static final String SONG_CACHE_FOLDER = "songs";
+    private SongCache songCache;
+    private Map<PlaylistEntry, Long> cached = new HashMap<PlaylistEntry, Long>();
+
+    /**
+     * A request for a remote song, waiting to be sent to its guest (see sendSongRequests).
+     */
+    private static class SongRequest {
+        private final String macAddress;
+        private final long songId;
+        private final long transferId;
+        private final long fileOffset;
+
+        public SongRequest(String macAddress, long songId, long transferId, long fileOffset) {
+            this.macAddress = macAddress;
+            this.songId     = songId;
+            this.transferId = transferId;
+            this.fileOffset = fileOffset;
+        }
+    }
+
+    /**
+     * A song that has finished arriving from a guest.  Assembling the song file and
+     * storing it in the song cache hit the disk, so the song is handed to the loader
+     * thread to finish (see finishReceivedSongs).
+     */
+    private static class ReceivedSong {
+        private final String fromAddr;
+        private final long songId;
+        private final String fileName;
+        private final String tempFilePath;
+        private final long transferId;
+        private final long fileOffset;
+        private final int[] checksums;
+
+        public ReceivedSong(String fromAddr, long songId, String fileName, String tempFilePath,
+                long transferId, long fileOffset, int[] checksums) {
+            this.fromAddr     = fromAddr;
+            this.songId       = songId;
+            this.fileName     = fileName;
+            this.tempFilePath = tempFilePath;
+            this.transferId   = transferId;
+            this.fileOffset   = fileOffset;
+            this.checksums    = checksums;
+        }
+    }
+
+    private Queue<ReceivedSong> receivedSongs = new LinkedList<ReceivedSong>();
+
+    /**
+     * Value returned by getLoadEta if the time cannot be estimated.
+     */
+    public static final long ETA_UNKNOWN = TransferScheduler.UNKNOWN;
+
     private final Object entryMutex = new Object();
 
-    public PlaylistDataManager(Context context, ServiceLocator<MessagingService> messagingServiceLocator) {
+    /**
+     * Notified to wake the loader thread before the next scheduled run.
+     */
+    private final Object loadSignal = new Object();
+
+    public PlaylistDataManager(Context context, ServiceLocator<MessagingService> messagingServiceLocator,
+            ServiceLocator<MusicLibraryService> musicLibraryLocator) {
         this.context                 = context;
         this.messagingServiceLocator = messagingServiceLocator;
+        this.musicLibraryLocator     = musicLibraryLocator;
+        this.songCache = new SongCache(new File(context.getFilesDir(), SONG_CACHE_FOLDER), 512 * 1024 * 1024); //512MB default
     }
 
     @Override
@@ -76,29 +192,47 @@ public class PlaylistDataManager implements Runnable {
         registerReceivers();
         running = true;
         try {
+            //read the cache index here, instead of on the first song to arrive
+            songCache.load();
             while (running) {
-                //first, clean up any already played remote files...this frees up space
+                //first, finish the songs that have arrived since the last run, so
+                // their transfers are done before we clean up
+                boolean loaded = finishReceivedSongs();
+                //next, clean up any already played remote files...this frees up space
                 // to request new files.
                 clearOldLoadedFiles();
+                //keep what we can from transfers that were cut off
+                saveInterruptedTransfers();
 
-                boolean loaded = false;
+                //next, see if any songs that are still arriving are ready to play
+                loaded |= startStreamingEntries();
+                //look for other copies of the songs we need to load
+                findCopies();
                 //next, see if we can start loading any additional files
-                while (!toLoadQueue.isEmpty() &&
-                        toLoadQueue.peek().getFileSize() < (maxBytesToLoad - bytesRequested)) {
-                    PlaylistEntry entry = toLoadQueue.poll();
-                    if (entry.isLocalFile()) {
+                List<SongRequest> requests = new ArrayList<SongRequest>();
+                PlaylistEntry entry;
+                while ((entry = pollNextToLoad()) != null) {
+                    if (getLocalCopy(entry) != null) {
                         //if its local, just load the file path and remove the entry
                         loadLocal(entry);
                         loaded = true;
+                    } else if (loadCached(entry)) {
+                        //we kept this song from a past transfer
+                        loaded = true;
                     } else {
                         //for remote entries, we need to request the remote file, and also
                         // keep track of the bytes requested, and the remote entries, so we
                         // can avoid overloading the host, and we can clean up after ourselves
-                        loadRemote(entry);
-                        bytesRequested += entry.getFileSize();
-                        remotelyLoaded.add(entry);
+                        loadRemote(entry, null, requests);
+                        //fill out the guest's batch with the songs we need next from it
+                        PlaylistEntry prefetch;
+                        while ((prefetch = pollNextToPrefetch(entry)) != null) {
+                            loadRemote(prefetch, entry, requests);
+                        }
                     }
                 }
+                //the remote songs are requested together, one batch for each guest
+                sendSongRequests(requests);
                 if (loaded) {
                     new LocalBroadcastIntent(PlaylistService.ACTION_PLAYLIST_UPDATED).send(context);
                 }
@@ -115,22 +249,323 @@ public class PlaylistDataManager implements Runnable {
         }
     }
 
+    /**
+     * Take the next entry to load off of the load queue.  Local entries, and entries
+     * with a copy here or in the song cache, are loaded right away.  Remote entries are requested in the
+     * order they are needed in the playlist, and only a few at a time, so we can
+     * change our minds if the playlist changes (see TransferScheduler).
+     * 
+     * @return The entry to load, or null if nothing should be loaded now.
+     */
+    private PlaylistEntry pollNextToLoad() {
+        synchronized(entryMutex) {
+            for (Iterator<PlaylistEntry> it = toLoadQueue.iterator(); it.hasNext();) {
+                PlaylistEntry entry = it.next();
+                if (getLocalCopy(entry) != null || getCachedCopy(entry) != null) {
+                    it.remove();
+                    return entry;
+                }
+            }
+            PlaylistEntry entry = scheduler.pickNext(toLoadQueue, System.currentTimeMillis());
+            if (entry == null || entry.getFileSize() >= (maxBytesToLoad - bytesRequested)) {
+                return null;
+            }
+            toLoadQueue.remove(entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Take the next entry to request in the same batch as another entry off of the
+     * load queue (see TransferScheduler#pickPrefetch).
+     * 
+     * @param lead The entry that started the batch.
+     * @return The entry to load, or null if the batch is full.
+     */
+    private PlaylistEntry pollNextToPrefetch(PlaylistEntry lead) {
+        synchronized(entryMutex) {
+            List<PlaylistEntry> remote = new ArrayList<PlaylistEntry>();
+            for (PlaylistEntry entry : toLoadQueue) {
+                if (getLocalCopy(entry) == null && getCachedCopy(entry) == null) {
+                    remote.add(entry);
+                }
+            }
+            PlaylistEntry entry = scheduler.pickPrefetch(remote, lead, System.currentTimeMillis());
+            if (entry == null || entry.getFileSize() >= (maxBytesToLoad - bytesRequested)) {
+                return null;
+            }
+            toLoadQueue.remove(entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Find the copies of the songs waiting to be loaded.  This is done on every run,
+     * as copies come and go with the guests that own them.
+     */
+    private void findCopies() {
+        List<PlaylistEntry> pending;
+        synchronized(entryMutex) {
+            pending = new ArrayList<PlaylistEntry>(toLoadQueue);
+        }
+        Map<PlaylistEntry, List<SongMetadata>> found = new HashMap<PlaylistEntry, List<SongMetadata>>();
+        MusicLibraryService library = getMusicLibraryService();
+        if (library != null) {
+            for (PlaylistEntry entry : pending) {
+                if (entry.isLocalFile()) {
+                    continue;
+                }
+                List<SongMetadata> entryCopies = library.getCopies(entry);
+                if (!entryCopies.isEmpty()) {
+                    //the entry's owner comes first
+                    List<SongMetadata> sources = new ArrayList<SongMetadata>(entryCopies.size());
+                    sources.add(entry);
+                    for (SongMetadata copy : entryCopies) {
+                        if (!SongMetadataUtils.isTheSameSong(copy, entry)) {
+                            sources.add(copy);
+                        }
+                    }
+                    found.put(entry, sources);
+                }
+            }
+        }
+        synchronized(entryMutex) {
+            copies = found;
+            scheduler.setCopies(found);
+        }
+    }
+
+    /**
+     * NOTE: must be called with the entryMutex held.
+     * 
+     * @return The copies of an entry's song, starting with the entry itself.
+     */
+    private List<SongMetadata> getCopies(PlaylistEntry entry) {
+        List<SongMetadata> entryCopies = copies.get(entry);
+        return entryCopies != null ? entryCopies : Collections.<SongMetadata>singletonList(entry);
+    }
+
+    /**
+     * @return A copy of an entry's song that is on this device, or null.
+     */
+    private SongMetadata getLocalCopy(PlaylistEntry entry) {
+        synchronized(entryMutex) {
+            for (SongMetadata copy : getCopies(entry)) {
+                if (BluetoothUtils.getLocalBluetoothMAC().equals(copy.getMacAddress())) {
+                    return copy;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return A copy of an entry's song that is in the song cache, or null.
+     */
+    private SongMetadata getCachedCopy(PlaylistEntry entry) {
+        synchronized(entryMutex) {
+            for (SongMetadata copy : getCopies(entry)) {
+                if (songCache.contains(copy.getFingerprint())) {
+                    return copy;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mark remote songs that are still arriving as loaded, once enough of the song
+     * is here to start playing.  The player will stream the rest of the song
+     * as it arrives.
+     * 
+     * @return True if any songs were marked as loaded.
+     */
+    private boolean startStreamingEntries() {
+        boolean loaded = false;
+        synchronized(entryMutex) {
+            Iterator<Map.Entry<PlaylistEntry, IncomingFile>> it = streaming.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PlaylistEntry, IncomingFile> next = it.next();
+                PlaylistEntry entry    = next.getKey();
+                IncomingFile  incoming = next.getValue();
+                if (incoming.isComplete() || incoming.isAbandoned() || entry.isLoaded()) {
+                    //complete files are handled when the transfer message comes in
+                    it.remove();
+                } else if (incoming.getBytesReceived() >= Math.min(streamingPrefixBytes, incoming.getFileSize())) {
+                    Log.i(TAG, "Streaming " + entry + " with " + incoming.getBytesReceived() + " of " + incoming.getFileSize() + " bytes");
+                    entry.setFilePath(incoming.getPath());
+                    getMessagingService().sendSongStatusMessage(entry);
+                    it.remove();
+                    loaded = true;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Keep the verified data from transfers that were cut off when a guest disconnected.
+     * This reads through the received data, so it's done here and not in the
+     * broadcast receiver.
+     */
+    private void saveInterruptedTransfers() {
+        SongTransfer transfer;
+        while ((transfer = pollInterruptedTransfer()) != null) {
+            try {
+                transfer.saveAbandonedSegments();
+                Log.i(TAG, "Transfer " + transfer.getTransferId() + " interrupted, can resume at " + transfer.getResumeOffset());
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to save interrupted transfer " + transfer.getTransferId(), e);
+                transfer.discard();
+            }
+        }
+    }
+
+    private SongTransfer pollInterruptedTransfer() {
+        synchronized(entryMutex) {
+            return interruptedTransfers.poll();
+        }
+    }
+
+    /**
+     * Set how much of a remote song must arrive before the song can be played.  The
+     * rest of the song will stream in while it plays.
+     * 
+     * @param streamingPrefixBytes The number of bytes, or Long.MAX_VALUE to wait for the whole song.
+     */
+    public void setStreamingPrefixBytes(long streamingPrefixBytes) {
+        this.streamingPrefixBytes = streamingPrefixBytes;
+    }
+
+    /**
+     * Set how much disk space can be used to keep remote songs between parties.
+     * 
+     * @param maxCacheBytes The number of bytes, or 0 to keep nothing.
+     */
+    public void setMaxCacheBytes(long maxCacheBytes) {
+        songCache.setMaxBytes(maxCacheBytes);
+    }
+
+    /**
+     * Set how many song requests can run at once.  Each request is a batch of
+     * songs from one guest (see setPrefetchWindow).
+     * 
+     * @param maxTransfers The limit across all guests.
+     * @param maxTransfersPerGuest The limit for each guest.
+     */
+    public void setMaxTransfers(int maxTransfers, int maxTransfersPerGuest) {
+        synchronized(entryMutex) {
+            scheduler.setMaxTransfers(maxTransfers, maxTransfersPerGuest);
+        }
+    }
+
+    /**
+     * Set how many songs can be requested from a guest in one batch.  Bigger
+     * batches keep the connections busy, but a song that is bumped to the top of
+     * the playlist has to wait for the songs ahead of it.
+     * 
+     * @param prefetchSongs The most songs in a batch.
+     * @param prefetchBytes The most bytes in a batch.
+     */
+    public void setPrefetchWindow(int prefetchSongs, long prefetchBytes) {
+        synchronized(entryMutex) {
+            scheduler.setPrefetchWindow(prefetchSongs, prefetchBytes);
+        }
+    }
+
+    /**
+     * Set the order the playlist will play in.  This is used to load songs in
+     * the order they are needed, and should be called whenever the playlist
+     * or the current song changes.
+     * 
+     * @param entries The whole playlist.  Played entries are ignored.
+     * @param current The entry that is playing, or null.
+     * @param currentRemaining The time left in the current entry, in ms, or a negative number if it's unknown.
+     */
+    public void setPlayOrder(List<PlaylistEntry> entries, PlaylistEntry current, long currentRemaining) {
+        List<PlaylistEntry> upcoming = new ArrayList<PlaylistEntry>();
+        for (PlaylistEntry entry : entries) {
+            if (!entry.isPlayed() && entry != current) {
+                upcoming.add(entry);
+            }
+        }
+        synchronized(entryMutex) {
+            scheduler.setPlayOrder(upcoming, current,
+                    currentRemaining >= 0 ? currentRemaining : TransferScheduler.UNKNOWN,
+                    System.currentTimeMillis());
+        }
+        //the next song to load may have changed
+        wakeLoader();
+    }
+
+    /**
+     * Estimate how long until an entry is loaded, based on its place in line
+     * and the measured transfer rate.
+     * 
+     * @param entry
+     * @return The estimated time in ms, 0 if the entry is loaded, or ETA_UNKNOWN if it is not being loaded.
+     */
+    public long getLoadEta(PlaylistEntry entry) {
+        synchronized(entryMutex) {
+            return scheduler.getEta(entry, toLoadQueue, System.currentTimeMillis());
+        }
+    }
+
     /**
      * Pause the thread before running through the data clear/load process
      */
     private void pauseForNextRun() {
         try {
             int pauseInMS = 1000; //1 second pause
-            Thread.sleep(pauseInMS);
+            synchronized(loadSignal) {
+                loadSignal.wait(pauseInMS);
+            }
         } catch (InterruptedException e) {
         }
     }
+
+    /**
+     * Wake the loader thread, to load songs now instead of at the next scheduled run.
+     */
+    private void wakeLoader() {
+        synchronized(loadSignal) {
+            loadSignal.notify();
+        }
+    }
     
     public void cleanRemotelyLoadedFiles(String disconnectedUserMac){
+        //Stop any transfers from mac.  The verified data is kept (see saveInterruptedTransfers),
+        // so the transfer can resume later.
+        Set<String> segmentPaths = new HashSet<String>();
+        //songs owned by other users that were coming from a copy on mac
+        Set<PlaylistEntry> toReload = new HashSet<PlaylistEntry>();
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : remotelyLoaded) {
+                if (!entry.getMacAddress().equals(disconnectedUserMac)
+                        && scheduler.getSource(entry).getMacAddress().equals(disconnectedUserMac)) {
+                    toReload.add(entry);
+                }
+            }
+            scheduler.linkClosed(disconnectedUserMac);
+            for (SongTransfer transfer : transfers.values()) {
+                if (transfer.getMacAddress().equals(disconnectedUserMac)) {
+                    if (transfer.getSegmentPath() != null) {
+                        segmentPaths.add(transfer.getSegmentPath());
+                        transfer.abandonSegment();
+                        interruptedTransfers.add(transfer);
+                    }
+                }
+            }
+        }
+
         //Remove songs from mac that are in the process of transfering
         Set<PlaylistEntry> toRemove = new HashSet<PlaylistEntry>();
         for(PlaylistEntry entry : remotelyLoaded) {
             synchronized(entryMutex){
+                if (segmentPaths.contains(entry.getFilePath())) {
+                    //this song was streaming, and won't finish
+                    entry.setFilePath(null);
+                }
                 if(!entry.isLoaded() && entry.getMacAddress().equals(disconnectedUserMac)){
                     toRemove.add(entry);
                 }
@@ -138,6 +573,41 @@ public class PlaylistDataManager implements Runnable {
         }
         remotelyLoaded.removeAll(toRemove);
         
+        //Release songs from mac that were loaded from the cache...they're about
+        // to be removed from the playlist
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : new ArrayList<PlaylistEntry>(cached.keySet())) {
+                if (entry.getMacAddress().equals(disconnectedUserMac) && !remotelyLoaded.contains(entry)) {
+                    releaseCached(entry);
+                }
+            }
+        }
+
+        //Stop streaming songs from mac...the transfer has been abandoned
+        synchronized(entryMutex) {
+            Iterator<PlaylistEntry> it = streaming.keySet().iterator();
+            while (it.hasNext()) {
+                PlaylistEntry entry = it.next();
+                if (entry.getMacAddress().equals(disconnectedUserMac) || toReload.contains(entry)) {
+                    it.remove();
+                }
+            }
+        }
+
+        //Load songs that were coming from mac from another copy, or their owner
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : toReload) {
+                if (!entry.isLoaded()) {
+                    remotelyLoaded.remove(entry);
+                    bytesRequested -= entry.getFileSize();
+                    toLoadQueue.add(entry);
+                }
+            }
+        }
+        if (!toReload.isEmpty()) {
+            wakeLoader();
+        }
+
         //Remove songs from mac that are queued to be transfered. 
         toRemove = new HashSet<PlaylistEntry>(); //Clear previous entrys
         for (PlaylistEntry entry : toLoadQueue) {
@@ -155,24 +625,43 @@ public class PlaylistDataManager implements Runnable {
      * 
      */
     private void clearOldLoadedFiles() {
+        //songs loaded from the cache cost nothing to load again, so let the cache
+        // have them back as soon as they're played
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : new ArrayList<PlaylistEntry>(cached.keySet())) {
+                if (entry.isPlayed() && !remotelyLoaded.contains(entry)) {
+                    releaseCached(entry);
+                }
+            }
+        }
         //NOTE: only do this if we need to...to minimize network traffic/playback issues
         if (bytesRequested > maxBytesToLoad * loadFactor) {
             Set<PlaylistEntry> toRemove = new HashSet<PlaylistEntry>();
+            List<PlaylistEntry> toCancel = new ArrayList<PlaylistEntry>();
             long toRemoveBytes = 0;
-            for (PlaylistEntry entry : remotelyLoaded) {
-                synchronized(entryMutex) {
+            synchronized(entryMutex) {
+                for (PlaylistEntry entry : remotelyLoaded) {
                     if (entry.isPlayed()) {
                         //indicate the entry isnt loaded, so the playlist wont try and play it
                         entry.setLoaded(false);
-                        toRemove.add(entry);
-                        toRemoveBytes += entry.getFileSize();
+                        if (isTransferring(entry)) {
+                            //played (or skipped) while it was still streaming in
+                            toCancel.add(entry);
+                        } else {
+                            toRemove.add(entry);
+                            toRemoveBytes += entry.getFileSize();
+                        }
                     }
                 }
+                remotelyLoaded.removeAll(toRemove);
+                bytesRequested -= toRemoveBytes;
+            }
+            //tell the guest to stop sending these
+            for (PlaylistEntry entry : toCancel) {
+                cancelLoad(entry);
             }
             
             deleteTempFileData(toRemove);
-            remotelyLoaded.removeAll(toRemove);
-            bytesRequested -= toRemoveBytes;
         }
     }
 
@@ -187,13 +676,46 @@ public class PlaylistDataManager implements Runnable {
                     long   songId       = intent.getLongExtra(  MessagingService.EXTRA_SONG_ID, SongMetadata.UNKNOWN_SONG);
                     String fileName     = intent.getStringExtra(MessagingService.EXTRA_SONG_FILE_NAME);
                     String tempFilePath = intent.getStringExtra(MessagingService.EXTRA_SONG_TEMP_FILE);
+                    long   transferId   = intent.getLongExtra(  MessagingService.EXTRA_TRANSFER_ID, RequestSongMessage.NO_TRANSFER);
+                    long   fileOffset   = intent.getLongExtra(  MessagingService.EXTRA_FILE_OFFSET, 0);
+                    int[]  checksums    = intent.getIntArrayExtra(MessagingService.EXTRA_CHECKSUMS);
                     if (songId == SongMetadata.UNKNOWN_SONG) {
                        Log.wtf(TAG, "TRANSFER_SONG_MESSAGE action received without a valid song id"); 
                     } else {
-                        PlaylistEntry entry = findSongByAddressAndId(fromAddr, songId);
-                        saveTempFileData(entry, fileName, tempFilePath);
-                        getMessagingService().sendSongStatusMessage(entry);
-                        new LocalBroadcastIntent(PlaylistService.ACTION_PLAYLIST_UPDATED).send(context);
+                        //the loader thread finishes the song, so we don't hit the disk here
+                        synchronized(entryMutex) {
+                            receivedSongs.add(new ReceivedSong(fromAddr, songId, fileName, tempFilePath,
+                                    transferId, fileOffset, checksums));
+                        }
+                        wakeLoader();
+                    }
+                }
+            })
+            .addLocalAction(MessagingService.ACTION_TRANSFER_SONG_STARTED, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    String fromAddr     = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                    long   songId       = intent.getLongExtra(  MessagingService.EXTRA_SONG_ID, SongMetadata.UNKNOWN_SONG);
+                    String tempFilePath = intent.getStringExtra(MessagingService.EXTRA_SONG_TEMP_FILE);
+                    long   transferId   = intent.getLongExtra(  MessagingService.EXTRA_TRANSFER_ID, RequestSongMessage.NO_TRANSFER);
+                    long   fileOffset   = intent.getLongExtra(  MessagingService.EXTRA_FILE_OFFSET, 0);
+                    int[]  checksums    = intent.getIntArrayExtra(MessagingService.EXTRA_CHECKSUMS);
+                    PlaylistEntry entry    = findSongByAddressAndId(fromAddr, songId);
+                    //NOTE: if the file is already done, this returns null and the
+                    // transfer message will load the song
+                    IncomingFile  incoming = IncomingFile.find(tempFilePath);
+                    if (incoming != null) {
+                        synchronized(entryMutex) {
+                            SongTransfer transfer = transfers.get(fromAddr, songId);
+                            if (transfer != null && transfer.getTransferId() == transferId) {
+                                transfer.startSegment(fileOffset, checksums, incoming);
+                            }
+                            //only a segment that starts at the beginning of the song can be played
+                            if (entry != null && fileOffset == 0) {
+                                streaming.put(entry, incoming);
+                            }
+                        }
                     }
                 }
             })
@@ -204,11 +726,119 @@ public class PlaylistDataManager implements Runnable {
         this.registrar.unregister();
     }
 
+    /**
+     * Finish the songs that have arrived from guests: assemble each song file, store it
+     * in the song cache if there's room, and let everyone know the song is loaded.
+     * 
+     * @return True if any songs were loaded.
+     */
+    private boolean finishReceivedSongs() {
+        boolean loaded = false;
+        ReceivedSong received;
+        while ((received = pollReceivedSong()) != null) {
+            loaded |= finishReceivedSong(received);
+        }
+        return loaded;
+    }
+
+    private ReceivedSong pollReceivedSong() {
+        synchronized(entryMutex) {
+            return receivedSongs.poll();
+        }
+    }
+
+    private boolean finishReceivedSong(ReceivedSong received) {
+        PlaylistEntry entry = findSongByAddressAndId(received.fromAddr, received.songId);
+        if (entry == null) {
+            //the song was removed before the transfer could be cancelled
+            Log.i(TAG, "Discarding song " + received.songId + " from " + received.fromAddr + ", it's no longer needed");
+            new File(received.tempFilePath).delete();
+            return false;
+        }
+        long bytesReceived  = new File(received.tempFilePath).length();
+        String songFilePath = completeTransfer(received.fromAddr, received.songId, received.transferId,
+                received.tempFilePath, received.fileOffset, received.checksums);
+        if (songFilePath == null) {
+            //the transfer has to start over...put the entry back in line, so it's
+            // requested in playlist order and within the transfer limits
+            synchronized(entryMutex) {
+                remotelyLoaded.remove(entry);
+                streaming.remove(entry);
+                scheduler.transferStopped(entry);
+                bytesRequested -= entry.getFileSize();
+                if (received.tempFilePath.equals(entry.getFilePath())) {
+                    //it was streaming...that data is gone
+                    entry.setFilePath(null);
+                }
+                toLoadQueue.add(entry);
+            }
+            return false;
+        }
+        synchronized(entryMutex) {
+            streaming.remove(entry);
+            scheduler.transferFinished(entry, bytesReceived, System.currentTimeMillis());
+        }
+        saveTempFileData(entry, received.fileName, songFilePath);
+        getMessagingService().sendSongStatusMessage(entry);
+        return true;
+    }
+
+    /**
+     * Finish a song transfer, and assemble the song file if the transfer was resumed.
+     * 
+     * @return The path to the whole song file, or null if the transfer must start over.
+     */
+    private String completeTransfer(String fromAddr, long songId, long transferId,
+            String tempFilePath, long fileOffset, int[] checksums) {
+        SongTransfer transfer;
+        synchronized(entryMutex) {
+            transfer = transfers.get(fromAddr, songId);
+            if (transfer != null && transfer.getTransferId() == transferId) {
+                transfers.remove(fromAddr, songId);
+            } else {
+                transfer = null;
+            }
+        }
+        if (transfer == null) {
+            if (fileOffset == 0) {
+                //not a transfer we know about, but it's the whole song
+                return tempFilePath;
+            }
+            Log.w(TAG, "Received part of a song for an unknown transfer " + transferId);
+            new File(tempFilePath).delete();
+            return null;
+        }
+        try {
+            File songFile = transfer.complete(new File(tempFilePath), fileOffset, checksums);
+            if (songFile == null) {
+                Log.w(TAG, "Transfer " + transferId + " does not match the data we have, starting over");
+                return null;
+            }
+            if (fileOffset > 0) {
+                Log.i(TAG, "Resumed transfer " + transferId + " at " + fileOffset);
+            }
+            return songFile.getCanonicalPath();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to complete transfer " + transferId, e);
+            transfer.discard();
+            return null;
+        }
+    }
+
     private void deleteTempFileData(Collection<PlaylistEntry> entries) {
         for (PlaylistEntry entry : entries) {
+            synchronized(entryMutex) {
+                if (releaseCached(entry)) {
+                    //the data stays in the cache
+                    continue;
+                }
+            }
+            if (entry.getFilePath() == null) {
+                //nothing was saved for this entry
+                continue;
+            }
             Log.i(TAG, "Deleting data for entry " + entry);
-            File file = new File(entry.getFilePath());
-            this.context.deleteFile(file.getName());
+            new File(entry.getFilePath()).delete();
             entry.setFilePath(null);
         }
     }
@@ -217,40 +847,80 @@ public class PlaylistDataManager implements Runnable {
         if (entry == null) {
             throw new IllegalStateException("Unable to save data for a song entry that doesnt exist");
         }
+        //keep the song in the cache, if there's room
+        try {
+            long fingerprint = songCache.store(new File(fileDataPath));
+            if (fingerprint != SongFingerprint.NONE) {
+                if (entry.getFingerprint() != SongFingerprint.NONE && entry.getFingerprint() != fingerprint) {
+                    Log.w(TAG, "Song " + entry + " does not match its fingerprint");
+                }
+                synchronized(entryMutex) {
+                    cached.put(entry, fingerprint);
+                    entry.setFilePath(songCache.getPath(fingerprint));
+                }
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store " + entry + " in the song cache", e);
+        }
         //build a composite name from the macAddress
         String compositeFileName = String.format("%s_%s", SongMetadataUtils.getUniqueKey(entry.getMacAddress(), entry.getId()), fileName);
         try {
-            //copy the data from the temp file to the permanent file.
-            FileInputStream  fis = new FileInputStream(fileDataPath);
-            FileOutputStream fos = this.context.openFileOutput(compositeFileName, Context.MODE_PRIVATE);
-
-            //8k buffer works well.
-            int bufSize = 8192;
-            byte[] buffer = new byte[bufSize];
-            int read;
-            while ((read = fis.read(buffer)) > 0) {
-                fos.write(buffer, 0, read);
+            File tempFile  = new File(fileDataPath);
+            File finalFile = this.context.getFileStreamPath(compositeFileName);
+            //move the data from the temp file to the permanent file.  The temp file is
+            // received into the cache folder, which is on the same volume as the files folder,
+            // so this is an atomic rename and the data is not copied.
+            if (!tempFile.renameTo(finalFile)) {
+                Log.w(TAG, "Unable to rename " + tempFile + " to " + finalFile + ", copying instead");
+                copyFile(tempFile, finalFile);
+                tempFile.delete();
             }
-            fos.close();
             //set the file path in the playlist entry, which allows the file to be played
-            String filePath = this.context.getFileStreamPath(compositeFileName).getCanonicalPath();
+            String filePath = finalFile.getCanonicalPath();
             entry.setFilePath(filePath);
-            
-            //NOTE: THIS IS A HACK.  This ultimately belongs down in MessagingService, where the temp file is
-            // created, but this was put here for Alpha testing so we don't fill up our tester's phones.
-            new File(fileDataPath).delete();
-
         } catch (IOException e) {
             this.context.deleteFile(compositeFileName);
             //TODO: set flag to indicate file is broken
         }
     }
 
+    /**
+     * Copy a file, using the file channels so the data does not pass through our heap.
+     * 
+     * @param from
+     * @param to
+     * @throws IOException
+     */
+    private void copyFile(File from, File to) throws IOException {
+        FileInputStream  fis = new FileInputStream(from);
+        FileOutputStream fos = new FileOutputStream(to);
+        try {
+            FileChannel in  = fis.getChannel();
+            FileChannel out = fos.getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } finally {
+            fis.close();
+            fos.close();
+        }
+    }
+
+    /**
+     * Find the entry that a song from a guest is for.  This may be an entry for a copy
+     * of the song that another user owns.
+     */
     private PlaylistEntry findSongByAddressAndId(String fromAddr, long songId) {
         PlaylistEntry found = null;
-        for (PlaylistEntry entry : this.remotelyLoaded) {
-            if (entry.getMacAddress().equals(fromAddr) && entry.getId() == songId) {
-                found = entry;
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : this.remotelyLoaded) {
+                SongMetadata source = scheduler.getSource(entry);
+                if (source.getMacAddress().equals(fromAddr) && source.getId() == songId) {
+                    found = entry;
+                }
             }
         }
         return found;
@@ -263,6 +933,7 @@ public class PlaylistDataManager implements Runnable {
             if (!entry.isLoaded()) {
                 if (!this.toLoadQueue.contains(entry) && !this.remotelyLoaded.contains(entry)) {
                     this.toLoadQueue.add(entry);
+                    wakeLoader();
                 } else {
                     Log.d(TAG, "Adding a song that's already loaded: " + entry.toString());
                 }
@@ -274,10 +945,100 @@ public class PlaylistDataManager implements Runnable {
         }
     }
     
+    /**
+     * Stop loading an entry, because it was removed from the playlist.  If the song is
+     * on its way, the guest is told to stop sending it, and the bytes it would have
+     * used are available to load other songs right away.
+     * 
+     * @param entry
+     */
+    public void cancelLoad(PlaylistEntry entry) {
+        SongTransfer transfer = null;
+        SongMetadata source;
+        synchronized(entryMutex) {
+            toLoadQueue.remove(entry);
+            if (!remotelyLoaded.contains(entry)) {
+                releaseCached(entry);
+            }
+            source = scheduler.getSource(entry);
+            if (remotelyLoaded.contains(entry) && isTransferring(entry)) {
+                //still on its way
+                transfer = transfers.remove(source.getOwnerKey(), source.getId());
+                remotelyLoaded.remove(entry);
+                streaming.remove(entry);
+                scheduler.transferStopped(entry);
+                bytesRequested -= entry.getFileSize();
+                if (transfer.getSegmentPath() != null && transfer.getSegmentPath().equals(entry.getFilePath())) {
+                    //it was streaming...the data is about to be deleted
+                    entry.setFilePath(null);
+                }
+            }
+        }
+        if (transfer != null) {
+            Log.i(TAG, "Cancelling transfer " + transfer.getTransferId() + " for " + entry);
+            getMessagingService().sendCancelTransferMessage(source.getMacAddress(), transfer.getTransferId());
+            transfer.cancel();
+            wakeLoader();
+        }
+    }
+
+    /**
+     * NOTE: must be called with the entryMutex held.
+     * 
+     * @return True if the song for a remote entry is still on its way.
+     */
+    private boolean isTransferring(PlaylistEntry entry) {
+        SongMetadata source = scheduler.getSource(entry);
+        return transfers.get(source.getOwnerKey(), source.getId()) != null;
+    }
+
+    /**
+     * Load a remote entry from the song cache, if we kept the song from a past transfer.
+     * 
+     * @param entry
+     * @return True if the entry was loaded, false if the song must be requested.
+     */
+    private boolean loadCached(PlaylistEntry entry) {
+        SongMetadata copy = getCachedCopy(entry);
+        if (copy == null) {
+            return false;
+        }
+        long fingerprint = copy.getFingerprint();
+        String filePath = songCache.acquire(fingerprint);
+        if (filePath == null) {
+            return false;
+        }
+        Log.i(TAG, "Loading " + entry + " from the song cache");
+        synchronized(entryMutex) {
+            cached.put(entry, fingerprint);
+            entry.setFilePath(filePath);
+        }
+        getMessagingService().sendSongStatusMessage(entry);
+        return true;
+    }
+
+    /**
+     * Unload an entry that was loaded from the song cache.  The song stays in the cache.
+     * 
+     * NOTE: must be called with the entryMutex held.
+     * 
+     * @return True if the entry was loaded from the cache.
+     */
+    private boolean releaseCached(PlaylistEntry entry) {
+        Long fingerprint = cached.remove(entry);
+        if (fingerprint == null) {
+            return false;
+        }
+        entry.setFilePath(null);
+        songCache.release(fingerprint);
+        return true;
+    }
+
     private void loadLocal(PlaylistEntry entry) {
         MediaStoreWrapper msw = new  MediaStoreWrapper(this.context);
         try {
-            String filePath = msw.getSongFilePath(entry);
+            //this may be a copy of another user's song
+            String filePath = msw.getSongFilePath(getLocalCopy(entry));
             entry.setFilePath(filePath);
             getMessagingService().sendSongStatusMessage(entry);
         } catch (SongNotFoundException e) {
@@ -285,8 +1046,73 @@ public class PlaylistDataManager implements Runnable {
         }
     }
     
-    private void loadRemote(PlaylistEntry entry) {
-        getMessagingService().sendRequestSongMessage(entry.getMacAddress(), entry.getId());
+    /**
+     * Start the transfer for a remote entry, and add the request for the song to
+     * requests, to be sent by {@link #sendSongRequests(List)}.
+     * 
+     * @param entry
+     * @param lead The entry whose batch this entry is requested in, or null to start a new batch.
+     * @param requests
+     */
+    private void loadRemote(PlaylistEntry entry, PlaylistEntry lead, List<SongRequest> requests) {
+        //resume the transfer for this song, if we have one
+        SongTransfer transfer;
+        SongMetadata source;
+        synchronized(entryMutex) {
+            //the song may come from a copy owned by another guest
+            long now = System.currentTimeMillis();
+            source = lead == null ? scheduler.transferStarted(entry, now)
+                                  : scheduler.transferPrefetched(entry, lead, now);
+            bytesRequested += entry.getFileSize();
+            remotelyLoaded.add(entry);
+            transfer = transfers.get(source.getOwnerKey(), source.getId());
+            if (transfer == null) {
+                transfer = new SongTransfer(nextTransferId++, source.getMacAddress());
+                transfers.put(source.getOwnerKey(), source.getId(), transfer);
+            }
+        }
+        if (!SongMetadataUtils.isTheSameSong(source, entry)) {
+            Log.i(TAG, "Loading " + entry + " from a copy on " + source.getMacAddress());
+        }
+        requests.add(new SongRequest(source.getMacAddress(), source.getId(),
+                transfer.getTransferId(), transfer.getResumeOffset()));
+    }
+
+    /**
+     * Send the song requests, one batch for each guest.  The requests are in the order
+     * the songs are needed, and the guest sends the songs in that order.
+     * 
+     * @param requests
+     */
+    private void sendSongRequests(List<SongRequest> requests) {
+        Map<String, List<SongRequest>> batches = new LinkedHashMap<String, List<SongRequest>>();
+        for (SongRequest request : requests) {
+            List<SongRequest> batch = batches.get(request.macAddress);
+            if (batch == null) {
+                batch = new ArrayList<SongRequest>();
+                batches.put(request.macAddress, batch);
+            }
+            batch.add(request);
+        }
+        for (Map.Entry<String, List<SongRequest>> e : batches.entrySet()) {
+            List<SongRequest> batch = e.getValue();
+            int count = batch.size();
+            long[] songIds     = new long[count];
+            long[] transferIds = new long[count];
+            int[]  priorities  = new int[count];
+            long[] fileOffsets = new long[count];
+            long[] fileLengths = new long[count];
+            for (int i = 0; i < count; i++) {
+                SongRequest request = batch.get(i);
+                songIds[i]     = request.songId;
+                transferIds[i] = request.transferId;
+                priorities[i]  = i;
+                fileOffsets[i] = request.fileOffset;
+                fileLengths[i] = IFileRangeMessage.TO_END_OF_FILE;
+            }
+            getMessagingService().sendRequestSongBatchMessage(e.getKey(), songIds, transferIds,
+                    priorities, fileOffsets, fileLengths);
+        }
     }
 
     public void stopLoading() {
@@ -304,6 +1130,16 @@ public class PlaylistDataManager implements Runnable {
         }
     }
 
+    private MusicLibraryService getMusicLibraryService() {
+        MusicLibraryService musicLibraryService = null;
+        try {
+            musicLibraryService = this.musicLibraryLocator.getService();
+        } catch (ServiceNotBoundException e) {
+            Log.w(TAG, "MusicLibraryService not bound");
+        }
+        return musicLibraryService;
+    }
+
     private IMessagingService getMessagingService() {
         MessagingService messagingService = null;
         try {
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.lastcrusade.soundstream.util.LogUtil;
+import com.lastcrusade.soundstream.util.SongFingerprint;
+
+/**
+ * Songs from guests, kept on the host's disk between parties.  Each song is
+ * stored under its content fingerprint (see SongFingerprint), so a song that
+ * a guest brings to the next party can be played without transferring it again.
+ * 
+ * The cache is held to a disk budget using Greedy-Dual-Size-Frequency eviction.
+ * Each song has a priority of L + hits / size, and the song with the lowest
+ * priority is evicted first.  L starts at 0 and is raised to the priority of
+ * each evicted song, so songs that have not been played in a while age out, and
+ * big songs have to be played more often than small songs to stay.
+ * 
+ * Songs that are in use (acquired, or just stored) are pinned, and are not
+ * evicted until they are released.
+ * 
+ * The index (hits and priority for each song, and L) is kept in a file in the
+ * cache folder, and loaded the first time the cache is used.
+ * 
+ */
+class SongCache {
+
+    private static final String TAG = SongCache.class.getName();
+
+    /**
+     * A song in the cache.
+     */
+    private static class Entry {
+        private final long fingerprint;
+        private final long size;
+        private int hits;
+        private double priority;
+        private int pins;
+
+        public Entry(long fingerprint, long size) {
+            this.fingerprint = fingerprint;
+            this.size        = size;
+        }
+    }
+
+    private static final String INDEX_FILE     = "index";
+    private static final String INDEX_TEMP     = "index.tmp";
+    private static final int    INDEX_VERSION  = 1;
+
+    /**
+     * Sizes are measured in MB when computing priorities, to keep the numbers readable.
+     */
+    private static final double PRIORITY_BYTES = 1024 * 1024;
+
+    private final File folder;
+    private long maxBytes;
+    private long bytes;
+    private double inflation;
+    private Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    private boolean loaded;
+
+    /**
+     * @param folder The folder to keep the songs in.  Nothing else should be stored there.
+     * @param maxBytes The disk budget.
+     */
+    SongCache(File folder, long maxBytes) {
+        this.folder   = folder;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Load the index, if it's not loaded already.  This is done the first time the cache
+     * is used, but may be called ahead of time to keep the disk access off of another thread.
+     */
+    synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to create song cache folder " + folder);
+            }
+            return;
+        }
+        try {
+            readIndex();
+        } catch (FileNotFoundException e) {
+            //no index yet
+        } catch (IOException e) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to read song cache index, rebuilding it", e);
+            }
+            entries.clear();
+            inflation = 0;
+        }
+
+        //match the index to the files on disk: forget songs that are missing or the
+        // wrong size, and pick up songs that were stored after the index was last written
+        Map<Long, Entry> found = new HashMap<Long, Entry>();
+        bytes = 0;
+        File[] files = folder.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            long fingerprint = SongFingerprint.fromHex(file.getName());
+            if (fingerprint == SongFingerprint.NONE) {
+                if (!file.getName().equals(INDEX_FILE)) {
+                    file.delete();
+                }
+                continue;
+            }
+            Entry entry = entries.get(fingerprint);
+            if (entry == null || entry.size != file.length()) {
+                entry = new Entry(fingerprint, file.length());
+                entry.hits = 1;
+                updatePriority(entry);
+            }
+            found.put(fingerprint, entry);
+            bytes += entry.size;
+        }
+        entries = found;
+        if (LogUtil.isLogAvailable()) {
+            Log.i(TAG, "Loaded " + entries.size() + " songs, " + bytes + " bytes");
+        }
+        evict(0);
+        writeIndex();
+    }
+
+    /**
+     * Set the disk budget.  Songs are evicted right away if the cache is over the new budget.
+     * 
+     * @param maxBytes
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (loaded && evict(0) > 0) {
+            writeIndex();
+        }
+    }
+
+    synchronized long getBytes() {
+        load();
+        return bytes;
+    }
+
+    synchronized boolean contains(long fingerprint) {
+        load();
+        return entries.containsKey(fingerprint);
+    }
+
+    /**
+     * Look up a song, and pin it until it is released.  This counts as a hit.
+     * 
+     * @param fingerprint
+     * @return The path to the song file, or null if the song is not in the cache.
+     */
+    synchronized String acquire(long fingerprint) {
+        load();
+        Entry entry = entries.get(fingerprint);
+        if (entry == null) {
+            return null;
+        }
+        File file = getFile(fingerprint);
+        if (!file.isFile()) {
+            //deleted out from under us
+            entries.remove(fingerprint);
+            bytes -= entry.size;
+            writeIndex();
+            return null;
+        }
+        entry.hits++;
+        entry.pins++;
+        updatePriority(entry);
+        writeIndex();
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Release a song acquired with acquire, or stored with store.  The song stays
+     * in the cache, but may now be evicted.
+     * 
+     * @param fingerprint
+     */
+    synchronized void release(long fingerprint) {
+        Entry entry = entries.get(fingerprint);
+        if (entry != null && entry.pins > 0) {
+            entry.pins--;
+            //songs that were pinned may have held the cache over budget
+            if (evict(0) > 0) {
+                writeIndex();
+            }
+        }
+    }
+
+    /**
+     * Move a song file into the cache, and pin it until it is released.  The song is
+     * stored under the fingerprint of the file, regardless of what the sender claimed.
+     * 
+     * @param file The song file.  If the song is stored, this file is moved or deleted.
+     * @return The song's fingerprint, or SongFingerprint.NONE if the song does not fit in the cache.
+     * @throws IOException
+     */
+    synchronized long store(File file) throws IOException {
+        load();
+        long fingerprint = SongFingerprint.compute(file);
+        Entry entry = entries.get(fingerprint);
+        if (entry != null) {
+            //we already have it
+            file.delete();
+            entry.hits++;
+            entry.pins++;
+            updatePriority(entry);
+            writeIndex();
+            return fingerprint;
+        }
+        long size = file.length();
+        if (size > maxBytes) {
+            return SongFingerprint.NONE;
+        }
+        evict(size);
+        if (bytes + size > maxBytes) {
+            //the songs in use take up too much of the budget
+            writeIndex();
+            return SongFingerprint.NONE;
+        }
+        if (!file.renameTo(getFile(fingerprint))) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to move " + file + " into the song cache");
+            }
+            return SongFingerprint.NONE;
+        }
+        entry = new Entry(fingerprint, size);
+        entry.hits = 1;
+        entry.pins = 1;
+        updatePriority(entry);
+        entries.put(fingerprint, entry);
+        bytes += size;
+        writeIndex();
+        return fingerprint;
+    }
+
+    /**
+     * @param fingerprint
+     * @return The path a song is stored at, if it is in the cache.
+     */
+    synchronized String getPath(long fingerprint) {
+        return getFile(fingerprint).getAbsolutePath();
+    }
+
+    private File getFile(long fingerprint) {
+        return new File(folder, SongFingerprint.toHex(fingerprint));
+    }
+
+    private void updatePriority(Entry entry) {
+        entry.priority = inflation + entry.hits * PRIORITY_BYTES / Math.max(1, entry.size);
+    }
+
+    /**
+     * Evict songs until there is room for a new song.
+     * 
+     * @param needed The size of the new song, or 0 to just enforce the budget.
+     * @return The number of songs evicted.
+     */
+    private int evict(long needed) {
+        int evicted = 0;
+        while (bytes + needed > maxBytes) {
+            Entry victim = null;
+            for (Entry entry : entries.values()) {
+                if (entry.pins == 0 && (victim == null || entry.priority < victim.priority)) {
+                    victim = entry;
+                }
+            }
+            if (victim == null) {
+                //everything left is in use
+                break;
+            }
+            if (LogUtil.isLogAvailable()) {
+                Log.i(TAG, "Evicting " + SongFingerprint.toHex(victim.fingerprint) + ", " + victim.size + " bytes, " + victim.hits + " hits");
+            }
+            inflation = victim.priority;
+            entries.remove(victim.fingerprint);
+            bytes -= victim.size;
+            getFile(victim.fingerprint).delete();
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private void readIndex() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(folder, INDEX_FILE))));
+        try {
+            if (in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown song cache index version");
+            }
+            inflation = in.readDouble();
+            int count = in.readInt();
+            for (int ii = 0; ii < count; ii++) {
+                Entry entry = new Entry(in.readLong(), in.readLong());
+                entry.hits     = in.readInt();
+                entry.priority = in.readDouble();
+                entries.put(entry.fingerprint, entry);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the index to a temp file, and move it into place, so a crash
+     * while writing does not lose the old index.
+     */
+    private void writeIndex() {
+        File temp = new File(folder, INDEX_TEMP);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeDouble(inflation);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeLong(entry.fingerprint);
+                    out.writeLong(entry.size);
+                    out.writeInt(entry.hits);
+                    out.writeDouble(entry.priority);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(new File(folder, INDEX_FILE))) {
+                throw new IOException("Unable to replace " + INDEX_FILE);
+            }
+        } catch (IOException e) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to write song cache index", e);
+            }
+            temp.delete();
+        }
+    }
+}
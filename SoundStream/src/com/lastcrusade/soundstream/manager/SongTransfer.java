@@ -0,0 +1,278 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.lastcrusade.soundstream.net.wire.IncomingFile;
+import com.lastcrusade.soundstream.util.ChunkChecksums;
+
+/**
+ * The state of a resumable song transfer from a guest.
+ * 
+ * A song may arrive in several segments, if the connection drops part of
+ * the way through.  Each segment starts where the verified data from the
+ * last segment ends, and is received into its own temp file.  When a
+ * segment is cut off, the part of it that matches the chunk checksums sent
+ * by the guest is kept in the partial file, and the next request resumes
+ * from there.
+ * 
+ */
+class SongTransfer {
+
+    /**
+     * A segment of the song, received into its own temp file.
+     */
+    private static class Segment {
+        private final IncomingFile incoming;
+        private final long offset;
+        private final int[] checksums;
+
+        public Segment(IncomingFile incoming, long offset, int[] checksums) {
+            this.incoming  = incoming;
+            this.offset    = offset;
+            this.checksums = checksums;
+        }
+    }
+
+    private final long transferId;
+    private final String macAddress;
+
+    /**
+     * The data received so far, stored at its position in the song file, and
+     * the checksums it was verified against.
+     */
+    private File partialFile;
+    private long verifiedBytes;
+    private int[] checksums;
+
+    /**
+     * The segment being received, and segments that were cut off but not yet saved.
+     */
+    private Segment segment;
+    private List<Segment> abandoned = new ArrayList<Segment>();
+    private boolean finished;
+
+    SongTransfer(long transferId, String macAddress) {
+        this.transferId = transferId;
+        this.macAddress = macAddress;
+    }
+
+    long getTransferId() {
+        return transferId;
+    }
+
+    String getMacAddress() {
+        return macAddress;
+    }
+
+    /**
+     * @return The offset to request the next segment from.
+     */
+    synchronized long getResumeOffset() {
+        return verifiedBytes;
+    }
+
+    /**
+     * @return The temp file path of the segment being received, or null if there isn't one.
+     */
+    synchronized String getSegmentPath() {
+        return segment != null ? segment.incoming.getPath() : null;
+    }
+
+    /**
+     * Start receiving a segment.
+     * 
+     * @param offset
+     * @param checksums
+     * @param incoming
+     */
+    synchronized void startSegment(long offset, int[] checksums, IncomingFile incoming) {
+        this.segment = new Segment(incoming, offset, checksums);
+    }
+
+    /**
+     * Stop receiving the current segment, because the connection to the guest went
+     * down.  The segment is kept to be saved by {@link #saveAbandonedSegments()}.
+     */
+    synchronized void abandonSegment() {
+        if (this.segment != null) {
+            this.abandoned.add(this.segment);
+            this.segment = null;
+        }
+    }
+
+    /**
+     * Finish the transfer with the last segment, and assemble the song file.
+     * 
+     * @param segmentFile The received segment
+     * @param offset The offset of the segment in the song file
+     * @param checksums The checksums sent with the segment
+     * @return The whole song file, or null if the segment does not line up with the
+     * data we have (e.g. the song changed on the guest).  In that case, the transfer
+     * must start over.
+     * @throws IOException
+     */
+    synchronized File complete(File segmentFile, long offset, int[] checksums) throws IOException {
+        this.segment  = null;
+        this.finished = true;
+        if (offset == 0) {
+            //the segment is the whole song
+            discard();
+            return segmentFile;
+        }
+        if (!matchesPartial(offset, checksums)) {
+            segmentFile.delete();
+            discard();
+            return null;
+        }
+        appendToPartial(segmentFile, segmentFile.length());
+        File songFile = this.partialFile;
+        this.partialFile   = null;
+        this.verifiedBytes = 0;
+        return songFile;
+    }
+
+    /**
+     * Keep the verified part of each abandoned segment in the partial file.  This reads
+     * through the received data, so it should not be called on the UI thread.
+     * 
+     * @throws IOException
+     */
+    synchronized void saveAbandonedSegments() throws IOException {
+        while (!this.abandoned.isEmpty()) {
+            Segment abandonedSegment = this.abandoned.remove(0);
+            File segmentFile = new File(abandonedSegment.incoming.getPath());
+            if (this.finished) {
+                //the song arrived another way...we don't need this
+                segmentFile.delete();
+            } else {
+                saveSegment(abandonedSegment, segmentFile);
+            }
+        }
+    }
+
+    private void saveSegment(Segment abandonedSegment, File segmentFile) throws IOException {
+        long offset   = abandonedSegment.offset;
+        long received = abandonedSegment.incoming.getBytesReceived();
+        long fileSize = offset + abandonedSegment.incoming.getFileSize();
+
+        if (offset != 0 && !matchesPartial(offset, abandonedSegment.checksums)) {
+            segmentFile.delete();
+            discard();
+            return;
+        }
+        long verified;
+        RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+        try {
+            verified = ChunkChecksums.verify(raf.getChannel(), 0, offset, received, fileSize, abandonedSegment.checksums);
+            //if we somehow have the whole song, keep the last chunk out so we have
+            // something left to request
+            if (offset + verified == fileSize && verified > 0) {
+                verified -= (fileSize - 1) % ChunkChecksums.CHUNK_BYTES + 1;
+            }
+            if (offset == 0) {
+                raf.setLength(verified);
+            }
+        } finally {
+            raf.close();
+        }
+
+        if (offset == 0) {
+            //the segment starts the song...it becomes the partial file
+            discard();
+            if (verified > 0) {
+                this.partialFile   = segmentFile;
+                this.verifiedBytes = verified;
+            } else {
+                segmentFile.delete();
+            }
+        } else {
+            appendToPartial(segmentFile, verified);
+        }
+        this.checksums = abandonedSegment.checksums;
+    }
+
+    /**
+     * Give up on the transfer, and throw away its data.  The segment being received
+     * is deleted by the messenger, when the transfer is cancelled on the connection.
+     */
+    synchronized void cancel() {
+        this.segment  = null;
+        this.finished = true;
+        discard();
+    }
+
+    /**
+     * Throw away any data we have for this transfer.
+     */
+    synchronized void discard() {
+        if (this.partialFile != null) {
+            this.partialFile.delete();
+            this.partialFile = null;
+        }
+        this.verifiedBytes = 0;
+        this.checksums     = null;
+    }
+    /**
+     * Test if a segment at offset continues the data in the partial file.  The
+     * checksums for the data we have must match, or the song has changed.
+     */
+    private boolean matchesPartial(long offset, int[] checksums) {
+        if (this.partialFile == null || offset != this.verifiedBytes || this.checksums == null) {
+            return false;
+        }
+        int chunks = (int) (offset / ChunkChecksums.CHUNK_BYTES);
+        return chunks <= this.checksums.length && chunks <= checksums.length
+                && Arrays.equals(Arrays.copyOf(this.checksums, chunks), Arrays.copyOf(checksums, chunks));
+    }
+
+    /**
+     * Copy the first length bytes of a segment onto the end of the partial file, and
+     * delete the segment.
+     */
+    private void appendToPartial(File segmentFile, long length) throws IOException {
+        RandomAccessFile in  = new RandomAccessFile(segmentFile, "r");
+        RandomAccessFile out = new RandomAccessFile(this.partialFile, "rw");
+        try {
+            FileChannel inChannel  = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(this.verifiedBytes);
+            long position = 0;
+            while (position < length) {
+                long copied = inChannel.transferTo(position, length - position, outChannel.position(this.verifiedBytes + position));
+                if (copied <= 0) {
+                    break;
+                }
+                position += copied;
+            }
+            this.verifiedBytes += position;
+        } finally {
+            in.close();
+            out.close();
+            segmentFile.delete();
+        }
+    }
+}
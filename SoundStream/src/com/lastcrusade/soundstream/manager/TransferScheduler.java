@@ -0,0 +1,570 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.manager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.lastcrusade.soundstream.model.PlaylistEntry;
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * Decides which remote song to request next, based on when each song is
+ * needed and how fast each guest can send it.
+ * 
+ * Each upcoming playlist entry gets a deadline: the time it will start
+ * playing, if every song ahead of it plays through.  We don't know the length
+ * of songs on other devices, so the length is estimated from the file size.
+ * 
+ * Transfers are tracked per link (guest connection), along with the transfer
+ * rate measured on that link.  Only a few requests run at a time on each link,
+ * and across all links, so the host's radio is spent on the songs that are
+ * needed first.  The next song is the one with the least slack: the time
+ * between when its transfer would finish on its link and its deadline.
+ * 
+ * A request is a batch of songs from one guest, which the guest sends one after
+ * another.  Once a song is picked, the songs needed next from the same link are
+ * added to its batch, up to a prefetch window, so the guest doesn't sit idle
+ * waiting for the host to ask for each one.
+ * 
+ * NOTE: this class is not thread safe.  PlaylistDataManager only uses it while
+ * holding its entry mutex.
+ * 
+ */
+class TransferScheduler {
+
+    /**
+     * A connection to a guest, and the transfers running over it.
+     */
+    private static class Link {
+        private double bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+        private long lastFinished;
+        private int transfers;
+        private long bytes;
+        private int batches;
+    }
+
+    /**
+     * The songs requested together from a link, and still in flight.
+     */
+    private static class Batch {
+        private final Link link;
+        private int songs;
+        private long bytes;
+
+        public Batch(Link link) {
+            this.link = link;
+        }
+    }
+
+    /**
+     * A transfer in flight, and the copy of the song being sent.
+     */
+    private static class Transfer {
+        private final Batch batch;
+        private final Link link;
+        private final SongMetadata source;
+        private final long started;
+
+        public Transfer(Batch batch, SongMetadata source, long started) {
+            this.batch   = batch;
+            this.link    = batch.link;
+            this.source  = source;
+            this.started = started;
+        }
+    }
+
+    /**
+     * Returned when a time cannot be estimated.
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * The deadline for entries that are not in the upcoming playlist.
+     */
+    public static final long UNSCHEDULED = Long.MAX_VALUE;
+
+    /**
+     * Used to estimate song length from file size (128kbps, a typical mp3).
+     */
+    private static final long ESTIMATED_SONG_BYTES_PER_SECOND = 16 * 1024;
+
+    /**
+     * The transfer rate to assume for a link until we've measured one.
+     */
+    private static final long DEFAULT_BYTES_PER_SECOND = 64 * 1024;
+
+    /**
+     * How much each new measurement counts towards the transfer rate.
+     */
+    private static final double THROUGHPUT_WEIGHT = 0.25;
+
+    private Map<PlaylistEntry, Long> deadlines = new HashMap<PlaylistEntry, Long>();
+
+    private Map<String, Link> links = new HashMap<String, Link>();
+
+    private Map<PlaylistEntry, Transfer> inFlight = new LinkedHashMap<PlaylistEntry, Transfer>();
+
+    private Map<PlaylistEntry, List<SongMetadata>> copies = new HashMap<PlaylistEntry, List<SongMetadata>>();
+
+    private int batches;
+
+    private int maxTransfers        = 3;
+    private int maxTransfersPerLink = 1;
+
+    private int  prefetchSongs = 4;
+    private long prefetchBytes = 16 * 1024 * 1024;
+
+    /**
+     * Set how many requests can run at once.  Each request is a batch of songs
+     * (see setPrefetchWindow), and a new one is not started on a link until the
+     * link is under its limit.
+     * 
+     * @param maxTransfers The limit across all links.
+     * @param maxTransfersPerLink The limit on each link.
+     */
+    public void setMaxTransfers(int maxTransfers, int maxTransfersPerLink) {
+        this.maxTransfers        = maxTransfers;
+        this.maxTransfersPerLink = maxTransfersPerLink;
+    }
+
+    /**
+     * Set how many songs can be requested in one batch.  Bigger batches save
+     * round trips to the guest, but a song that is bumped to the top of the
+     * playlist has to wait for the batch ahead of it on its link.
+     * 
+     * @param prefetchSongs The most songs in a batch.
+     * @param prefetchBytes The most bytes in a batch.  The first song in a batch
+     * is requested no matter its size.
+     */
+    public void setPrefetchWindow(int prefetchSongs, long prefetchBytes) {
+        this.prefetchSongs = prefetchSongs;
+        this.prefetchBytes = prefetchBytes;
+    }
+
+    /**
+     * Set the order the upcoming songs will play in.  This replaces all existing
+     * deadlines.
+     * 
+     * @param upcoming The entries that have not played yet, in play order.
+     * @param current The entry that is playing now, or null.
+     * @param currentRemaining The time left in the current entry, in ms, or UNKNOWN to estimate it.
+     * @param now
+     */
+    public void setPlayOrder(List<PlaylistEntry> upcoming, PlaylistEntry current, long currentRemaining, long now) {
+        deadlines.clear();
+        long deadline = now;
+        if (current != null) {
+            deadline += currentRemaining >= 0 ? currentRemaining : estimateDuration(current);
+        }
+        for (PlaylistEntry entry : upcoming) {
+            deadlines.put(entry, deadline);
+            deadline += estimateDuration(entry);
+        }
+    }
+
+    /**
+     * Set the copies of each entry's song that other guests own.  An entry can be
+     * loaded from any copy, and it's loaded from the copy on the link that can send it
+     * soonest.  This replaces all existing copies.
+     * 
+     * @param copies The copies of each entry, including the entry itself.  Entries
+     * that are not in the map are loaded from their owner.
+     */
+    public void setCopies(Map<PlaylistEntry, List<SongMetadata>> copies) {
+        this.copies = copies;
+    }
+
+    /**
+     * @param entry
+     * @return The time the entry is expected to start playing, or UNSCHEDULED.
+     */
+    public long getDeadline(PlaylistEntry entry) {
+        Long deadline = deadlines.get(entry);
+        return deadline != null ? deadline : UNSCHEDULED;
+    }
+
+    /**
+     * Pick the pending entry to request next.  This is the entry with the least
+     * slack, out of the entries whose links have room for another transfer.  If
+     * an entry has copies, its slack is the slack on the best link for it.
+     * Unscheduled entries are picked last, in the order of the collection.
+     * 
+     * @param pending
+     * @param now
+     * @return The entry to load next, or null if there is nothing to load or no
+     * room for another transfer.
+     */
+    public PlaylistEntry pickNext(Collection<PlaylistEntry> pending, long now) {
+        if (batches >= maxTransfers) {
+            return null;
+        }
+        PlaylistEntry next = null;
+        long nextSlack = UNSCHEDULED;
+        for (PlaylistEntry entry : pending) {
+            SongMetadata source = pickSource(entry, true, now);
+            if (source == null) {
+                continue;
+            }
+            long slack = getSlack(entry, links.get(source.getMacAddress()), now);
+            if (next == null || slack < nextSlack) {
+                next = entry;
+                nextSlack = slack;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Pick the pending entry to add to the batch that another entry was requested
+     * in.  This is the entry with the least slack out of the scheduled entries whose
+     * best link is the batch's link, if it fits in the prefetch window.
+     * 
+     * @param pending
+     * @param lead An entry in flight, usually the one picked by pickNext.
+     * @param now
+     * @return The entry to load next in the same batch, or null if there is nothing
+     * to load from the link or no room in the batch.
+     */
+    public PlaylistEntry pickPrefetch(Collection<PlaylistEntry> pending, PlaylistEntry lead, long now) {
+        Transfer transfer = inFlight.get(lead);
+        if (transfer == null || transfer.batch.songs >= prefetchSongs) {
+            return null;
+        }
+        Batch batch = transfer.batch;
+        PlaylistEntry next = null;
+        long nextSlack = UNSCHEDULED;
+        for (PlaylistEntry entry : pending) {
+            if (getDeadline(entry) == UNSCHEDULED || batch.bytes + entry.getFileSize() > prefetchBytes
+                    || links.get(pickSource(entry, false, now).getMacAddress()) != batch.link) {
+                continue;
+            }
+            long slack = getSlack(entry, batch.link, now);
+            if (next == null || slack < nextSlack) {
+                next = entry;
+                nextSlack = slack;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Pick the copy of an entry's song that would arrive soonest: the one on the
+     * link with the least work ahead of it for its speed.  Ties go to the entry's
+     * owner, then to the first copy.  An entry's deadline is the same on every link,
+     * so this is also the copy with the most slack.
+     * 
+     * @param entry
+     * @param needRoom True to only consider links that have room for another transfer.
+     * @param now
+     * @return The copy to load, or null if none of the links have room.
+     */
+    private SongMetadata pickSource(PlaylistEntry entry, boolean needRoom, long now) {
+        List<SongMetadata> candidates = copies.get(entry);
+        if (candidates == null) {
+            candidates = Collections.<SongMetadata>singletonList(entry);
+        }
+        SongMetadata best = null;
+        long bestTime = 0;
+        for (SongMetadata candidate : candidates) {
+            Link link = links.get(candidate.getMacAddress());
+            if (needRoom && link != null && link.batches >= maxTransfersPerLink) {
+                continue;
+            }
+            long time = getLoadTime(entry, link, now);
+            if (best == null || time < bestTime
+                    || (time == bestTime && candidate.getMacAddress().equals(entry.getMacAddress()))) {
+                best = candidate;
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param entry
+     * @return The copy of the song that is being sent for an entry, or the entry
+     * itself if it's not in flight.
+     */
+    public SongMetadata getSource(PlaylistEntry entry) {
+        Transfer transfer = inFlight.get(entry);
+        return transfer != null ? transfer.source : entry;
+    }
+
+    /**
+     * @return The time between when the entry would be loaded if it was requested
+     * now, and when it's needed.
+     */
+    private long getSlack(PlaylistEntry entry, Link link, long now) {
+        long deadline = getDeadline(entry);
+        if (deadline == UNSCHEDULED) {
+            return UNSCHEDULED;
+        }
+        return deadline - now - getLoadTime(entry, link, now);
+    }
+
+    /**
+     * @return How long the entry would take to load over a link, if it was requested now.
+     */
+    private long getLoadTime(PlaylistEntry entry, Link link, long now) {
+        double rate  = link != null ? link.bytesPerSecond : DEFAULT_BYTES_PER_SECOND;
+        long backlog = (link != null ? getRemainingBytes(link, now) : 0) + entry.getFileSize();
+        return (long) (backlog * 1000.0 / rate);
+    }
+
+    /**
+     * Start a transfer for an entry, from the best copy of its song.  This starts
+     * a new batch on the copy's link.
+     * 
+     * @param entry
+     * @param now
+     * @return The copy of the song to request.
+     */
+    public SongMetadata transferStarted(PlaylistEntry entry, long now) {
+        //a restarted transfer replaces the old one
+        transferStopped(entry);
+        SongMetadata source = pickSource(entry, true, now);
+        if (source == null) {
+            //over the limit, but the caller needs this one anyway
+            source = pickSource(entry, false, now);
+        }
+        Link link = links.get(source.getMacAddress());
+        if (link == null) {
+            link = new Link();
+            links.put(source.getMacAddress(), link);
+        }
+        link.batches++;
+        batches++;
+        addTransfer(entry, new Transfer(new Batch(link), source, now));
+        return source;
+    }
+
+    /**
+     * Start a transfer for an entry picked by pickPrefetch, in the same batch as
+     * another entry.
+     * 
+     * @param entry
+     * @param lead The entry that was passed to pickPrefetch.
+     * @param now
+     * @return The copy of the song to request.
+     */
+    public SongMetadata transferPrefetched(PlaylistEntry entry, PlaylistEntry lead, long now) {
+        transferStopped(entry);
+        Transfer transfer = inFlight.get(lead);
+        SongMetadata source = transfer != null ? pickSource(entry, false, now) : null;
+        if (source == null || links.get(source.getMacAddress()) != transfer.link) {
+            //the batch is gone, so this one starts its own
+            return transferStarted(entry, now);
+        }
+        addTransfer(entry, new Transfer(transfer.batch, source, now));
+        return source;
+    }
+
+    private void addTransfer(PlaylistEntry entry, Transfer transfer) {
+        transfer.link.transfers++;
+        transfer.link.bytes += entry.getFileSize();
+        transfer.batch.songs++;
+        transfer.batch.bytes += entry.getFileSize();
+        inFlight.put(entry, transfer);
+    }
+
+    /**
+     * Finish a transfer, and use it to update the measured transfer rate
+     * of its link.
+     * 
+     * @param entry
+     * @param bytes The number of bytes transferred.
+     * @param now
+     */
+    public void transferFinished(PlaylistEntry entry, long bytes, long now) {
+        Transfer transfer = removeTransfer(entry);
+        if (transfer == null) {
+            return;
+        }
+        Link link = transfer.link;
+        //transfers on a link overlap, so only count the time since the last one finished
+        long elapsed = now - Math.max(transfer.started, link.lastFinished);
+        if (elapsed > 0 && bytes > 0) {
+            double sample = bytes * 1000.0 / elapsed;
+            link.bytesPerSecond += (sample - link.bytesPerSecond) * THROUGHPUT_WEIGHT;
+        }
+        link.lastFinished = now;
+    }
+
+    /**
+     * Stop tracking a transfer that will not finish.
+     * 
+     * @param entry
+     */
+    public void transferStopped(PlaylistEntry entry) {
+        removeTransfer(entry);
+    }
+
+    /**
+     * Stop tracking a link, and all of the transfers on it.
+     * 
+     * @param macAddress
+     */
+    public void linkClosed(String macAddress) {
+        Link link = links.remove(macAddress);
+        if (link != null) {
+            batches -= link.batches;
+            for (Iterator<Transfer> it = inFlight.values().iterator(); it.hasNext();) {
+                if (it.next().link == link) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private Transfer removeTransfer(PlaylistEntry entry) {
+        Transfer transfer = inFlight.remove(entry);
+        if (transfer != null) {
+            transfer.link.transfers--;
+            transfer.link.bytes -= entry.getFileSize();
+            Batch batch = transfer.batch;
+            batch.songs--;
+            batch.bytes -= entry.getFileSize();
+            if (batch.songs == 0) {
+                //the whole batch is done, so the link has room for another one
+                transfer.link.batches--;
+                batches--;
+            }
+        }
+        return transfer;
+    }
+
+    public int getTransfersInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @param macAddress
+     * @return The number of transfers in flight on a link.
+     */
+    public int getTransfersInFlight(String macAddress) {
+        Link link = links.get(macAddress);
+        return link != null ? link.transfers : 0;
+    }
+
+    /**
+     * @param macAddress
+     * @return The total size of the transfers in flight on a link.
+     */
+    public long getBytesInFlight(String macAddress) {
+        Link link = links.get(macAddress);
+        return link != null ? link.bytes : 0;
+    }
+
+    /**
+     * @param macAddress
+     * @return The measured transfer rate of a link, in bytes per second.
+     */
+    public long getThroughput(String macAddress) {
+        Link link = links.get(macAddress);
+        return (long) (link != null ? link.bytesPerSecond : DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * Estimate how long until an entry is loaded.  Transfers in flight share
+     * their link, and pending entries will be loaded after the transfers in flight
+     * on their best link and the pending entries for that link that are needed first.
+     * 
+     * @param entry
+     * @param pending The entries waiting to be requested.
+     * @param now
+     * @return The estimated time in ms, 0 if the entry is loaded, or UNKNOWN if it is not being loaded.
+     */
+    public long getEta(PlaylistEntry entry, Collection<PlaylistEntry> pending, long now) {
+        if (entry.isLoaded()) {
+            return 0;
+        }
+        Transfer transfer = inFlight.get(entry);
+        String mac = transfer != null ? transfer.source.getMacAddress()
+                                      : pickSource(entry, false, now).getMacAddress();
+        Link link = links.get(mac);
+        long backlog = 0;
+        if (transfer != null) {
+            long deadline = getDeadline(entry);
+            for (Map.Entry<PlaylistEntry, Transfer> other : inFlight.entrySet()) {
+                if (other.getValue().link == link
+                        && (other.getKey() == entry || getDeadline(other.getKey()) <= deadline)) {
+                    backlog += getRemainingBytes(other.getKey(), other.getValue(), now);
+                }
+            }
+        } else if (pending.contains(entry)) {
+            if (link != null) {
+                backlog += getRemainingBytes(link, now);
+            }
+            //pending entries are picked by when they're needed, then by their order in the collection
+            long deadline = getDeadline(entry);
+            boolean ahead = true;
+            for (PlaylistEntry other : pending) {
+                if (other == entry) {
+                    ahead = false;
+                } else if (pickSource(other, false, now).getMacAddress().equals(mac)
+                        && (getDeadline(other) < deadline || (ahead && getDeadline(other) == deadline))) {
+                    backlog += other.getFileSize();
+                }
+            }
+            backlog += entry.getFileSize();
+        } else {
+            return UNKNOWN;
+        }
+        return (long) (backlog * 1000.0 / getThroughput(mac));
+    }
+
+    /**
+     * Estimate the bytes left in the transfers in flight on a link.
+     */
+    private long getRemainingBytes(Link link, long now) {
+        long remaining = 0;
+        for (Map.Entry<PlaylistEntry, Transfer> other : inFlight.entrySet()) {
+            if (other.getValue().link == link) {
+                remaining += getRemainingBytes(other.getKey(), other.getValue(), now);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Estimate the bytes left in a transfer in flight, assuming the transfers
+     * on a link share it evenly.
+     */
+    private long getRemainingBytes(PlaylistEntry entry, Transfer transfer, long now) {
+        Link link = transfer.link;
+        long elapsed  = now - transfer.started;
+        long received = (long) (link.bytesPerSecond * elapsed / 1000.0 / link.transfers);
+        return Math.max(entry.getFileSize() - received, 0);
+    }
+
+    /**
+     * @param song
+     * @return The estimated length of the song, in ms.
+     */
+    public static long estimateDuration(SongMetadata song) {
+        return song.getFileSize() * 1000 / ESTIMATED_SONG_BYTES_PER_SECOND;
+    }
+}
@@ -20,7 +20,6 @@
 package com.lastcrusade.soundstream.model;
 
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,8 +38,8 @@ public class Playlist {
     
     private final static String TAG = Playlist.class.getName();
     
-    private Deque<PlaylistEntry> playedList;
-    private Deque<PlaylistEntry> musicList;
+    private LinkedList<PlaylistEntry> playedList;
+    private LinkedList<PlaylistEntry> musicList;
 
     public Playlist() {
         playedList = new LinkedList<PlaylistEntry>();
@@ -51,6 +50,53 @@ public class Playlist {
         musicList.add(entry);
     }
 
+    /**
+     * Insert an entry at a position in the playlist.  Positions refer to the whole
+     * playlist (played songs followed by songs to play), and a position at the seam
+     * between the two inserts the entry at the front of the songs to play.
+     * 
+     * @param position The position, which is clamped to the size of the playlist.
+     * @param entry
+     */
+    public void add(int position, PlaylistEntry entry) {
+        int played = playedList.size();
+        if (position < played) {
+            playedList.add(Math.max(position, 0), entry);
+        } else {
+            musicList.add(Math.min(position - played, musicList.size()), entry);
+        }
+    }
+
+    /**
+     * Move an entry to a position in the playlist.
+     * 
+     * @param entry
+     * @param position The new position (see add(int, PlaylistEntry))
+     * @return True if the entry was moved, false if it is not in the playlist
+     */
+    public boolean move(PlaylistEntry entry, int position) {
+        if (!playedList.remove(entry) && !musicList.remove(entry)) {
+            return false;
+        }
+        add(position, entry);
+        return true;
+    }
+
+    /**
+     * @param entry
+     * @return The position of the entry in the whole playlist, or -1 if it is not in the playlist
+     */
+    public int indexOf(PlaylistEntry entry) {
+        int index = playedList.indexOf(entry);
+        if (index < 0) {
+            index = musicList.indexOf(entry);
+            if (index >= 0) {
+                index += playedList.size();
+            }
+        }
+        return index;
+    }
+
     public void clear() {
         playedList.clear();
         musicList.clear();
@@ -103,14 +149,21 @@ public class Playlist {
         musicList.removeAll(entrySet);
     }
     
-    public void removeSongsByMac(String mac){
-        Set<PlaylistEntry> toRemove = new HashSet<PlaylistEntry>();
+    /**
+     * Remove the songs that belong to a device and have not been loaded.
+     * 
+     * @param mac
+     * @return The entries that were removed.
+     */
+    public List<PlaylistEntry> removeSongsByMac(String mac){
+        List<PlaylistEntry> removed = new ArrayList<PlaylistEntry>();
         for (PlaylistEntry entry : getSongsToPlay()){
             if (!entry.isLoaded() && entry.getMacAddress().equals(mac)){
-                toRemove.add(entry);
+                removed.add(entry);
             }
         }
-        removeAll(toRemove);
+        removeAll(new HashSet<PlaylistEntry>(removed));
+        return removed;
     }
 
     public List<PlaylistEntry> getSongsToPlay() {
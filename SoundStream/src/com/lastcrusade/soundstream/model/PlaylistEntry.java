@@ -24,7 +24,7 @@ import android.os.Parcelable;
 
 import com.lastcrusade.soundstream.util.BluetoothUtils;
 import com.lastcrusade.soundstream.util.DefaultParcelableCreator;
-import com.lastcrusade.soundstream.util.SongMetadataUtils;
+import com.lastcrusade.soundstream.util.SongKey;
 
 public class PlaylistEntry extends SongMetadata {
 
@@ -52,6 +52,7 @@ public class PlaylistEntry extends SongMetadata {
         this.setMacAddress(metadata.getMacAddress());
         this.setFileSize(metadata.getFileSize());
         this.setTitle(metadata.getTitle());
+        this.setFingerprint(metadata.getFingerprint());
     }
     
     public PlaylistEntry(SongMetadata metadata, boolean loaded, boolean played, String filePath, int entryId){
@@ -111,9 +112,10 @@ public class PlaylistEntry extends SongMetadata {
         return entryId;
     }
     
+    //NOTE: entries are compared by their numeric song key, so sets and maps of entries don't allocate
     @Override
     public int hashCode() {
-        return SongMetadataUtils.getUniqueKey(this).hashCode();
+        return SongKey.hash(getOwnerKey(), getId()) * 31 + entryId;
     }
     
     @Override
@@ -121,7 +123,9 @@ public class PlaylistEntry extends SongMetadata {
         if (!(o instanceof PlaylistEntry)) {
             return false;
         }
-        return SongMetadataUtils.getUniqueKey(this).equals(SongMetadataUtils.getUniqueKey((PlaylistEntry)o));
+        PlaylistEntry other = (PlaylistEntry) o;
+        return getId() == other.getId() && entryId == other.entryId
+                && getOwnerKey() == other.getOwnerKey();
     }
 
     @Override
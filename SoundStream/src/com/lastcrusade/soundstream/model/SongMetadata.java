@@ -24,6 +24,9 @@ import android.os.Parcelable;
 
 import com.lastcrusade.soundstream.util.BluetoothUtils;
 import com.lastcrusade.soundstream.util.DefaultParcelableCreator;
+import com.lastcrusade.soundstream.util.SongFingerprint;
+import com.lastcrusade.soundstream.util.SongKey;
+import com.lastcrusade.soundstream.util.SongSortKey;
 
 public class SongMetadata implements Parcelable{
 
@@ -44,6 +47,15 @@ public class SongMetadata implements Parcelable{
 
     // macAddress of person who added song to playlist
     private String macAddress; 
+
+    // fingerprint of the song file's content, or SongFingerprint.NONE if it's not known
+    private long fingerprint = SongFingerprint.NONE;
+
+    // key used to sort the library, built when it's first needed (see AlphabeticalComparator)
+    private transient SongSortKey sortKey;
+
+    // numeric key for the mac address, or -1 until it's first needed (see SongKey)
+    private transient long ownerKey = -1;
     
     public SongMetadata() {}
 
@@ -64,6 +76,7 @@ public class SongMetadata implements Parcelable{
         this.album      = in.readString();
         this.fileSize   = in.readLong();
         this.macAddress = in.readString();
+        this.fingerprint = in.readLong();
     }
 
     @Override
@@ -79,6 +92,7 @@ public class SongMetadata implements Parcelable{
         dest.writeString(this.album);
         dest.writeLong(this.fileSize);
         dest.writeString(this.macAddress);
+        dest.writeLong(this.fingerprint);
     }
     
     @Override
@@ -100,6 +114,7 @@ public class SongMetadata implements Parcelable{
 
     public void setTitle(String title) {
         this.title = title;
+        this.sortKey = null;
     }
 
     public String getArtist() {
@@ -108,6 +123,7 @@ public class SongMetadata implements Parcelable{
 
     public void setArtist(String artist) {
         this.artist = artist;
+        this.sortKey = null;
     }
 
     public String getAlbum() {
@@ -116,6 +132,7 @@ public class SongMetadata implements Parcelable{
 
     public void setAlbum(String album) {
         this.album = album;
+        this.sortKey = null;
     }
 
     public long getFileSize() {
@@ -132,5 +149,36 @@ public class SongMetadata implements Parcelable{
 
     public void setMacAddress(String macAddress) {
         this.macAddress = macAddress;
+        this.ownerKey = -1;
     }    
+
+    /**
+     * @return The numeric key for this song's mac address (see SongKey).
+     */
+    public long getOwnerKey() {
+        long key = this.ownerKey;
+        if (key < 0) {
+            key = SongKey.ownerKey(this.macAddress);
+            this.ownerKey = key;
+        }
+        return key;
+    }
+
+    public SongSortKey getSortKey() {
+        //NOTE: if two threads build the key at once, they build the same key
+        SongSortKey key = this.sortKey;
+        if (key == null) {
+            key = new SongSortKey(this.artist, this.album, this.title);
+            this.sortKey = key;
+        }
+        return key;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
 }
@@ -22,6 +22,7 @@ package com.lastcrusade.soundstream.net;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
@@ -31,7 +32,11 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import com.lastcrusade.soundstream.net.message.CancelTransferMessage;
+import com.lastcrusade.soundstream.net.message.IFileMessage;
 import com.lastcrusade.soundstream.net.message.IMessage;
+import com.lastcrusade.soundstream.net.message.TransferCancelledMessage;
+import com.lastcrusade.soundstream.net.wire.IncompatibleVersionException;
 import com.lastcrusade.soundstream.net.wire.Messenger;
 
 /**
@@ -44,6 +49,7 @@ import com.lastcrusade.soundstream.net.wire.Messenger;
 public abstract class MessageThread extends Thread {
     private final String TAG = MessageThread.class.getSimpleName();
     public static final int MESSAGE_READ = 1;
+    public static final int MESSAGE_FILE_STARTED = 2;
 
     public static final String EXTRA_ADDRESS = MessageThread.class.getName() + ".extra.Address";
 
@@ -60,7 +66,7 @@ public abstract class MessageThread extends Thread {
     private final Messenger mmMessenger;
     private MessageThreadWriter mmWriter;
     private Thread mmWriteThread;
-    protected boolean mmWriteThreadRunning;
+    protected volatile boolean mmWriteThreadRunning;
     private Thread mmStoppingThread;
 
     public MessageThread(Context context, BluetoothSocket socket, Handler handler) {
@@ -81,6 +87,8 @@ public abstract class MessageThread extends Thread {
         mmOutStream = tmpOut;
         
         mmMessenger = new Messenger(context.getCacheDir());
+        //let the app know when songs start to arrive, so they can be played while they stream in
+        mmMessenger.setNotifyFileStarted(true);
         mmWriter    = new MessageThreadWriter(mmMessenger, mmOutStream);
         mmWriteThreadRunning = true;
         mmWriteThread = new Thread(new Runnable() {
@@ -90,9 +98,10 @@ public abstract class MessageThread extends Thread {
                 try {
                     while (mmWriteThreadRunning) {
                         try {
-                            mmWriter.writeOne();
-                            if (!mmWriter.canWrite()) {
-                                Thread.sleep(10); //give the system a chance to breath
+                            //block until there is something to write...this returns false
+                            // when the writer is closed
+                            if (mmWriter.waitForMessages()) {
+                                mmWriter.writeOne();
                             }
                         } catch (IOException e) {
                             //we've probably closed our socket...quit the thread
@@ -134,13 +143,31 @@ public abstract class MessageThread extends Thread {
                 //attempt to deserialize from the socket input stream
                 boolean messageRecvd = mmMessenger.deserializeMessage(mmInStream);
                 if (messageRecvd) {
-                    for (IMessage message : mmMessenger.getReceivedMessages()) {
+                    for (IFileMessage fileMessage : mmMessenger.getStartedFiles()) {
+                        sendFileStartedToHandler(fileMessage, remoteDevice.getAddress());
+                    }
+                    List<IMessage> messages = mmMessenger.getReceivedMessages();
+                    for (int ii = 0; ii < messages.size(); ii++) {
+                        if (messages.get(ii) instanceof CancelTransferMessage) {
+                            //stop sending the transfer right away, and let the receiver know it's stopped
+                            long transferId = ((CancelTransferMessage) messages.get(ii)).getTransferId();
+                            mmWriter.cancelTransfer(transferId);
+                            write(new TransferCancelledMessage(transferId));
+                            //that's all there is to a cancel, so it's not passed on to the handler
+                            continue;
+                        }
                         //dispatch the message to the handler
-                        sendMessageToHandler(message, remoteDevice.getAddress());
+                        sendMessageToHandler(messages.get(ii), mmMessenger.getReceivedMessageType(ii),
+                                remoteDevice.getAddress());
                     }
                     
                     mmMessenger.clearReceivedMessages();
                 }
+            } catch (IncompatibleVersionException e) {
+                //we can't talk to this device, so let the user know why it's being dropped
+                Log.w(TAG, e.getMessage());
+                onIncompatibleVersion(e.getRemoteVersion());
+                break;
             } catch (IOException e) {
                 e.printStackTrace();
                 break;
@@ -149,6 +176,8 @@ public abstract class MessageThread extends Thread {
                 break;
             }
         }
+        //close any files we were in the middle of receiving
+        mmMessenger.abandonTransfers();
         stopWriteThread();
         //cancel and notify the handlers that the connection is dead
         cancel();
@@ -158,6 +187,12 @@ public abstract class MessageThread extends Thread {
         mmStoppingThread = Thread.currentThread();
         mmWriteThreadRunning = false;
         synchronized(mmStoppingThread) {
+            //close the writer, which wakes up the write thread if it's waiting for messages
+            try {
+                mmWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close writer", e);
+            }
             try {
                 //wait for the thread to stop, or for 1 second.  This number may have to be adjusted
                 // as we test with larger and larger files.
@@ -174,14 +209,38 @@ public abstract class MessageThread extends Thread {
 
     public abstract void onDisconnected();
 
+    /**
+     * Called when the remote device runs a messenger version we can't talk to (see
+     * MessageFormat), just before the connection is closed.
+     * 
+     * @param remoteVersion
+     */
+    public abstract void onIncompatibleVersion(int remoteVersion);
+
     /**
      * Send the network message to the appropriate handler.
      * 
      * @param message
+     * @param messageType The registered type id of the message (see MessageRegistry)
      * @param remoteAddr
      */
-    private void sendMessageToHandler(IMessage message, String remoteAddr) {
-        Message androidMsg = mmHandler.obtainMessage(MESSAGE_READ, this.mmInMessageNumber++, 0, message);
+    private void sendMessageToHandler(IMessage message, int messageType, String remoteAddr) {
+        Message androidMsg = mmHandler.obtainMessage(MESSAGE_READ, this.mmInMessageNumber++, messageType, message);
+        Bundle bundle = new Bundle();
+        bundle.putString(EXTRA_ADDRESS, remoteAddr);
+        androidMsg.setData(bundle);
+        androidMsg.sendToTarget();
+    }
+
+    /**
+     * Let the handler know that a file message has started receiving its file (see
+     * Messenger#getStartedFiles).
+     * 
+     * @param fileMessage
+     * @param remoteAddr
+     */
+    private void sendFileStartedToHandler(IFileMessage fileMessage, String remoteAddr) {
+        Message androidMsg = mmHandler.obtainMessage(MESSAGE_FILE_STARTED, fileMessage);
         Bundle bundle = new Bundle();
         bundle.putString(EXTRA_ADDRESS, remoteAddr);
         androidMsg.setData(bundle);
@@ -191,6 +250,10 @@ public abstract class MessageThread extends Thread {
     /* Call this from the main activity to send data to the remote device */
     public synchronized void write(IMessage message) throws IOException {
         Log.d(TAG, "MessageThread#write called from " + Thread.currentThread().getName());
+        if (message instanceof CancelTransferMessage) {
+            //we're the receiver of this transfer...stop receiving it
+            mmMessenger.cancelTransfer(((CancelTransferMessage) message).getTransferId());
+        }
         //enqueue this message
         mmWriter.enqueue(mmOutMessageNumber++, message);
     }
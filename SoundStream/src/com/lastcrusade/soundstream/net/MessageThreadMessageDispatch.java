@@ -26,7 +26,9 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import com.lastcrusade.soundstream.net.message.IFileMessage;
 import com.lastcrusade.soundstream.net.message.IMessage;
+import com.lastcrusade.soundstream.net.message.MessageRegistry;
 
 /**
  * An Android Handler used as a SoundStream network message dispatch.  This will receive
@@ -54,14 +56,19 @@ public class MessageThreadMessageDispatch extends Handler {
 
     private static final String TAG = "MessageThreadMessageDispatch";
 
-    //hold a map of messages to handlers for those messages.  The registerHandler method
+    //hold a table of message type ids to handlers for those messages.  The registerHandler method
     // ensures that the handler is appropriate for the type of class passed in, since we
-    // cannot define arbitrary bounds     
+    // cannot define arbitrary bounds
+    private IMessageHandler<?>[] dispatchTable = new IMessageHandler<?>[MessageRegistry.getMaxTypeId() + 1];
+
+    //messages that are not in the MessageRegistry are held in a map by class
     private Map<Class<? extends IMessage>, IMessageHandler<? extends IMessage>> dispatchMap =
             new HashMap<Class<? extends IMessage>, IMessageHandler<? extends IMessage>>();
 
     private IMessageHandler<IMessage> defaultHandler = null;
 
+    private IMessageHandler<IFileMessage> fileStartedHandler = null;
+
     /**
      * Register a message handler with the dispatch.  This handler will get called
      * when a message is received.
@@ -72,13 +79,29 @@ public class MessageThreadMessageDispatch extends Handler {
      * @param handler
      */
     public <T extends IMessage> void registerHandler(Class<T> messageClass, IMessageHandler<T> handler) {
-        dispatchMap.put(messageClass, handler);
+        int typeId = MessageRegistry.getTypeId(messageClass);
+        if (typeId != MessageRegistry.NO_TYPE) {
+            dispatchTable[typeId] = handler;
+        } else {
+            dispatchMap.put(messageClass, handler);
+        }
     }
     
     public void setDefaultHandler(IMessageHandler<IMessage> defaultHandler) {
         this.defaultHandler = defaultHandler;
     }
 
+    /**
+     * Set the handler called when a file message starts receiving its file, before
+     * the whole file is here (see Messenger#getStartedFiles).  The file message
+     * itself is dispatched as usual once the file is complete.
+     * 
+     * @param fileStartedHandler
+     */
+    public void setFileStartedHandler(IMessageHandler<IFileMessage> fileStartedHandler) {
+        this.fileStartedHandler = fileStartedHandler;
+    }
+
     @Override
     public void handleMessage(Message msg) {
         IMessage        message   = null;
@@ -89,7 +112,12 @@ public class MessageThreadMessageDispatch extends Handler {
             messageNo = msg.arg1;
             message   = (IMessage)msg.obj;
             fromAddr  = msg.getData().getString(MessageThread.EXTRA_ADDRESS);
-            handleMessage(messageNo, message, fromAddr);
+            handleMessage(messageNo, msg.arg2, message, fromAddr);
+        } else if (msg.what == MessageThread.MESSAGE_FILE_STARTED) {
+            fromAddr  = msg.getData().getString(MessageThread.EXTRA_ADDRESS);
+            if (fileStartedHandler != null) {
+                fileStartedHandler.handleMessage(messageNo, (IFileMessage)msg.obj, fromAddr);
+            }
         } else {
             // default...call the base class
             super.handleMessage(msg);
@@ -97,7 +125,26 @@ public class MessageThreadMessageDispatch extends Handler {
     }
 
     public void handleMessage(int messageNo, IMessage message, String fromAddr) {
-        IMessageHandler handler   = dispatchMap.get(message.getClass());
+        handleMessage(messageNo, MessageRegistry.getTypeId(message.getClass()), message, fromAddr);
+    }
+
+    /**
+     * Dispatch a message to its handler.
+     * 
+     * @param messageNo
+     * @param messageType The registered type id of the message, or MessageRegistry.NO_TYPE
+     * if the message is not registered.
+     * @param message
+     * @param fromAddr
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void handleMessage(int messageNo, int messageType, IMessage message, String fromAddr) {
+        IMessageHandler handler;
+        if (messageType > MessageRegistry.NO_TYPE && messageType < dispatchTable.length) {
+            handler = dispatchTable[messageType];
+        } else {
+            handler = dispatchMap.get(message.getClass());
+        }
         
         if (handler != null) {
             Log.w(TAG, "Message received: " + messageNo + ", it's a " + message.getClass().getSimpleName());
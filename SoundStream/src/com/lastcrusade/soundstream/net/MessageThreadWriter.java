@@ -22,20 +22,48 @@ package com.lastcrusade.soundstream.net;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Set;
 
 import android.util.Log;
 
+import com.lastcrusade.soundstream.net.message.FoundGuestsMessage;
+import com.lastcrusade.soundstream.net.message.IFileMessage;
 import com.lastcrusade.soundstream.net.message.IMessage;
-import com.lastcrusade.soundstream.net.message.TransferSongMessage;
+import com.lastcrusade.soundstream.net.message.ITransferMessage;
+import com.lastcrusade.soundstream.net.message.LibraryDeltaMessage;
+import com.lastcrusade.soundstream.net.message.LibraryMessage;
+import com.lastcrusade.soundstream.net.message.PlaylistMessage;
+import com.lastcrusade.soundstream.net.message.PlaylistPatchMessage;
+import com.lastcrusade.soundstream.net.message.SongStatusMessage;
+import com.lastcrusade.soundstream.net.message.UserListMessage;
 import com.lastcrusade.soundstream.net.wire.Messenger;
+import com.lastcrusade.soundstream.net.wire.WireSendInputStream;
 import com.lastcrusade.soundstream.util.LogUtil;
 
 /**
- * A class to manage writing messages from the MessageThread.  This class
- * maintains a priority queue the prioritizes command messages over transfer
- * data messages, to ensure the user interface is snappy.
+ * A class to manage writing messages from the MessageThread.
+ * 
+ * Messages are sorted into traffic classes: control messages (commands such as play
+ * or add to playlist), metadata messages (library and playlist sync) and bulk messages
+ * (file transfers).  The writer shares the connection between the classes using
+ * deficit round robin: each class is given a quantum of bytes per round, in proportion
+ * to its weight, and a class that cannot send its next packet carries its unused
+ * quantum over to the next round.  This keeps the user interface snappy while songs
+ * are transferring, and ensures that no class is starved.
+ * 
+ * Within a class, messages are ordered according to the class's ordering (see
+ * ORDER_FIFO, ORDER_ROUND_ROBIN and ORDER_SMALLEST_FIRST).
+ * 
+ * The queues are thread safe: messages are enqueued from the callers of
+ * MessageThread#write, and written from the writer thread, which blocks in
+ * waitForMessages until there is something to write.
  * 
  * @author Jesse Rosalia
  *
@@ -43,15 +71,49 @@ import com.lastcrusade.soundstream.util.LogUtil;
 public class MessageThreadWriter {
 
     /**
-     * The normal multiplier uses the score as is.
+     * Traffic classes.
+     */
+    public static final int CLASS_CONTROL  = 0;
+    public static final int CLASS_METADATA = 1;
+    public static final int CLASS_BULK     = 2;
+    private static final int CLASS_COUNT   = 3;
+
+    /**
+     * Send each message in the class completely, in the order they were enqueued.
+     */
+    public static final int ORDER_FIFO           = 0;
+
+    /**
+     * Interleave the packets of all of the messages in the class.
      */
-    private static final int NORMAL_SCORE_MULTIPLIER = 1;
+    public static final int ORDER_ROUND_ROBIN    = 1;
 
     /**
-     * A multiplier to lower the priority of transfer song messages,
-     * so control messages will jump the queue to be sent quicker.
+     * Send the message with the fewest bytes left to write first.
      */
-    private static final int TRANSFER_SONG_SCORE_MULTIPLIER = 100;
+    public static final int ORDER_SMALLEST_FIRST = 2;
+
+    /**
+     * Default weights for each class.  A class with twice the weight gets
+     * twice as many bytes per round when all classes have data to send.
+     */
+    private static final int CONTROL_WEIGHT  = 4;
+    private static final int METADATA_WEIGHT = 2;
+    private static final int BULK_WEIGHT     = 1;
+
+    /**
+     * Messages that sync the library, playlist or user list.  File messages are
+     * always bulk messages, and all other messages are control messages.
+     */
+    private static final Set<Class<? extends IMessage>> METADATA_MESSAGES = new HashSet<Class<? extends IMessage>>(
+            Arrays.<Class<? extends IMessage>>asList(
+                    LibraryMessage.class,
+                    LibraryDeltaMessage.class,
+                    PlaylistMessage.class,
+                    PlaylistPatchMessage.class,
+                    SongStatusMessage.class,
+                    UserListMessage.class,
+                    FoundGuestsMessage.class));
 
     private static String TAG = MessageThreadWriter.class.getSimpleName();
 
@@ -63,18 +125,99 @@ public class MessageThreadWriter {
 
     class QueueEntry {
         private int messageNo;
-        private int score;
+        private int trafficClass;
+        /**
+         * The order this entry was (re)added to its class's queue, used by ORDER_ROUND_ROBIN.
+         */
+        private long sequence;
+        /**
+         * The number of bytes left to write, used by ORDER_SMALLEST_FIRST.
+         */
+        private int remaining;
+        /**
+         * The transfer this message belongs to, if it is a transfer message (see cancelTransfer).
+         */
+        private boolean transfer;
+        private long transferId;
+        /**
+         * True once part of the message has been written, and true if the message
+         * was cancelled while it was being written.
+         */
+        private boolean started;
+        private boolean cancelled;
         public Class<? extends IMessage> messageClass;
         public InputStream messageStream;
     }
 
-    PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>(11, new Comparator<QueueEntry>() {
+    private static final Comparator<QueueEntry> FIFO_COMPARATOR = new Comparator<QueueEntry>() {
 
         @Override
         public int compare(QueueEntry lhs, QueueEntry rhs) {
-            return lhs.score - rhs.score;
+            return lhs.messageNo - rhs.messageNo;
         }
-    });
+    };
+
+    private static final Comparator<QueueEntry> ROUND_ROBIN_COMPARATOR = new Comparator<QueueEntry>() {
+
+        @Override
+        public int compare(QueueEntry lhs, QueueEntry rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<QueueEntry> SMALLEST_FIRST_COMPARATOR = new Comparator<QueueEntry>() {
+
+        @Override
+        public int compare(QueueEntry lhs, QueueEntry rhs) {
+            int diff = lhs.remaining - rhs.remaining;
+            return diff != 0 ? diff : lhs.messageNo - rhs.messageNo;
+        }
+    };
+
+    /**
+     * The queue and deficit round robin state for one traffic class.
+     */
+    class ClassQueue {
+        private PriorityQueue<QueueEntry> queue;
+        private int quantum;
+        private int deficit;
+
+        ClassQueue(int order, int quantum) {
+            this.quantum = quantum;
+            setOrder(order);
+        }
+
+        void setOrder(int order) {
+            PriorityQueue<QueueEntry> newQueue = new PriorityQueue<QueueEntry>(11, getComparator(order));
+            if (this.queue != null) {
+                newQueue.addAll(this.queue);
+            }
+            this.queue = newQueue;
+        }
+    }
+
+    private final ClassQueue[] classes = new ClassQueue[CLASS_COUNT];
+
+    /**
+     * The class currently being served, and whether it has been given its
+     * quantum for this visit.
+     */
+    private int currentClass = 0;
+    private boolean quantumAdded = false;
+
+    private long nextSequence = 0;
+
+    /**
+     * Guards the class queues and scheduler state, and is signaled when a
+     * message is enqueued or the writer is closed.
+     */
+    private final Object queueLock = new Object();
+    private boolean closed = false;
+
+    /**
+     * The entry being written by writeOne, which is not in any queue while it is written.
+     */
+    private QueueEntry writing;
 
     private OutputStream outStream;
 
@@ -84,67 +227,276 @@ public class MessageThreadWriter {
         this.outStream = outStream;
         this.messenger = messenger;
         this.outBytes = new byte[messenger.getSendPacketSize()];
+        this.classes[CLASS_CONTROL]  = new ClassQueue(ORDER_FIFO, CONTROL_WEIGHT  * outBytes.length);
+        this.classes[CLASS_METADATA] = new ClassQueue(ORDER_FIFO, METADATA_WEIGHT * outBytes.length);
+        this.classes[CLASS_BULK]     = new ClassQueue(ORDER_FIFO, BULK_WEIGHT     * outBytes.length);
+    }
+
+    /**
+     * Set the order of messages within a traffic class.
+     * 
+     * @param trafficClass One of CLASS_CONTROL, CLASS_METADATA or CLASS_BULK
+     * @param order One of ORDER_FIFO, ORDER_ROUND_ROBIN or ORDER_SMALLEST_FIRST
+     */
+    public void setClassOrder(int trafficClass, int order) {
+        synchronized(queueLock) {
+            classes[trafficClass].setOrder(order);
+        }
+    }
+
+    /**
+     * Set the weight of a traffic class.  When all classes have data to send, each
+     * class gets a share of the connection in proportion to its weight.
+     * 
+     * @param trafficClass One of CLASS_CONTROL, CLASS_METADATA or CLASS_BULK
+     * @param weight A weight of 1 or more
+     */
+    public void setClassWeight(int trafficClass, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+        synchronized(queueLock) {
+            classes[trafficClass].quantum = weight * outBytes.length;
+        }
     }
 
     public void enqueue(int messageNo, IMessage message) throws IOException {
         QueueEntry qe = new QueueEntry();
         qe.messageNo     = messageNo;
-        qe.score         = computeMessageScore(messageNo, message);
+        qe.trafficClass  = getTrafficClass(message);
         qe.messageClass  = message.getClass();
+        if (message instanceof ITransferMessage) {
+            qe.transfer   = true;
+            qe.transferId = ((ITransferMessage) message).getTransferId();
+        }
         qe.messageStream = messenger.serializeMessage(message);
         if (LogUtil.isLogAvailable()) {
             //precompute the expected queue size...this is because the writer thread may quickly pick
             // up the queue item which, while swell, means the debug output may be confusing
-            int newExpectedQueueSize = queue.size() + 1;
+            int newExpectedQueueSize = size() + 1;
             Log.i(TAG, "Message " + qe.messageNo + " enqueued, it's a "
                         + qe.messageClass.getSimpleName() + ", "
                         + qe.messageStream.available() + " bytes in length, "
                         + newExpectedQueueSize + " entries in the queue");
         }
-        queue.add(qe);
+        synchronized(queueLock) {
+            if (closed) {
+                qe.messageStream.close();
+                throw new IOException("Writer is closed");
+            }
+            add(qe);
+            //wake up the writer thread
+            queueLock.notifyAll();
+        }
     }
 
     /**
-     * Compute the score of the message.  Messages are held in a min-first priority
-     * queue.  This, along with the partial transfer of song messages, allows commands
-     * such as play or add to "jump ahead" of any transferring song data, thus
-     * maintaining a usable system while shipping around large amounts of data.
+     * Cancel a transfer message.  If the message has not started writing, it is
+     * dropped from the queue.  If part of it has been written, the rest of it is
+     * replaced with an abort packet, so the receiver knows to throw away what it has.
+     * 
+     * @param transferId
+     * @return True if a message for the transfer was found.
+     * @throws IOException
+     */
+    public boolean cancelTransfer(long transferId) throws IOException {
+        boolean found = false;
+        synchronized(queueLock) {
+            List<QueueEntry> aborted = new ArrayList<QueueEntry>();
+            for (ClassQueue c : classes) {
+                for (Iterator<QueueEntry> it = c.queue.iterator(); it.hasNext();) {
+                    QueueEntry qe = it.next();
+                    if (qe.transfer && qe.transferId == transferId) {
+                        it.remove();
+                        found = true;
+                        if (abort(qe)) {
+                            aborted.add(qe);
+                        }
+                    }
+                }
+            }
+            for (QueueEntry qe : aborted) {
+                add(qe);
+            }
+            //if it's being written now, writeOne will take care of it
+            if (writing != null && writing.transfer && writing.transferId == transferId) {
+                writing.cancelled = true;
+                found = true;
+            }
+        }
+        if (found && LogUtil.isLogAvailable()) {
+            Log.i(TAG, "Transfer " + transferId + " cancelled");
+        }
+        return found;
+    }
+
+    /**
+     * Stop writing a message.
+     * 
+     * NOTE: must be called with the queueLock held, and with the entry out of its queue.
+     * 
+     * @param qe
+     * @return True if the entry needs to be requeued to write an abort packet.
+     * @throws IOException
+     */
+    private boolean abort(QueueEntry qe) throws IOException {
+        qe.transfer = false;
+        if (qe.started && qe.messageStream instanceof WireSendInputStream) {
+            ((WireSendInputStream) qe.messageStream).abort();
+            return true;
+        }
+        qe.messageStream.close();
+        return false;
+    }
+
+    /**
+     * Get the traffic class for a message.
      * 
-     * @param messageNo
      * @param message
      * @return
      */
-    private int computeMessageScore(int messageNo, IMessage message) {
-        int mult = NORMAL_SCORE_MULTIPLIER;
-        //transfer song has a higher score, so it is a lower priority message
-        if (TransferSongMessage.class.isAssignableFrom(
-                                message.getClass())) { 
-            mult = TRANSFER_SONG_SCORE_MULTIPLIER;
+    static int getTrafficClass(IMessage message) {
+        if (message instanceof IFileMessage) {
+            return CLASS_BULK;
+        } else if (METADATA_MESSAGES.contains(message.getClass())) {
+            return CLASS_METADATA;
+        } else {
+            return CLASS_CONTROL;
+        }
+    }
+
+    private static Comparator<QueueEntry> getComparator(int order) {
+        switch (order) {
+        case ORDER_FIFO:
+            return FIFO_COMPARATOR;
+        case ORDER_ROUND_ROBIN:
+            return ROUND_ROBIN_COMPARATOR;
+        case ORDER_SMALLEST_FIRST:
+            return SMALLEST_FIRST_COMPARATOR;
+        default:
+            throw new IllegalArgumentException("Unknown order " + order);
+        }
+    }
+
+    /**
+     * NOTE: must be called with the queueLock held.
+     */
+    private void add(QueueEntry qe) throws IOException {
+        qe.sequence  = nextSequence++;
+        qe.remaining = qe.messageStream.available();
+        classes[qe.trafficClass].queue.add(qe);
+    }
+
+    /**
+     * @return The number of messages waiting to be written.
+     */
+    public int size() {
+        synchronized(queueLock) {
+            int size = 0;
+            for (ClassQueue c : classes) {
+                size += c.queue.size();
+            }
+            return size;
         }
-        //compute the score by multiplying the message no by a multiplier
-        // to push some messages down in priority
-        return messageNo * mult;
     }
 
     public boolean canWrite() {
-        return !queue.isEmpty();
+        return size() > 0;
+    }
+
+    /**
+     * Block until there is a message to write, or the writer is closed.
+     * 
+     * @return True if there is a message to write, false if the writer is closed
+     * @throws InterruptedException
+     */
+    public boolean waitForMessages() throws InterruptedException {
+        synchronized(queueLock) {
+            while (!closed && !canWrite()) {
+                queueLock.wait();
+            }
+            return !closed;
+        }
+    }
+
+    /**
+     * Close the writer.  This releases any messages that have not been written, and
+     * wakes up the writer thread if it is waiting for messages.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized(queueLock) {
+            closed = true;
+            for (ClassQueue c : classes) {
+                for (QueueEntry qe : c.queue) {
+                    qe.messageStream.close();
+                }
+                c.queue.clear();
+            }
+            queueLock.notifyAll();
+        }
+    }
+
+    /**
+     * Pick the next message to write, using deficit round robin between the classes.
+     * 
+     * The current class is given its quantum when the scheduler arrives at it, and
+     * is served as long as its deficit covers the next packet.  Otherwise, the
+     * scheduler moves on to the next class, and this class keeps its deficit for
+     * the next round.  A class with nothing to send loses its deficit.
+     * 
+     * NOTE: must be called with the queueLock held.
+     * 
+     * @return The next message, or null if there are no messages to write
+     * @throws IOException
+     */
+    private QueueEntry poll() throws IOException {
+        if (!canWrite()) {
+            return null;
+        }
+        while (true) {
+            ClassQueue c = classes[currentClass];
+            QueueEntry qe = c.queue.peek();
+            if (qe != null) {
+                if (!quantumAdded) {
+                    c.deficit += c.quantum;
+                    quantumAdded = true;
+                }
+                int cost = Math.min(qe.messageStream.available(), outBytes.length);
+                if (c.deficit >= cost) {
+                    return c.queue.poll();
+                }
+            } else {
+                c.deficit = 0;
+            }
+            currentClass = (currentClass + 1) % CLASS_COUNT;
+            quantumAdded = false;
+        }
     }
 
     /**
      * Write one message (or part of a message) to the connected output stream.
      * 
      * This may write a partial message, if the message is bigger than our output buffer.
-     * If this is the case, the queue entry is readded to the priority queue and given
+     * If this is the case, the queue entry is readded to its class's queue and given
      * another chance to write more data.  This is repeated until the message is
-     * completely sent.  Note that this means other, higher priority messages may
+     * completely sent.  Note that this means messages in other classes may
      * jump the line while this message is in the middle of sending its data.  This
      * is ok, and how we allow the system to send command messages when long transfer
      * messages are in progress.
      * 
+     * The queue lock is not held while writing, so callers can enqueue messages
+     * while the output stream blocks.
+     * 
      * @throws IOException
      */
     public void writeOne() throws IOException {
-        QueueEntry qe = queue.poll();
+        QueueEntry qe;
+        synchronized(queueLock) {
+            qe = poll();
+            writing = qe;
+        }
         if (qe != null) {
             int read = qe.messageStream.read(outBytes);
             if (LogUtil.isLogAvailable()) {
@@ -152,15 +504,30 @@ public class MessageThreadWriter {
             }
             outStream.write(outBytes, 0, read);
             int left = qe.messageStream.available();
-            //if there are bytes left to write, add this message back into the queue
-            // to write at the next opportunity
-            if (left > 0) {
+            boolean requeued = false;
+            synchronized(queueLock) {
+                writing = null;
+                qe.started = true;
+                classes[qe.trafficClass].deficit -= read;
+                if (qe.cancelled && left > 0) {
+                    //cancelled while we were writing...finish with an abort packet
+                    qe.cancelled = false;
+                    left = abort(qe) ? qe.messageStream.available() : 0;
+                }
+                //if there are bytes left to write, add this message back into the queue
+                // to write at the next opportunity
+                if (left > 0 && !closed) {
+                    add(qe);
+                    requeued = true;
+                }
+            }
+            if (requeued) {
                 if (LogUtil.isLogAvailable()) {
                     Log.d(TAG, "Message " + qe.messageNo + ", " + left + " bytes left to write");
                 }
-                queue.add(qe);
             } else {
-                //otherwise, we're done
+                //otherwise, we're done...release the message stream and any open file
+                qe.messageStream.close();
                 if (LogUtil.isLogAvailable()) {
                     Log.i(TAG, "Message " + qe.messageNo + " finished writing");
                 }
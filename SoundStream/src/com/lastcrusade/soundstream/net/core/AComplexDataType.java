@@ -18,22 +18,45 @@
  */
 package com.lastcrusade.soundstream.net.core;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * A base class that represents a complex data type. Complex data types are
  * composed of fields of simple data types. This class provides generic methods
  * for reading and writing these fields in streams.
  * 
+ * Integers are written big endian (the same as java.nio.ByteBuffer), and longs
+ * are written little endian.  Fields are encoded through a small scratch array
+ * owned by each instance, so reading and writing fields does not allocate.
+ * 
+ * Variable length ints and longs are written 7 bits at a time, least significant
+ * group first, with the high bit of each byte set if more bytes follow.  Small
+ * non-negative numbers take 1 or 2 bytes, but negative numbers always take the
+ * maximum, so these are best used for counts, ids and sizes.
+ * 
  * @author Jesse Rosalia
  * 
  */
 public class AComplexDataType {
 
     public static final int SIZEOF_INTEGER = 4;
+    public static final int SIZEOF_LONG    = 8;
+
+    /**
+     * The most bytes a variable length long can take up (7 bits per byte).
+     */
+    public static final int MAX_SIZEOF_VARLONG = 10;
+
+    /**
+     * All strings are sent as UTF-8, regardless of the platform default.
+     */
+    protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] scratch = new byte[MAX_SIZEOF_VARLONG];
 
     protected void writeByte(byte theByte, OutputStream output)
             throws IOException {
@@ -41,7 +64,21 @@ public class AComplexDataType {
     }
 
     protected byte readByte(InputStream input) throws IOException {
-        return (byte) input.read();
+        return (byte) readUnsignedByte(input);
+    }
+
+    /**
+     * @param input
+     * @return The next byte in the input, from 0 to 255.
+     * @throws IOException
+     * @throws EOFException If the stream has ended.
+     */
+    protected int readUnsignedByte(InputStream input) throws IOException {
+        int read = input.read();
+        if (read < 0) {
+            throw new EOFException("Stream ended before the end of the field");
+        }
+        return read;
     }
 
     protected void writeBytes(byte[] bytes, OutputStream output)
@@ -56,23 +93,144 @@ public class AComplexDataType {
         }
         // TODO: protection for laaaaaarge byte lengths
         byte[] bytes = new byte[length];
-        input.read(bytes);
+        readFully(input, bytes, 0, length);
         return bytes;
     }
 
+    /**
+     * Read exactly length bytes from the input stream into bytes.  This will
+     * keep reading until all bytes are read, or the stream ends.
+     * 
+     * @param input
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException
+     * @throws EOFException If the stream ends before all bytes are read.
+     */
+    protected void readFully(InputStream input, byte[] bytes, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int read = input.read(bytes, offset, length);
+            if (read < 0) {
+                throw new EOFException("Stream ended with " + length + " bytes left to read");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
     protected void writeInteger(int integer, OutputStream output)
             throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(SIZEOF_INTEGER);
-        bb.putInt(integer);
-        output.write(bb.array());
+        scratch[0] = (byte) (integer >> 24);
+        scratch[1] = (byte) (integer >> 16);
+        scratch[2] = (byte) (integer >> 8);
+        scratch[3] = (byte) integer;
+        output.write(scratch, 0, SIZEOF_INTEGER);
     }
 
     protected int readInteger(InputStream input) throws IOException {
-        byte[] in = new byte[SIZEOF_INTEGER];
-        for (int ii = 0; ii < SIZEOF_INTEGER; ii++) {
-            in[ii] = (byte) input.read();
+        readFully(input, scratch, 0, SIZEOF_INTEGER);
+        return  (scratch[0] & 0xFF) << 24
+              | (scratch[1] & 0xFF) << 16
+              | (scratch[2] & 0xFF) << 8
+              | (scratch[3] & 0xFF);
+    }
+
+    protected void writeLong(long value, OutputStream output) throws IOException {
+        for (int ii = 0; ii < SIZEOF_LONG; ii++) {
+            scratch[ii] = (byte) (value >> (8 * ii));
         }
-        ByteBuffer bb = ByteBuffer.wrap(in);
-        return bb.getInt();
+        output.write(scratch, 0, SIZEOF_LONG);
+    }
+
+    protected long readLong(InputStream input) throws IOException {
+        readFully(input, scratch, 0, SIZEOF_LONG);
+        long value = 0;
+        for (int ii = SIZEOF_LONG - 1; ii >= 0; ii--) {
+            value = (value << 8) | (scratch[ii] & 0xFF);
+        }
+        return value;
+    }
+
+    protected void writeVarLong(long value, OutputStream output) throws IOException {
+        int len = 0;
+        while ((value & ~0x7FL) != 0) {
+            scratch[len++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        scratch[len++] = (byte) value;
+        output.write(scratch, 0, len);
+    }
+
+    protected long readVarLong(InputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int read = input.read();
+            if (read < 0) {
+                throw new EOFException("Stream ended in the middle of a variable length number");
+            }
+            value |= (long) (read & 0x7F) << shift;
+            if ((read & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Variable length number is too long");
+    }
+
+    protected void writeVarInt(int value, OutputStream output) throws IOException {
+        //NOTE: mask off the sign extension, so negative ints take 5 bytes, not 10
+        writeVarLong(value & 0xFFFFFFFFL, output);
+    }
+
+    protected int readVarInt(InputStream input) throws IOException {
+        return (int) readVarLong(input);
+    }
+
+    /**
+     * Read a variable length count of the items (or bytes) that follow.  Each item
+     * takes at least one byte, so a count that is larger than the bytes left in the
+     * input can only come from a corrupt message.  This is checked before the count
+     * is used to allocate anything.
+     * 
+     * @param input
+     * @return The count
+     * @throws IOException If the count is out of range.
+     */
+    protected int readVarCount(InputStream input) throws IOException {
+        long count = readVarLong(input);
+        if (count < 0 || count > input.available()) {
+            throw new IOException("Count " + count + " is out of range, with "
+                    + input.available() + " bytes left");
+        }
+        return (int) count;
+    }
+
+    /**
+     * Write a UTF-8 string with a variable length prefix.  The prefix is the
+     * length in bytes plus one, so null (0) and empty (1) strings are distinct.
+     * 
+     * @param string
+     * @param output
+     * @throws IOException
+     */
+    protected void writeVarString(String string, OutputStream output) throws IOException {
+        if (string == null) {
+            writeVarInt(0, output);
+        } else {
+            byte[] bytes = string.getBytes(UTF_8);
+            writeVarInt(bytes.length + 1, output);
+            output.write(bytes);
+        }
+    }
+
+    protected String readVarString(InputStream input) throws IOException {
+        int length = readVarCount(input) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        readFully(input, bytes, 0, length);
+        return new String(bytes, UTF_8);
     }
 }
@@ -26,6 +26,7 @@ import java.io.OutputStream;
 import com.lastcrusade.soundstream.model.PlaylistEntry;
 import com.lastcrusade.soundstream.model.SongMetadata;
 import com.lastcrusade.soundstream.net.core.AComplexDataType;
+import com.lastcrusade.soundstream.util.SongFingerprint;
 
 /**
  * An abstract message class for messages that send and receive data.  This class contains
@@ -42,7 +43,7 @@ public abstract class ADataMessage extends AComplexDataType implements IMessage
     }
 
     protected boolean readBoolean(InputStream input) throws IOException {
-        return input.read() != 0;
+        return readUnsignedByte(input) != 0;
     }
 
     protected void writeString(String string, OutputStream output) throws IOException {
@@ -50,96 +51,90 @@ public abstract class ADataMessage extends AComplexDataType implements IMessage
             writeInteger(0, output);
         }
         else {
-            writeBytes(string.getBytes(), output);
+            writeBytes(string.getBytes(UTF_8), output);
         }
     }
 
     protected String readString(InputStream input) throws IOException {
         byte[] bytes = readBytes(input);
         if (bytes != null) {
-            return new String(bytes);
+            return new String(bytes, UTF_8);
         } else {
             return null;
         }
     }
     
-    //TODO: move these into AComplexDataType and use ByteBuffer
-
-    protected void writeLong(long value, OutputStream output) throws IOException {
-        output.write((int)(value         & 0xFF));
-        output.write((int)((value >> 8)  & 0xFF));
-        output.write((int)((value >> 16) & 0xFF));
-        output.write((int)((value >> 24) & 0xFF));
-        output.write((int)((value >> 32) & 0xFF));
-        output.write((int)((value >> 40) & 0xFF));
-        output.write((int)((value >> 48) & 0xFF));
-        output.write((int)((value >> 56) & 0xFF));
-    }
-
-    protected long readLong(InputStream input) throws IOException {
-    	long value = toInt(input.read());
-    	value 	  |= (toInt(input.read()) << 8);
-    	value 	  |= (toInt(input.read()) << 16);
-    	value 	  |= (toInt(input.read()) << 24);
-    	value 	  |= (toInt(input.read()) << 32);
-    	value 	  |= (toInt(input.read()) << 40);
-    	value 	  |= (toInt(input.read()) << 48);
-    	value 	  |= (toInt(input.read()) << 56);
-    	
-    	return value;
+    /**
+     * Add the repeated fields of a song (owner MAC address, artist and album)
+     * to a string table, for use with writeCompactSongMetadata.
+     * 
+     * @param metadata
+     * @param table
+     */
+    protected void addToStringTable(SongMetadata metadata, StringTable table) {
+        table.add(metadata.getMacAddress());
+        table.add(metadata.getArtist());
+        table.add(metadata.getAlbum());
     }
 
     /**
-     * Convert an unsigned byte read from an input stream (held in an int) into
-     * an unsigned number.
-     * 
-     * This is because Java does not have unsigned types, and so bytes that
-     * are > 127 will come in as negative and F everything up.
+     * Write song metadata in a compact form, for messages that carry many songs.
+     * Numbers are written as variable length numbers, and the repeated fields
+     * are written as indices into a string table that is sent with the message.
+     * The fingerprint is a hash, and would not get any shorter as a variable
+     * length number, so it is written in full after a flag that says if it's known.
      * 
-     * @param read
-     * @return
+     * @param metadata
+     * @param table A table that holds the fields added by addToStringTable
+     * @param output
+     * @throws IOException
      */
-    private int toInt(int read) {
-        return (read & 0xFF);
+    protected void writeCompactSongMetadata(SongMetadata metadata, StringTable table, OutputStream output) throws IOException {
+        writeVarLong(  metadata.getId(),                        output);
+        writeVarString(metadata.getTitle(),                     output);
+        writeVarInt(   table.indexOf(metadata.getArtist()),     output);
+        writeVarInt(   table.indexOf(metadata.getAlbum()),      output);
+        writeVarLong(  metadata.getFileSize(),                  output);
+        writeVarInt(   table.indexOf(metadata.getMacAddress()), output);
+        boolean fingerprinted = metadata.getFingerprint() != SongFingerprint.NONE;
+        writeBoolean(fingerprinted, output);
+        if (fingerprinted) {
+            writeLong(metadata.getFingerprint(), output);
+        }
     }
 
-    protected void writeSongMetadata(SongMetadata metadata, OutputStream output) throws IOException{
-        writeLong(  metadata.getId(),         output);
-        writeString(metadata.getTitle(),      output);
-        writeString(metadata.getArtist(),     output);
-        writeString(metadata.getAlbum(),      output);
-        writeLong(  metadata.getFileSize(),   output);
-        writeString(metadata.getMacAddress(), output);
+    protected SongMetadata readCompactSongMetadata(StringTable table, InputStream input) throws IOException {
+        long id           = readVarLong(input);
+        String title      = readVarString(input);
+        String artist     = table.get(readVarInt(input));
+        String album      = table.get(readVarInt(input));
+        long fileSize     = readVarLong(input);
+        String macAddress = table.get(readVarInt(input));
+        SongMetadata song = new SongMetadata(id, title, artist, album, fileSize, macAddress);
+        if (readBoolean(input)) {
+            song.setFingerprint(readLong(input));
+        }
+        return song;
     }
 
-    protected SongMetadata readSongMetadata(InputStream input) throws IOException{
-        long id           = readLong(input);
-        String title      = readString(input);
-        String artist     = readString(input);
-        String album      = readString(input);
-        long fileSize     = readLong(input);
-        String macAddress = readString(input);
-        return new SongMetadata(id, title, artist, album, fileSize, macAddress);
-    }
-    
-    protected void writePlaylistEntry(PlaylistEntry entrydata, OutputStream output) throws IOException{
-        writeSongMetadata(entrydata, output);
-        writeBoolean(     entrydata.isLoaded(),    output);
-        writeBoolean(     entrydata.isPlayed(),    output);
-        writeString(      entrydata.getFilePath(), output);
-        writeInteger(     entrydata.getEntryId(),    output);
+    protected void writeCompactPlaylistEntry(PlaylistEntry entry, StringTable table, OutputStream output) throws IOException {
+        writeCompactSongMetadata(entry, table, output);
+        //pack the flags into one byte
+        output.write((entry.isLoaded() ? 1 : 0) | (entry.isPlayed() ? 2 : 0));
+        writeVarString(entry.getFilePath(), output);
+        writeVarInt(   entry.getEntryId(),  output);
     }
-    
-    protected PlaylistEntry readPlaylistEntry(InputStream input) throws IOException{
-        SongMetadata song = readSongMetadata(input);
-        PlaylistEntry entry = new PlaylistEntry(
+
+    protected PlaylistEntry readCompactPlaylistEntry(StringTable table, InputStream input) throws IOException {
+        SongMetadata song = readCompactSongMetadata(table, input);
+        int flags = readUnsignedByte(input);
+        return new PlaylistEntry(
                 song,
-                readBoolean(input),
-                readBoolean(input),
-                readString(input),
-                readInteger(input)
+                (flags & 1) != 0,
+                (flags & 2) != 0,
+                readVarString(input),
+                readVarInt(input)
         );
-        return entry;
     }
 
     protected void writeBytes(byte[] bytes, OutputStream output) throws IOException {
@@ -154,10 +149,13 @@ public abstract class ADataMessage extends AComplexDataType implements IMessage
 
     protected byte[] readBytes(InputStream input) throws IOException {
         int length = readInteger(input);
-        //TODO: should put an upper bound here, and use a ByteArrayOutputStream to accumulate bytes
+        if (length > input.available()) {
+            throw new IOException("Length " + length + " is out of range, with "
+                    + input.available() + " bytes left");
+        }
         if(length > 0) {
             byte[] buffer = new byte[length];
-            input.read(buffer, 0, length);
+            readFully(input, buffer, 0, length);
             return buffer;
         }
         else {
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net.message;
+
+/**
+ * A file message that only transmits part of its file.  The sender
+ * reads length bytes starting at offset, and the receiver gets a file
+ * that holds just those bytes.  The offset is carried in the message
+ * so the receiver knows where the bytes belong in the whole file.
+ *
+ */
+public interface IFileRangeMessage extends IFileMessage {
+
+    /**
+     * Used as the file length to send everything from the offset to the
+     * end of the file.
+     */
+    public static final long TO_END_OF_FILE = -1;
+
+    public long getFileOffset();
+
+    public long getFileLength();
+}
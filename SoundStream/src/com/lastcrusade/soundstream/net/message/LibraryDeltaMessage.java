@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * A message sent from the host to the guests that describes a change to
+ * the library for one owner (identified by MAC address).  The change either
+ * adds or replaces songs for that owner, or (if replace is set) removes all
+ * of that owner's songs before adding the songs in the message.  Removing
+ * an owner from the library is a replace with no songs.
+ * 
+ * Each delta carries a sequence number, assigned by the host.  A guest that
+ * receives a delta out of sequence must request a full snapshot of the library
+ * (see RequestLibraryMessage and LibraryMessage).
+ * 
+ * A guest also sends changes to its own songs to the host (e.g. once its songs
+ * are fingerprinted).  These carry no sequence number (LibraryMessage.NO_SEQUENCE).
+ * 
+ */
+public class LibraryDeltaMessage extends ADataMessage {
+
+    private int     sequence;
+    private String  macAddress;
+    private boolean replace;
+    private ArrayList<SongMetadata> songs = new ArrayList<SongMetadata>();
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    LibraryDeltaMessage() {
+    }
+
+    public LibraryDeltaMessage(int sequence, String macAddress, boolean replace, List<SongMetadata> songs) {
+        this.sequence   = sequence;
+        this.macAddress = macAddress;
+        this.replace    = replace;
+        this.songs.addAll(songs);
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        this.sequence   = readVarInt(input);
+        this.macAddress = readVarString(input);
+        this.replace    = readBoolean(input);
+        StringTable table = new StringTable();
+        table.deserialize(input);
+        int count = readVarCount(input);
+        for (int i = 0; i < count; i++) {
+            songs.add(readCompactSongMetadata(table, input));
+        }
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeVarInt(   this.sequence,   output);
+        writeVarString(this.macAddress, output);
+        writeBoolean(  this.replace,    output);
+        StringTable table = new StringTable();
+        for (SongMetadata song : songs) {
+            addToStringTable(song, table);
+        }
+        table.serialize(output);
+        writeVarInt(songs.size(), output);
+        for (SongMetadata song : songs) {
+            writeCompactSongMetadata(song, table, output);
+        }
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public String getMacAddress() {
+        return macAddress;
+    }
+
+    public boolean isReplace() {
+        return replace;
+    }
+
+    //This is because you can pass an ArrayList of parcelables but not a List
+    public ArrayList<SongMetadata> getSongs() {
+        return songs;
+    }
+}
@@ -35,6 +35,15 @@ public class LibraryMessage extends ADataMessage {
 	// bundle an ArrayList of parcelables and that functionality doesnt extend
 	// to the interface.
 	private ArrayList<SongMetadata> library = new ArrayList<SongMetadata>();
+
+	/**
+	 * The library sequence number, used when the host sends a snapshot of the
+	 * library to a guest (see LibraryDeltaMessage).  A guest sending its own
+	 * library to the host uses NO_SEQUENCE.
+	 */
+	public static final int NO_SEQUENCE = -1;
+
+	private int sequence = NO_SEQUENCE;
 	
 	/**
 	 * Default constructor required for Messenger, use the other one though
@@ -42,26 +51,49 @@ public class LibraryMessage extends ADataMessage {
 	public LibraryMessage() {}
 	
 	public LibraryMessage(List<SongMetadata> metadata) {
+		this(metadata, NO_SEQUENCE);
+	}
+
+	public LibraryMessage(List<SongMetadata> metadata, int sequence) {
 		this.library.addAll(metadata);
+		this.sequence = sequence;
 	}
 
+	/**
+	 * The library is sent with a string table, so each distinct owner, artist and album
+	 * is sent once (see ADataMessage#writeCompactSongMetadata).
+	 */
 	@Override
 	public void deserialize(InputStream input) throws IOException {
-		int librarySize = readInteger(input);
-		for(int i = 0; i < librarySize; i++) {			
-			library.add(readSongMetadata(input));
+	    //NOTE: offset by one, so NO_SEQUENCE is sent as 0
+	    this.sequence = readVarInt(input) - 1;
+	    StringTable table = new StringTable();
+	    table.deserialize(input);
+		int librarySize = readVarCount(input);
+		for(int i = 0; i < librarySize; i++) {
+			library.add(readCompactSongMetadata(table, input));
 		}
 	}
 
 	@Override
 	public void serialize(OutputStream output) throws IOException {
-		writeInteger(library.size(), output);
+	    writeVarInt(this.sequence + 1, output);
+	    StringTable table = new StringTable();
+	    for(SongMetadata metadata : library) {
+	        addToStringTable(metadata, table);
+	    }
+	    table.serialize(output);
+		writeVarInt(library.size(), output);
 		for(SongMetadata metadata : library) {
-		    writeSongMetadata(metadata, output);
+		    writeCompactSongMetadata(metadata, table, output);
 		}
 	}
 
 	public ArrayList<SongMetadata> getLibrary() {
 		return library;
 	}
+
+	public int getSequence() {
+		return sequence;
+	}
 }
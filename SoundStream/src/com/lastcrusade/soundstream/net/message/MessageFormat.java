@@ -22,11 +22,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.util.Log;
 
 import com.lastcrusade.soundstream.net.core.AComplexDataType;
 import com.lastcrusade.soundstream.net.core.ISerializable;
+import com.lastcrusade.soundstream.net.wire.IncompatibleVersionException;
 import com.lastcrusade.soundstream.net.wire.MessageNotCompleteException;
 import com.lastcrusade.soundstream.util.LogUtil;
 
@@ -34,9 +37,22 @@ import com.lastcrusade.soundstream.util.LogUtil;
  * A format for all messages.  All messages consists of:
  *  integer length of the message, not including the length (using java.nio.ByteBuffer, size defined by {@link AComplexDataType#SIZEOF_INTEGER})
  *  integer byte messenger version (size defined by {@link AComplexDataType#SIZEOF_INTEGER})
- *  class name (in bytes)
- *  \n character to terminate the class name
+ *  message type, which depends on the low 16 bits of the version field:
+ *    1: class name (in bytes), and a \n character to terminate the class name
+ *    2: one byte message type id (see {@link MessageRegistry})
  *  n bytes of message payload
+ *
+ * The low 16 bits of the version field hold the version of this message, and the high
+ * 16 bits hold the messenger version of the sender (or 0 if the sender predates this,
+ * in which case it only understands version 1).  This lets a Messenger start out
+ * with version 1 messages and switch to the compact version 2 messages once it knows
+ * the remote side understands them.  Messages that are not in the MessageRegistry are
+ * always sent as version 1.
+ *
+ * The payloads of the library, playlist and song transfer messages changed to a
+ * compact encoding (string tables and varints) in MESSENGER_VERSION_COMPACT, and we
+ * do not keep the old encodings.  A message from a sender below that version cannot
+ * be read, so it is rejected with an IncompatibleVersionException.
 
  * @author Jesse Rosalia
  *
@@ -44,11 +60,61 @@ import com.lastcrusade.soundstream.util.LogUtil;
 public class MessageFormat extends AComplexDataType implements ISerializable {
 
     private static final String TAG = MessageFormat.class.getSimpleName();
-    private static final int MESSENGER_VERSION = 1;
+
+    /**
+     * Messages identified by class name.
+     */
+    public static final int MESSENGER_VERSION_CLASS_NAME = 1;
+
+    /**
+     * Messages identified by a type id from the MessageRegistry.
+     */
+    public static final int MESSENGER_VERSION_TYPE_ID    = 2;
+
+    /**
+     * Messages identified by a type id, with compact payloads.  This is the lowest
+     * version we can talk to.
+     */
+    public static final int MESSENGER_VERSION_COMPACT = 3;
+
+    /**
+     * The version of this messenger.
+     */
+    public static final int MESSENGER_VERSION = MESSENGER_VERSION_COMPACT;
+
+    private static final int VERSION_MASK  = 0xFFFF;
+    private static final int VERSION_SHIFT = 16;
     private static final char END_OF_CLASS_CHAR = '\n';
 
+    /**
+     * Largest message body buffer we'll keep around between calls to serialize.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A ByteArrayOutputStream that exposes its capacity, so we can decide
+     * whether to keep it.
+     */
+    private static class MessageBuffer extends ByteArrayOutputStream {
+        public int capacity() {
+            return buf.length;
+        }
+    }
+
+    private static final ThreadLocal<MessageBuffer> MESSAGE_BUFFER = new ThreadLocal<MessageBuffer>() {
+        @Override
+        protected MessageBuffer initialValue() {
+            return new MessageBuffer();
+        }
+    };
+
+    private static final Map<Class<?>, byte[]> classNameBytes = new HashMap<Class<?>, byte[]>();
+
     private IMessage message = null;
     private int      length  = 0;
+    private int      version = MESSENGER_VERSION_CLASS_NAME;
+    private int      typeId  = MessageRegistry.NO_TYPE;
+    private int      remoteVersion = 0;
 
     /**
      * Default constructor required because this is serializable
@@ -57,58 +123,121 @@ public class MessageFormat extends AComplexDataType implements ISerializable {
     }
 
     /**
-     * @param size
-     * @param class1
+     * @param message
      */
     public MessageFormat(IMessage message) {
+        this(message, MESSENGER_VERSION_CLASS_NAME);
+    }
+
+    /**
+     * @param message
+     * @param version The version to use to send this message.  If the message
+     * is not registered, this will fall back to MESSENGER_VERSION_CLASS_NAME.
+     */
+    public MessageFormat(IMessage message, int version) {
         this.message = message;
+        this.typeId  = MessageRegistry.getTypeId(message.getClass());
+        this.version = version >= MESSENGER_VERSION_TYPE_ID && this.typeId != MessageRegistry.NO_TYPE
+                ? MESSENGER_VERSION_TYPE_ID : MESSENGER_VERSION_CLASS_NAME;
     }
 
     @Override
-    public void deserialize(InputStream input) throws IOException, MessageNotCompleteException {
-        //we assume that there is at least a length in the input stream
-        if (this.length == 0) {
-            this.length = readInteger(input);
+    public void deserialize(InputStream input) throws IOException {
+        //the caller waits for the whole message before deserializing (see WireRecvOutputStream)
+        this.length = readInteger(input);
+        if (this.length < 0 || this.length > input.available()) {
+            throw new IOException("Message length " + this.length + " is out of range, with "
+                    + input.available() + " bytes left");
         }
 
-        //if we havent read in the whole message, throw an exception
-        if (this.length > input.available()) {
-            throw new MessageNotCompleteException();
+        int versionField   = readInteger(input);
+        this.version       = versionField & VERSION_MASK;
+        this.remoteVersion = versionField >>> VERSION_SHIFT;
+        if (this.remoteVersion < MESSENGER_VERSION_COMPACT) {
+            //the payload is in an encoding we no longer read
+            throw new IncompatibleVersionException(this.remoteVersion, MESSENGER_VERSION_COMPACT);
         }
 
-        @SuppressWarnings("unused")
-        int messengerVersion = readInteger(input);
-
-        //TODO: actually do something with the messengerVersion
-        byte[] classBytes = readBytesUntil(input, END_OF_CLASS_CHAR);
-        //REVIEW: character encoding issues may arise, but since we're controlling the class names
-        // we should be able to decide how to handle these
-        String messageName = new String(classBytes);
-
-        IMessage message = instantiateMessage(messageName);
-        message.deserialize(input);
+        IMessage message;
+        if (this.version == MESSENGER_VERSION_TYPE_ID) {
+            this.typeId = readUnsignedByte(input);
+            message = MessageRegistry.newMessage(this.typeId);
+            if (message == null) {
+                throw new RuntimeException("Unknown message type " + this.typeId + "...this is a critical error.");
+            }
+        } else {
+            byte[] classBytes = readBytesUntil(input, END_OF_CLASS_CHAR);
+            //REVIEW: character encoding issues may arise, but since we're controlling the class names
+            // we should be able to decide how to handle these
+            String messageName = new String(classBytes);
+            //use the registered factory if we have one, and fall back to reflection if not
+            this.typeId = MessageRegistry.getTypeId(messageName);
+            message = this.typeId != MessageRegistry.NO_TYPE
+                    ? MessageRegistry.newMessage(this.typeId)
+                    : instantiateMessage(messageName);
+        }
+        try {
+            message.deserialize(input);
+        } catch (MessageNotCompleteException e) {
+            //the whole message is here, so it's truncated
+            throw new IOException("Truncated " + message.getClass().getSimpleName(), e);
+        }
         this.message = message;
     }
 
     @Override
     public void serialize(OutputStream output) throws IOException {
-        //serialize the message into a separate buffer
-        ByteArrayOutputStream messageBuffer = new ByteArrayOutputStream();
-        message.serialize(messageBuffer);
-        
-        //build the output message
-        byte[] classBytes = message.getClass().getCanonicalName().getBytes();
-        //write the length
-        writeInteger(messageBuffer.size() + classBytes.length + SIZEOF_INTEGER + 1, output);
-        writeInteger(MESSENGER_VERSION, output);
-        //write the class name and end of class char
-        // (this is used to reconstruct the message on the remote side)
-        writeBytes(classBytes, output);
-        writeBytes(new byte[] {END_OF_CLASS_CHAR}, output);
-        //write the message
-        writeBytes(messageBuffer.toByteArray(), output);        
+        //serialize the message into a separate (reused) buffer, since we need the length up front
+        MessageBuffer messageBuffer = MESSAGE_BUFFER.get();
+        try {
+            message.serialize(messageBuffer);
+
+            int versionField = (MESSENGER_VERSION << VERSION_SHIFT) | this.version;
+            if (this.version == MESSENGER_VERSION_TYPE_ID) {
+                //write the length, version and message type id
+                writeInteger(messageBuffer.size() + SIZEOF_INTEGER + 1, output);
+                writeInteger(versionField, output);
+                output.write(this.typeId);
+            } else {
+                //build the output message
+                byte[] classBytes = getClassNameBytes(message.getClass());
+                //write the length
+                writeInteger(messageBuffer.size() + classBytes.length + SIZEOF_INTEGER + 1, output);
+                writeInteger(versionField, output);
+                //write the class name and end of class char
+                // (this is used to reconstruct the message on the remote side)
+                writeBytes(classBytes, output);
+                output.write(END_OF_CLASS_CHAR);
+            }
+            //write the message
+            messageBuffer.writeTo(output);
+        } finally {
+            messageBuffer.reset();
+            //don't hold on to very large buffers (e.g. from a large library message)
+            if (messageBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                MESSAGE_BUFFER.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the class name bytes for a message class.  These are computed once
+     * per class and cached.
+     * 
+     * @param messageClass
+     * @return
+     */
+    private static byte[] getClassNameBytes(Class<?> messageClass) {
+        synchronized (classNameBytes) {
+            byte[] bytes = classNameBytes.get(messageClass);
+            if (bytes == null) {
+                bytes = messageClass.getCanonicalName().getBytes();
+                classNameBytes.put(messageClass, bytes);
+            }
+            return bytes;
+        }
     }
-    
+
     /**
      * @return the message
      */
@@ -116,6 +245,28 @@ public class MessageFormat extends AComplexDataType implements ISerializable {
         return message;
     }
 
+    /**
+     * @return The registered type id of the message, or MessageRegistry.NO_TYPE
+     * if the message is not registered.
+     */
+    public int getTypeId() {
+        return typeId;
+    }
+
+    /**
+     * @return The version of this message
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The messenger version of the sender of a received message.
+     */
+    public int getRemoteVersion() {
+        return remoteVersion;
+    }
+
     /**
      * @param messageName
      * @return 
@@ -141,8 +292,8 @@ public class MessageFormat extends AComplexDataType implements ISerializable {
      */
     private byte[] readBytesUntil(InputStream input, char endChar) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte read;
-        while ((read = (byte) input.read()) != endChar) {
+        int read;
+        while ((read = readUnsignedByte(input)) != endChar) {
             baos.write(read);
         }
         return baos.toByteArray();
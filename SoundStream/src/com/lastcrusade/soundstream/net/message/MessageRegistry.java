@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A registry of compact, numeric message types.  Each message type that is sent
+ * across the wire is assigned a fixed id and a factory to create new instances,
+ * so receiving a message does not require looking up a class by name.
+ * 
+ * NOTE: these ids are part of the wire protocol.  Never reuse or renumber an id;
+ * new messages must be given a new id.
+ * 
+ */
+public final class MessageRegistry {
+
+    /**
+     * Creates new, empty instances of a message type, to be deserialized into.
+     */
+    public interface IMessageFactory {
+        public IMessage newMessage();
+    }
+
+    /**
+     * The type id returned for messages that are not registered.
+     */
+    public static final int NO_TYPE = 0;
+
+    /**
+     * The largest type id supported (type ids are sent as one unsigned byte).
+     */
+    public static final int MAX_TYPE = 0xFF;
+
+    private static IMessageFactory[] factories = new IMessageFactory[1];
+    private static final Map<Class<? extends IMessage>, Integer> typeIds = new HashMap<Class<? extends IMessage>, Integer>();
+    private static final Map<String, Integer> typeIdsByName = new HashMap<String, Integer>();
+
+    static {
+        register(1, PlayMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new PlayMessage(); }
+        });
+        register(2, PauseMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new PauseMessage(); }
+        });
+        register(3, SkipMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new SkipMessage(); }
+        });
+        register(4, PlayStatusMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new PlayStatusMessage(); }
+        });
+        register(5, LibraryMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new LibraryMessage(); }
+        });
+        register(6, PlaylistMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new PlaylistMessage(); }
+        });
+        register(7, AddToPlaylistMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new AddToPlaylistMessage(); }
+        });
+        register(8, RemoveFromPlaylistMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new RemoveFromPlaylistMessage(); }
+        });
+        register(9, BumpSongOnPlaylistMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new BumpSongOnPlaylistMessage(); }
+        });
+        register(10, SongStatusMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new SongStatusMessage(); }
+        });
+        register(11, RequestSongMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new RequestSongMessage(); }
+        });
+        register(12, TransferSongMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new TransferSongMessage(); }
+        });
+        register(13, UserListMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new UserListMessage(); }
+        });
+        register(14, FindNewGuestsMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new FindNewGuestsMessage(); }
+        });
+        register(15, FoundGuestsMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new FoundGuestsMessage(); }
+        });
+        register(16, ConnectGuestsMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new ConnectGuestsMessage(); }
+        });
+        register(17, LibraryDeltaMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new LibraryDeltaMessage(); }
+        });
+        register(18, RequestLibraryMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new RequestLibraryMessage(); }
+        });
+        register(19, PlaylistPatchMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new PlaylistPatchMessage(); }
+        });
+        register(20, RequestPlaylistMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new RequestPlaylistMessage(); }
+        });
+        register(21, CancelTransferMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new CancelTransferMessage(); }
+        });
+        register(22, RequestSongBatchMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new RequestSongBatchMessage(); }
+        });
+        register(23, TransferCancelledMessage.class, new IMessageFactory() {
+            public IMessage newMessage() { return new TransferCancelledMessage(); }
+        });
+    }
+
+    private MessageRegistry() {
+        //not instantiable
+    }
+
+    private static void register(int typeId, Class<? extends IMessage> messageClass, IMessageFactory factory) {
+        if (typeId <= NO_TYPE || typeId > MAX_TYPE) {
+            throw new IllegalArgumentException("Invalid message type id " + typeId + " for " + messageClass.getSimpleName());
+        }
+        if (typeId < factories.length && factories[typeId] != null) {
+            throw new IllegalArgumentException("Message type id " + typeId + " is already registered");
+        }
+        if (typeId >= factories.length) {
+            IMessageFactory[] newFactories = new IMessageFactory[typeId + 1];
+            System.arraycopy(factories, 0, newFactories, 0, factories.length);
+            factories = newFactories;
+        }
+        factories[typeId] = factory;
+        typeIds.put(messageClass, typeId);
+        typeIdsByName.put(messageClass.getCanonicalName(), typeId);
+    }
+
+    /**
+     * @param messageClass
+     * @return The type id for the message class, or NO_TYPE if the class is not registered.
+     */
+    public static int getTypeId(Class<? extends IMessage> messageClass) {
+        Integer typeId = typeIds.get(messageClass);
+        return typeId != null ? typeId : NO_TYPE;
+    }
+
+    /**
+     * @param className The canonical class name of a message
+     * @return The type id for the message class, or NO_TYPE if the class is not registered.
+     */
+    public static int getTypeId(String className) {
+        Integer typeId = typeIdsByName.get(className);
+        return typeId != null ? typeId : NO_TYPE;
+    }
+
+    /**
+     * Create a new, empty message of the specified type.
+     * 
+     * @param typeId
+     * @return The new message, or null if the type id is not registered.
+     */
+    public static IMessage newMessage(int typeId) {
+        if (typeId <= NO_TYPE || typeId >= factories.length || factories[typeId] == null) {
+            return null;
+        }
+        return factories[typeId].newMessage();
+    }
+
+    /**
+     * @return The largest type id currently registered.  This can be used to size
+     * arrays indexed by type id.
+     */
+    public static int getMaxTypeId() {
+        return factories.length - 1;
+    }
+}
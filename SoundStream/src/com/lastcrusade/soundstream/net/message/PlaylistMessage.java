@@ -33,6 +33,14 @@ public class PlaylistMessage extends ADataMessage {
 	
     private ArrayList<PlaylistEntry> songsToPlay = new ArrayList<PlaylistEntry>();
 
+    /**
+     * The playlist version, used to order this snapshot with the
+     * playlist patches sent by the host (see PlaylistPatchMessage).
+     */
+    public static final int NO_VERSION = -1;
+
+    private int version = NO_VERSION;
+
     /**
      * Default constructor, required for Messenger.  All other users should use
      * the other constructor.
@@ -41,24 +49,39 @@ public class PlaylistMessage extends ADataMessage {
     public PlaylistMessage() {}
 
     public PlaylistMessage(List<? extends PlaylistEntry> songsToPlay) {
+        this(songsToPlay, NO_VERSION);
+    }
+
+    public PlaylistMessage(List<? extends PlaylistEntry> songsToPlay, int version) {
         this.songsToPlay = new ArrayList<PlaylistEntry>(songsToPlay);
+        this.version     = version;
     }
 	
 	@Override
 	public void deserialize(InputStream input) throws IOException {
-	    int playlistSize = readInteger(input);
+	    //NOTE: offset by one, so NO_VERSION is sent as 0
+	    this.version = readVarInt(input) - 1;
+	    StringTable table = new StringTable();
+	    table.deserialize(input);
+	    int playlistSize = readVarCount(input);
 	    for(int i = 0; i < playlistSize; i++) {
-	        PlaylistEntry entry = readPlaylistEntry(input);
+	        PlaylistEntry entry = readCompactPlaylistEntry(table, input);
 	        songsToPlay.add(entry);
         }
 	}
 	
 	@Override
     public void serialize(OutputStream output) throws IOException {
-	    writeInteger(songsToPlay.size(), output);
+	    writeVarInt(this.version + 1, output);
+	    StringTable table = new StringTable();
+	    for(PlaylistEntry entry: songsToPlay) {
+	        addToStringTable(entry, table);
+	    }
+	    table.serialize(output);
+	    writeVarInt(songsToPlay.size(), output);
 		
 	    for(PlaylistEntry entry: songsToPlay) {
-	        writePlaylistEntry(entry, output);
+	        writeCompactPlaylistEntry(entry, table, output);
 	    }
 	}
 
@@ -66,4 +89,8 @@ public class PlaylistMessage extends ADataMessage {
 	public ArrayList<PlaylistEntry> getSongsToPlay() {
         return songsToPlay;
     }
+
+    public int getVersion() {
+        return version;
+    }
 }
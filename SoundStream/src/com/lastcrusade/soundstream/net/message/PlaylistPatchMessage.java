@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.lastcrusade.soundstream.model.PlaylistEntry;
+import com.lastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * A message sent from the host to the guests that describes a change to
+ * the playlist, as a list of patch operations.  Each operation refers to
+ * an entry by its key (owner MAC address, song id and entry id):
+ * 
+ * OP_INSERT inserts the entry at a position in the playlist.
+ * OP_REMOVE removes the entry.
+ * OP_MOVE   moves the entry to a position in the playlist.
+ * OP_STATUS updates the entry's loaded and played flags.
+ * 
+ * Positions refer to the whole playlist (played songs and songs to play).
+ * Only inserts carry the full song metadata.
+ * 
+ * Each patch carries a version number, assigned by the host.  A guest that
+ * receives a patch out of sequence must request a full snapshot of the playlist
+ * (see RequestPlaylistMessage and PlaylistMessage).
+ * 
+ */
+public class PlaylistPatchMessage extends ADataMessage {
+
+    public static final int OP_INSERT = 1;
+    public static final int OP_REMOVE = 2;
+    public static final int OP_MOVE   = 3;
+    public static final int OP_STATUS = 4;
+
+    private int version;
+    private int[] ops       = new int[0];
+    private int[] positions = new int[0];
+    private ArrayList<PlaylistEntry> entries = new ArrayList<PlaylistEntry>();
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    PlaylistPatchMessage() {
+    }
+
+    /**
+     * 
+     * @param version
+     * @param ops The operation for each entry
+     * @param positions The position for each entry (used by OP_INSERT and OP_MOVE)
+     * @param entries The entries to patch
+     */
+    public PlaylistPatchMessage(int version, int[] ops, int[] positions, List<? extends PlaylistEntry> entries) {
+        if (ops.length != entries.size() || positions.length != entries.size()) {
+            throw new IllegalArgumentException("Each entry must have one operation and one position");
+        }
+        this.version   = version;
+        this.ops       = Arrays.copyOf(ops, ops.length);
+        this.positions = Arrays.copyOf(positions, positions.length);
+        this.entries.addAll(entries);
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        this.version = readVarInt(input);
+        StringTable table = new StringTable();
+        table.deserialize(input);
+        int count = readVarCount(input);
+        this.ops       = new int[count];
+        this.positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            int op = readUnsignedByte(input);
+            PlaylistEntry entry;
+            switch (op) {
+            case OP_INSERT:
+                positions[i] = readVarInt(input);
+                entry = readCompactPlaylistEntry(table, input);
+                break;
+            case OP_REMOVE:
+                entry = readEntryKey(table, input);
+                break;
+            case OP_MOVE:
+                entry = readEntryKey(table, input);
+                positions[i] = readVarInt(input);
+                break;
+            case OP_STATUS:
+                entry = readEntryKey(table, input);
+                int flags = readUnsignedByte(input);
+                entry.setLoaded((flags & 1) != 0);
+                entry.setPlayed((flags & 2) != 0);
+                break;
+            default:
+                throw new IOException("Unknown playlist patch operation " + op);
+            }
+            ops[i] = op;
+            entries.add(entry);
+        }
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeVarInt(this.version, output);
+        StringTable table = new StringTable();
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == OP_INSERT) {
+                addToStringTable(entries.get(i), table);
+            } else {
+                table.add(entries.get(i).getMacAddress());
+            }
+        }
+        table.serialize(output);
+        writeVarInt(ops.length, output);
+        for (int i = 0; i < ops.length; i++) {
+            PlaylistEntry entry = entries.get(i);
+            output.write(ops[i]);
+            switch (ops[i]) {
+            case OP_INSERT:
+                writeVarInt(positions[i], output);
+                writeCompactPlaylistEntry(entry, table, output);
+                break;
+            case OP_REMOVE:
+                writeEntryKey(entry, table, output);
+                break;
+            case OP_MOVE:
+                writeEntryKey(entry, table, output);
+                writeVarInt(positions[i], output);
+                break;
+            case OP_STATUS:
+                writeEntryKey(entry, table, output);
+                output.write((entry.isLoaded() ? 1 : 0) | (entry.isPlayed() ? 2 : 0));
+                break;
+            default:
+                throw new IOException("Unknown playlist patch operation " + ops[i]);
+            }
+        }
+    }
+
+    private void writeEntryKey(PlaylistEntry entry, StringTable table, OutputStream output) throws IOException {
+        writeVarInt( table.indexOf(entry.getMacAddress()), output);
+        writeVarLong(entry.getId(),                        output);
+        writeVarInt( entry.getEntryId(),                   output);
+    }
+
+    private PlaylistEntry readEntryKey(StringTable table, InputStream input) throws IOException {
+        String macAddress = table.get(readVarInt(input));
+        long   songId     = readVarLong(input);
+        int    entryId    = readVarInt(input);
+        SongMetadata song = new SongMetadata();
+        song.setMacAddress(macAddress);
+        song.setId(songId);
+        return new PlaylistEntry(song, false, false, null, entryId);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int[] getOps() {
+        return ops;
+    }
+
+    public int[] getPositions() {
+        return positions;
+    }
+
+    //This is because you can pass an ArrayList of parcelables but not a List
+    public ArrayList<PlaylistEntry> getEntries() {
+        return entries;
+    }
+}
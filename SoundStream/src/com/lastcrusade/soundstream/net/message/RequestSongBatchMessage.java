@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Request several songs from a guest at once.  Each request has a song id, a
+ * transfer id (see RequestSongMessage), a priority and a byte range.  The
+ * guest looks up all of the songs together, and sends them in priority order
+ * (lowest first, and in request order for equal priorities).
+ * 
+ */
+public class RequestSongBatchMessage extends ADataMessage {
+
+    private long[] songIds     = new long[0];
+    private long[] transferIds = new long[0];
+    private int[]  priorities  = new int[0];
+    private long[] fileOffsets = new long[0];
+    private long[] fileLengths = new long[0];
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    RequestSongBatchMessage() {
+    }
+
+    /**
+     * 
+     * @param songIds
+     * @param transferIds The transfer id for each song, which is sent back with the song
+     * @param priorities The priority for each song (lowest is sent first)
+     * @param fileOffsets The first byte to send for each song
+     * @param fileLengths The number of bytes to send for each song, or IFileRangeMessage.TO_END_OF_FILE
+     */
+    public RequestSongBatchMessage(long[] songIds, long[] transferIds, int[] priorities,
+            long[] fileOffsets, long[] fileLengths) {
+        int count = songIds.length;
+        if (transferIds.length != count || priorities.length != count
+                || fileOffsets.length != count || fileLengths.length != count) {
+            throw new IllegalArgumentException("Each song must have a transfer id, priority and byte range");
+        }
+        this.songIds     = Arrays.copyOf(songIds,     count);
+        this.transferIds = Arrays.copyOf(transferIds, count);
+        this.priorities  = Arrays.copyOf(priorities,  count);
+        this.fileOffsets = Arrays.copyOf(fileOffsets, count);
+        this.fileLengths = Arrays.copyOf(fileLengths, count);
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        int count = readVarCount(input);
+        this.songIds     = new long[count];
+        this.transferIds = new long[count];
+        this.priorities  = new int[count];
+        this.fileOffsets = new long[count];
+        this.fileLengths = new long[count];
+        for (int i = 0; i < count; i++) {
+            songIds[i]     = readVarLong(input);
+            transferIds[i] = readVarLong(input);
+            priorities[i]  = readVarInt(input);
+            fileOffsets[i] = readVarLong(input);
+            fileLengths[i] = readVarLong(input) - 1;
+        }
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeVarInt(songIds.length, output);
+        for (int i = 0; i < songIds.length; i++) {
+            writeVarLong(songIds[i],     output);
+            writeVarLong(transferIds[i], output);
+            writeVarInt( priorities[i],  output);
+            writeVarLong(fileOffsets[i], output);
+            //written plus one, so TO_END_OF_FILE takes one byte
+            writeVarLong(fileLengths[i] + 1, output);
+        }
+    }
+
+    public long[] getSongIds() {
+        return songIds;
+    }
+
+    public long[] getTransferIds() {
+        return transferIds;
+    }
+
+    public int[] getPriorities() {
+        return priorities;
+    }
+
+    public long[] getFileOffsets() {
+        return fileOffsets;
+    }
+
+    public long[] getFileLengths() {
+        return fileLengths;
+    }
+}
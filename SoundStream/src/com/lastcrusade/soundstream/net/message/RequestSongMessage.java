@@ -25,7 +25,14 @@ import java.io.OutputStream;
 
 public class RequestSongMessage extends ADataMessage {
 
+    /**
+     * Used when a request is not part of a tracked transfer.
+     */
+    public static final long NO_TRANSFER = 0;
+
     private long songId;
+    private long transferId = NO_TRANSFER;
+    private long fileOffset = 0;
     
     /**
      * Default constructor, required for Messenger.  All other users should use
@@ -39,17 +46,43 @@ public class RequestSongMessage extends ADataMessage {
         this.songId = songId;
     }
 
+    /**
+     * Request a song as part of a transfer, starting at fileOffset.  This is used
+     * to resume a transfer that was interrupted.
+     * 
+     * @param songId
+     * @param transferId An id chosen by the requester, which is sent back with the song.
+     * @param fileOffset The first byte to send.
+     */
+    public RequestSongMessage(long songId, long transferId, long fileOffset) {
+        this.songId     = songId;
+        this.transferId = transferId;
+        this.fileOffset = fileOffset;
+    }
+
     @Override
     public void deserialize(InputStream input) throws IOException {
-        this.songId = readLong(input);
+        this.songId     = readLong(input);
+        this.transferId = readVarLong(input);
+        this.fileOffset = readVarLong(input);
     }
 
     @Override
     public void serialize(OutputStream output) throws IOException {
         writeLong(this.songId, output);
+        writeVarLong(this.transferId, output);
+        writeVarLong(this.fileOffset, output);
     }
 
     public long getSongId() {
         return songId;
     }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getFileOffset() {
+        return fileOffset;
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.lastcrusade.soundstream.net.core.AComplexDataType;
+import com.lastcrusade.soundstream.net.core.ISerializable;
+
+/**
+ * A table of distinct strings, sent once at the start of a message so fields that
+ * repeat (such as the owner's MAC address, artist and album) can be written as a
+ * small index into the table instead of the full string.
+ * 
+ * Index 0 always refers to null, and strings are numbered from 1 in the order they
+ * are added.
+ * 
+ */
+public class StringTable extends AComplexDataType implements ISerializable {
+
+    public static final int NULL_INDEX = 0;
+
+    private List<String>         strings = new ArrayList<String>();
+    private Map<String, Integer> indices = new HashMap<String, Integer>();
+
+    /**
+     * Add a string to the table, if it's not already in the table.
+     * 
+     * @param string
+     * @return The index of the string.
+     */
+    public int add(String string) {
+        if (string == null) {
+            return NULL_INDEX;
+        }
+        Integer index = indices.get(string);
+        if (index == null) {
+            strings.add(string);
+            index = strings.size();
+            indices.put(string, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param string
+     * @return The index of the string
+     * @throws IllegalArgumentException if the string was not added to the table
+     */
+    public int indexOf(String string) {
+        if (string == null) {
+            return NULL_INDEX;
+        }
+        Integer index = indices.get(string);
+        if (index == null) {
+            throw new IllegalArgumentException("String '" + string + "' is not in the table");
+        }
+        return index;
+    }
+
+    /**
+     * @param index
+     * @return The string at index, or null for NULL_INDEX
+     * @throws IOException If the index is not in the table (e.g. a corrupt message)
+     */
+    public String get(int index) throws IOException {
+        if (index == NULL_INDEX) {
+            return null;
+        }
+        if (index < 0 || index > strings.size()) {
+            throw new IOException("String table index " + index + " out of range");
+        }
+        return strings.get(index - 1);
+    }
+
+    public int size() {
+        return strings.size();
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        int size = readVarCount(input);
+        strings = new ArrayList<String>();
+        //NOTE: indices are only needed to build a table, not to read one
+        indices.clear();
+        for (int ii = 0; ii < size; ii++) {
+            strings.add(readVarString(input));
+        }
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeVarInt(strings.size(), output);
+        for (String string : strings) {
+            writeVarString(string, output);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Sent by the sender of a transfer in reply to a CancelTransferMessage, once it
+ * has stopped sending the transfer.  Every packet of the transfer was written
+ * before this message, so the receiver can stop watching for the transfer.
+ * 
+ * This is handled by the Messenger, and is not passed on to the message handlers.
+ * 
+ */
+public class TransferCancelledMessage extends ADataMessage {
+
+    private long transferId;
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    TransferCancelledMessage() {
+    }
+
+    public TransferCancelledMessage(long transferId) {
+        this.transferId = transferId;
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        this.transferId = readVarLong(input);
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeVarLong(this.transferId, output);
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+}
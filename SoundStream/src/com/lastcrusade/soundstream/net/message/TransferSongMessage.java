@@ -23,11 +23,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-public class TransferSongMessage extends ADataMessage implements IFileMessage {
+public class TransferSongMessage extends ADataMessage implements IFileRangeMessage, ITransferMessage {
 
     private long   songId;
     private String songFileName;
     private String filePath;
+    private long   fileOffset = 0;
+    private long   fileLength = TO_END_OF_FILE;
+    private long   transferId = RequestSongMessage.NO_TRANSFER;
+    private int[]  checksums  = new int[0];
 
     /**
      * Default constructor, required for Messenger.  All other users should use
@@ -43,16 +47,81 @@ public class TransferSongMessage extends ADataMessage implements IFileMessage {
         this.filePath     = filePath;
     }
 
+    /**
+     * Send only part of the song file, starting at fileOffset.  The
+     * receiver will get a file that holds just those bytes.
+     * 
+     * @param songId
+     * @param songFileName
+     * @param filePath
+     * @param fileOffset
+     * @param fileLength The number of bytes to send, or TO_END_OF_FILE
+     */
+    public TransferSongMessage(long songId, String songFileName, String filePath, long fileOffset, long fileLength) {
+        this(songId, songFileName, filePath);
+        if (fileOffset < 0 || (fileLength < 0 && fileLength != TO_END_OF_FILE)) {
+            throw new IllegalArgumentException("Invalid file range: " + fileOffset + ", " + fileLength);
+        }
+        this.fileOffset = fileOffset;
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * Send the rest of a song file as part of a resumable transfer.
+     * 
+     * @param songId
+     * @param songFileName
+     * @param filePath
+     * @param transferId The transfer id from the RequestSongMessage
+     * @param fileOffset The first byte to send
+     * @param checksums The checksums for every chunk of the whole file (see ChunkChecksums)
+     */
+    public TransferSongMessage(long songId, String songFileName, String filePath,
+            long transferId, long fileOffset, int[] checksums) {
+        this(songId, songFileName, filePath, transferId, fileOffset, TO_END_OF_FILE, checksums);
+    }
+
+    /**
+     * Send part of a song file as part of a resumable transfer.
+     * 
+     * @param songId
+     * @param songFileName
+     * @param filePath
+     * @param transferId The transfer id from the request
+     * @param fileOffset The first byte to send
+     * @param fileLength The number of bytes to send, or TO_END_OF_FILE
+     * @param checksums The checksums for every chunk of the whole file (see ChunkChecksums)
+     */
+    public TransferSongMessage(long songId, String songFileName, String filePath,
+            long transferId, long fileOffset, long fileLength, int[] checksums) {
+        this(songId, songFileName, filePath, fileOffset, fileLength);
+        this.transferId = transferId;
+        this.checksums  = checksums;
+    }
+
     @Override
     public void deserialize(InputStream input) throws IOException {
         this.songId       = super.readLong(input);
         this.songFileName = super.readString(input);
+        this.fileOffset   = super.readVarLong(input);
+        this.transferId   = super.readVarLong(input);
+        this.checksums    = new int[super.readVarCount(input)];
+        for (int ii = 0; ii < this.checksums.length; ii++) {
+            this.checksums[ii] = super.readInteger(input);
+        }
     }
 
     @Override
     public void serialize(OutputStream output) throws IOException {
         super.writeLong(  this.songId, output);
         super.writeString(this.songFileName, output);
+        //the length is not written, as it is sent with the file data
+        super.writeVarLong(this.fileOffset, output);
+        super.writeVarLong(this.transferId, output);
+        super.writeVarInt(this.checksums.length, output);
+        for (int checksum : this.checksums) {
+            super.writeInteger(checksum, output);
+        }
     }
     
     @Override
@@ -64,6 +133,25 @@ public class TransferSongMessage extends ADataMessage implements IFileMessage {
         this.filePath = filePath;
     }
 
+    @Override
+    public long getFileOffset() {
+        return this.fileOffset;
+    }
+
+    @Override
+    public long getFileLength() {
+        return this.fileLength;
+    }
+
+    @Override
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public int[] getChecksums() {
+        return checksums;
+    }
+
     public long getSongId() {
         return songId;
     }
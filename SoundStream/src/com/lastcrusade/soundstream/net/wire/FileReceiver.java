@@ -18,14 +18,14 @@
  */
 package com.lastcrusade.soundstream.net.wire;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.UUID;
 
 import android.util.Log;
@@ -40,6 +40,14 @@ import com.lastcrusade.soundstream.util.LogUtil;
  * Instead, we will receive file data one chunk at a time and will
  * write that data immediately to a temporary file.
  * 
+ * The temporary file is preallocated to the full size of the incoming file,
+ * and data is written through a FileChannel from a small reusable buffer, so
+ * each received byte is copied to disk exactly once.  The receiver of the
+ * message is expected to move the file to its final location with a rename.
+ * 
+ * While the file is being received, it is tracked by an {@link IncomingFile},
+ * so the data that has arrived can be read before the transfer is finished.
+ * 
  * @author Jesse Rosalia
  * 
  */
@@ -53,20 +61,20 @@ public class FileReceiver extends AComplexDataType {
 
     private int fileBytesLeft;
 
-    private OutputStream fileStream;
-    
-    private ByteArrayOutputStream fileBuffer = new ByteArrayOutputStream();
+    private RandomAccessFile file;
+
+    private FileChannel fileChannel;
+
+    private IncomingFile incomingFile;
 
     private byte[] byteBuffer;
-    
+
     /**
-     * Min size in bytes to read in before flushing to file. Used for the
-     * incoming buffer, to avoid frequent writes to disk
-     * 
+     * A view on byteBuffer, used to write to the file channel.
      */
-    private static final int MIN_BYTES_READ_IN = 102400;
+    private ByteBuffer channelBuffer;
 
-    private static final int READ_BUFFER_BYTES = 1024;
+    private static final int READ_BUFFER_BYTES = 8192;
     /**
      * @param message
      * @param tempFolder
@@ -75,7 +83,8 @@ public class FileReceiver extends AComplexDataType {
         this.message = message;
         this.tempFolder = tempFolder;
 
-        this.byteBuffer = new byte[READ_BUFFER_BYTES];
+        this.byteBuffer    = new byte[READ_BUFFER_BYTES];
+        this.channelBuffer = ByteBuffer.wrap(this.byteBuffer);
     }
 
     /**
@@ -86,6 +95,17 @@ public class FileReceiver extends AComplexDataType {
         return new FileInputStream(message.getFilePath());
     }
 
+    /**
+     * Open a read only channel on the file to send.  The caller is responsible
+     * for closing the channel.
+     * 
+     * @return
+     * @throws FileNotFoundException
+     */
+    public FileChannel getFileChannel() throws IOException {
+        return new RandomAccessFile(message.getFilePath(), "r").getChannel();
+    }
+
     /**
      * Receive bytes for the incoming file. This will read all available bytes
      * on the input stream and write them to a temporary file, which will be
@@ -98,8 +118,7 @@ public class FileReceiver extends AComplexDataType {
      * @return
      * @throws IOException
      */
-    public boolean receive(InputStream input)
-            throws MessageNotCompleteException, IOException {
+    public boolean receive(InputStream input) throws IOException {
 
         if (this.fileBytesLeft <= 0 && input.available() >= SIZEOF_INTEGER) {
             this.fileBytesLeft = readInteger(input);
@@ -109,52 +128,76 @@ public class FileReceiver extends AComplexDataType {
             openRandomInFile();
         }
 
+        //wait until we have the whole file length
+        if (this.file == null) {
+            return false;
+        }
+
         //read all that is available, since the incoming stream should be only
         // for this file
         int read;
+        int total = 0;
         while ((read = input.read(byteBuffer)) > 0) {
-            fileBuffer.write(byteBuffer, 0, read);
-            //we've read the data in...decrement the bytes from
+            writeToFile(read);
+            //we've written the data out...decrement the bytes from
             // the count of bytes left
             this.fileBytesLeft -= read;
+            total += read;
+        }
+        if (total > 0) {
+            this.incomingFile.addBytes(total);
         }
 
         boolean readComplete = isFileComplete();
-        
-        if (isBufferFilled() || readComplete) {
-            flushBuffer();
-        }
 
         if (readComplete) {
             closeInFile();
+            this.incomingFile.finish();
         }
         return readComplete;
     }
 
     /**
-     * Test to see if the buffer is filled.  Note that this only considers
-     * bytes in the buffer, not how many bytes are left to read.  You may
-     * also need to test if the file is complete, to flush the last bits
-     * of data to file.
-     * 
-     * @return
+     * @return The file being received, or null if the file has not been started.
      */
-    private boolean isBufferFilled() {
-        int available = fileBuffer.size();
-        return available > 0 && available >= MIN_BYTES_READ_IN;
+    public IncomingFile getIncomingFile() {
+        return this.incomingFile;
     }
 
-    private void flushBuffer() throws IOException {
-        if (LogUtil.isLogAvailable()) {
-            Log.d(TAG, "Writing " + fileBuffer.size() + " bytes to incoming file (" + this.fileBytesLeft + " bytes left)");
+    /**
+     * Give up on receiving the file (e.g. because the connection went down).  The
+     * partial file is left in place for the owner of the message to clean up.
+     */
+    public void abandon() {
+        if (this.file != null) {
+            closeInFile();
+            this.incomingFile.abandon();
         }
+    }
 
-        fileStream.write(fileBuffer.toByteArray());
-        fileBuffer.reset();
+    /**
+     * Write the first count bytes of the read buffer to the incoming file.
+     * 
+     * @param count
+     * @throws IOException
+     */
+    private void writeToFile(int count) throws IOException {
+        if (LogUtil.isLogAvailable()) {
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Writing " + count + " bytes to incoming file (" + (this.fileBytesLeft - count) + " bytes left)");
+            }
+        }
+        channelBuffer.clear();
+        channelBuffer.limit(count);
+        while (channelBuffer.hasRemaining()) {
+            fileChannel.write(channelBuffer);
+        }
     }
 
     /**
-     * Open a random file and initialize the incoming file stream.
+     * Open a random file and initialize the incoming file channel.  The file
+     * is preallocated to the full size of the incoming file, so the file system
+     * can lay it out in one go instead of growing it a chunk at a time.
      * 
      * @throws IOException
      * @throws FileNotFoundException
@@ -162,21 +205,25 @@ public class FileReceiver extends AComplexDataType {
     private void openRandomInFile() throws IOException, FileNotFoundException {
         File outFile = createRandomTempFile();
         this.message.setFilePath(outFile.getCanonicalPath());
-        this.fileStream = new FileOutputStream(outFile);
+        this.file = new RandomAccessFile(outFile, "rw");
+        this.file.setLength(this.fileBytesLeft);
+        this.fileChannel = this.file.getChannel();
+        this.incomingFile = IncomingFile.start(this.message.getFilePath(), this.fileBytesLeft);
     }
 
     /**
-     * Close the incoming file stream.
+     * Close the incoming file channel.
      * 
      * @throws IOException
      */
     private void closeInFile() {
         try {
-            this.fileStream.close();
+            this.file.close();
         } catch (Exception e) {
             // don't care, we're closing
         } finally {
-            this.fileStream = null;
+            this.file        = null;
+            this.fileChannel = null;
         }
     }
 
@@ -186,7 +233,7 @@ public class FileReceiver extends AComplexDataType {
      * @return
      */
     private boolean isFileComplete() {
-        return this.fileStream != null && this.fileBytesLeft == 0;
+        return this.file != null && this.fileBytesLeft == 0;
     }
 
     /**
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.wire;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class decodes packets (see PacketFormat) out of a stream of bytes.  Bytes are
+ * read from the stream in bulk into a single ByteBuffer, and each complete packet is
+ * returned as a slice of that buffer (no copy is made).  Running out of bytes in the
+ * middle of a packet is not an error; nextFrame simply returns null until more bytes
+ * are read.
+ * 
+ * NOTE: a frame returned by nextFrame is only valid until the next call to readFrom,
+ * which will reuse the underlying buffer.
+ * 
+ */
+public class FrameDecoder {
+
+    private ByteBuffer buffer;
+    private int        maxFrameSize;
+
+    //total size (including the length) of the next frame, or 0 if we don't know yet
+    private int pendingFrameSize = 0;
+
+    private int messageNo;
+
+    /**
+     * @param initialCapacity The initial size of the receive buffer
+     * @param maxFrameSize The largest packet we will accept.  Anything larger
+     * is assumed to be a corrupt stream.
+     */
+    public FrameDecoder(int initialCapacity, int maxFrameSize) {
+        this.buffer       = ByteBuffer.allocate(initialCapacity);
+        this.maxFrameSize = maxFrameSize;
+        //the buffer is always kept in "read" mode between calls
+        this.buffer.flip();
+    }
+
+    /**
+     * Read the next set of bytes from the input stream, as many as will fit in
+     * our buffer.
+     * 
+     * NOTE: This will block until data is available, and may throw an exception
+     * if the stream is closed while reading.  This is the only way we'll get a
+     * notification of a downed client, as available will simply return 0 for a
+     * disconnected socket.
+     * 
+     * @param input
+     * @return The number of bytes read, or -1 if the end of the stream has been reached.
+     * @throws IOException
+     */
+    public int readFrom(InputStream input) throws IOException {
+        //move any partial frame to the front of the buffer, and make sure
+        // the whole frame will fit
+        buffer.compact();
+        if (pendingFrameSize > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(pendingFrameSize);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        int read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read > 0) {
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+        return read;
+    }
+
+    /**
+     * Get the next complete frame in the buffer.  The frame is a slice of the
+     * buffer holding the packet bytes (after the packet header).  The message
+     * number for this frame can be retrieved using getMessageNo.
+     * 
+     * @return The next frame, or null if a full frame is not yet available.
+     * @throws IOException If the stream contains an invalid packet length.
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        if (buffer.remaining() < PacketFormat.getLengthOverhead()) {
+            return null;
+        }
+        int start = buffer.position();
+        int packetLength = buffer.getInt(start);
+        if (packetLength < PacketFormat.getMessageNoOverhead()
+                || packetLength > maxFrameSize - PacketFormat.getLengthOverhead()) {
+            throw new IOException("Invalid packet length: " + packetLength);
+        }
+        int frameSize = PacketFormat.getLengthOverhead() + packetLength;
+        if (buffer.remaining() < frameSize) {
+            pendingFrameSize = frameSize;
+            return null;
+        }
+        pendingFrameSize = 0;
+
+        messageNo = buffer.getInt(start + PacketFormat.getLengthOverhead());
+
+        ByteBuffer frame = buffer.duplicate();
+        frame.position(start + PacketFormat.getOverhead());
+        frame.limit(start + frameSize);
+        buffer.position(start + frameSize);
+        return frame.slice();
+    }
+
+    /**
+     * @return The message number of the last frame returned by nextFrame
+     */
+    public int getMessageNo() {
+        return messageNo;
+    }
+
+    /**
+     * @return The number of bytes held in the buffer that have not been returned as frames
+     */
+    public int size() {
+        return buffer.remaining();
+    }
+}
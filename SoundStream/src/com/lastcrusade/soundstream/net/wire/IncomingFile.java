@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.wire;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks a file that is still being received, so it can be read while it
+ * is written.  The file is written front to back, so everything before
+ * {@link #getBytesReceived()} is safe to read.
+ * 
+ * Files in progress can be looked up by path, which lets code that only
+ * has the temp file path (e.g. from a broadcast intent) find the transfer.
+ * Files are removed from the lookup once they are finished or abandoned.
+ * 
+ */
+public class IncomingFile {
+
+    private static final Map<String, IncomingFile> inProgress = new HashMap<String, IncomingFile>();
+
+    private final String path;
+    private final long   fileSize;
+    private long    bytesReceived;
+    private boolean complete;
+    private boolean abandoned;
+
+    IncomingFile(String path, long fileSize) {
+        this.path     = path;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Start tracking a file, and make it available through {@link #find(String)}.
+     * 
+     * @param path
+     * @param fileSize
+     * @return
+     */
+    static IncomingFile start(String path, long fileSize) {
+        IncomingFile file = new IncomingFile(path, fileSize);
+        synchronized (inProgress) {
+            inProgress.put(path, file);
+        }
+        return file;
+    }
+
+    /**
+     * Find a file that is still being received.
+     * 
+     * @param path
+     * @return The incoming file, or null if no file is being received at that path.
+     */
+    public static IncomingFile find(String path) {
+        if (path == null) {
+            return null;
+        }
+        synchronized (inProgress) {
+            return inProgress.get(path);
+        }
+    }
+
+    synchronized void addBytes(long count) {
+        this.bytesReceived += count;
+        notifyAll();
+    }
+
+    void finish() {
+        end(true);
+    }
+
+    void abandon() {
+        end(false);
+    }
+
+    private void end(boolean complete) {
+        synchronized (inProgress) {
+            inProgress.remove(this.path);
+        }
+        synchronized (this) {
+            this.complete  = complete;
+            this.abandoned = !complete;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the byte at position is received, the file is finished or abandoned,
+     * or the timeout expires.
+     * 
+     * @param position
+     * @param timeoutInMS
+     * @return The number of bytes received.
+     * @throws InterruptedException
+     */
+    public synchronized long awaitBytes(long position, long timeoutInMS) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutInMS;
+        long wait;
+        while (this.bytesReceived <= position && !this.complete && !this.abandoned
+                && (wait = end - System.currentTimeMillis()) > 0) {
+            wait(wait);
+        }
+        return this.bytesReceived;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized boolean isAbandoned() {
+        return abandoned;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lastcrusade.soundstream.net.wire;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message comes from a messenger version we can't talk to.  The
+ * connection can't be used, and the user should be told why it was dropped.
+ * 
+ */
+public class IncompatibleVersionException extends IOException {
+
+    private final int remoteVersion;
+
+    public IncompatibleVersionException(int remoteVersion, int minVersion) {
+        super("Unsupported messenger version " + remoteVersion + ", expected at least " + minVersion);
+        this.remoteVersion = remoteVersion;
+    }
+
+    /**
+     * @return The messenger version of the remote side.
+     */
+    public int getRemoteVersion() {
+        return remoteVersion;
+    }
+}
@@ -22,18 +22,26 @@ package com.lastcrusade.soundstream.net.wire;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.annotation.SuppressLint;
 import android.util.Log;
 
 import com.lastcrusade.soundstream.net.message.IFileMessage;
+import com.lastcrusade.soundstream.net.message.IFileRangeMessage;
 import com.lastcrusade.soundstream.net.message.IMessage;
+import com.lastcrusade.soundstream.net.message.ITransferMessage;
 import com.lastcrusade.soundstream.net.message.MessageFormat;
+import com.lastcrusade.soundstream.net.message.MessageRegistry;
+import com.lastcrusade.soundstream.net.message.TransferCancelledMessage;
 import com.lastcrusade.soundstream.util.InputBuffer;
 import com.lastcrusade.soundstream.util.LogUtil;
 
@@ -56,19 +64,42 @@ public class Messenger {
 
     private static final String TAG = Messenger.class.getSimpleName();
 
-    private InputBuffer inputBuffer = new InputBuffer();
+    /**
+     * Maximum size in bytes to read from a socket at a time, and the initial
+     * size of our receive buffer.
+     */
+    private static final int MAX_READ_SIZE_BYTES = 4096;
+
+    /**
+     * Largest packet we will accept before assuming the stream is corrupt.
+     */
+    private static final int MAX_PACKET_SIZE_BYTES = 1024 * 1024;
+
+    private FrameDecoder frameDecoder = new FrameDecoder(MAX_READ_SIZE_BYTES, MAX_PACKET_SIZE_BYTES);
 
     //NOTE: implemented as a map, not a SparseArray, so our unit tests will run
     @SuppressLint("UseSparseArrays")
     private Map<Integer, WireRecvOutputStream> activeTransfers  = new HashMap<Integer, WireRecvOutputStream>();
+    //active transfers that have started receiving a file, and have been announced (see getStartedFiles)
+    private Set<WireRecvOutputStream>          startedFiles     = new HashSet<WireRecvOutputStream>();
+    private boolean notifyFileStarted = false;
+    //transfers we've asked the sender to cancel (see cancelTransfer), until the sender confirms
+    // the cancel or the transfer finishes, and the message numbers of cancelled transfers whose
+    // packets may still be on the way (mapped to the transfer id, so the sender's confirmation
+    // can clear them)
+    private Set<Long>                          cancelledTransfers = Collections.synchronizedSet(new HashSet<Long>());
+    @SuppressLint("UseSparseArrays")
+    private Map<Integer, Long>                 tombstones       = new HashMap<Integer, Long>();
     private List<IMessage>                     receivedMessages = new LinkedList<IMessage>();
+    private List<Integer>                      receivedMessageTypes = new ArrayList<Integer>();
+    private List<IFileMessage>                 startedFileMessages  = new ArrayList<IFileMessage>();
 
     /**
-     * Maximum size in bytes to read from a socket at a time.
-     * 
+     * The message format version used to send messages.  This starts out at the
+     * lowest version, and is raised once we receive a message that tells us the
+     * remote side understands a higher version (see MessageFormat).
      */
-    private static final int MAX_READ_SIZE_BYTES = 4096;
-    private byte[] inBytes = new byte[MAX_READ_SIZE_BYTES];
+    private volatile int sendVersion = MessageFormat.MESSENGER_VERSION_CLASS_NAME;
 
     private static final int MAX_WRITE_SIZE_BYTES = 4096;
 
@@ -92,17 +123,24 @@ public class Messenger {
      * @throws IOException
      */
     public InputStream serializeMessage(IMessage message) throws IOException {
-        MessageFormat format = new MessageFormat(message);
+        MessageFormat format = new MessageFormat(message, this.sendVersion);
         InputBuffer buffer = new InputBuffer();
         format.serialize(buffer);
         //if this is a file message, open the file and prepare it for the write
         // operation
-        InputStream fileStream = null;
         if (isFileMessage(message)) {
+            //file data is read straight from the file channel into the packets
+            long offset = 0;
+            long length = IFileRangeMessage.TO_END_OF_FILE;
+            if (message instanceof IFileRangeMessage) {
+                offset = ((IFileRangeMessage) message).getFileOffset();
+                length = ((IFileRangeMessage) message).getFileLength();
+            }
             FileReceiver fileFormat = new FileReceiver((IFileMessage) message, this.tempFolder);
-            fileStream = fileFormat.getInputStream();
+            return new WireSendInputStream(this.sendPacketSize, this.nextMessageNo++, buffer.getInputStream(),
+                    fileFormat.getFileChannel(), offset, length);
         }
-        return new WireSendInputStream(this.sendPacketSize, this.nextMessageNo++, buffer.getInputStream(), fileStream);
+        return new WireSendInputStream(this.sendPacketSize, this.nextMessageNo++, buffer.getInputStream(), null);
     }
 
     /**
@@ -133,134 +171,204 @@ public class Messenger {
         int read = 0;
         do {
             //always check to see if we have more message data waiting...this is so we can process
-            // grouped/batched messages without having to wait on the call to readNext
-            if (inputBuffer.size() > 0) {
+            // grouped/batched messages without having to wait on the call to readFrom
+            if (frameDecoder.size() > 0) {
                 //check to see if we can process this message
                 if (LogUtil.isLogAvailable()) {
                     if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Bytes available in " + inputBuffer.size());
+                        Log.v(TAG, "Bytes available in " + frameDecoder.size());
                     }
                 }
-                processed = processAndConsumePackets();
+                processed = processFrames();
                 if (LogUtil.isLogAvailable()) {
                     if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Bytes left in " + inputBuffer.size());
+                        Log.v(TAG, "Bytes left in " + frameDecoder.size());
                     }
                 }
             }
             
             //if we don't have a message processed, attempt to read new data and loop back around
+            //NOTE: this will block until data is available, and will throw an exception when the connection
+            // goes down.  this is the only way we'll get a notification of a downed client
             if (!processed) {
-                read = readNext(input);
+                read = frameDecoder.readFrom(input);
             }
             //loop back around if we havent processed a message yet
-        } while (!processed && read > 0 && inputBuffer.size() > 0);
+        } while (!processed && read > 0);
         return processed;
     }
 
     /**
-     * Process and consume a packet.  This will look for any active message transfers
-     * (or create one if needed) and append the bytes to that message.
-     * @return 
-     * @return
+     * Process all complete frames held by the frame decoder.  This will look for any active
+     * message transfers (or create one if needed) and append the bytes to that message.
+     * 
+     * @return True if at least one message was received.
      * @throws IOException 
      */
-    private boolean processAndConsumePackets() throws IOException {
+    private boolean processFrames() throws IOException {
         boolean received = false;
-        //REVIEW: character encoding issues may arise, but since we're controlling the class names
-        // we should be able to decide how to handle these
-        PacketFormat packet = new PacketFormat();
-        try {
-            //while there is data to process, attempt to pull out packets
-            //...this will "receive" as many messages as it can, and will throw an exception
-            // to exit the loop when we've run out of full packets in our buffer
-            while (inputBuffer.size() > 0) {
-                packet.deserialize(inputBuffer.getInputStream());
-                //consume this message in the input buffer
-                inputBuffer.consume();
-    
-                WireRecvOutputStream transfer = this.activeTransfers.get(packet.getMessageNo());
-                if (transfer == null) {
-                    transfer = new WireRecvOutputStream(this.tempFolder);
-                    this.activeTransfers.put(packet.getMessageNo(), transfer);
+        ByteBuffer frame;
+        while ((frame = frameDecoder.nextFrame()) != null) {
+            int messageNo = frameDecoder.getMessageNo();
+            if (!frame.hasRemaining()) {
+                //an abort packet...the sender has given up on this message
+                abortMessage(messageNo);
+                this.tombstones.remove(messageNo);
+                continue;
+            }
+            if (this.tombstones.containsKey(messageNo)) {
+                //the rest of a cancelled transfer...drop it
+                continue;
+            }
+            WireRecvOutputStream transfer = this.activeTransfers.get(messageNo);
+            if (transfer == null) {
+                transfer = new WireRecvOutputStream(this.tempFolder);
+                this.activeTransfers.put(messageNo, transfer);
+            }
+
+            transfer.write(frame);
+            //if we've received the full message, remove it from our active
+            // transfer array and add the underlying message to the received messages list
+            if (transfer.attemptReceive()) {
+                this.activeTransfers.remove(messageNo);
+                this.startedFiles.remove(transfer);
+                updateSendVersion(transfer.getRemoteVersion());
+                IMessage message = transfer.getReceivedMessage();
+                if (message instanceof TransferCancelledMessage) {
+                    //the sender has stopped, and nothing more of the transfer is coming
+                    long transferId = ((TransferCancelledMessage) message).getTransferId();
+                    this.cancelledTransfers.remove(transferId);
+                    this.tombstones.values().remove(transferId);
+                    continue;
                 }
-                
-                transfer.write(packet.getBytes());
-                received = transfer.attemptReceive();
-                //if we've received the full message, remove it from our active
-                // transfer array and add the underlying message to the received messages list
-                if (received) {
-                    this.activeTransfers.remove(packet.getMessageNo());
-                    this.receivedMessages.add(transfer.getReceivedMessage());
+                if (message instanceof ITransferMessage) {
+                    //the transfer finished before the sender saw the cancel
+                    this.cancelledTransfers.remove(((ITransferMessage) message).getTransferId());
                 }
+                this.receivedMessages.add(message);
+                this.receivedMessageTypes.add(transfer.getReceivedMessageType());
+                received = true;
+            } else if (isCancelled(transfer.getReceivedMessage())) {
+                //stop receiving right away, and drop anything else that arrives before
+                // the sender sees the cancel
+                long transferId = ((ITransferMessage) transfer.getReceivedMessage()).getTransferId();
+                abortMessage(messageNo);
+                this.tombstones.put(messageNo, transferId);
+            } else if (this.notifyFileStarted && transfer.getIncomingFile() != null && this.startedFiles.add(transfer)) {
+                //let the receiver know the file has started, so it can use the data
+                // before the whole file is here
+                this.startedFileMessages.add((IFileMessage) transfer.getReceivedMessage());
+                received = true;
             }
-        } catch (MessageNotCompleteException ex) {
-            //fall thru
-        } finally {
         }
         return received;
     }
 
     /**
-     * Block and read one byte off of the stream.  This is because we NEED to
-     * call read to catch any socket disconnect errors (available will simply
-     * return 0 for a disconnected socket, which doesn't tell us anything).
-     * 
-     * Waiting for one byte before filling up inBytes is a happy medium between
-     * trying to optimize receive packet size (e.g. inBytes buffer), and passing
-     * control back to the message processor as quickly as possible (e.g. reading
-     * one byte at a time).  This method, therefore, is best used as a gate to decide
-     * if we need to look for more available data.
-     * 
-     * NOTE we use the array version of read and write.  This is because the single
-     * byte version uses -1 (255 unsigned) to indicate that a stream has no more
-     * data.  This is really dumb, as 255s show up in our data all the time.  We
-     * therefore need to use the array version, with a one byte array, to get accurate
-     * data and count of bytes available.
+     * @param message The message being received, or null if it has not been deserialized yet.
+     * @return True if the message is part of a transfer that has been cancelled.
+     */
+    private boolean isCancelled(IMessage message) {
+        return message instanceof ITransferMessage
+                && this.cancelledTransfers.remove(((ITransferMessage) message).getTransferId());
+    }
+
+    /**
+     * Throw away a partially received message, and any file data received with it.
      * 
-     * @param input
-     * @return
-     * @throws IOException
+     * @param messageNo
      */
-    private int blockAndReadOne(InputStream input) throws IOException {
-        byte[] local = new byte[1];
-        int read = input.read(local, 0, 1);
-        if (read > 0) {
-            inputBuffer.write(local, 0, 1);
+    private void abortMessage(int messageNo) {
+        WireRecvOutputStream transfer = this.activeTransfers.remove(messageNo);
+        if (transfer != null) {
+            if (LogUtil.isLogAvailable()) {
+                Log.i(TAG, "Message " + messageNo + " aborted");
+            }
+            this.startedFiles.remove(transfer);
+            transfer.discard();
         }
-        return read;
     }
+
     /**
-     * Read the next set of bytes from the input stream.
+     * Cancel a transfer that is being received.  The sender must also be told to stop
+     * sending (see CancelTransferMessage).  If part of the transfer has arrived, it is
+     * thrown away (and its file deleted) as soon as the next packet for it arrives,
+     * and the rest of its packets are dropped.  The transfer is forgotten when the
+     * sender confirms the cancel (see TransferCancelledMessage), or the transfer
+     * finishes.
      * 
-     * NOTE: This will block until data is available, and may throw
-     * an exception if the stream is closed while reading.
+     * NOTE: this may be called from any thread.
      * 
-     * @param input
-     * @return 
-     * @return 
-     * @throws IOException
+     * @param transferId
      */
-    private int readNext(InputStream input) throws IOException {
-        //read a chunk at a time...the buffer size was determined through trial and error, and
-        // could be optimized more.
-        //NOTE: this is so input.read can block, and will throw an exception when the connection
-        // goes down.  this is the only way we'll get a notification of a downed client
-        int totalRead = blockAndReadOne(input);
-        int toRead = Math.min(inBytes.length, input.available());
-        if (toRead > 0) {
-            int read = input.read(inBytes, 0, toRead);
-            if (read > 0) {
-                inputBuffer.write(inBytes, 0, read);
+    public void cancelTransfer(long transferId) {
+        this.cancelledTransfers.add(transferId);
+    }
+
+    /**
+     * Raise the version we use to send messages, if the remote side supports it.
+     * 
+     * @param remoteVersion
+     */
+    private void updateSendVersion(int remoteVersion) {
+        if (remoteVersion >= MessageFormat.MESSENGER_VERSION_TYPE_ID
+                && this.sendVersion < MessageFormat.MESSENGER_VERSION_TYPE_ID) {
+            if (LogUtil.isLogAvailable()) {
+                Log.i(TAG, "Remote side is messenger version " + remoteVersion + ", sending type ids");
             }
-            totalRead += read;
+            this.sendVersion = MessageFormat.MESSENGER_VERSION_TYPE_ID;
+        }
+    }
+
+    /**
+     * Turn on or off notifications for files that have started to arrive.  When on, a
+     * file message is added to the started files (see getStartedFiles) as soon as it
+     * starts receiving its file, so the file can be used before it is complete.
+     * 
+     * @param notifyFileStarted
+     */
+    public void setNotifyFileStarted(boolean notifyFileStarted) {
+        this.notifyFileStarted = notifyFileStarted;
+    }
+
+    /**
+     * Give up on all partially received messages.  This is called when the connection
+     * goes down, so any files being received are closed and marked as abandoned.
+     */
+    public void abandonTransfers() {
+        for (WireRecvOutputStream transfer : this.activeTransfers.values()) {
+            transfer.abandon();
         }
-        return totalRead;
+        this.activeTransfers.clear();
+        this.startedFiles.clear();
+        this.cancelledTransfers.clear();
+        this.tombstones.clear();
     }
 
-    ///TODO
+    /**
+     * Clear the received messages, and the started files.
+     */
     public void clearReceivedMessages() {
         receivedMessages = new LinkedList<IMessage>();
+        receivedMessageTypes.clear();
+        startedFileMessages.clear();
+    }
+
+    /**
+     * Get the registered type id of a received message.
+     * 
+     * @param index The index of the message in the received messages list
+     * @return The type id, or MessageRegistry.NO_TYPE if the message is not registered.
+     */
+    public int getReceivedMessageType(int index) {
+        return receivedMessageTypes.get(index);
+    }
+
+    /**
+     * @return The message format version used to send messages.
+     */
+    public int getSendVersion() {
+        return this.sendVersion;
     }
 
     /**
@@ -272,6 +380,18 @@ public class Messenger {
         return Collections.unmodifiableList(receivedMessages);
     }
 
+    /**
+     * Get the file messages that started receiving their files since the received
+     * messages were last cleared (see setNotifyFileStarted).  The file for each of
+     * these is still arriving (see IncomingFile); the message itself is added to the
+     * received messages as usual once the whole file is here.
+     * 
+     * @return
+     */
+    public List<IFileMessage> getStartedFiles() {
+        return Collections.unmodifiableList(startedFileMessages);
+    }
+
     /**
      * @return
      */
@@ -37,6 +37,10 @@ import com.lastcrusade.soundstream.net.core.ISerializable;
  *  integer byte packet number (to disambiguate packets, size defined by {@link AComplexDataType#SIZEOF_INTEGER})
  *  n bytes of packet data
  *  
+ * A packet with no data aborts its message: the sender has stopped sending the
+ * message part of the way through, and the receiver should throw away what it
+ * has received for that message number.
+ *  
  * @author Jesse Rosalia
  *
  */
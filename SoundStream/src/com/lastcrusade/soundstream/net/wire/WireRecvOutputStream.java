@@ -22,12 +22,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import android.util.Log;
 
+import com.lastcrusade.soundstream.net.core.AComplexDataType;
 import com.lastcrusade.soundstream.net.message.IFileMessage;
 import com.lastcrusade.soundstream.net.message.IMessage;
 import com.lastcrusade.soundstream.net.message.MessageFormat;
+import com.lastcrusade.soundstream.net.message.MessageRegistry;
 import com.lastcrusade.soundstream.util.InputBuffer;
 import com.lastcrusade.soundstream.util.LogUtil;
 
@@ -47,6 +50,7 @@ public class WireRecvOutputStream extends OutputStream {
 
     private InputBuffer buffer = new InputBuffer();
     private IMessage receivedMessage;
+    private MessageFormat format;
     private File tempFolder;
     private FileReceiver fileReceiver;
 
@@ -74,6 +78,24 @@ public class WireRecvOutputStream extends OutputStream {
         buffer.write(bytes, offset, count);
     }
 
+    /**
+     * Write the remaining bytes in a ByteBuffer (e.g. a frame from FrameDecoder)
+     * into this stream.  This will consume the bytes in the ByteBuffer.
+     * 
+     * @param bytes
+     * @throws IOException
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        if (bytes.hasArray()) {
+            buffer.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            bytes.position(bytes.limit());
+        } else {
+            while (bytes.hasRemaining()) {
+                buffer.write(bytes.get());
+            }
+        }
+    }
+
     /**
      * Process and consume one message contained in the input buffer.  This will modify the contents of the
      * input buffer when successful and when an error is occurred (the message in error is thrown away).
@@ -89,44 +111,54 @@ public class WireRecvOutputStream extends OutputStream {
     public boolean attemptReceive() throws IOException {
         boolean received = false;
         
-        try {
-            InputStream input = buffer.getInputStream();
-            //NOTE: we must keep the file format for multiple calls, as we expect to receive the file in parts
-            //...this is different from the message format, where we'll try and deserialize and throw an exception
-            // if its not available
-            if (this.fileReceiver != null) {
-                received = this.fileReceiver.receive(input);
+        //NOTE: we must keep the file format for multiple calls, as we expect to receive the file in parts
+        //...this is different from the message format, which we only deserialize once the whole
+        // message is in the buffer
+        if (this.fileReceiver == null && !isMessageComplete()) {
+            return false;
+        }
+        InputStream input = buffer.getInputStream();
+        if (this.fileReceiver != null) {
+            received = this.fileReceiver.receive(input);
+        } else {
+            MessageFormat format = new MessageFormat();
+            format.deserialize(input);
+            //TODO: consume the bytes in buffer
+            this.format          = format;
+            this.receivedMessage = format.getMessage();
+            if (!isFileMessage(this.receivedMessage)) {
+                //not a file message, we're done
+                received = true;
             } else {
-                MessageFormat format = new MessageFormat();
-                format.deserialize(input);
-                //TODO: consume the bytes in buffer
-                this.receivedMessage = format.getMessage();
-                if (!isFileMessage(this.receivedMessage)) {
-                    //not a file message, we're done
-                    received = true;
-                } else {
-                    //otherwise, we want to attempt to read a file if the message is processed and it is a file message
-                    this.fileReceiver = new FileReceiver((IFileMessage) this.receivedMessage, this.tempFolder);
-                    //receive any file data that happens to be in the 
-                    if (input.available() > 0) {
-                        received = this.fileReceiver.receive(input);
-                    }
+                //otherwise, we want to attempt to read a file if the message is processed and it is a file message
+                this.fileReceiver = new FileReceiver((IFileMessage) this.receivedMessage, this.tempFolder);
+                //receive any file data that happens to be in the 
+                if (input.available() > 0) {
+                    received = this.fileReceiver.receive(input);
                 }
             }
-            buffer.consume();
-            if (LogUtil.isLogAvailable()) {
-                if (buffer.size() > 0) {
-                    Log.v(TAG, "Residual buffer data: " + buffer.size()
-                            + " bytes left in buffer");
-                }
+        }
+        buffer.consume();
+        if (LogUtil.isLogAvailable()) {
+            if (buffer.size() > 0) {
+                Log.v(TAG, "Residual buffer data: " + buffer.size()
+                        + " bytes left in buffer");
             }
-
-        } catch (MessageNotCompleteException e) {
-            //fall thru
         }
         return received;
     }
 
+    /**
+     * @return True if the buffer holds a whole message: its length, and that many bytes after it.
+     */
+    private boolean isMessageComplete() {
+        if (buffer.size() < AComplexDataType.SIZEOF_INTEGER) {
+            return false;
+        }
+        //a corrupt (negative) length is left for MessageFormat to reject
+        return buffer.size() - AComplexDataType.SIZEOF_INTEGER >= buffer.peekInteger(0);
+    }
+
     /**
      * @param message
      * @return
@@ -135,10 +167,56 @@ public class WireRecvOutputStream extends OutputStream {
         return message instanceof IFileMessage;
     }
 
+    /**
+     * @return The file being received for this message, or null if this is not a file message
+     * or the file has not been started.
+     */
+    public IncomingFile getIncomingFile() {
+        return this.fileReceiver != null ? this.fileReceiver.getIncomingFile() : null;
+    }
+
+    /**
+     * Give up on receiving this message.  This closes the incoming file, if there is one.
+     */
+    public void abandon() {
+        if (this.fileReceiver != null) {
+            this.fileReceiver.abandon();
+        }
+    }
+
+    /**
+     * Give up on receiving this message, and delete the file received so far.
+     */
+    public void discard() {
+        abandon();
+        if (this.fileReceiver != null) {
+            String filePath = ((IFileMessage) this.receivedMessage).getFilePath();
+            if (filePath != null && !new File(filePath).delete()) {
+                if (LogUtil.isLogAvailable()) {
+                    Log.w(TAG, "Unable to delete " + filePath);
+                }
+            }
+        }
+    }
+
     /**
      * @return
      */
     public IMessage getReceivedMessage() {
         return this.receivedMessage;
     }
+
+    /**
+     * @return The registered type id of the received message, or MessageRegistry.NO_TYPE
+     */
+    public int getReceivedMessageType() {
+        return this.format != null ? this.format.getTypeId() : MessageRegistry.NO_TYPE;
+    }
+
+    /**
+     * @return The messenger version of the remote side, or 0 if no message has been read.
+     */
+    public int getRemoteVersion() {
+        return this.format != null ? this.format.getRemoteVersion() : 0;
+    }
 }
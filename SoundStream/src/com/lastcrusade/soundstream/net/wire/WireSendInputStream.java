@@ -18,15 +18,14 @@
  */
 package com.lastcrusade.soundstream.net.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
 import com.lastcrusade.soundstream.net.core.AComplexDataType;
-import com.lastcrusade.soundstream.net.core.IntegerLength;
 import com.lastcrusade.soundstream.util.LogUtil;
 
 /**
@@ -37,6 +36,15 @@ import com.lastcrusade.soundstream.util.LogUtil;
  * can then be read from the stream and transmitted to the remote
  * system.
  * 
+ * Packets are assembled in place in a single packet buffer that is
+ * allocated once per stream and reused for every packet.  The header
+ * is written directly into the front of the buffer, and the message and
+ * file data are bulk read into the rest of it, so sending a message
+ * allocates the same amount of memory no matter how large the file is.
+ * 
+ * File data may come from a FileChannel, in which case a range of the
+ * file is read with positional reads directly into the packet buffer.
+ * 
  * @author Jesse Rosalia
  *
  */
@@ -48,28 +56,91 @@ public class WireSendInputStream extends InputStream {
     private InputStream file;
     private int packetSize;
     private int messageNo;
+
+    /**
+     * The reusable packet buffer, and a view on that buffer used to write the packet header.
+     */
     private byte[] packet;
-    private int packetIndex = 0;
-    private ByteArrayInputStream fileLengthStream;
+    private ByteBuffer packetHeader;
+    private ByteBuffer packetPayload;
+    private int packetLength = 0;
+    private int packetIndex  = 0;
+
+    /**
+     * The file length, which is sent between the message and the file data.  This
+     * may be split across two packets, so we keep track of how much has been written.
+     */
+    private byte[] fileLength;
+    private int fileLengthIndex;
     private int available;
-    
+
+    /**
+     * The file channel to read from, and the position and number of bytes left
+     * in the range of the file we're sending.
+     */
+    private FileChannel fileChannel;
+    private long filePosition;
+    private long fileBytesLeft;
+
     public WireSendInputStream(int packetSize, int messageNo, InputStream message, InputStream file) throws IOException {
-        this.message = message;
+        init(packetSize, messageNo, message);
         this.file = file;
+        if (this.file != null) {
+            setFileLength(file.available());
+        }
+        computeAvailable();
+    }
+
+    /**
+     * Send a message followed by a range of a file.
+     * 
+     * @param packetSize
+     * @param messageNo
+     * @param message
+     * @param file The file channel to read from.  This will be closed when this stream is closed.
+     * @param offset The position of the first byte to send.
+     * @param length The number of bytes to send, or a negative number to send everything from offset
+     * to the end of the file.
+     * @throws IOException
+     */
+    public WireSendInputStream(int packetSize, int messageNo, InputStream message, FileChannel file, long offset, long length) throws IOException {
+        init(packetSize, messageNo, message);
+        this.fileChannel = file;
+        long size = file.size();
+        if (length < 0) {
+            length = size - offset;
+        }
+        if (offset < 0 || length < 0 || offset + length > size || length > Integer.MAX_VALUE) {
+            close();
+            throw new IllegalArgumentException("Cannot send " + length + " bytes at " + offset + " from a file of " + size + " bytes");
+        }
+        this.filePosition  = offset;
+        this.fileBytesLeft = length;
+        this.packetPayload = ByteBuffer.wrap(this.packet);
+        setFileLength((int) length);
+        computeAvailable();
+    }
+
+    private void init(int packetSize, int messageNo, InputStream message) throws IOException {
+        this.message = message;
         this.messageNo = messageNo;
         this.packetSize = packetSize;
-        this.packet = null; 
+        this.packet = new byte[packetSize];
+        this.packetHeader = ByteBuffer.wrap(this.packet);
 
         this.available = this.message.available();
-        //create an input stream to hold the file length, only once (first time through)
-        if (this.file != null && this.fileLengthStream == null) {
-            this.available += file.available() + AComplexDataType.SIZEOF_INTEGER;
-            IntegerLength length = new IntegerLength(file.available());
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            length.serialize(baos);
-            this.fileLengthStream = new ByteArrayInputStream(baos.toByteArray());
-        }
+        //hold the file length, so it can be written once after the message
+        this.fileLength = new byte[AComplexDataType.SIZEOF_INTEGER];
+        this.fileLengthIndex = this.fileLength.length;
+    }
+
+    private void setFileLength(int length) {
+        this.available += length + AComplexDataType.SIZEOF_INTEGER;
+        ByteBuffer.wrap(this.fileLength).putInt(length);
+        this.fileLengthIndex = 0;
+    }
 
+    private void computeAvailable() {
         //precompute the total number of bytes available from this input stream
         int payloadSize = this.packetSize - PacketFormat.getOverhead();
         int packets = this.available > 0 ? 1 + (this.available / payloadSize) : 0;
@@ -85,6 +156,13 @@ public class WireSendInputStream extends InputStream {
         return this.available;
     }
 
+    /**
+     * Read whole packets into the buffer.  This will copy as many complete packets
+     * as will fit in maxLen bytes, and will never split a packet across two calls
+     * (unless the caller mixes in calls to {@link #read()}).  This is important,
+     * because the writer interleaves packets from several messages on the same
+     * stream.
+     */
     @Override
     public int read(byte[] buffer, int off, int maxLen) throws IOException {
         if (buffer == null) {
@@ -102,12 +180,10 @@ public class WireSendInputStream extends InputStream {
         advanceIfNeeded();
 
         //read in batches, advancing to the next packet if needed
-        //NOTE: as complicated as this looks, it is MUCH more efficient
-        // than calling read() over and over
         int read   = 0;
         int toRead = Math.min(this.available(), maxLen);
         while (availableInPacket() <= toRead && available() > 0) {
-            int partial = Math.min(availableInPacket(), toRead);
+            int partial = availableInPacket();
             System.arraycopy(packet, packetIndex, buffer, off + read, partial);
             packetIndex += partial;
             available   -= partial;
@@ -123,7 +199,7 @@ public class WireSendInputStream extends InputStream {
      * @return
      */
     private int availableInPacket() {
-        return packet != null ? packet.length - packetIndex : 0;
+        return packetLength - packetIndex;
     }
 
     @Override
@@ -133,23 +209,49 @@ public class WireSendInputStream extends InputStream {
         return readNext();
     }
 
+    @Override
+    public void close() throws IOException {
+        try {
+            this.message.close();
+        } finally {
+            if (this.file != null) {
+                this.file.close();
+            }
+            if (this.fileChannel != null) {
+                this.fileChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Stop sending this message.  The message and file data that have not been
+     * read are dropped, and the only thing left to read is an abort packet
+     * (see PacketFormat), which tells the receiver to throw away the part of
+     * the message it already has.
+     * 
+     * NOTE: this must only be called between packets.
+     * 
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        close();
+        this.file          = null;
+        this.fileChannel   = null;
+        this.fileBytesLeft = 0;
+        packetHeader.putInt(0, PacketFormat.getMessageNoOverhead());
+        packetHeader.putInt(PacketFormat.getLengthOverhead(), this.messageNo);
+        packetLength = PacketFormat.getOverhead();
+        packetIndex  = 0;
+        available    = packetLength;
+    }
+
     /**
      * @throws IOException 
      * 
      */
     private void advanceIfNeeded() throws IOException {
-        if (packet == null || packetIndex >= packet.length) {
-            //grab the next x bytes (up to packetSize)
-            byte[] nextBytes = readNextBytes();
-            if (nextBytes.length > 0) {
-                PacketFormat format = new PacketFormat(this.messageNo, nextBytes);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                format.serialize(baos);
-                packet = baos.toByteArray();
-                packetIndex = 0;
-            } else {
-                packet = null;
-            }
+        if (packetIndex >= packetLength) {
+            fillNextPacket();
         }
     }
 
@@ -161,47 +263,69 @@ public class WireSendInputStream extends InputStream {
      * @return
      */
     private int readNext() {
-        if (packet != null && packetIndex < packet.length) {
+        if (packetIndex < packetLength) {
             this.available--;
-            return packet[packetIndex++];
+            return packet[packetIndex++] & 0xFF;
         } else {
             return -1;
         }
     }
+
     /**
-     * Read the next segment of bytes, making sure we leave room in the packet
-     * for the header info at the front.
+     * Fill the packet buffer with the next packet.  The payload is read first,
+     * leaving room at the front for the header, which is then written in place
+     * once the payload length is known.
      * 
-     * @return A byte array of the next segment of bytes to write
      * @throws IOException
      */
-    private byte[] readNextBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private void fillNextPacket() throws IOException {
+        packetLength = 0;
+        packetIndex  = 0;
         if (this.available() <= 0) {
-            return baos.toByteArray();
+            return;
         }
 
-        int len;
-        
-        for (len = PacketFormat.getOverhead(); len < this.packetSize && this.message.available() > 0; len++) {
-            int ret = -1;
-            ret = this.message.read();
-            baos.write(ret);
-        }
-        if (this.fileLengthStream != null) {
-            for (; len < this.packetSize && this.fileLengthStream.available() > 0; len++) {
-                baos.write(this.fileLengthStream.read());
+        int len = PacketFormat.getOverhead();
+        int toCopy;
+        //message bytes first...
+        while (len < this.packetSize && (toCopy = Math.min(this.packetSize - len, this.message.available())) > 0) {
+            int read = this.message.read(packet, len, toCopy);
+            if (read <= 0) {
+                break;
             }
+            len += read;
+        }
+        //...then the file length...
+        toCopy = Math.min(this.packetSize - len, this.fileLength.length - this.fileLengthIndex);
+        if (toCopy > 0) {
+            System.arraycopy(this.fileLength, this.fileLengthIndex, packet, len, toCopy);
+            this.fileLengthIndex += toCopy;
+            len                  += toCopy;
         }
-        
+        //...then fill the rest of the packet with file data
         if (this.file != null) {
-            byte[] buf = new byte[this.packetSize - len];
             int read;
-            if ((read = this.file.read(buf)) > 0) {
-                baos.write(buf, 0, read);
+            while (len < this.packetSize && (read = this.file.read(packet, len, this.packetSize - len)) > 0) {
+                len += read;
             }
+        } else if (this.fileChannel != null && this.fileBytesLeft > 0) {
+            //positional reads straight into the packet buffer
+            packetPayload.clear();
+            packetPayload.limit((int) Math.min(this.packetSize, len + this.fileBytesLeft));
+            packetPayload.position(len);
+            int read;
+            while (packetPayload.hasRemaining() && (read = this.fileChannel.read(packetPayload, this.filePosition)) > 0) {
+                this.filePosition  += read;
+                this.fileBytesLeft -= read;
+            }
+            len = packetPayload.position();
         }
 
-        return baos.toByteArray();
+        if (len > PacketFormat.getOverhead()) {
+            //the packet length does not include the length itself
+            packetHeader.putInt(0, len - PacketFormat.getLengthOverhead());
+            packetHeader.putInt(PacketFormat.getLengthOverhead(), this.messageNo);
+            packetLength = len;
+        }
     }
 }
@@ -47,6 +47,7 @@ import com.lastcrusade.soundstream.net.MessageThreadMessageDispatch.IMessageHand
 import com.lastcrusade.soundstream.net.message.ConnectGuestsMessage;
 import com.lastcrusade.soundstream.net.message.FindNewGuestsMessage;
 import com.lastcrusade.soundstream.net.message.FoundGuestsMessage;
+import com.lastcrusade.soundstream.net.message.IFileMessage;
 import com.lastcrusade.soundstream.net.message.IMessage;
 import com.lastcrusade.soundstream.service.MessagingService.MessagingServiceBinder;
 import com.lastcrusade.soundstream.util.BluetoothUtils;
@@ -89,6 +90,15 @@ public class ConnectionService extends Service {
     public static final String ACTION_HOST_CONNECTED       = ConnectionService.class.getName() + ".action.HostConnected";
     public static final String ACTION_HOST_DISCONNECTED    = ConnectionService.class.getName() + ".action.HostDisconnected";
 
+    /**
+     * Action to indicate a connection was dropped because the remote device runs a version of
+     * SoundStream we can't talk to.  This is sent before the disconnected action.
+     * 
+     * This uses EXTRA_DEVICE_NAME to report the device.
+     */
+    public static final String ACTION_INCOMPATIBLE_VERSION = ConnectionService.class.getName() + ".action.IncompatibleVersion";
+    public static final String EXTRA_DEVICE_NAME           = ConnectionService.class.getName() + ".extra.DeviceName";
+
     /**
      * Class for clients to access.  Because we know this service always
      * runs in the same process as its clients, we don't need to deal with
@@ -204,8 +214,8 @@ public class ConnectionService extends Service {
     }
 
     /**
-     * Register a handler to route all unhandled messages to
-     * the messaging service
+     * Register a handler to route all unhandled messages, and files
+     * that have started to arrive, to the messaging service
      */
     private void registerMessagingServiceHandler() {
         this.messageDispatch.setDefaultHandler(new IMessageHandler<IMessage>() {
@@ -221,6 +231,19 @@ public class ConnectionService extends Service {
                 }
             }
         });
+        this.messageDispatch.setFileStartedHandler(new IMessageHandler<IFileMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo, IFileMessage message,
+                    String fromAddr) {
+                try {
+                    messagingServiceLocator.getService().receiveFileStarted(
+                            message, fromAddr);
+                } catch (ServiceNotBoundException e) {
+                    Log.wtf(TAG, e);
+                }
+            }
+        });
     }
 
     @Override
@@ -281,6 +304,14 @@ public class ConnectionService extends Service {
                     discoveryInitiator = null; //clear the initiator to handle the next one
                 }
             })
+           .addLocalAction(ConnectionService.ACTION_INCOMPATIBLE_VERSION, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    Toaster.eToast(ConnectionService.this, R.string.incompatible_version,
+                            intent.getStringExtra(EXTRA_DEVICE_NAME));
+                }
+            })
            .register(this);
     }
 
@@ -345,6 +376,11 @@ public class ConnectionService extends Service {
                     .putExtra(EXTRA_GUEST_ADDRESS, socket.getRemoteDevice().getAddress())
                     .send(ConnectionService.this);
             }
+
+            @Override
+            public void onIncompatibleVersion(int remoteVersion) {
+                sendIncompatibleVersion(socket.getRemoteDevice());
+            }
         };
         newMessageThread.start();
         this.guests.add(newMessageThread);
@@ -356,6 +392,20 @@ public class ConnectionService extends Service {
             .send(this);
     }
 
+    /**
+     * Let the user know that a device was dropped because it runs a version we can't talk to.
+     * 
+     * NOTE: this is called from the device's message thread.
+     * 
+     * @param device
+     */
+    private void sendIncompatibleVersion(BluetoothDevice device) {
+        String name = device.getName() != null ? device.getName() : device.getAddress();
+        new LocalBroadcastIntent(ACTION_INCOMPATIBLE_VERSION)
+            .putExtra(EXTRA_DEVICE_NAME, name)
+            .send(this);
+    }
+
     public void findNewGuests() {
         Log.w(TAG, "Starting Discovery");
         if (isHostConnected()) {
@@ -373,10 +423,23 @@ public class ConnectionService extends Service {
     }
 
     public void broadcastMessageToGuests(IMessage msg) {
+        broadcastMessageToGuestsExcept(null, msg);
+    }
+
+    /**
+     * Send a message to all of the guests except one.
+     * 
+     * @param address The guest to skip, or null to send to all guests.
+     * @param msg
+     */
+    public void broadcastMessageToGuestsExcept(String address, IMessage msg) {
         if (isGuestConnected()) {
+            BluetoothDevice skipped = address != null ? adapter.getRemoteDevice(address) : null;
             try {
                 for (MessageThread guest : this.guests) {
-                    guest.write(msg);
+                    if (skipped == null || !guest.isRemoteDevice(skipped)) {
+                        guest.write(msg);
+                    }
                 }
             } catch (IOException e) {
                 Log.wtf(TAG, e);
@@ -522,7 +585,7 @@ public class ConnectionService extends Service {
      * 
      * @param socket
      */
-    protected void onAcceptedHost(BluetoothSocket socket) {
+    protected void onAcceptedHost(final BluetoothSocket socket) {
         //disable discovery...we found our host.
         BluetoothUtils.disableDiscovery(this);
 
@@ -534,6 +597,11 @@ public class ConnectionService extends Service {
                 host = null;
                 new LocalBroadcastIntent(ACTION_HOST_DISCONNECTED).send(ConnectionService.this);
             }
+
+            @Override
+            public void onIncompatibleVersion(int remoteVersion) {
+                sendIncompatibleVersion(socket.getRemoteDevice());
+            }
         };
         this.host.start();
 
@@ -35,11 +35,39 @@ public interface IMessagingService {
     public void sendLibraryMessageToHost(List<SongMetadata> library);
     
     /**
-     * Send the library to all currently connected guests.
+     * Send a snapshot of the library to one guest.
      * 
+     * @param address The address of the guest
      * @param library
+     * @param sequence The sequence number of the last library delta included in this snapshot
      */
-    public void sendLibraryMessageToGuests(List<SongMetadata> library);
+    public void sendLibraryMessageToGuest(String address, List<SongMetadata> library, int sequence);
+
+    /**
+     * Send a change to the library for one owner to all currently connected guests.
+     * 
+     * @param sequence The sequence number of this delta
+     * @param macAddress The owner of the songs
+     * @param replace True to remove all existing songs for the owner before adding songs
+     * @param songs Songs to add or replace
+     * @param exceptAddress A guest that already has these songs (e.g. the guest that sent them), or null
+     */
+    public void sendLibraryDeltaMessageToGuests(int sequence, String macAddress, boolean replace, List<SongMetadata> songs,
+            String exceptAddress);
+
+    /**
+     * Send a change to our own songs to the connected host.
+     * 
+     * @param macAddress Our address, as the owner of the songs
+     * @param songs Songs to add or replace
+     */
+    public void sendLibraryDeltaMessageToHost(String macAddress, List<SongMetadata> songs);
+
+    /**
+     * Request a full snapshot of the library from the host.
+     * 
+     */
+    public void sendRequestLibraryMessage();
     
     /**
      * Send a pause message to the host.
@@ -67,13 +95,79 @@ public interface IMessagingService {
 
     public void sendPlayStatusMessage(PlaylistEntry currentSong, boolean isPlaying);
 
-    public void sendPlaylistMessage(List<? extends PlaylistEntry> songsToPlay);
+    /**
+     * Send a snapshot of the playlist to one guest.
+     * 
+     * @param address The address of the guest
+     * @param songsToPlay
+     * @param version The version of the playlist
+     */
+    public void sendPlaylistMessageToGuest(String address, List<? extends PlaylistEntry> songsToPlay, int version);
+
+    /**
+     * Send a change to the playlist to all currently connected guests.
+     * 
+     * @param version The version of the playlist after this patch
+     * @param ops The operation for each entry (see PlaylistPatchMessage)
+     * @param positions The position for each entry
+     * @param entries The entries to patch
+     */
+    public void sendPlaylistPatchMessageToGuests(int version, int[] ops, int[] positions, List<? extends PlaylistEntry> entries);
+
+    /**
+     * Request a full snapshot of the playlist from the host.
+     * 
+     */
+    public void sendRequestPlaylistMessage();
 
     public void sendSongStatusMessage(PlaylistEntry currentSong);
 
-    public void sendRequestSongMessage(String address, long songId);
+    /**
+     * Request a song from a guest, starting at fileOffset.
+     * 
+     * @param address
+     * @param songId
+     * @param transferId An id for the transfer, which is sent back with the song.
+     * @param fileOffset The first byte to send, used to resume an interrupted transfer.
+     */
+    public void sendRequestSongMessage(String address, long songId, long transferId, long fileOffset);
+
+    /**
+     * Request several songs from a guest at once.  The guest sends the songs in
+     * priority order (see RequestSongBatchMessage).
+     * 
+     * @param address
+     * @param songIds
+     * @param transferIds The transfer id for each song, which is sent back with the song.
+     * @param priorities The priority for each song, lowest first.
+     * @param fileOffsets The first byte to send for each song.
+     * @param fileLengths The number of bytes to send for each song, or IFileRangeMessage.TO_END_OF_FILE.
+     */
+    public void sendRequestSongBatchMessage(String address, long[] songIds, long[] transferIds,
+            int[] priorities, long[] fileOffsets, long[] fileLengths);
+
+    /**
+     * Tell a guest to stop sending a song.
+     * 
+     * @param address
+     * @param transferId The transfer id from the request.
+     */
+    public void sendCancelTransferMessage(String address, long transferId);
 
-    public void sendTransferSongMessage(String address, long songId, String fileName, String filePath);
+    /**
+     * Send a song file, or the part of it starting at fileOffset.
+     * 
+     * @param address
+     * @param songId
+     * @param fileName
+     * @param filePath
+     * @param transferId The transfer id from the request.
+     * @param fileOffset The first byte to send.
+     * @param fileLength The number of bytes to send, or IFileRangeMessage.TO_END_OF_FILE.
+     * @param checksums The checksums for every chunk of the whole file (see ChunkChecksums).
+     */
+    public void sendTransferSongMessage(String address, long songId, String fileName, String filePath,
+            long transferId, long fileOffset, long fileLength, int[] checksums);
 
     public void sendUserListMessage(UserList userlist);
 }
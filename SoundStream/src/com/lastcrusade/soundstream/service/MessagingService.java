@@ -34,13 +34,20 @@ import com.lastcrusade.soundstream.net.MessageThreadMessageDispatch;
 import com.lastcrusade.soundstream.net.MessageThreadMessageDispatch.IMessageHandler;
 import com.lastcrusade.soundstream.net.message.AddToPlaylistMessage;
 import com.lastcrusade.soundstream.net.message.BumpSongOnPlaylistMessage;
+import com.lastcrusade.soundstream.net.message.CancelTransferMessage;
+import com.lastcrusade.soundstream.net.message.IFileMessage;
 import com.lastcrusade.soundstream.net.message.IMessage;
+import com.lastcrusade.soundstream.net.message.LibraryDeltaMessage;
 import com.lastcrusade.soundstream.net.message.LibraryMessage;
 import com.lastcrusade.soundstream.net.message.PauseMessage;
 import com.lastcrusade.soundstream.net.message.PlayMessage;
 import com.lastcrusade.soundstream.net.message.PlayStatusMessage;
 import com.lastcrusade.soundstream.net.message.PlaylistMessage;
+import com.lastcrusade.soundstream.net.message.PlaylistPatchMessage;
 import com.lastcrusade.soundstream.net.message.RemoveFromPlaylistMessage;
+import com.lastcrusade.soundstream.net.message.RequestLibraryMessage;
+import com.lastcrusade.soundstream.net.message.RequestPlaylistMessage;
+import com.lastcrusade.soundstream.net.message.RequestSongBatchMessage;
 import com.lastcrusade.soundstream.net.message.RequestSongMessage;
 import com.lastcrusade.soundstream.net.message.SkipMessage;
 import com.lastcrusade.soundstream.net.message.SongStatusMessage;
@@ -62,9 +69,27 @@ public class MessagingService extends Service implements IMessagingService {
     
     public static final String ACTION_LIBRARY_MESSAGE = MessagingService.class.getName() + ".action.LibraryMessage";
     public static final String EXTRA_SONG_METADATA    = MessagingService.class.getName() + ".extra.SongMetadata";
+    //also uses ADDRESS
+    public static final String EXTRA_SEQUENCE         = MessagingService.class.getName() + ".extra.Sequence";
+
+    public static final String ACTION_LIBRARY_DELTA_MESSAGE = MessagingService.class.getName() + ".action.LibraryDeltaMessage";
+    //also uses ADDRESS, SEQUENCE and SONG_METADATA
+    public static final String EXTRA_REPLACE                = MessagingService.class.getName() + ".extra.Replace";
+    //the device that sent the delta (deltas from a guest to the host have no sequence)
+    public static final String EXTRA_FROM_ADDRESS           = MessagingService.class.getName() + ".extra.FromAddress";
+
+    public static final String ACTION_REQUEST_LIBRARY_MESSAGE = MessagingService.class.getName() + ".action.RequestLibraryMessage";
 
     public static final String ACTION_PLAYLIST_UPDATED_MESSAGE = MessagingService.class.getName() + ".action.PlaylistUpdated";
     public static final String EXTRA_PLAYLIST_ENTRY    = MessagingService.class.getName() + ".extra.PlaylistEntry";
+    public static final String EXTRA_PLAYLIST_VERSION  = MessagingService.class.getName() + ".extra.PlaylistVersion";
+
+    public static final String ACTION_PLAYLIST_PATCH_MESSAGE = MessagingService.class.getName() + ".action.PlaylistPatchMessage";
+    //also uses PLAYLIST_ENTRY and PLAYLIST_VERSION
+    public static final String EXTRA_PATCH_OPS               = MessagingService.class.getName() + ".extra.PatchOps";
+    public static final String EXTRA_PATCH_POSITIONS         = MessagingService.class.getName() + ".extra.PatchPositions";
+
+    public static final String ACTION_REQUEST_PLAYLIST_MESSAGE = MessagingService.class.getName() + ".action.RequestPlaylistMessage";
     
     public static final String ACTION_NEW_CONNECTED_USERS_MESSAGE = MessagingService.class.getName() + ".action.UserListMessage";
     public static final String EXTRA_USER_LIST                    = MessagingService.class.getName() + ".extra.UserList";
@@ -72,11 +97,28 @@ public class MessagingService extends Service implements IMessagingService {
     public static final String ACTION_REQUEST_SONG_MESSAGE        = MessagingService.class.getName() + ".action.RequestSongMessage";
     public static final String EXTRA_ADDRESS                      = MessagingService.class.getName() + ".extra.Address";
     public static final String EXTRA_SONG_ID                      = MessagingService.class.getName() + ".extra.SongId";
+    //used to resume an interrupted transfer
+    public static final String EXTRA_TRANSFER_ID                  = MessagingService.class.getName() + ".extra.TransferId";
+    public static final String EXTRA_FILE_OFFSET                  = MessagingService.class.getName() + ".extra.FileOffset";
+
+    public static final String ACTION_REQUEST_SONG_BATCH_MESSAGE  = MessagingService.class.getName() + ".action.RequestSongBatchMessage";
+    //also uses ADDRESS
+    public static final String EXTRA_SONG_IDS                     = MessagingService.class.getName() + ".extra.SongIds";
+    public static final String EXTRA_TRANSFER_IDS                 = MessagingService.class.getName() + ".extra.TransferIds";
+    public static final String EXTRA_PRIORITIES                   = MessagingService.class.getName() + ".extra.Priorities";
+    public static final String EXTRA_FILE_OFFSETS                 = MessagingService.class.getName() + ".extra.FileOffsets";
+    public static final String EXTRA_FILE_LENGTHS                 = MessagingService.class.getName() + ".extra.FileLengths";
 
     public static final String ACTION_TRANSFER_SONG_MESSAGE       = MessagingService.class.getName() + ".action.TransferSongMessage";
     //also uses ADDRESS and SONG_ID
     public static final String EXTRA_SONG_FILE_NAME               = MessagingService.class.getName() + ".extra.SongFileName";
     public static final String EXTRA_SONG_TEMP_FILE               = MessagingService.class.getName() + ".extra.SongTempFile";
+    //also uses TRANSFER_ID and FILE_OFFSET
+    public static final String EXTRA_CHECKSUMS                    = MessagingService.class.getName() + ".extra.Checksums";
+
+    //sent when a song starts to arrive, before the whole file is here (see IncomingFile)
+    //also uses ADDRESS, SONG_ID, SONG_FILE_NAME and SONG_TEMP_FILE
+    public static final String ACTION_TRANSFER_SONG_STARTED       = MessagingService.class.getName() + ".action.TransferSongStarted";
 
     public static final String ACTION_ADD_TO_PLAYLIST_MESSAGE      = MessagingService.class.getName() + ".action.AddToPlaylistMessage";
     public static final String ACTION_REMOVE_FROM_PLAYLIST_MESSAGE = MessagingService.class.getName() + ".action.RemoveFromPlaylistMessage";
@@ -152,9 +194,34 @@ public class MessagingService extends Service implements IMessagingService {
         this.messageDispatch.handleMessage(messageNo, message, fromAddr);
     }
 
+    /**
+     * Called when a file message starts receiving its file, so the file can be used
+     * while the rest of it is still arriving (see IncomingFile).  The message itself
+     * is received as usual once the whole file is here.
+     * 
+     * @param fileMessage
+     * @param fromAddr
+     */
+    public void receiveFileStarted(IFileMessage fileMessage, String fromAddr) {
+        if (fileMessage instanceof TransferSongMessage) {
+            TransferSongMessage transfer = (TransferSongMessage) fileMessage;
+            new LocalBroadcastIntent(ACTION_TRANSFER_SONG_STARTED)
+                .putExtra(EXTRA_ADDRESS,        fromAddr)
+                .putExtra(EXTRA_SONG_ID,        transfer.getSongId())
+                .putExtra(EXTRA_SONG_FILE_NAME, transfer.getSongFileName())
+                .putExtra(EXTRA_SONG_TEMP_FILE, transfer.getFilePath())
+                .putExtra(EXTRA_TRANSFER_ID,    transfer.getTransferId())
+                .putExtra(EXTRA_FILE_OFFSET,    transfer.getFileOffset())
+                .putExtra(EXTRA_CHECKSUMS,      transfer.getChecksums())
+                .send(this);
+        }
+    }
+
     private void registerMessageHandlers() {
         this.messageDispatch = new MessageThreadMessageDispatch();
         registerLibraryMessageHandler();
+        registerLibraryDeltaMessageHandler();
+        registerRequestLibraryMessageHandler();
         registerPauseMessageHandler();
         registerPlayMessageHandler();
         registerSkipMessageHandler();
@@ -162,9 +229,12 @@ public class MessagingService extends Service implements IMessagingService {
         registerBumpSongOnPlaylistMessageHandler();
         registerRemoveFromPlaylistMessageHandler();
         registerPlaylistMessageHandler();
+        registerPlaylistPatchMessageHandler();
+        registerRequestPlaylistMessageHandler();
         registerPlayStatusMessageHandler();
         registerSongStatusMessageHandler();
         registerRequestSongMessageHandler();
+        registerRequestSongBatchMessageHandler();
         registerTransferSongMessageHandler();
         registerUserListMessageHandler();
     }
@@ -177,6 +247,38 @@ public class MessagingService extends Service implements IMessagingService {
                     LibraryMessage message, String fromAddr) {
                 new LocalBroadcastIntent(ACTION_LIBRARY_MESSAGE)
                     .putParcelableArrayListExtra(EXTRA_SONG_METADATA, message.getLibrary())
+                    .putExtra(EXTRA_SEQUENCE, message.getSequence())
+                    .putExtra(EXTRA_ADDRESS,  fromAddr)
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
+    private void registerLibraryDeltaMessageHandler() {
+        this.messageDispatch.registerHandler(LibraryDeltaMessage.class, new IMessageHandler<LibraryDeltaMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    LibraryDeltaMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_LIBRARY_DELTA_MESSAGE)
+                    .putParcelableArrayListExtra(EXTRA_SONG_METADATA, message.getSongs())
+                    .putExtra(EXTRA_SEQUENCE, message.getSequence())
+                    .putExtra(EXTRA_ADDRESS,  message.getMacAddress())
+                    .putExtra(EXTRA_REPLACE,  message.isReplace())
+                    .putExtra(EXTRA_FROM_ADDRESS, fromAddr)
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
+    private void registerRequestLibraryMessageHandler() {
+        this.messageDispatch.registerHandler(RequestLibraryMessage.class, new IMessageHandler<RequestLibraryMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    RequestLibraryMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_REQUEST_LIBRARY_MESSAGE)
+                    .putExtra(EXTRA_ADDRESS, fromAddr)
                     .send(MessagingService.this);
             }
         });
@@ -241,6 +343,26 @@ public class MessagingService extends Service implements IMessagingService {
                 new LocalBroadcastIntent(ACTION_REQUEST_SONG_MESSAGE)
                     .putExtra(EXTRA_ADDRESS, fromAddr)
                     .putExtra(EXTRA_SONG_ID, message.getSongId())
+                    .putExtra(EXTRA_TRANSFER_ID, message.getTransferId())
+                    .putExtra(EXTRA_FILE_OFFSET, message.getFileOffset())
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
+    private void registerRequestSongBatchMessageHandler() {
+        this.messageDispatch.registerHandler(RequestSongBatchMessage.class, new IMessageHandler<RequestSongBatchMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    RequestSongBatchMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_REQUEST_SONG_BATCH_MESSAGE)
+                    .putExtra(EXTRA_ADDRESS,      fromAddr)
+                    .putExtra(EXTRA_SONG_IDS,     message.getSongIds())
+                    .putExtra(EXTRA_TRANSFER_IDS, message.getTransferIds())
+                    .putExtra(EXTRA_PRIORITIES,   message.getPriorities())
+                    .putExtra(EXTRA_FILE_OFFSETS, message.getFileOffsets())
+                    .putExtra(EXTRA_FILE_LENGTHS, message.getFileLengths())
                     .send(MessagingService.this);
             }
         });
@@ -258,6 +380,9 @@ public class MessagingService extends Service implements IMessagingService {
                         .putExtra(EXTRA_SONG_ID,        message.getSongId())
                         .putExtra(EXTRA_SONG_FILE_NAME, message.getSongFileName())
                         .putExtra(EXTRA_SONG_TEMP_FILE, message.getFilePath())
+                        .putExtra(EXTRA_TRANSFER_ID,    message.getTransferId())
+                        .putExtra(EXTRA_FILE_OFFSET,    message.getFileOffset())
+                        .putExtra(EXTRA_CHECKSUMS,      message.getChecksums())
                         .send(MessagingService.this);
                 } catch (Exception e) {
                     Log.wtf(TAG, e);
@@ -340,6 +465,7 @@ public class MessagingService extends Service implements IMessagingService {
 
                 new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED_MESSAGE)
                     .putParcelableArrayListExtra(EXTRA_PLAYLIST_ENTRY, message.getSongsToPlay())
+                    .putExtra(EXTRA_PLAYLIST_VERSION, message.getVersion())
                     .send(MessagingService.this);
                 
                 //if we are the host and we are receiving the message as the host, we need to
@@ -355,6 +481,37 @@ public class MessagingService extends Service implements IMessagingService {
         });
     }
 
+    private void registerPlaylistPatchMessageHandler() {
+        this.messageDispatch.registerHandler(PlaylistPatchMessage.class,
+                new IMessageHandler<PlaylistPatchMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    PlaylistPatchMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_PLAYLIST_PATCH_MESSAGE)
+                    .putParcelableArrayListExtra(EXTRA_PLAYLIST_ENTRY, message.getEntries())
+                    .putExtra(EXTRA_PLAYLIST_VERSION, message.getVersion())
+                    .putExtra(EXTRA_PATCH_OPS,        message.getOps())
+                    .putExtra(EXTRA_PATCH_POSITIONS,  message.getPositions())
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
+    private void registerRequestPlaylistMessageHandler() {
+        this.messageDispatch.registerHandler(RequestPlaylistMessage.class,
+                new IMessageHandler<RequestPlaylistMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    RequestPlaylistMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_REQUEST_PLAYLIST_MESSAGE)
+                    .putExtra(EXTRA_ADDRESS, fromAddr)
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
     private void sendMessageToGuest(String address, IMessage msg) {
         try {
             if (this.connectServiceLocator.getService().isGuestConnected(address)) {
@@ -393,10 +550,38 @@ public class MessagingService extends Service implements IMessagingService {
     }
     
     @Override
-    public void sendLibraryMessageToGuests(List<SongMetadata> library) {
-        LibraryMessage msg = new LibraryMessage(library);
+    public void sendLibraryDeltaMessageToHost(String macAddress, List<SongMetadata> songs) {
+        LibraryDeltaMessage msg = new LibraryDeltaMessage(LibraryMessage.NO_SEQUENCE, macAddress, false, songs);
+        //send the message to the host
+        sendMessageToHost(msg);
+    }
+
+    @Override
+    public void sendLibraryMessageToGuest(String address, List<SongMetadata> library, int sequence) {
+        LibraryMessage msg = new LibraryMessage(library, sequence);
+        //send the message to the guest
+        sendMessageToGuest(address, msg);
+    }
+
+    @Override
+    public void sendLibraryDeltaMessageToGuests(int sequence, String macAddress,
+            boolean replace, List<SongMetadata> songs, String exceptAddress) {
+        LibraryDeltaMessage msg = new LibraryDeltaMessage(sequence, macAddress, replace, songs);
         //send the message to the guests
-        sendMessageToGuests(msg);
+        try {
+            if (this.connectServiceLocator.getService().isGuestConnected()) {
+                this.connectServiceLocator.getService().broadcastMessageToGuestsExcept(exceptAddress, msg);
+            }
+        } catch (ServiceNotBoundException e) {
+            Log.wtf(TAG, e);
+        }
+    }
+
+    @Override
+    public void sendRequestLibraryMessage() {
+        RequestLibraryMessage msg = new RequestLibraryMessage();
+        //send the message to the host
+        sendMessageToHost(msg);
     }
 
     @Override
@@ -452,17 +637,32 @@ public class MessagingService extends Service implements IMessagingService {
     }
     
 
-    public void sendPlaylistMessage(List<? extends PlaylistEntry> songsToPlay){
+    @Override
+    public void sendPlaylistMessageToGuest(String address, List<? extends PlaylistEntry> songsToPlay, int version) {
+        PlaylistMessage playlistMessage = new PlaylistMessage(songsToPlay, version);
+        //send the message to the guest
+        sendMessageToGuest(address, playlistMessage);
+    }
+
+    @Override
+    public void sendPlaylistPatchMessageToGuests(int version, int[] ops, int[] positions,
+            List<? extends PlaylistEntry> entries) {
         try {
-            PlaylistMessage playlistMessage = new PlaylistMessage(songsToPlay);
+            PlaylistPatchMessage msg = new PlaylistPatchMessage(version, ops, positions, entries);
             //send the message to guests only
             if (this.connectServiceLocator.getService().isGuestConnected()) {
-                sendMessageToGuests(playlistMessage);
+                sendMessageToGuests(msg);
             }
         } catch (ServiceNotBoundException e) {
             Log.wtf(TAG, e);
         }
+    }
 
+    @Override
+    public void sendRequestPlaylistMessage() {
+        RequestPlaylistMessage msg = new RequestPlaylistMessage();
+        //send the message to the host
+        sendMessageToHost(msg);
     }
     
     @Override
@@ -474,16 +674,33 @@ public class MessagingService extends Service implements IMessagingService {
     }
 
     @Override
-    public void sendRequestSongMessage(String address, long songId) {
-        RequestSongMessage msg = new RequestSongMessage(songId);
+    public void sendRequestSongMessage(String address, long songId, long transferId, long fileOffset) {
+        RequestSongMessage msg = new RequestSongMessage(songId, transferId, fileOffset);
         //send the message to the guests
         sendMessageToGuest(address, msg);
     }
     
+    @Override
+    public void sendRequestSongBatchMessage(String address, long[] songIds, long[] transferIds,
+            int[] priorities, long[] fileOffsets, long[] fileLengths) {
+        RequestSongBatchMessage msg = new RequestSongBatchMessage(songIds, transferIds,
+                priorities, fileOffsets, fileLengths);
+        //send the message to the guest that has the songs
+        sendMessageToGuest(address, msg);
+    }
+    
+    @Override
+    public void sendCancelTransferMessage(String address, long transferId) {
+        CancelTransferMessage msg = new CancelTransferMessage(transferId);
+        //send the message to the guest that is sending the song
+        sendMessageToGuest(address, msg);
+    }
+    
     @Override
     public void sendTransferSongMessage(String address, long songId,
-            String fileName, String filePath) {
-        TransferSongMessage msg = new TransferSongMessage(songId, fileName, filePath);
+            String fileName, String filePath, long transferId, long fileOffset, long fileLength, int[] checksums) {
+        TransferSongMessage msg = new TransferSongMessage(songId, fileName, filePath, transferId,
+                fileOffset, fileLength, checksums);
         //send the message to the fans
         sendMessageToHost(msg);
         
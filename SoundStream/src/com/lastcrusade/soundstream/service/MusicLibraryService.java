@@ -23,9 +23,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -38,15 +40,18 @@ import android.util.Log;
 
 import com.lastcrusade.soundstream.R;
 import com.lastcrusade.soundstream.library.MediaStoreWrapper;
-import com.lastcrusade.soundstream.library.SongNotFoundException;
+import com.lastcrusade.soundstream.library.SegmentedLibrary;
 import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.net.message.IFileRangeMessage;
+import com.lastcrusade.soundstream.net.message.LibraryMessage;
+import com.lastcrusade.soundstream.net.message.RequestSongMessage;
 import com.lastcrusade.soundstream.service.MessagingService.MessagingServiceBinder;
 import com.lastcrusade.soundstream.service.ServiceLocator.IOnBindListener;
-import com.lastcrusade.soundstream.util.AlphabeticalComparator;
+import com.lastcrusade.soundstream.util.ChunkChecksums;
 import com.lastcrusade.soundstream.util.LocalBroadcastIntent;
 import com.lastcrusade.soundstream.util.BroadcastRegistrar;
 import com.lastcrusade.soundstream.util.IBroadcastActionHandler;
-import com.lastcrusade.soundstream.util.SongMetadataUtils;
+import com.lastcrusade.soundstream.util.SongFingerprint;
 
 public class MusicLibraryService extends Service {
     
@@ -60,18 +65,27 @@ public class MusicLibraryService extends Service {
             .getName() + ".action.LibraryUpdated";
 
     /**
-     * A map of keys to array positions, and an array of song metadata.
+     * The songs in the library, sorted alphabetically and indexed by key, in one
+     * segment per owner.
      * 
-     * This lets us maintain the order in which things are added, but also allows
-     * us to quickly account for duplicates/replace with updated data.
-     * 
-     * This is also the solution to a common interview question :-)
+     * Songs are added, replaced and removed in place, so a change to the library
+     * costs O(log n) per song instead of a sort of the whole library.  A guest
+     * joining or leaving only touches that guest's segment.  The songs are stored
+     * in columns, and the SongMetadata handed out are views built when asked for.
      * 
+     * NOTE: the library is always ordered alphabetically (see SongSortKey).
      */
-    private Map<String, Integer> metadataMap  = new HashMap<String, Integer>();
-    private List<SongMetadata>   metadataList = new ArrayList<SongMetadata>();
+    private SegmentedLibrary library = new SegmentedLibrary();
     
     private final Object metadataMutex = new Object();
+
+    /**
+     * Library delta sequence numbers.  The host assigns a sequence number to each
+     * delta it sends to the guests, and a guest tracks the sequence number of the last
+     * delta it applied (or NO_SEQUENCE if it is waiting for a snapshot from the host).
+     */
+    private int sentLibrarySequence     = 0;
+    private int receivedLibrarySequence = LibraryMessage.NO_SEQUENCE;
     
     private BroadcastRegistrar registrar;
 
@@ -107,6 +121,7 @@ public class MusicLibraryService extends Service {
 
                 //update the library with the local songs
                 updateLibrary(metadataList, false);
+                fingerprintLibrary(metadataList);
             }
         });
 
@@ -140,7 +155,43 @@ public class MusicLibraryService extends Service {
                 @Override
                 public void onReceiveAction(Context context, Intent intent) {
                     List<SongMetadata> remoteMetas = intent.getParcelableArrayListExtra(MessagingService.EXTRA_SONG_METADATA);
-                    updateLibrary(remoteMetas, true);
+                    int sequence = intent.getIntExtra(MessagingService.EXTRA_SEQUENCE, LibraryMessage.NO_SEQUENCE);
+                    if (sequence == LibraryMessage.NO_SEQUENCE) {
+                        //a guest sent us its library...replace what we have for that guest, and
+                        // send the guest the rest of the library
+                        String fromAddr = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                        replaceLibraryForAddress(fromAddr, remoteMetas, true);
+                        sendLibrarySnapshot(fromAddr);
+                    } else {
+                        //the host sent us a snapshot of the library
+                        applyLibrarySnapshot(sequence, remoteMetas);
+                    }
+                }
+            })
+            .addLocalAction(MessagingService.ACTION_LIBRARY_DELTA_MESSAGE, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    List<SongMetadata> remoteMetas = intent.getParcelableArrayListExtra(MessagingService.EXTRA_SONG_METADATA);
+                    int     sequence   = intent.getIntExtra(MessagingService.EXTRA_SEQUENCE, LibraryMessage.NO_SEQUENCE);
+                    String  macAddress = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                    boolean replace    = intent.getBooleanExtra(MessagingService.EXTRA_REPLACE, false);
+                    if (sequence == LibraryMessage.NO_SEQUENCE) {
+                        //a guest sent us a change to its songs...pass it on to the other guests
+                        updateLibrary(remoteMetas, true, intent.getStringExtra(MessagingService.EXTRA_FROM_ADDRESS));
+                    } else if (!applyLibraryDelta(sequence, macAddress, replace, remoteMetas)) {
+                        //we missed a delta...ask the host for the whole library
+                        if (getMessagingService() != null) {
+                            getMessagingService().sendRequestLibraryMessage();
+                        }
+                    }
+                }
+            })
+            .addLocalAction(MessagingService.ACTION_REQUEST_LIBRARY_MESSAGE, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    sendLibrarySnapshot(intent.getStringExtra(MessagingService.EXTRA_ADDRESS));
                 }
             })
             .addLocalAction(MessagingService.ACTION_REQUEST_SONG_MESSAGE, new IBroadcastActionHandler() {
@@ -149,14 +200,29 @@ public class MusicLibraryService extends Service {
                 public void onReceiveAction(Context context, Intent intent) {
                     String fromAddr = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
                     long   songId   = intent.getLongExtra(  MessagingService.EXTRA_SONG_ID, SongMetadata.UNKNOWN_SONG);
+                    long   transferId = intent.getLongExtra(MessagingService.EXTRA_TRANSFER_ID, RequestSongMessage.NO_TRANSFER);
+                    long   fileOffset = intent.getLongExtra(MessagingService.EXTRA_FILE_OFFSET, 0);
 
                     if (songId == SongMetadata.UNKNOWN_SONG) {
                         Log.wtf(TAG, "REQUEST_SONG_MESSAGE action received without a valid song id");    
                     } else {
-                        sendSongData(fromAddr, songId);
+                        sendSongData(fromAddr, songId, transferId, fileOffset);
                     }
                 }
             })
+            .addLocalAction(MessagingService.ACTION_REQUEST_SONG_BATCH_MESSAGE, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    String fromAddr    = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                    long[] songIds     = intent.getLongArrayExtra(MessagingService.EXTRA_SONG_IDS);
+                    long[] transferIds = intent.getLongArrayExtra(MessagingService.EXTRA_TRANSFER_IDS);
+                    int[]  priorities  = intent.getIntArrayExtra( MessagingService.EXTRA_PRIORITIES);
+                    long[] fileOffsets = intent.getLongArrayExtra(MessagingService.EXTRA_FILE_OFFSETS);
+                    long[] fileLengths = intent.getLongArrayExtra(MessagingService.EXTRA_FILE_LENGTHS);
+                    sendSongBatch(fromAddr, songIds, transferIds, priorities, fileOffsets, fileLengths);
+                }
+            })
             .addLocalAction(ConnectionService.ACTION_GUEST_DISCONNECTED, new IBroadcastActionHandler() {
 
                 @Override
@@ -175,8 +241,8 @@ public class MusicLibraryService extends Service {
 
     public List<SongMetadata> getLibrary() {
         synchronized(metadataMutex) {
-            //unmodifiable copy, for safety
-            return Collections.unmodifiableList(new ArrayList<SongMetadata>(metadataList));
+            //NOTE: this list can't be modified, and is shared until the library changes
+            return library.toList();
         }
     }
 
@@ -187,14 +253,8 @@ public class MusicLibraryService extends Service {
 
     private List<SongMetadata> getMyModifiableLibrary() {
         synchronized(metadataMutex) {
-            List<SongMetadata> myLibrary = new ArrayList<SongMetadata>();
-            //look thru the library, and pull out songs with "my" mac address
-            for (SongMetadata meta : metadataList) {
-                if (meta.getMacAddress().equals(this.myMacAddress)) {
-                    myLibrary.add(meta);
-                }
-            }
-            return myLibrary;
+            //"my" songs are the segment with "my" mac address
+            return library.getSongs(this.myMacAddress);
         }
     }
 
@@ -208,43 +268,157 @@ public class MusicLibraryService extends Service {
      * @param notify
      */
     void updateLibrary(Collection<SongMetadata> additionalSongs, boolean notify) {
+        updateLibrary(additionalSongs, notify, null);
+    }
+
+    /**
+     * @param additionalSongs
+     * @param notify
+     * @param exceptAddress A guest not to send the changes to (e.g. the guest that sent them), or null.
+     */
+    private void updateLibrary(Collection<SongMetadata> additionalSongs, boolean notify, String exceptAddress) {
+        synchronized(metadataMutex) {
+            addOrReplaceSongs(additionalSongs);
+        }
+        if (notify) {
+            notifyLibraryUpdated();
+            //send the changes out to the guests, one delta per owner
+            for (Map.Entry<String, List<SongMetadata>> entry : groupByAddress(additionalSongs).entrySet()) {
+                sendLibraryDelta(entry.getKey(), false, entry.getValue(), exceptAddress);
+            }
+        }
+    }
+
+    /**
+     * Replace all songs that belong to the specified mac address with the songs passed in.
+     * 
+     * NOTE: This should not be called by an outside user.  It is package protected to allow us to unit test
+     * it, but generally speaking, the library gets updated from network messages and the onCreate method.
+     * 
+     * @param macAddress
+     * @param songs
+     * @param notify
+     */
+    void replaceLibraryForAddress(String macAddress, Collection<SongMetadata> songs, boolean notify) {
         synchronized(metadataMutex) {
-            for (SongMetadata song : additionalSongs) {
-                String key = SongMetadataUtils.getUniqueKey(song);
-                if (metadataMap.containsKey(key)) {
-                    //song already exists, replace the existing entry in the list with the new data.
-                    metadataList.set(metadataMap.get(key), song);
-                } else {
-                    //new song to add to the list...add it, and store the position in the map
-                    int nextInx = metadataList.size();
-                    metadataList.add(song);
-                    metadataMap.put(key, nextInx);
+            //build the owner's new segment, and swap it in
+            library.replaceOwner(macAddress, songs);
+            List<SongMetadata> others = new ArrayList<SongMetadata>();
+            for (SongMetadata song : songs) {
+                if (!macAddress.equals(song.getMacAddress())) {
+                    others.add(song);
                 }
             }
-            
-            /*
-             * by default we want to order alphabetically
-             * when we have more options, this can be moved elsewhere
-             * and governed by some type of flag.
-             */
-            orderAlphabetically();
+            addOrReplaceSongs(others);
         }
         if (notify) {
             notifyLibraryUpdated();
+            //the owner just sent us these songs, and gets the rest of the library in a snapshot
+            sendLibraryDelta(macAddress, true, new ArrayList<SongMetadata>(songs), macAddress);
         }
     }
 
     /**
-     * Notify that the library was updated.  This includes
-     * sending an intent to the system, and sending the library out
-     * to the guests.
+     * Notify that the library was updated.
      */
     private void notifyLibraryUpdated() {
         new LocalBroadcastIntent(ACTION_LIBRARY_UPDATED).send(this);
-        //send the updated library to all the guests out there
+    }
+
+    /**
+     * Send a change to the library out to the guests.  Only the
+     * songs that changed are sent, not the whole library.
+     * 
+     * @param macAddress
+     * @param replace
+     * @param songs
+     * @param exceptAddress A guest not to send the delta to, or null.
+     */
+    private void sendLibraryDelta(String macAddress, boolean replace, List<SongMetadata> songs, String exceptAddress) {
+        if (getMessagingService() != null) {
+            int sequence;
+            synchronized(metadataMutex) {
+                sequence = ++sentLibrarySequence;
+            }
+            getMessagingService().sendLibraryDeltaMessageToGuests(sequence, macAddress, replace, songs, exceptAddress);
+        }
+    }
+
+    /**
+     * Send a snapshot of the library to a guest.  This includes all songs except
+     * the guest's own songs, which the guest already has.
+     * 
+     * @param address
+     */
+    private void sendLibrarySnapshot(String address) {
+        List<SongMetadata> snapshot;
+        int sequence;
+        synchronized(metadataMutex) {
+            snapshot = library.toListExcept(address);
+            sequence = sentLibrarySequence;
+        }
         if (getMessagingService() != null) {
-            getMessagingService().sendLibraryMessageToGuests(getLibrary());
+            getMessagingService().sendLibraryMessageToGuest(address, snapshot, sequence);
+        }
+    }
+
+    /**
+     * Apply a snapshot of the library sent by the host.  This replaces all songs
+     * in the library except our own songs.
+     * 
+     * NOTE: This should not be called by an outside user.  It is package protected to allow us to unit test
+     * it, but generally speaking, the library gets updated from network messages and the onCreate method.
+     * 
+     * @param sequence The sequence number of the last delta included in the snapshot
+     * @param songs
+     */
+    void applyLibrarySnapshot(int sequence, Collection<SongMetadata> songs) {
+        synchronized(metadataMutex) {
+            removeOtherSongs();
+            addOrReplaceSongs(songs);
+            receivedLibrarySequence = sequence;
+        }
+        notifyLibraryUpdated();
+    }
+
+    /**
+     * Apply a library delta sent by the host.  Deltas must be applied in order; a
+     * delta that is already included in our library is ignored, and a gap in the
+     * sequence means we need a new snapshot.
+     * 
+     * NOTE: This should not be called by an outside user.  It is package protected to allow us to unit test
+     * it, but generally speaking, the library gets updated from network messages and the onCreate method.
+     * 
+     * @param sequence
+     * @param macAddress The owner of the songs in the delta
+     * @param replace True to remove all of the owner's songs before adding the songs in the delta
+     * @param songs
+     * @return False if this delta is out of sequence, and a snapshot must be requested.
+     */
+    boolean applyLibraryDelta(int sequence, String macAddress, boolean replace, Collection<SongMetadata> songs) {
+        synchronized(metadataMutex) {
+            //we're either waiting for a snapshot, or we already have this delta
+            if (receivedLibrarySequence == LibraryMessage.NO_SEQUENCE || sequence <= receivedLibrarySequence) {
+                return true;
+            }
+            if (sequence != receivedLibrarySequence + 1) {
+                Log.w(TAG, "Missed library delta (expected " + (receivedLibrarySequence + 1) + ", received " + sequence + ")");
+                //wait for a new snapshot
+                receivedLibrarySequence = LibraryMessage.NO_SEQUENCE;
+                return false;
+            }
+            receivedLibrarySequence = sequence;
+            //we already know about our own songs
+            if (macAddress.equals(this.myMacAddress)) {
+                return true;
+            }
+            if (replace) {
+                removeSongsForAddress(macAddress);
+            }
+            addOrReplaceSongs(songs);
         }
+        notifyLibraryUpdated();
+        return true;
     }
 
     /**
@@ -258,78 +432,205 @@ public class MusicLibraryService extends Service {
      */
     void removeLibraryForAddress(String macAddress, boolean notify) {
         synchronized(metadataMutex) {
-            //remove the songs for the specified address by assembling a new list
-            // and map with all songs except those for that address
-            List<SongMetadata>   newList = new ArrayList<SongMetadata>();
-            Map<String, Integer> newMap  = new HashMap<String, Integer>();
-            for (SongMetadata song : metadataList) {
-                if (!song.getMacAddress().equals(macAddress)) {
-                    int nextInx = newList.size();
-                    newList.add(song);
-                    String key = SongMetadataUtils.getUniqueKey(song);
-                    newMap.put(key, nextInx);
-                }
-            }
-            //replace THE list and map with the new structures
-            metadataList = newList;
-            metadataMap = newMap;
+            removeSongsForAddress(macAddress);
         }
         if (notify) {
             notifyLibraryUpdated();
+            sendLibraryDelta(macAddress, true, new ArrayList<SongMetadata>(), null);
         }
     }
 
     /**
-     * Orders the song metadata and related map alphabetically by Artist,
-     * Album, and Title
+     * Add songs to the library, or replace existing entries for those songs.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     * 
+     * @param songs
      */
-    private void orderAlphabetically(){
-        synchronized(metadataMutex) {
-            //sort the metadata alphabetically
-            Collections.sort(metadataList, new AlphabeticalComparator());
-           
-            //recreate the map
-            Map<String, Integer> newMap  = new HashMap<String, Integer>();
-            for(int i=0; i<metadataList.size(); i++){
-                String key = SongMetadataUtils.getUniqueKey(metadataList.get(i));
-                newMap.put(key, i);
+    private void addOrReplaceSongs(Collection<SongMetadata> songs) {
+        for (SongMetadata song : songs) {
+            library.put(song);
+        }
+    }
+
+    /**
+     * Remove all songs that belong to the specified mac address.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     * 
+     * @param macAddress
+     */
+    private void removeSongsForAddress(String macAddress) {
+        library.removeOwner(macAddress);
+    }
+
+    /**
+     * Remove all songs except our own.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     */
+    private void removeOtherSongs() {
+        for (String macAddress : library.getOwners()) {
+            if (!macAddress.equals(this.myMacAddress)) {
+                removeSongsForAddress(macAddress);
             }
-            metadataMap = newMap;
         }
     }
 
-    public SongMetadata lookupSongByAddressAndId(String address, long songId) {
+    /**
+     * Group songs by the mac address of their owner, preserving order.
+     * 
+     * @param songs
+     * @return
+     */
+    private Map<String, List<SongMetadata>> groupByAddress(Collection<SongMetadata> songs) {
+        Map<String, List<SongMetadata>> groups = new LinkedHashMap<String, List<SongMetadata>>();
+        for (SongMetadata song : songs) {
+            List<SongMetadata> group = groups.get(song.getMacAddress());
+            if (group == null) {
+                group = new ArrayList<SongMetadata>();
+                groups.put(song.getMacAddress(), group);
+            }
+            group.add(song);
+        }
+        return groups;
+    }
+
+    /**
+     * Find the copies of a song in the library: songs with the same content,
+     * which may be owned by different users.
+     * 
+     * @param song
+     * @return The copies of the song, including the song itself, or an empty list
+     * if there are no other copies.
+     */
+    public List<SongMetadata> getCopies(SongMetadata song) {
         synchronized(metadataMutex) {
-            //TODO: remove use of bluetoothutils...replace with reference to userlist or some other way
-            // of getting "my" address
-            String key = SongMetadataUtils.getUniqueKey(address, songId);
-            Integer inx = metadataMap.get(key);
-            return inx != null ? metadataList.get(inx) : null;
+            return Collections.unmodifiableList(library.getCopies(song));
         }
     }
-    private SongMetadata lookupMySongById(long songId) {
+
+    public SongMetadata lookupSongByAddressAndId(String address, long songId) {
         synchronized(metadataMutex) {
             //TODO: remove use of bluetoothutils...replace with reference to userlist or some other way
             // of getting "my" address
-            String key = SongMetadataUtils.getUniqueKey(myMacAddress, songId);
-            Integer inx = metadataMap.get(key);
-            return inx != null ? metadataList.get(inx) : null;
+            return library.get(address, songId);
         }
     }
-    private void sendSongData(String fromAddr, long songId) {
-        MediaStoreWrapper msw = new  MediaStoreWrapper(MusicLibraryService.this);
+    private void sendSongData(String fromAddr, long songId, long transferId, long fileOffset) {
+        sendSongBatch(fromAddr, new long[] {songId}, new long[] {transferId}, new int[] {0},
+                new long[] {fileOffset}, new long[] {IFileRangeMessage.TO_END_OF_FILE});
+    }
+
+    /**
+     * Send several songs to a host, in priority order (lowest first, and in request order
+     * for equal priorities).  Looking up the file paths and working out the checksums hits
+     * the disk, so this is done in the background, and each song is queued to send as soon
+     * as its checksums are ready.  The messenger sends queued songs one after another, so
+     * the first song is on its way while we work out the checksums for the rest.
+     */
+    private void sendSongBatch(final String fromAddr, final long[] songIds, final long[] transferIds,
+            final int[] priorities, final long[] fileOffsets, final long[] fileLengths) {
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                Map<Long, String> filePaths = new MediaStoreWrapper(MusicLibraryService.this).getSongFilePaths(songIds);
+                Integer[] order = new Integer[songIds.length];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                //NOTE: this sort is stable, so equal priorities stay in request order
+                Arrays.sort(order, new Comparator<Integer>() {
+
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                        int lp = priorities[lhs], rp = priorities[rhs];
+                        return lp < rp ? -1 : (lp == rp ? 0 : 1);
+                    }
+                });
+                for (int inx : order) {
+                    String filePath = filePaths.get(songIds[inx]);
+                    if (filePath == null) {
+                        Log.w(TAG, "Song not found: " + songIds[inx]);
+                        continue;
+                    }
+                    sendSongFile(fromAddr, songIds[inx], new File(filePath), transferIds[inx],
+                            fileOffsets[inx], fileLengths[inx]);
+                }
+            }
+        }, "Song Batch Thread").start();
+    }
+
+    /**
+     * Work out the checksums for one song, and queue it to send.
+     */
+    private void sendSongFile(String fromAddr, long songId, File songFile, long transferId,
+            long fileOffset, long fileLength) {
         try {
-            SongMetadata song = lookupMySongById(songId);
-            String filePath   = msw.getSongFilePath(song);
-            File   songFile   = new File(filePath);
-            getMessagingService().sendTransferSongMessage(fromAddr, songId, songFile.getName(), songFile.getCanonicalPath());
-        } catch (SongNotFoundException e) {
-            e.printStackTrace();
+            //the checksums let the host verify what it has received, so it can
+            // resume from the last good chunk if the transfer is interrupted
+            int[] checksums = ChunkChecksums.compute(songFile);
+            if (fileOffset < 0 || fileOffset > songFile.length()) {
+                Log.w(TAG, "Request for " + songFile + " at invalid offset " + fileOffset + ", sending the whole file");
+                fileOffset = 0;
+                fileLength = IFileRangeMessage.TO_END_OF_FILE;
+            }
+            if (fileLength < 0 || fileOffset + fileLength > songFile.length()) {
+                fileLength = IFileRangeMessage.TO_END_OF_FILE;
+            }
+            IMessagingService messagingService = getMessagingService();
+            if (messagingService != null) {
+                messagingService.sendTransferSongMessage(fromAddr, songId, songFile.getName(),
+                        songFile.getCanonicalPath(), transferId, fileOffset, fileLength, checksums);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Fingerprint our songs in the background, so a host can tell which of our songs
+     * it already has (see SongFingerprint).  The fingerprints are sent with our library,
+     * and if we're already connected when the pass finishes, they're sent as a library
+     * delta (to the guests if we're the host, or to the host if we're a guest).
+     * 
+     * @param songs
+     */
+    private void fingerprintLibrary(final List<SongMetadata> songs) {
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                Map<Long, String> filePaths = new MediaStoreWrapper(MusicLibraryService.this).listFilePaths();
+                List<SongMetadata> fingerprinted = new ArrayList<SongMetadata>();
+                for (SongMetadata song : songs) {
+                    String filePath = filePaths.get(song.getId());
+                    if (filePath == null) {
+                        continue;
+                    }
+                    //the library entries are shared, so update a copy and replace the entry
+                    SongMetadata copy = new SongMetadata(song.getId(), song.getTitle(), song.getArtist(),
+                            song.getAlbum(), song.getFileSize(), song.getMacAddress());
+                    try {
+                        copy.setFingerprint(SongFingerprint.compute(new File(filePath)));
+                        fingerprinted.add(copy);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to fingerprint " + filePath, e);
+                    }
+                }
+                //this sends the fingerprints to any connected guests
+                updateLibrary(fingerprinted, true);
+                IMessagingService messagingService = getMessagingService();
+                if (messagingService != null && !fingerprinted.isEmpty()) {
+                    //and this sends them to the host, if we have one
+                    messagingService.sendLibraryDeltaMessageToHost(myMacAddress, fingerprinted);
+                }
+                Log.i(TAG, "Fingerprinted " + fingerprinted.size() + " songs");
+            }
+        }, "Library Fingerprint Thread").start();
+    }
+
     private String getMyMac(){
         String myMac;
         UserListService userService = getUserListService();
@@ -370,9 +671,11 @@ public class MusicLibraryService extends Service {
     }
 
     public void clearExternalMusic() {
-        metadataList = getMyModifiableLibrary();
-        metadataMap.clear();
-        orderAlphabetically();
+        synchronized(metadataMutex) {
+            removeOtherSongs();
+            //we'll need a new snapshot from the next host
+            receivedLibrarySequence = LibraryMessage.NO_SEQUENCE;
+        }
         new LocalBroadcastIntent(ACTION_LIBRARY_UPDATED).send(this);
     }
 }
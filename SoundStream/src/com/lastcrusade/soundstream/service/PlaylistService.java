@@ -20,6 +20,7 @@
 package com.lastcrusade.soundstream.service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -41,6 +42,8 @@ import com.lastcrusade.soundstream.manager.PlaylistDataManager;
 import com.lastcrusade.soundstream.model.Playlist;
 import com.lastcrusade.soundstream.model.PlaylistEntry;
 import com.lastcrusade.soundstream.model.SongMetadata;
+import com.lastcrusade.soundstream.net.message.PlaylistMessage;
+import com.lastcrusade.soundstream.net.message.PlaylistPatchMessage;
 import com.lastcrusade.soundstream.service.MessagingService.MessagingServiceBinder;
 import com.lastcrusade.soundstream.service.MusicLibraryService.MusicLibraryServiceBinder;
 import com.lastcrusade.soundstream.util.BroadcastRegistrar;
@@ -147,6 +150,14 @@ public class PlaylistService extends Service {
 
     private int lastEntryId = 0;
 
+    /**
+     * Playlist versions.  The host assigns a version to each patch it sends
+     * to the guests, and a guest tracks the version of the last patch it applied
+     * (or NO_VERSION if it is waiting for a snapshot from the host).
+     */
+    private int sentPlaylistVersion     = 0;
+    private int receivedPlaylistVersion = PlaylistMessage.NO_VERSION;
+
     @Override
     public IBinder onBind(Intent intent) {
         messagingServiceLocator = new ServiceLocator<MessagingService>(
@@ -174,6 +185,8 @@ public class PlaylistService extends Service {
     @Override
     public boolean onUnbind(Intent intent) {
         unregisterReceivers();
+        //stop playing, and close the streaming server
+        this.mAudioPlayer.release();
         messagingServiceLocator.unbind();
         return super.onUnbind(intent);
     }
@@ -193,8 +206,7 @@ public class PlaylistService extends Service {
                 //want to set the flag until after the song has been played
                 if (currentEntry != null) {
                     currentEntry.setPlayed(true);
-                    getMessagingService()
-                        .sendSongStatusMessage(currentEntry);
+                    sendPlaylistPatch(PlaylistPatchMessage.OP_STATUS, currentEntry);
                     currentEntry = null;
                 }
                 // automatically play the next song, but only if we're not paused
@@ -224,6 +236,8 @@ public class PlaylistService extends Service {
                         context
                 );
                 isLocalPlayer = false;
+                //wait for the new host to send us the playlist
+                receivedPlaylistVersion = PlaylistMessage.NO_VERSION;
                 stopDataManager();
             }
         })
@@ -243,7 +257,8 @@ public class PlaylistService extends Service {
         .addLocalAction(ConnectionService.ACTION_GUEST_CONNECTED, new IBroadcastActionHandler() {
             @Override
             public void onReceiveAction(Context context, Intent intent) {
-                getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
+                String guestMac = intent.getStringExtra(ConnectionService.EXTRA_GUEST_ADDRESS);
+                sendPlaylistSnapshot(guestMac);
                 if (currentEntry != null) {
                     getMessagingService().sendPlayStatusMessage(currentEntry, mThePlayer.isPlaying());
                 }
@@ -254,7 +269,13 @@ public class PlaylistService extends Service {
             public void onReceiveAction(Context context, Intent intent){
                 String guestMac = (String) intent.getExtras().get(ConnectionService.EXTRA_GUEST_ADDRESS);
                 mDataManager.cleanRemotelyLoadedFiles(guestMac);
-                mPlaylist.removeSongsByMac(guestMac);
+                List<PlaylistEntry> removed = mPlaylist.removeSongsByMac(guestMac);
+                if (!removed.isEmpty()) {
+                    int[] ops = new int[removed.size()];
+                    Arrays.fill(ops, PlaylistPatchMessage.OP_REMOVE);
+                    sendPlaylistPatch(ops, removed);
+                    updateLoadSchedule();
+                }
             }
         })
         .addLocalAction(MessagingService.ACTION_PLAY_STATUS_MESSAGE, new IBroadcastActionHandler() {
@@ -372,7 +393,6 @@ public class PlaylistService extends Service {
                 //call removeSong in all cases...it will handle the case where the song to be removed
                 // is the current song
                 removeSong(entry);
-                getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
             }
         })
         .addLocalAction(MessagingService.ACTION_PLAYLIST_UPDATED_MESSAGE, new IBroadcastActionHandler() {
@@ -384,18 +404,36 @@ public class PlaylistService extends Service {
                 }
                 List<PlaylistEntry> newList =
                         intent.getParcelableArrayListExtra(MessagingService.EXTRA_PLAYLIST_ENTRY);
-                mPlaylist.clear();
-                for (PlaylistEntry entry : newList) {
-                    mPlaylist.add(entry);
-                    //if the entry has an id assigned, check to see if it's greater than
-                    // our last id...if so, we want to keep this updated because if we become
-                    // host (from guest), we need to make sure we don't reuse ids.
-                    lastEntryId = Math.max(lastEntryId, entry.getEntryId());
+                int version = intent.getIntExtra(MessagingService.EXTRA_PLAYLIST_VERSION, PlaylistMessage.NO_VERSION);
+                applyPlaylistSnapshot(version, newList);
+            }
+        })
+        .addLocalAction(MessagingService.ACTION_PLAYLIST_PATCH_MESSAGE, new IBroadcastActionHandler() {
+
+            @Override
+            public void onReceiveAction(Context context, Intent intent) {
+                if (isLocalPlayer) {
+                    Log.wtf(TAG, "Received PlaylistPatchMessage as host...these messages are only for guests");
                 }
-                if (mPlaylist.isEmpty()) {
-                    stop();
+                List<PlaylistEntry> entries =
+                        intent.getParcelableArrayListExtra(MessagingService.EXTRA_PLAYLIST_ENTRY);
+                int   version   = intent.getIntExtra(     MessagingService.EXTRA_PLAYLIST_VERSION, PlaylistMessage.NO_VERSION);
+                int[] ops       = intent.getIntArrayExtra(MessagingService.EXTRA_PATCH_OPS);
+                int[] positions = intent.getIntArrayExtra(MessagingService.EXTRA_PATCH_POSITIONS);
+                if (!applyPlaylistPatch(version, ops, positions, entries)) {
+                    //we missed a patch...ask the host for the whole playlist
+                    getMessagingService().sendRequestPlaylistMessage();
                 }
-                new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(PlaylistService.this);
+            }
+        })
+        .addLocalAction(MessagingService.ACTION_REQUEST_PLAYLIST_MESSAGE, new IBroadcastActionHandler() {
+
+            @Override
+            public void onReceiveAction(Context context, Intent intent) {
+                if (!isLocalPlayer) {
+                    Log.wtf(TAG, "Received RequestPlaylistMessage on guest...these messages are only for hosts");
+                }
+                sendPlaylistSnapshot(intent.getStringExtra(MessagingService.EXTRA_ADDRESS));
             }
         })
         .addLocalAction(MessagingService.ACTION_SONG_STATUS_MESSAGE, new IBroadcastActionHandler() {
@@ -458,7 +496,7 @@ public class PlaylistService extends Service {
 
     protected void startDataManager() {
         if (mDataManager == null) {
-            mDataManager       = new PlaylistDataManager(PlaylistService.this, messagingServiceLocator);
+            mDataManager       = new PlaylistDataManager(PlaylistService.this, messagingServiceLocator, musicLibraryLocator);
             mDataManagerThread = new Thread(mDataManager, PlaylistDataManager.class.getSimpleName() + " Thread");
             mDataManagerThread.start();
         }
@@ -501,6 +539,7 @@ public class PlaylistService extends Service {
                 //we have stuff to play...play it and send a notification
                 if (play) {
                     this.mThePlayer.play();
+                    updateLoadSchedule();
                 }
             }
         }
@@ -523,6 +562,8 @@ public class PlaylistService extends Service {
             // that they should check this before calling
             Log.e(TAG, "Cannot set next song.  Playlist is empty");
         } else {
+            //the order before the next song moves to the played songs
+            List<PlaylistEntry> before = mPlaylist.getSongsToPlay();
             PlaylistEntry song = mPlaylist.getNextAvailableSong();
             //we've reached the end of the playlist...reset it to the beginning and try again
             if (song == null) {
@@ -542,6 +583,10 @@ public class PlaylistService extends Service {
                 //we have a song available to play...play it!
                 this.currentEntry = song;
                 this.mAudioPlayer.setSong(song);
+                //the song may have been moved ahead of songs that are still loading
+                if (before.indexOf(song) != mPlaylist.indexOf(song)) {
+                    sendPlaylistPatch(PlaylistPatchMessage.OP_MOVE, song);
+                }
                 //the song has been set...indicate this in the return value
                 songSet = true;
             }
@@ -553,6 +598,14 @@ public class PlaylistService extends Service {
      * 
      */
     private void resetPlaylist() {
+        //remember which entries were played, so we can tell the guests
+        // that they're not played anymore
+        List<PlaylistEntry> played = new ArrayList<PlaylistEntry>();
+        for (PlaylistEntry entry : mPlaylist.getSongsToPlay()) {
+            if (entry.isPlayed()) {
+                played.add(entry);
+            }
+        }
         mPlaylist.reset();
         if (isLocalPlayer) {
             //we may need to re-add entries to the data manager, for remote
@@ -562,15 +615,22 @@ public class PlaylistService extends Service {
                 Log.i(TAG, entry + " is loaded? " + entry.isLoaded());
                 mDataManager.addToLoadQueue(entry);
             }
+            updateLoadSchedule();
+        }
+        //send a message to the guests with the changes
+        // NOTE: reset does not change the order of the playlist
+        if (!played.isEmpty()) {
+            int[] ops = new int[played.size()];
+            Arrays.fill(ops, PlaylistPatchMessage.OP_STATUS);
+            sendPlaylistPatch(ops, played);
         }
-        //send a message to the guests with the new playlist
-        getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
     }
 
     public void clearPlaylist() {
         mThePlayer.stop();
         mPlaylist.clear();
         lastEntryId = 0;
+        receivedPlaylistVersion = PlaylistMessage.NO_VERSION;
         currentEntry = null;
         new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
     }
@@ -605,20 +665,21 @@ public class PlaylistService extends Service {
         //NOTE: the entries are shared between the playlist and the data loader...the loader
         // will load data into the same objects that are held in the playlist
         
-        entry.setEntryId(++lastEntryId);
-        mPlaylist.add(entry);
         if (isLocalPlayer) {
+            entry.setEntryId(++lastEntryId);
+            mPlaylist.add(entry);
             mDataManager.addToLoadQueue(entry);
+            updateLoadSchedule();
             new LocalBroadcastIntent(ACTION_SONG_ADDED).putExtra(EXTRA_SONG,
                     entry).send(this);
             // send an intent to the fragments that the playlist is updated
             new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
 
-            // send a message to the guests with the new playlist
-            getMessagingService().sendPlaylistMessage(
-                    mPlaylist.getSongsToPlay());
+            // send a message to the guests with the new entry
+            sendPlaylistPatch(PlaylistPatchMessage.OP_INSERT, entry);
         } else {
-            // send a message to the host to add this song
+            // send a message to the host to add this song...the host assigns the
+            // entry id, and will send the new entry back to us in a playlist patch
             getMessagingService().sendAddToPlaylistMessage(entry);
         }
     }
@@ -626,17 +687,19 @@ public class PlaylistService extends Service {
     public void removeSong(PlaylistEntry entry) {
        
         if (entry != null) {
-            //remove the entry in all cases, to make sure the local app reflects the user's choice
-            mPlaylist.remove(entry);
-            //broadcast the fact that a song has been removed
-            new LocalBroadcastIntent(ACTION_SONG_REMOVED)
-                .putExtra(EXTRA_SONG, entry)
-                .send(this);
-            
-            //broadcast the fact that the playlist has been updated
-            new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
-            
             if (isLocalPlayer) {
+                PlaylistEntry removed = mPlaylist.remove(entry);
+                //broadcast the fact that a song has been removed
+                new LocalBroadcastIntent(ACTION_SONG_REMOVED)
+                    .putExtra(EXTRA_SONG, entry)
+                    .send(this);
+
+                //broadcast the fact that the playlist has been updated
+                new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
+
+                //stop loading the song, if it's not here yet
+                mDataManager.cancelLoad(entry);
+                updateLoadSchedule();
                 //if the playlist is empty, stop playback
                 if (mPlaylist.isEmpty()) {
                     stop();
@@ -644,10 +707,14 @@ public class PlaylistService extends Service {
                     //otherwise, we may need to just skip the current entry (if it was removed)
                     skip();
                 }
-                //send a message to the guests with the new playlist
-                getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
+                //send a message to the guests to remove the entry
+                if (removed != null) {
+                    sendPlaylistPatch(PlaylistPatchMessage.OP_REMOVE, removed);
+                }
             } else {
-                //send a message to the host to remove this song
+                //send a message to the host to remove this song...the host sends the removal
+                // back to us in a playlist patch.  We don't remove it here first, because the
+                // positions in the host's patches are positions in the host's playlist.
                 getMessagingService().sendRemoveFromPlaylistMessage(entry);
             }
         } else {
@@ -672,16 +739,146 @@ public class PlaylistService extends Service {
     public void bumpSong(PlaylistEntry entry){
         if (isLocalPlayer) {
             mPlaylist.bumpSong(entry);
+            //load the bumped song ahead of the others
+            updateLoadSchedule();
             
             new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
-            //send a message to the guests with the new playlist
-            getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
+            //send a message to the guests with the new position
+            sendPlaylistPatch(PlaylistPatchMessage.OP_MOVE, entry);
         } else {
             //send a message to the host to bump this song
             getMessagingService().sendBumpSongOnPlaylistMessage(entry);
         }
     }
     
+    /**
+     * Tell the data manager the order songs will play in, so it can load
+     * the songs that are needed first.
+     */
+    private void updateLoadSchedule() {
+        if (isLocalPlayer && mDataManager != null) {
+            mDataManager.setPlayOrder(mPlaylist.getSongsToPlay(), currentEntry,
+                    currentEntry != null ? mAudioPlayer.getRemainingTime() : -1);
+        }
+    }
+
+    /**
+     * Send a change to the playlist out to the guests.
+     * 
+     * @param op The patch operation (see PlaylistPatchMessage)
+     * @param entry
+     */
+    private void sendPlaylistPatch(int op, PlaylistEntry entry) {
+        sendPlaylistPatch(new int[] {op}, Collections.singletonList(entry));
+    }
+
+    /**
+     * Send a change to the playlist out to the guests.  Only the entries
+     * that changed are sent, not the whole playlist.
+     * 
+     * NOTE: this must be called after the change is made to the playlist, as
+     * the positions sent are the positions of the entries in the changed playlist.
+     * 
+     * @param ops The patch operation for each entry (see PlaylistPatchMessage)
+     * @param entries
+     */
+    private void sendPlaylistPatch(int[] ops, List<PlaylistEntry> entries) {
+        int[] positions = new int[entries.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = Math.max(mPlaylist.indexOf(entries.get(i)), 0);
+        }
+        getMessagingService().sendPlaylistPatchMessageToGuests(
+                ++sentPlaylistVersion, ops, positions, entries);
+    }
+
+    /**
+     * Send a snapshot of the playlist to a guest.
+     * 
+     * @param address
+     */
+    private void sendPlaylistSnapshot(String address) {
+        getMessagingService().sendPlaylistMessageToGuest(
+                address, mPlaylist.getSongsToPlay(), sentPlaylistVersion);
+    }
+
+    /**
+     * Apply a snapshot of the playlist sent by the host.
+     * 
+     * @param version The version of the playlist
+     * @param newList
+     */
+    private void applyPlaylistSnapshot(int version, List<PlaylistEntry> newList) {
+        mPlaylist.clear();
+        for (PlaylistEntry entry : newList) {
+            mPlaylist.add(entry);
+            //if the entry has an id assigned, check to see if it's greater than
+            // our last id...if so, we want to keep this updated because if we become
+            // host (from guest), we need to make sure we don't reuse ids.
+            lastEntryId = Math.max(lastEntryId, entry.getEntryId());
+        }
+        receivedPlaylistVersion = version;
+        if (mPlaylist.isEmpty()) {
+            stop();
+        }
+        new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
+    }
+
+    /**
+     * Apply a playlist patch sent by the host.  Patches must be applied in order; a
+     * patch that is already included in our playlist is ignored, and a gap in the
+     * versions means we need a new snapshot.
+     * 
+     * @param version
+     * @param ops
+     * @param positions
+     * @param entries
+     * @return False if this patch is out of sequence, and a snapshot must be requested.
+     */
+    private boolean applyPlaylistPatch(int version, int[] ops, int[] positions, List<PlaylistEntry> entries) {
+        //we're either waiting for a snapshot, or we already have this patch
+        if (receivedPlaylistVersion == PlaylistMessage.NO_VERSION || version <= receivedPlaylistVersion) {
+            return true;
+        }
+        if (version != receivedPlaylistVersion + 1) {
+            Log.w(TAG, "Missed playlist patch (expected " + (receivedPlaylistVersion + 1) + ", received " + version + ")");
+            //wait for a new snapshot
+            receivedPlaylistVersion = PlaylistMessage.NO_VERSION;
+            return false;
+        }
+        receivedPlaylistVersion = version;
+        for (int i = 0; i < ops.length; i++) {
+            PlaylistEntry patch = entries.get(i);
+            if (ops[i] == PlaylistPatchMessage.OP_INSERT) {
+                mPlaylist.add(positions[i], patch);
+                lastEntryId = Math.max(lastEntryId, patch.getEntryId());
+                continue;
+            }
+            PlaylistEntry entry = mPlaylist.findEntryByAddressIdAndEntry(
+                    patch.getMacAddress(), patch.getId(), patch.getEntryId());
+            if (entry == null) {
+                Log.w(TAG, "Playlist patch for an entry that is not in our playlist: " + patch);
+                continue;
+            }
+            switch (ops[i]) {
+            case PlaylistPatchMessage.OP_REMOVE:
+                mPlaylist.remove(entry);
+                break;
+            case PlaylistPatchMessage.OP_MOVE:
+                mPlaylist.move(entry, positions[i]);
+                break;
+            case PlaylistPatchMessage.OP_STATUS:
+                entry.setLoaded(patch.isLoaded());
+                entry.setPlayed(patch.isPlayed());
+                break;
+            }
+        }
+        if (mPlaylist.isEmpty()) {
+            stop();
+        }
+        new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
+        return true;
+    }
+
     public PlaylistEntry getCurrentEntry(){
         return currentEntry;
     }
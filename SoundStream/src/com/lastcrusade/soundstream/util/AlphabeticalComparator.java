@@ -21,8 +21,6 @@ package com.lastcrusade.soundstream.util;
 
 import java.util.Comparator;
 
-import android.util.Log;
-
 import com.lastcrusade.soundstream.model.SongMetadata;
 
 /**
@@ -30,50 +28,15 @@ import com.lastcrusade.soundstream.model.SongMetadata;
  * Compares song metadata based on an alphabetical ordering.
  * 
  * Songs are ordered first by Artist, then by Album, and then
- * by Title
+ * by Title, with fields that start with a letter before fields
+ * that do not.  The comparison uses the sort key cached in each
+ * song (see SongSortKey).
  *
  */
 public class AlphabeticalComparator implements Comparator<SongMetadata> {
 
     @Override
     public int compare(SongMetadata songA, SongMetadata songB) {
-        
-        //compare the songs by artist - if they are the same, check album
-        int artistComp = compareStringsWithSpecialChars(songA.getArtist(), songB.getArtist());
-        if(artistComp!=0){
-            return artistComp;
-        }
-        
-        //compare the songs by album - if they are the same, check title
-        int albumComp  = compareStringsWithSpecialChars(songA.getAlbum(), songB.getAlbum());
-        if(albumComp!=0){
-            return albumComp;
-        }
-        
-        //compare the songs by title
-        int titleComp  = compareStringsWithSpecialChars(songA.getTitle(), songB.getTitle());
-        return titleComp;
-
-    }
-    
-    private int compareStringsWithSpecialChars(String a, String b){
-        int comp = a.compareTo(b);
-        
-        //only check for special characters if they are not the same
-        if(comp != 0){
-            // doing it this way instead of just passing in the first character
-            // in case we want to handle more than just the first character
-            String firstA = a.substring(0, 1);
-            String firstB = b.substring(0, 1);
-            
-            if(!firstA.matches("[a-zA-Z]") && firstB.matches("[a-zA-Z]")){
-                comp = 1;
-            }
-            else if(firstA.matches("[a-zA-Z]") && !firstB.matches("[a-zA-Z]")){
-                comp = -1;
-            }
-        }
-        
-        return comp;
+        return songA.getSortKey().compareTo(songB.getSortKey());
     }
 }
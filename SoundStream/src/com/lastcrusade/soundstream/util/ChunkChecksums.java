@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums for fixed size chunks of a file.  These are sent along with a
+ * song transfer, so the receiver can tell how much of a partial transfer
+ * arrived intact and resume from there.
+ * 
+ * Chunk i covers bytes [i * CHUNK_BYTES, (i + 1) * CHUNK_BYTES) of the whole
+ * file, and the last chunk may be short.  Each checksum is a CRC32, truncated
+ * to an int.
+ * 
+ */
+public class ChunkChecksums {
+
+    public static final int CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * Compute the checksums for every chunk in a file.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static int[] compute(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            int[] checksums = new int[getChunkCount(size)];
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+            CRC32 crc = new CRC32();
+            for (int ii = 0; ii < checksums.length; ii++) {
+                if (!readChunk(channel, (long) ii * CHUNK_BYTES, getChunkLength(ii, size), buffer)) {
+                    throw new IOException(file + " changed while computing checksums");
+                }
+                checksums[ii] = crc32(buffer, crc);
+            }
+            return checksums;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Verify data received for part of a file, and return how much of it is intact.
+     * 
+     * Only whole chunks count, and verification stops at the first chunk that does
+     * not match, so the result is always a safe place to resume from.
+     * 
+     * @param channel The channel that holds the received data.
+     * @param channelPosition The position in the channel of the first received byte.
+     * @param fileOffset The position in the whole file of the first received byte.  This must
+     * be on a chunk boundary.
+     * @param length The number of bytes received.
+     * @param fileSize The size of the whole file.
+     * @param checksums The checksums for the whole file.
+     * @return The number of bytes, starting at fileOffset, that match their checksums.
+     * @throws IOException
+     */
+    public static long verify(FileChannel channel, long channelPosition, long fileOffset, long length,
+            long fileSize, int[] checksums) throws IOException {
+        if (fileOffset % CHUNK_BYTES != 0) {
+            throw new IllegalArgumentException("Offset " + fileOffset + " is not on a chunk boundary");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+        CRC32 crc = new CRC32();
+        long verified = 0;
+        int chunk = (int) (fileOffset / CHUNK_BYTES);
+        while (chunk < checksums.length && chunk < getChunkCount(fileSize)) {
+            int chunkLength = getChunkLength(chunk, fileSize);
+            if (verified + chunkLength > length
+                    || !readChunk(channel, channelPosition + verified, chunkLength, buffer)
+                    || crc32(buffer, crc) != checksums[chunk]) {
+                break;
+            }
+            verified += chunkLength;
+            chunk++;
+        }
+        return verified;
+    }
+
+    /**
+     * @param fileSize
+     * @return The number of chunks in a file of fileSize bytes.
+     */
+    public static int getChunkCount(long fileSize) {
+        return (int) ((fileSize + CHUNK_BYTES - 1) / CHUNK_BYTES);
+    }
+
+    private static int getChunkLength(int chunk, long fileSize) {
+        return (int) Math.min(CHUNK_BYTES, fileSize - (long) chunk * CHUNK_BYTES);
+    }
+
+    /**
+     * Read a chunk into the buffer.
+     * 
+     * @return True if the whole chunk was read, false if the file is too short.
+     */
+    private static boolean readChunk(FileChannel channel, long position, int length,
+            ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int crc32(ByteBuffer buffer, CRC32 crc) {
+        crc.reset();
+        crc.update(buffer.array(), 0, buffer.position());
+        return (int) crc.getValue();
+    }
+}
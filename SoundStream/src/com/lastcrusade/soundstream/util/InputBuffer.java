@@ -18,30 +18,52 @@
  */
 package com.lastcrusade.soundstream.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 
 /**
  * This class represents an input buffer, which will collect bytes from a network
  * or another process and hold them for further processing.  To access the bytes,
- * one can use the underlying ByteArrayOutputStream functions, or get an input
- * stream that exposes the underlying byte array as a stream object.  This also
- * allows the caller to remove bytes consumed through the input stream, to keep
- * memory low and code clean.
+ * one can get an input stream that reads directly from the underlying buffer
+ * (no copy is made).  This also allows the caller to remove bytes consumed
+ * through the input stream, to keep memory low and code clean.
+ * 
+ * The bytes are held in a circular buffer, so consuming bytes only moves the
+ * start of the buffer forward instead of copying the unread bytes back to the
+ * front.  The buffer grows as needed, up to a maximum capacity.
  * 
  * @author Jesse Rosalia
  *
  */
-public class InputBuffer extends ByteArrayOutputStream {
+public class InputBuffer extends OutputStream {
+
+    public static final int DEFAULT_INITIAL_CAPACITY = 4096;
+
+    /**
+     * Default maximum capacity.  This is large enough to hold a serialized
+     * library message for a very large party, but will stop a broken stream
+     * from consuming all of our memory.
+     */
+    public static final int DEFAULT_MAX_CAPACITY = 16 * 1024 * 1024;
 
+    private byte[] buf;
+    private int    maxCapacity;
+    //position of the first unconsumed byte in buf
+    private int head  = 0;
+    //number of unconsumed bytes in buf
+    private int count = 0;
+    //number of bytes read (but not yet consumed) through the input stream
     private int index = 0;
-    
+
+    private InputBufferInputStream inputStream = new InputBufferInputStream();
+
     private class InputBufferInputStream extends InputStream {
 
         @Override
         public int available() throws IOException {
-            return size() - index;
+            return count - index;
         }
 
         @Override
@@ -59,37 +81,169 @@ public class InputBuffer extends ByteArrayOutputStream {
                 return -1;
             }
             int toCopy = Math.min(length, available());
-            System.arraycopy(buf, index, buffer, offset, toCopy);
+            copyOut(index, buffer, offset, toCopy);
             index += toCopy;
             return toCopy;
         }
+
         @Override
         public int read() throws IOException {
-            return index < size() ? buf[index++] : -1;
+            return index < count ? buf[wrap(head + index++)] & 0xFF : -1;
         }
+
+        @Override
+        public long skip(long n) throws IOException {
+            int toSkip = (int) Math.max(0, Math.min(n, available()));
+            index += toSkip;
+            return toSkip;
+        }
+    }
+
+    public InputBuffer() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity
+     * @param maxCapacity The most bytes this buffer will hold before throwing
+     * a BufferOverflowException.
+     */
+    public InputBuffer(int initialCapacity, int maxCapacity) {
+        if (initialCapacity <= 0 || initialCapacity > maxCapacity) {
+            throw new IllegalArgumentException("Invalid capacity: " + initialCapacity + ", max " + maxCapacity);
+        }
+        this.buf         = new byte[initialCapacity];
+        this.maxCapacity = maxCapacity;
+    }
+
+    @Override
+    public void write(int oneByte) {
+        ensureCapacity(count + 1);
+        buf[wrap(head + count)] = (byte) oneByte;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int len) {
+        if (offset < 0 || len < 0 || len > bytes.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        //copy in up to two segments, wrapping around the end of the buffer
+        int tail  = wrap(head + count);
+        int first = Math.min(len, buf.length - tail);
+        System.arraycopy(bytes, offset, buf, tail, first);
+        System.arraycopy(bytes, offset + first, buf, 0, len - first);
+        count += len;
+    }
+
+    /**
+     * @return The number of unconsumed bytes in this buffer.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The current capacity of the buffer.
+     */
+    public int capacity() {
+        return buf.length;
     }
-    
+
+    /**
+     * @return A copy of all of the unconsumed bytes in this buffer.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        copyOut(0, bytes, 0, count);
+        return bytes;
+    }
+
+    /**
+     * Discard all bytes held in this buffer.
+     */
+    public void reset() {
+        head  = 0;
+        count = 0;
+        index = 0;
+    }
+
     /**
      * Get an input stream to read in the underlying data.
      * 
      * This input stream will reset the internal index
      * pointer to 0, to start at the beginning of the
-     * byte array.
+     * unconsumed data.  The same stream object is returned
+     * on every call.
      */
     public InputStream getInputStream() {
         index = 0;
-        return new InputBufferInputStream();
+        return inputStream;
     }
 
     /**
-     * 
+     * Consume all bytes read in using the input stream.  This
+     * is a constant time operation.
      */
     public void consume() {
-        //consume all bytes read in using the input stream
-        byte[] save = super.buf;
-        int len = super.count;
-        super.reset();
-        write(save, index, len - index);
-        index = 0;
+        head   = wrap(head + index);
+        count -= index;
+        index  = 0;
+        if (count == 0) {
+            //keep writes contiguous when we can
+            head = 0;
+        }
+    }
+
+    private int wrap(int position) {
+        return position >= buf.length ? position - buf.length : position;
+    }
+
+    /**
+     * Read a big endian integer from the unconsumed bytes, without consuming it
+     * or moving the input stream.
+     * 
+     * @param start The number of bytes past the first unconsumed byte.
+     * @return The integer.
+     * @throws IndexOutOfBoundsException if the buffer does not hold all of its bytes.
+     */
+    public int peekInteger(int start) {
+        if (start < 0 || count - start < 4) {
+            throw new IndexOutOfBoundsException();
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (buf[wrap(head + start + i)] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Copy bytes out of the circular buffer, starting at start bytes past the head.
+     */
+    private void copyOut(int start, byte[] dest, int offset, int len) {
+        int from  = wrap(head + start);
+        int first = Math.min(len, buf.length - from);
+        System.arraycopy(buf, from, dest, offset, first);
+        System.arraycopy(buf, 0, dest, offset + first, len - first);
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= buf.length) {
+            return;
+        }
+        if (required > maxCapacity || required < 0) {
+            throw new BufferOverflowException();
+        }
+        int newCapacity = buf.length;
+        while (newCapacity < required) {
+            newCapacity = (int) Math.min((long) newCapacity * 2, maxCapacity);
+        }
+        //unwrap the data into the new buffer, so the head is back at 0
+        byte[] newBuf = new byte[newCapacity];
+        copyOut(0, newBuf, 0, count);
+        buf  = newBuf;
+        head = 0;
     }
 }
@@ -60,12 +60,24 @@ public class LocalBroadcastIntent extends Intent {
         return (LocalBroadcastIntent) super.putExtra(name, value);
     }
 
+    //Overridden to return BroadcastIntent, so we can chain method calls
+    @Override
+    public LocalBroadcastIntent putExtra(String name, int[] value) {
+        return (LocalBroadcastIntent) super.putExtra(name, value);
+    }
+
     //Overridden to return BroadcastIntent, so we can chain method calls
     @Override
     public LocalBroadcastIntent putExtra(String name, long value) {
         return (LocalBroadcastIntent) super.putExtra(name, value);
     }
 
+    //Overridden to return BroadcastIntent, so we can chain method calls
+    @Override
+    public LocalBroadcastIntent putExtra(String name, long[] value) {
+        return (LocalBroadcastIntent) super.putExtra(name, value);
+    }
+
     //Overridden to return BroadcastIntent, so we can chain method calls
     @Override
     public LocalBroadcastIntent putExtra(String name, String value) {
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A 64 bit fingerprint of a song file's content.  Guests send the fingerprint
+ * with each song in their library, so the host can tell if it already has a
+ * song before asking for it, and the host uses it to name the songs it keeps
+ * (see SongCache).
+ * 
+ * Reading every byte of every song in a library would take too long, so the
+ * fingerprint is an MD5 digest of the file size and three samples: the start,
+ * the middle and the end of the file.  Two copies of a song with different tags
+ * or a different encoding will have different fingerprints.
+ * 
+ */
+public class SongFingerprint {
+
+    /**
+     * The fingerprint of a song that has not been fingerprinted.  No file has this fingerprint.
+     */
+    public static final long NONE = 0;
+
+    private static final int SAMPLE_BYTES = 16 * 1024;
+
+    /**
+     * Compute the fingerprint of a file.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static long compute(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            MessageDigest digest = getDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_BYTES);
+            buffer.putLong(size);
+            digest.update(buffer.array(), 0, buffer.position());
+            if (size <= 3 * SAMPLE_BYTES) {
+                //small enough to use the whole file
+                for (long position = 0; position < size; position += SAMPLE_BYTES) {
+                    update(digest, channel, position, buffer);
+                }
+            } else {
+                update(digest, channel, 0, buffer);
+                update(digest, channel, (size - SAMPLE_BYTES) / 2, buffer);
+                update(digest, channel, size - SAMPLE_BYTES, buffer);
+            }
+            long fingerprint = ByteBuffer.wrap(digest.digest()).getLong();
+            //keep NONE free, to mean no fingerprint
+            return fingerprint != NONE ? fingerprint : 1;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param fingerprint
+     * @return The fingerprint as 16 hex digits, suitable for a file name.
+     */
+    public static String toHex(long fingerprint) {
+        return String.format("%016x", fingerprint);
+    }
+
+    /**
+     * Parse a fingerprint written by toHex.
+     * 
+     * @param hex
+     * @return The fingerprint, or NONE if hex is not a fingerprint.
+     */
+    public static long fromHex(String hex) {
+        if (hex.length() != 16) {
+            return NONE;
+        }
+        try {
+            //parse in two halves, as parseLong does not accept the top bit being set
+            return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Add up to one sample of the file, starting at position, to the digest.
+     */
+    private static void update(MessageDigest digest, FileChannel channel, long position,
+            ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            //MD5 is required on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numeric keys for songs, used in place of the string keys built by
+ * SongMetadataUtils#getUniqueKey so lookups do not allocate.
+ * 
+ * A song is identified by its owner key and its song id.  The owner key of a
+ * mac address (e.g. "00:11:22:33:44:55") is the 48 bit address itself.  Other
+ * owner strings, which we see for fake or default addresses, get a key from a
+ * registry, above the 48 bit range.  Each distinct string has its own key, so
+ * two owner keys are equal exactly when the strings are equal.
+ * 
+ */
+public final class SongKey {
+
+    private static final long MAC_BITS = 48;
+
+    /**
+     * The owner key of a null mac address.
+     */
+    public static final long NULL_OWNER = 1L << MAC_BITS;
+
+    private static final Map<String, Long> otherOwners = new HashMap<String, Long>();
+    private static long nextOtherOwner = NULL_OWNER + 1;
+
+    private SongKey() {
+        //not instantiable
+    }
+
+    /**
+     * @param macAddress
+     * @return The owner key for a mac address.
+     */
+    public static long ownerKey(String macAddress) {
+        if (macAddress == null) {
+            return NULL_OWNER;
+        }
+        long packed = packMac(macAddress);
+        return packed >= 0 ? packed : registerOwner(macAddress);
+    }
+
+    /**
+     * Pack a mac address written as six pairs of upper case hex digits,
+     * separated by colons.
+     * 
+     * @return The 48 bit address, or -1 if the string is not in that form.
+     */
+    static long packMac(String macAddress) {
+        if (macAddress.length() != 17) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = macAddress.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else {
+                //NOTE: lower case is not packed, so "aa" and "AA" stay different owners
+                return -1;
+            }
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    private static synchronized long registerOwner(String owner) {
+        Long key = otherOwners.get(owner);
+        if (key == null) {
+            key = nextOtherOwner++;
+            otherOwners.put(owner, key);
+        }
+        return key;
+    }
+
+    /**
+     * @param ownerKey
+     * @param songId
+     * @return A well mixed hash of a song key.
+     */
+    public static int hash(long ownerKey, long songId) {
+        long h = ownerKey * 0x9E3779B97F4A7C15L + songId;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A map from song keys (owner key and song id, see SongKey) to values.
+ * 
+ * The keys are kept in primitive arrays with open addressing (linear probing),
+ * so looking up a song does not allocate.
+ * 
+ * NOTE: this class is not thread safe.
+ *
+ * @param <V>
+ */
+public class SongKeyMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[]   owners;
+    private long[]   songIds;
+    private Object[] values;
+    private int size;
+
+    public SongKeyMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        owners  = new long[capacity];
+        songIds = new long[capacity];
+        values  = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(String macAddress, long songId) {
+        return get(SongKey.ownerKey(macAddress), songId);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long ownerKey, long songId) {
+        int slot = find(ownerKey, songId);
+        return slot >= 0 ? (V) values[slot] : null;
+    }
+
+    public V put(String macAddress, long songId, V value) {
+        return put(SongKey.ownerKey(macAddress), songId, value);
+    }
+
+    /**
+     * @param ownerKey
+     * @param songId
+     * @param value Must not be null
+     * @return The value that was replaced, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long ownerKey, long songId, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        int mask = values.length - 1;
+        int slot = SongKey.hash(ownerKey, songId) & mask;
+        while (values[slot] != null) {
+            if (owners[slot] == ownerKey && songIds[slot] == songId) {
+                V replaced = (V) values[slot];
+                values[slot] = value;
+                return replaced;
+            }
+            slot = (slot + 1) & mask;
+        }
+        owners[slot]  = ownerKey;
+        songIds[slot] = songId;
+        values[slot]  = value;
+        //keep the table at most half full, so probes stay short
+        if (++size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    public V remove(String macAddress, long songId) {
+        return remove(SongKey.ownerKey(macAddress), songId);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long ownerKey, long songId) {
+        int slot = find(ownerKey, songId);
+        if (slot < 0) {
+            return null;
+        }
+        V removed = (V) values[slot];
+        values[slot] = null;
+        size--;
+        //shift back the entries that probed past this slot, so lookups still find them
+        int mask = values.length - 1;
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int home = SongKey.hash(owners[next], songIds[next]) & mask;
+            //move the entry if its home is not between the empty slot and where it is
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                owners[slot]  = owners[next];
+                songIds[slot] = songIds[next];
+                values[slot]  = values[next];
+                values[next]  = null;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return removed;
+    }
+
+    /**
+     * @return A list of the values in the map, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> list = new ArrayList<V>(size);
+        for (Object value : values) {
+            if (value != null) {
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private int find(long ownerKey, long songId) {
+        int mask = values.length - 1;
+        int slot = SongKey.hash(ownerKey, songId) & mask;
+        while (values[slot] != null) {
+            if (owners[slot] == ownerKey && songIds[slot] == songId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        long[]   oldOwners  = owners;
+        long[]   oldSongIds = songIds;
+        Object[] oldValues  = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = SongKey.hash(oldOwners[i], oldSongIds[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                owners[slot]  = oldOwners[i];
+                songIds[slot] = oldSongIds[i];
+                values[slot]  = oldValues[i];
+            }
+        }
+    }
+}
@@ -19,11 +19,16 @@
 
 package com.lastcrusade.soundstream.util;
 
+import java.util.Locale;
+import java.util.regex.Pattern;
+
 import com.lastcrusade.soundstream.model.PlaylistEntry;
 import com.lastcrusade.soundstream.model.SongMetadata;
 
 public class SongMetadataUtils {
 
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
     /**
      * Create a unique key for this song.  This unique key consists of:
      *  Mac address (uniquely identifies a device)
@@ -40,6 +45,33 @@ public class SongMetadataUtils {
         return songSourceAddress.replace(":", "") + "_" + songId;
     }
 
+    /**
+     * Create a key for the content of a song, so copies of the same song on
+     * different devices have the same key.  This is the song's fingerprint if
+     * it has one (see SongFingerprint).  Otherwise, it's the song's title, artist
+     * and album, ignoring case and spacing, and its file size.
+     * 
+     * @param song
+     * @return The key, or null if the song has no fingerprint and no title.
+     */
+    public static String getContentKey(SongMetadata song) {
+        if (song.getFingerprint() != SongFingerprint.NONE) {
+            return SongFingerprint.toHex(song.getFingerprint());
+        }
+        if (song.getTitle() == null) {
+            return null;
+        }
+        return normalize(song.getTitle()) + "\n" + normalize(song.getArtist()) + "\n"
+                + normalize(song.getAlbum()) + "\n" + song.getFileSize();
+    }
+
+    private static String normalize(String field) {
+        if (field == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(field.trim()).replaceAll(" ").toLowerCase(Locale.US);
+    }
+
     public static boolean isTheSameSong(SongMetadata lhs, SongMetadata rhs) {
         return lhs.getMacAddress().equals(rhs.getMacAddress()) &&
                lhs.getId() == rhs.getId();
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.lastcrusade.soundstream.util;
+
+/**
+ * The key used to sort songs alphabetically (see AlphabeticalComparator).
+ * 
+ * Songs are ordered first by Artist, then by Album, and then by Title.  Each
+ * field is compared with String.compareTo, except that a field that starts with
+ * a letter (a-z or A-Z) comes before one that does not.  The letter test is
+ * done once, when the key is built, so comparing two keys is just a few string
+ * compares.
+ * 
+ * Null fields are sorted as empty strings, with the fields that do not start
+ * with a letter.
+ *
+ */
+public final class SongSortKey implements Comparable<SongSortKey> {
+
+    private final String artist;
+    private final String album;
+    private final String title;
+
+    //the bucket for each field: 0 if it starts with a letter, 1 if not
+    private final int artistBucket;
+    private final int albumBucket;
+    private final int titleBucket;
+
+    public SongSortKey(String artist, String album, String title) {
+        this.artist       = artist != null ? artist : "";
+        this.album        = album  != null ? album  : "";
+        this.title        = title  != null ? title  : "";
+        this.artistBucket = bucket(this.artist);
+        this.albumBucket  = bucket(this.album);
+        this.titleBucket  = bucket(this.title);
+    }
+
+    /**
+     * @param field
+     * @return 0 if the field starts with a letter (a-z or A-Z), 1 if it does not.
+     */
+    public static int bucket(String field) {
+        if (field != null && field.length() > 0) {
+            char first = field.charAt(0);
+            if ((first >= 'a' && first <= 'z') || (first >= 'A' && first <= 'Z')) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    @Override
+    public int compareTo(SongSortKey other) {
+        int comp = compareField(artistBucket, artist, other.artistBucket, other.artist);
+        if (comp != 0) {
+            return comp;
+        }
+        comp = compareField(albumBucket, album, other.albumBucket, other.album);
+        if (comp != 0) {
+            return comp;
+        }
+        return compareField(titleBucket, title, other.titleBucket, other.title);
+    }
+
+    /**
+     * Compare two fields by their buckets (see {@link #bucket(String)}), and then
+     * with String.compareTo.  Null fields are compared as empty strings.
+     */
+    public static int compareField(int bucketA, String a, int bucketB, String b) {
+        //letters first...equal strings are always in the same bucket
+        if (bucketA != bucketB) {
+            return bucketA - bucketB;
+        }
+        return (a != null ? a : "").compareTo(b != null ? b : "");
+    }
+}